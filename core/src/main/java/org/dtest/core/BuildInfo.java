@@ -47,6 +47,7 @@ public class BuildInfo extends Configurable implements Comparable<BuildInfo> {
   private String buildDirName;
   private File buildDir; // Directory the build will be done in
   private String label;
+  private TestHistory testHistory;
 
   /**
    *
@@ -103,6 +104,22 @@ public class BuildInfo extends Configurable implements Comparable<BuildInfo> {
     return src;
   }
 
+  /**
+   * Get the history of previous test runs.  The history is read the first time this is called.  You must call
+   * {@link #setConfig(Config)} and {@link #setLog(DTestLogger)} before calling this.
+   * @return test history
+   * @throws IOException if the history cannot be read.
+   */
+  public synchronized TestHistory getTestHistory() throws IOException {
+    if (testHistory == null) {
+      TestHistory history = new TestHistory();
+      history.setConfig(cfg).setLog(log);
+      history.load();
+      testHistory = history;
+    }
+    return testHistory;
+  }
+
   /**
    * Get the label for the build.
    * @return build label.
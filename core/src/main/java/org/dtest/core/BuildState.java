@@ -47,6 +47,11 @@ public class BuildState {
      */
     HAD_TIMEOUTS("the build ran to completion but some containers timed out"),
 
+    /**
+     * The build was stopped early because too many tests or containers failed.  The results are incomplete.
+     */
+    ABORTED("the build was stopped early because too many tests or containers failed"),
+
     /**
      * The build failed to complete.  The results are incomplete.
      */
@@ -118,6 +123,14 @@ public class BuildState {
     setStateIfNotAlreadyInHigherState(State.HAD_TIMEOUTS);
   }
 
+  /**
+   * Set the state to {@link State#ABORTED}.  This will override success, had failures, or had timeouts.  If the
+   * build has already failed this will be ignored.
+   */
+  public void abort() {
+    setStateIfNotAlreadyInHigherState(State.ABORTED);
+  }
+
   /**
    * Set the state to {@link State#FAILED}.  This will override success, had failures, or had timeouts.  If the build
    * has already timed out it will be ignored.
@@ -126,6 +139,15 @@ public class BuildState {
     setStateIfNotAlreadyInHigherState(State.FAILED);
   }
 
+  /**
+   * Set the state back to {@link State#SUCCEEDED} because every test that failed or had an error passed when it
+   * was rerun.  This only applies to {@link State#HAD_FAILURES_OR_ERRORS}, if the build has timed out, been aborted,
+   * or failed it will be ignored.
+   */
+  public synchronized void passedOnRerun() {
+    if (state == State.HAD_FAILURES_OR_ERRORS) state = State.SUCCEEDED;
+  }
+
   // synchronize this as multiple tasks can be reporting in at the same time.
   private synchronized void setStateIfNotAlreadyInHigherState(State newState) {
     // only set this if haven't seen a bigger issue
@@ -40,6 +40,31 @@ public abstract class CodeSource extends Configurable {
    */
   public abstract List<String> srcCommands(BuildYaml yaml) throws IOException;
 
+  /**
+   * Get the list of commands that should be executed during image creation to checkout a particular revision of the
+   * source code, as returned by {@link #resolveRevision(BuildYaml)}.  The default implementation ignores the revision
+   * and returns {@link #srcCommands(BuildYaml)}.
+   * @param yaml Yaml build information
+   * @param revision revision to check out
+   * @return list of shell commands
+   * @throws IOException if the implementing class does not have enough information to generate the commands.
+   */
+  public List<String> srcCommands(BuildYaml yaml, String revision) throws IOException {
+    return srcCommands(yaml);
+  }
+
+  /**
+   * Find the exact revision that {@link #srcCommands(BuildYaml)} would check out, such as the commit a branch
+   * currently points to.  This is done from this machine before the image is built, so that an image already built
+   * from the same revision can be reused.  The default implementation returns null, meaning this source cannot tell.
+   * @param yaml Yaml build information
+   * @return revision, or null if it cannot be determined.
+   * @throws IOException if the source cannot be reached.
+   */
+  public String resolveRevision(BuildYaml yaml) throws IOException {
+    return null;
+  }
+
   /**
    * A list of package names that must be included in the container image in order for this source control system
    * to work.  These are rpm or deb packages that must be installed in the container.
@@ -54,6 +79,48 @@ public abstract class CodeSource extends Configurable {
    */
   public abstract String getDefaultBranch();
 
+  /**
+   * Get a shell command that lists the files that differ between a base reference and the code being built, one
+   * per line, relative to the project directory.  The command is run in a container from the project directory.
+   * This is used to run only the tests affected by a change.  The default implementation returns null, meaning
+   * this source cannot tell what changed.
+   * @param yaml Yaml build information
+   * @param baseRef reference to compare against, such as a branch or a commit.  If null the implementation should
+   *                compare against its default branch.
+   * @return shell command, or null if changed files cannot be determined.
+   */
+  public String changedFilesCommand(BuildYaml yaml, String baseRef) {
+    return null;
+  }
+
+  /**
+   * Get the list of commands that move an existing checkout to a different revision, fetching whatever it needs.
+   * These are run in the project directory of an image built earlier, so that an image for a new revision can be
+   * layered on the image of an older one.  The default implementation returns null, meaning this source cannot
+   * update a checkout.
+   * @param yaml Yaml build information
+   * @param revision revision to check out, as returned by {@link #resolveRevision(BuildYaml)}
+   * @return list of shell commands, or null if this is not supported.
+   */
+  public List<String> updateCommands(BuildYaml yaml, String revision) {
+    return null;
+  }
+
+  /**
+   * Get a shell command that lists the files that differ between two revisions, one per line, relative to the
+   * project directory.  Unlike {@link #changedFilesCommand(BuildYaml, String)} this is every difference between
+   * the two, so that a build of the first revision can be brought up to date with the second.  The command is run
+   * from the project directory after {@link #updateCommands(BuildYaml, String)}.  The default implementation
+   * returns null, meaning this source cannot tell what changed.
+   * @param yaml Yaml build information
+   * @param fromRevision revision an earlier image was built from
+   * @param toRevision revision being built
+   * @return shell command, or null if changed files cannot be determined.
+   */
+  public String diffCommand(BuildYaml yaml, String fromRevision, String toRevision) {
+    return null;
+  }
+
   static CodeSource getInstance(Config cfg, DTestLogger log) throws IOException {
     CodeSource cs = Utils.getInstance(cfg.getAsClass(CodeSource.CFG_CODESOURCE_IMPL, CodeSource.class, GitSource.class));
     cs.setConfig(cfg).setLog(log);
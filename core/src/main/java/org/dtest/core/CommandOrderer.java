@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2018 Hortonworks Inc.
+ *
+ * Licenced under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dtest.core;
+
+import org.dtest.core.impl.Utils;
+import org.dtest.core.order.RuntimeCommandOrderer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * CommandOrderer decides the order in which {@link ContainerCommand}s are handed to the containers.  Containers are
+ * started in the order returned, so putting the commands that take the longest first keeps them from stretching
+ * out the end of the build.
+ */
+public abstract class CommandOrderer extends Configurable {
+
+  /**
+   * Class to use to order the commands.  Defaults to
+   * {@link org.dtest.core.order.RuntimeCommandOrderer}.
+   */
+  public static final String CFG_COMMANDORDERER_IMPL = "dtest.core.commandorderer.impl";
+
+  /**
+   * Orders commands by their expected runtime, longest first.  Commands whose runtime is not known are put before
+   * all others, since there is no way to know they are not the longest.
+   */
+  protected static final Comparator<ContainerCommand> LONGEST_FIRST = (a, b) -> {
+    if (a.getExpectedRuntime() == 0 && b.getExpectedRuntime() == 0) return 0;
+    if (a.getExpectedRuntime() == 0) return -1;
+    if (b.getExpectedRuntime() == 0) return 1;
+    return Long.compare(b.getExpectedRuntime(), a.getExpectedRuntime());
+  };
+
+  /**
+   * Order the commands.  The sort is stable, so commands the comparator considers equal stay in the order the
+   * {@link ContainerCommandFactory} created them in.
+   * @param cmds commands to order.  This list is not modified.
+   * @return commands in the order they should be run.
+   */
+  public List<ContainerCommand> order(List<ContainerCommand> cmds) {
+    List<ContainerCommand> ordered = new ArrayList<>(cmds);
+    ordered.sort(comparator());
+    if (log.isDebugEnabled()) {
+      for (ContainerCommand cmd : ordered) {
+        log.debug("Will run " + cmd.containerSuffix() + " with expected runtime " + cmd.getExpectedRuntime() +
+            (cmd.isIsolated() ? " (isolated)" : ""));
+      }
+    }
+    return ordered;
+  }
+
+  /**
+   * Get the comparator that determines the order.
+   * @return comparator, commands that compare lower are run first.
+   */
+  protected abstract Comparator<ContainerCommand> comparator();
+
+  static CommandOrderer getInstance(Config cfg, DTestLogger log) throws IOException {
+    CommandOrderer orderer = Utils.getInstance(cfg.getAsClass(CFG_COMMANDORDERER_IMPL, CommandOrderer.class,
+        RuntimeCommandOrderer.class));
+    orderer.setConfig(cfg).setLog(log);
+    log.debug("Instantiated CommandOrderer of type " + orderer.getClass().getName());
+    return orderer;
+  }
+}
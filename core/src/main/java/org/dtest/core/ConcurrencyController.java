@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2018 Hortonworks Inc.
+ *
+ * Licenced under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dtest.core;
+
+import com.google.common.annotations.VisibleForTesting;
+import org.dtest.core.impl.HostLoad;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Controls how many containers run at once.  By default this is fixed at
+ * {@link DockerTest#CFG_DOCKERTEST_NUMCONTAINERS}.  If {@link #CFG_CONCURRENCYCONTROLLER_ADAPTIVE} is set the
+ * controller periodically samples the load on the build machine and raises or lowers the limit, between
+ * {@link #CFG_CONCURRENCYCONTROLLER_MIN} and {@link #CFG_CONCURRENCYCONTROLLER_MAX}, to keep the CPU near
+ * {@link #CFG_CONCURRENCYCONTROLLER_TARGETCPU} without running out of memory or saturating the disks.
+ *
+ * <p>Each container must call {@link #acquire()} before it starts and {@link #release()} when it is done.  Lowering
+ * the limit does not stop running containers, it just keeps new ones from starting until enough have finished.</p>
+ */
+public class ConcurrencyController extends Configurable {
+
+  /**
+   * Whether to adjust the number of containers based on load.  Defaults to false.
+   */
+  public static final String CFG_CONCURRENCYCONTROLLER_ADAPTIVE = "dtest.core.concurrencycontroller.adaptive";
+  private static final boolean CFG_CONCURRENCYCONTROLLER_ADAPTIVE_DEFAULT = false;
+
+  /**
+   * Fewest containers to run at once when adaptive.  Defaults to 1.
+   */
+  public static final String CFG_CONCURRENCYCONTROLLER_MIN = "dtest.core.concurrencycontroller.min";
+  private static final int CFG_CONCURRENCYCONTROLLER_MIN_DEFAULT = 1;
+
+  /**
+   * Most containers to run at once when adaptive.  Defaults to twice the number of processors.
+   */
+  public static final String CFG_CONCURRENCYCONTROLLER_MAX = "dtest.core.concurrencycontroller.max";
+
+  /**
+   * CPU utilization, as a percentage, to aim for.  Defaults to 80.
+   */
+  public static final String CFG_CONCURRENCYCONTROLLER_TARGETCPU = "dtest.core.concurrencycontroller.targetcpu";
+  private static final int CFG_CONCURRENCYCONTROLLER_TARGETCPU_DEFAULT = 80;
+
+  /**
+   * Memory utilization, as a percentage, above which the number of containers will be reduced.  Defaults to 90.
+   */
+  public static final String CFG_CONCURRENCYCONTROLLER_MAXMEMORY = "dtest.core.concurrencycontroller.maxmemory";
+  private static final int CFG_CONCURRENCYCONTROLLER_MAXMEMORY_DEFAULT = 90;
+
+  /**
+   * Percentage of CPU time spent waiting on IO above which the number of containers will be reduced.  Defaults
+   * to 20.
+   */
+  public static final String CFG_CONCURRENCYCONTROLLER_MAXIOWAIT = "dtest.core.concurrencycontroller.maxiowait";
+  private static final int CFG_CONCURRENCYCONTROLLER_MAXIOWAIT_DEFAULT = 20;
+
+  /**
+   * How often to sample the load.  Defaults to 15 seconds.
+   */
+  public static final String CFG_CONCURRENCYCONTROLLER_INTERVAL = "dtest.core.concurrencycontroller.interval";
+  private static final long CFG_CONCURRENCYCONTROLLER_INTERVAL_DEFAULT = 15;
+
+  // How far CPU has to be from the target before we act, to avoid flapping
+  private static final double CPU_BAND = 0.1;
+
+  private final HostLoad hostLoad;
+  private AdjustableSemaphore permits;
+  private ScheduledExecutorService sampler;
+  private int min, max, limit;
+  private double targetCpu, maxMemory, maxIowait;
+  private volatile int running;
+  private volatile boolean waiting;
+
+  public ConcurrencyController() {
+    this(new HostLoad());
+  }
+
+  @VisibleForTesting
+  ConcurrencyController(HostLoad hostLoad) {
+    this.hostLoad = hostLoad;
+  }
+
+  /**
+   * Set up the limits and, if adaptive, start sampling the load.  Must be called after {@link #setConfig(Config)}
+   * and {@link #setLog(DTestLogger)}.
+   * @param initial number of containers to start with, usually {@link DockerTest#CFG_DOCKERTEST_NUMCONTAINERS}.
+   */
+  public void start(int initial) {
+    boolean adaptive = cfg.getAsBoolean(CFG_CONCURRENCYCONTROLLER_ADAPTIVE, CFG_CONCURRENCYCONTROLLER_ADAPTIVE_DEFAULT);
+    if (adaptive && !hostLoad.isAvailable()) {
+      log.warn("Unable to read the load on this machine, running a fixed " + initial + " containers at a time");
+      adaptive = false;
+    }
+    if (adaptive) {
+      min = Math.max(1, cfg.getAsInt(CFG_CONCURRENCYCONTROLLER_MIN, CFG_CONCURRENCYCONTROLLER_MIN_DEFAULT));
+      max = Math.max(min, cfg.getAsInt(CFG_CONCURRENCYCONTROLLER_MAX, 2 * Runtime.getRuntime().availableProcessors()));
+      limit = Math.min(max, Math.max(min, initial));
+    } else {
+      min = max = limit = initial;
+    }
+    targetCpu = cfg.getAsInt(CFG_CONCURRENCYCONTROLLER_TARGETCPU, CFG_CONCURRENCYCONTROLLER_TARGETCPU_DEFAULT) / 100.0;
+    maxMemory = cfg.getAsInt(CFG_CONCURRENCYCONTROLLER_MAXMEMORY, CFG_CONCURRENCYCONTROLLER_MAXMEMORY_DEFAULT) / 100.0;
+    maxIowait = cfg.getAsInt(CFG_CONCURRENCYCONTROLLER_MAXIOWAIT, CFG_CONCURRENCYCONTROLLER_MAXIOWAIT_DEFAULT) / 100.0;
+    permits = new AdjustableSemaphore(limit);
+    if (adaptive) {
+      log.info("Adapting number of containers to load, starting with " + limit + ", min " + min + ", max " + max +
+          ", target CPU " + Math.round(targetCpu * 100) + "%");
+      long interval = cfg.getAsTime(CFG_CONCURRENCYCONTROLLER_INTERVAL, TimeUnit.SECONDS,
+          CFG_CONCURRENCYCONTROLLER_INTERVAL_DEFAULT);
+      sampler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "dtest-concurrency-controller");
+        t.setDaemon(true);
+        return t;
+      });
+      sampler.scheduleWithFixedDelay(() -> {
+        try {
+          adjust(hostLoad.sample());
+        } catch (IOException | RuntimeException e) {
+          log.warn("Failed to sample load, leaving number of containers at " + limit, e);
+        }
+      }, 0, interval, TimeUnit.SECONDS);
+    }
+  }
+
+  /**
+   * Stop sampling the load.
+   */
+  public void stop() {
+    if (sampler != null) sampler.shutdownNow();
+  }
+
+  /**
+   * Get the most containers that will ever be run at once.  The thread pool running the containers needs to be at
+   * least this big.
+   * @return maximum containers
+   */
+  public int getMax() {
+    return max;
+  }
+
+  /**
+   * Get the current limit on the number of containers.
+   * @return current limit
+   */
+  public synchronized int getLimit() {
+    return limit;
+  }
+
+  /**
+   * Wait until another container is allowed to start.
+   * @throws InterruptedException if interrupted while waiting.
+   */
+  public void acquire() throws InterruptedException {
+    if (permits.availablePermits() <= 0) waiting = true;
+    permits.acquire();
+    synchronized (this) {
+      running++;
+    }
+  }
+
+  /**
+   * Note that a container has finished.
+   */
+  public void release() {
+    synchronized (this) {
+      running--;
+    }
+    permits.release();
+  }
+
+  /**
+   * Decide whether to change the limit based on a load sample.
+   * @param sample current load
+   */
+  @VisibleForTesting
+  synchronized void adjust(HostLoad.Sample sample) {
+    String reason;
+    int newLimit = limit;
+    if (sample.memory > maxMemory) {
+      newLimit = limit - 1;
+      reason = "memory above " + Math.round(maxMemory * 100) + "%";
+    } else if (sample.iowait > maxIowait) {
+      newLimit = limit - 1;
+      reason = "iowait above " + Math.round(maxIowait * 100) + "%";
+    } else if (sample.cpu > targetCpu + CPU_BAND) {
+      newLimit = limit - 1;
+      reason = "CPU above target";
+    } else if (sample.cpu < targetCpu - CPU_BAND) {
+      // Only add containers if we're using the ones we've got, otherwise there's nothing to gain
+      if (running >= limit || waiting) {
+        newLimit = limit + 1;
+        reason = "CPU below target";
+      } else {
+        reason = "CPU below target but only " + running + " of " + limit + " containers in use";
+      }
+    } else {
+      reason = "CPU near target";
+    }
+    newLimit = Math.max(min, Math.min(max, newLimit));
+    waiting = false;
+    if (newLimit > limit) {
+      permits.release(newLimit - limit);
+      log.info("Raising number of containers from " + limit + " to " + newLimit + ", " + reason + " (" + sample + ")");
+    } else if (newLimit < limit) {
+      permits.reducePermits(limit - newLimit);
+      log.info("Lowering number of containers from " + limit + " to " + newLimit + ", " + reason + " (" + sample + ")");
+    } else {
+      log.info("Keeping number of containers at " + limit + ", " + reason + " (" + sample + ")");
+    }
+    limit = newLimit;
+  }
+
+  // Semaphore hides reducePermits, which is what we need to lower the limit without waiting for containers to finish
+  private static class AdjustableSemaphore extends Semaphore {
+    AdjustableSemaphore(int permits) {
+      super(permits, true);
+    }
+
+    @Override
+    protected void reducePermits(int reduction) {
+      super.reducePermits(reduction);
+    }
+  }
+}
@@ -120,6 +120,17 @@ public class Config {
     return getAsInt(key, 0);
   }
 
+  /**
+   * Get a configuration value as a boolean.
+   * @param key properties key
+   * @param defaultVal default value to return if the key is not set
+   * @return properties value
+   */
+  public boolean getAsBoolean(String key, boolean defaultVal) {
+    String val = entries.getProperty(key);
+    return val == null ? defaultVal : Boolean.parseBoolean(val.trim());
+  }
+
   /**
    * Get the value as a time.
    * @param key key to look up
@@ -19,6 +19,10 @@ import org.dtest.core.docker.DockerContainerClient;
 import org.dtest.core.impl.Utils;
 
 import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * ContainerClient handles interactions with the container system.
@@ -43,7 +47,17 @@ public abstract class ContainerClient extends Configurable {
   public static final String CFG_CONTAINERCLIENT_IMAGEBUILDTIME = "dtest.core.containerclient.imagebuildtime";
   protected static final long CFG_CONTAINERCLIENT_IMAGEBUILDTIME_DEFAULT = 30 * 60;
 
+  /**
+   * Number of lines at the end of a container's output to keep in memory.  The whole output is written to a file
+   * and only read back when it is needed, see {@link ContainerOutput}.  Defaults to 100.
+   */
+  public static final String CFG_CONTAINERCLIENT_OUTPUTTAIL = "dtest.core.containerclient.outputtail";
+  protected static final int CFG_CONTAINERCLIENT_OUTPUTTAIL_DEFAULT = 100;
+
   protected BuildInfo buildInfo;
+  private ResultAnalyzer analyzer;
+  // Commands that have been killed, so that one that has not started yet never does
+  private final Set<ContainerCommand> killed = ConcurrentHashMap.newKeySet();
 
   /**
    * Pass in the build information.  This must be called before any of the other calls.
@@ -54,6 +68,22 @@ public abstract class ContainerClient extends Configurable {
     this.buildInfo = buildInfo;
   }
 
+  /**
+   * Start collecting the output of a command.  Implementations should pass what the command writes to stdout to
+   * this as it arrives and close it once the command has finished, rather than keeping the output in memory.  The
+   * analyzer set with {@link #setResultAnalyzer(ResultAnalyzer)}, if any, listens to the output.
+   * @param cmd command that is about to be run
+   * @return output for the command, in a file named after the command.
+   * @throws IOException if the file cannot be created
+   */
+  protected ContainerOutput captureOutput(ContainerCommand cmd) throws IOException {
+    ContainerOutput output = new ContainerOutput(ContainerOutput.fileFor(Utils.buildContainerName(buildInfo.getLabel(),
+        cmd.containerSuffix())), cfg.getAsInt(CFG_CONTAINERCLIENT_OUTPUTTAIL, CFG_CONTAINERCLIENT_OUTPUTTAIL_DEFAULT));
+    LineListener listener = analyzer == null ? null : analyzer.listenTo(cmd);
+    if (listener != null) output.addListener(listener);
+    return output;
+  }
+
   /**
    * Return the directory in the container that commands should operate in.  Note that this refers to a directory
    * in the container, not on the build machine.
@@ -88,6 +118,28 @@ public abstract class ContainerClient extends Configurable {
   public abstract void fetchTestReports(ContainerResult result, ResultAnalyzer analyzer, Reporter reporter, String[] additionalLogs)
       throws IOException;
 
+  /**
+   * Tell the client where commands leave their test reports and additional logs.  This is called before any
+   * containers are run, so that a client that can collect the reports while a container runs can set that up.  The
+   * default implementation does nothing, leaving
+   * {@link #fetchTestReports(ContainerResult, ResultAnalyzer, Reporter, String[])} to find them afterwards.
+   * @param testResultsDir directory test reports are written to, relative to the command's directory.  See
+   *                       {@link ResultAnalyzer#getTestResultsDir()}.
+   * @param additionalLogs project specific log files, relative to the command's directory.
+   */
+  public void setReportPaths(String testResultsDir, String[] additionalLogs) {
+  }
+
+  /**
+   * Tell the client which analyzer will analyze the results, so that the output of each command can be passed to
+   * the analyzer's {@link ResultAnalyzer#listenTo(ContainerCommand)} listener as it arrives.  This is called before
+   * any containers are run for tests.  Commands run before this is called are not listened to.
+   * @param analyzer analyzer for this build
+   */
+  public void setResultAnalyzer(ResultAnalyzer analyzer) {
+    this.analyzer = analyzer;
+  }
+
   /**
    * Remove a container.
    * @param result results from running the container
@@ -95,6 +147,121 @@ public abstract class ContainerClient extends Configurable {
    */
   public abstract void removeContainer(ContainerResult result) throws IOException;
 
+  /**
+   * Remove several containers.  Implementations should do this in as few calls as they can.  The default
+   * implementation calls {@link #removeContainer(ContainerResult)} for each one.
+   * @param results results from running the containers
+   * @throws IOException if the remove fails
+   */
+  public void removeContainers(List<ContainerResult> results) throws IOException {
+    for (ContainerResult result : results) removeContainer(result);
+  }
+
+  /**
+   * Remove containers left behind by an earlier build that did not get to clean up after itself, such as one that
+   * crashed.  These are found by name, containers are named by {@link Utils#buildContainerName(String, String)}.
+   * Any that are still running are killed.  The default implementation does nothing.
+   * @param prefix start of the names of the containers to remove
+   * @return names of the containers that were removed
+   * @throws IOException if the containers cannot be found or removed
+   */
+  public List<String> removeOrphans(String prefix) throws IOException {
+    return Collections.emptyList();
+  }
+
+  /**
+   * Kill the container running a command.  This is used to stop the build early.  The call to
+   * {@link #runContainer(ContainerCommand)} or {@link #runInWorker(String, ContainerCommand)} for the command should
+   * return shortly afterwards with whatever results the command had produced.  The command may not have started yet,
+   * in which case it should not be started at all, see {@link #markKilled(ContainerCommand)}.  The default
+   * implementation does nothing, leaving the container to run to completion.
+   * @param cmd command whose container should be killed.
+   * @throws IOException if the container cannot be killed.
+   */
+  public void killContainer(ContainerCommand cmd) throws IOException {
+    log.warn("Unable to kill container for " + cmd.containerSuffix() + ", it will run to completion");
+  }
+
+  /**
+   * Remember that a command has been killed.  Implementations of {@link #killContainer(ContainerCommand)} should call
+   * this before looking for the command's container, and the methods that run commands should call
+   * {@link #checkNotKilled(ContainerCommand, ContainerOutput)} after recording the command as running, so that a kill
+   * either finds the container or keeps it from starting.
+   * @param cmd command that has been killed.
+   */
+  protected void markKilled(ContainerCommand cmd) {
+    killed.add(cmd);
+  }
+
+  /**
+   * @param cmd command
+   * @return true if the command has been killed.
+   */
+  protected boolean isKilled(ContainerCommand cmd) {
+    return killed.contains(cmd);
+  }
+
+  /**
+   * Check that a command has not been killed before starting its container.
+   * @param cmd command about to be started.
+   * @param output output captured for the command, which is deleted if the command has been killed.  May be null.
+   * @throws IOException if the command has been killed.
+   */
+  protected void checkNotKilled(ContainerCommand cmd, ContainerOutput output) throws IOException {
+    if (!isKilled(cmd)) return;
+    if (output != null) output.delete();
+    throw new IOException("Not starting " + cmd.containerSuffix() + ", it has been killed");
+  }
+
+  /**
+   * Start a long lived worker container that will run a number of commands, one after another, via
+   * {@link #runInWorker(String, ContainerCommand)}.  The default implementation does not start anything, and
+   * runs each command in its own container.  Subclasses that can run several commands in one container should
+   * override this and the other worker methods.
+   * @param workerName name of the worker, unique in this build.
+   * @return handle to the worker, to pass to the other worker methods.
+   * @throws IOException if the worker fails to start.
+   */
+  public String startWorker(String workerName) throws IOException {
+    return workerName;
+  }
+
+  /**
+   * Run a command in a worker started by {@link #startWorker(String)}.  The result can be passed to
+   * {@link #fetchTestReports(ContainerResult, ResultAnalyzer, Reporter, String[])} just like the results of
+   * {@link #runContainer(ContainerCommand)}.  The default implementation calls runContainer.
+   * @param worker worker handle
+   * @param cmd command to run
+   * @return results from the command
+   * @throws IOException if the command fails to run
+   */
+  public ContainerResult runInWorker(String worker, ContainerCommand cmd) throws IOException {
+    return runContainer(cmd);
+  }
+
+  /**
+   * Get the worker ready for the next command once the results of the last one have been fetched.  Implementations
+   * must remove any test reports and logs the last command left behind so they are not picked up again.  The
+   * default implementation removes the container, if the build is cleaning up after itself.
+   * @param worker worker handle
+   * @param result result of the last command run in the worker
+   * @param analyzer ResultAnalyzer used to analyze the results
+   * @param additionalLogs list of additional logs fetched from the container, may be null.
+   * @throws IOException if the worker cannot be reset
+   */
+  public void resetWorker(String worker, ContainerResult result, ResultAnalyzer analyzer, String[] additionalLogs)
+      throws IOException {
+    if (buildInfo.shouldCleanupAfter()) removeContainer(result);
+  }
+
+  /**
+   * Stop a worker.  The default implementation does nothing.
+   * @param worker worker handle
+   * @throws IOException if the worker cannot be stopped
+   */
+  public void stopWorker(String worker) throws IOException {
+  }
+
   /**
    * Remove the docker image
    * @throws IOException if the remove fails
@@ -31,6 +31,9 @@ public abstract class ContainerCommand extends Configurable {
    */
   protected final ModuleDirectory moduleDir;
 
+  private long expectedRuntime;
+  private boolean isolated;
+
   public ContainerCommand() {
     this(null);
   }
@@ -47,6 +50,39 @@ public abstract class ContainerCommand extends Configurable {
     return moduleDir;
   }
 
+  /**
+   * Get how long this command is expected to take to run.
+   * @return expected runtime in seconds, or 0 if it is not known.
+   */
+  public long getExpectedRuntime() {
+    return expectedRuntime;
+  }
+
+  /**
+   * Set how long this command is expected to take to run.  This is set by the {@link ContainerCommandFactory} and
+   * used by the {@link CommandOrderer}.
+   * @param expectedRuntime expected runtime in seconds, 0 if it is not known.
+   */
+  public void setExpectedRuntime(long expectedRuntime) {
+    this.expectedRuntime = expectedRuntime;
+  }
+
+  /**
+   * Whether this command runs tests that were isolated in the yaml file because they cannot share a container.
+   * @return true if the tests are isolated
+   */
+  public boolean isIsolated() {
+    return isolated;
+  }
+
+  /**
+   * Mark this command as running isolated tests.
+   * @param isolated whether the tests are isolated
+   */
+  public void setIsolated(boolean isolated) {
+    this.isolated = isolated;
+  }
+
   /**
    * Get a unique suffix for the container name for this command.  This must return the same value
    * every time for a given instance.  The name must be unique, and it must be a valid docker
@@ -22,6 +22,8 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * ContainerCommandFactory builds a list of {@link ContainerCommand}s.  It also provides information for
@@ -35,6 +37,36 @@ public abstract class ContainerCommandFactory extends Configurable {
   public static final String CFG_CONTAINERCOMMANDFACTORY_TESTSPERCONTAINER = "dtest.core.containercommandfactory.testspercontainer";
   protected static final int CFG_CONTAINERCOMMANDFACTORY_TESTSPERCONTAINER_DEFAULT = 10;
 
+  /**
+   * Target runtime for each container when splitting tests.  If this is set, tests are packed into containers based
+   * on their expected runtime rather than by {@link #CFG_CONTAINERCOMMANDFACTORY_TESTSPERCONTAINER}.  Defaults to 0,
+   * which means tests are packed by count.
+   */
+  public static final String CFG_CONTAINERCOMMANDFACTORY_CONTAINERRUNTIME = "dtest.core.containercommandfactory.containerruntime";
+  protected static final long CFG_CONTAINERCOMMANDFACTORY_CONTAINERRUNTIME_DEFAULT = 0;
+
+  /**
+   * Expected runtime of a test when there is no better information available.  Only used when packing tests by
+   * runtime.  Defaults to 1 minute.
+   */
+  public static final String CFG_CONTAINERCOMMANDFACTORY_DEFAULTTESTRUNTIME = "dtest.core.containercommandfactory.defaulttestruntime";
+  protected static final long CFG_CONTAINERCOMMANDFACTORY_DEFAULTTESTRUNTIME_DEFAULT = 60;
+
+  /**
+   * Whether to only run tests in directories affected by the change being built.  The files that differ from
+   * {@link #CFG_CONTAINERCOMMANDFACTORY_BASEREF} are found using {@link CodeSource#changedFilesCommand(BuildYaml, String)},
+   * and directories that nothing changed in or depends on are dropped.  Only supported by the Maven based
+   * factories.  Defaults to false.
+   */
+  public static final String CFG_CONTAINERCOMMANDFACTORY_CHANGEDONLY = "dtest.core.containercommandfactory.changedonly";
+  protected static final boolean CFG_CONTAINERCOMMANDFACTORY_CHANGEDONLY_DEFAULT = false;
+
+  /**
+   * Reference to compare against to find the changed files when {@link #CFG_CONTAINERCOMMANDFACTORY_CHANGEDONLY}
+   * is set, such as a branch or a commit.  Defaults to the default branch of the {@link CodeSource}.
+   */
+  public static final String CFG_CONTAINERCOMMANDFACTORY_BASEREF = "dtest.core.containercommandfactory.baseref";
+
   /**
    * Implementation that builds commands to run in the container.  Defaults to simple maven builder.
    */
@@ -59,6 +91,31 @@ public abstract class ContainerCommandFactory extends Configurable {
    */
   public abstract List<String> getInitialBuildCommand();
 
+  /**
+   * Get the build command for bringing an image built from an earlier revision up to date.  This is run after the
+   * source has been moved to the new revision, and should only rebuild what the changed files affect.  The default
+   * implementation returns an empty list, meaning this factory cannot build incrementally, in which case the image
+   * is always built from scratch with {@link #getInitialBuildCommand()}.
+   * @param changedFilesCommand shell command that lists the files changed since the earlier revision, one per line,
+   *                            relative to the project directory.
+   * @return commands to run, in the project directory.
+   */
+  public List<String> getIncrementalBuildCommand(String changedFilesCommand) {
+    return Collections.emptyList();
+  }
+
+  /**
+   * Get commands that download the project's dependencies.  These are run against the source in a layer of the
+   * image ahead of the build.  That layer only changes when the source location or these commands do, so docker
+   * reuses it from one build to the next and the build itself finds most of what it needs already downloaded.
+   * Failures are ignored, since this is only a head start.  The default implementation returns an empty list, in
+   * which case there is no such layer.
+   * @return commands to run, in the project directory.
+   */
+  public List<String> getDependencyCommands() {
+    return Collections.emptyList();
+  }
+
   /**
    * Get a list of packages required to use the commands in this factory.  These are rpm or deb packages that need
    * to be installed in the container as part of the image.
@@ -75,6 +132,23 @@ public abstract class ContainerCommandFactory extends Configurable {
     return cmds;
   }
 
+  /**
+   * Build commands to rerun tests that failed or had errors.  This is called after all of the commands from
+   * {@link #buildContainerCommands(ContainerClient, BuildInfo)} have been run.  The default implementation returns
+   * an empty list, meaning this factory does not know how to rerun individual tests.
+   * @param containerClient container client, in case any containers are needed for determining
+   *                        commands to run.
+   * @param buildInfo information for this build
+   * @param failedTests tests to rerun, keyed by the command that originally ran them.  Test names are in the form
+   *                    returned by {@link ResultAnalyzer#getFailed()}.
+   * @return commands that will rerun the tests.
+   * @throws IOException unable to generate command list.
+   */
+  public List<ContainerCommand> buildRerunCommands(ContainerClient containerClient, BuildInfo buildInfo,
+                                                   Map<ContainerCommand, Set<String>> failedTests) throws IOException {
+    return Collections.emptyList();
+  }
+
   /**
    * Get a list of additional commands to run in the Docker image build.  These will be run after all the packages
    * have been installed and before the user is added.  This is useful for installing packages that don't have a
@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2018 Hortonworks Inc.
+ *
+ * Licenced under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dtest.core;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * ContainerOutput collects what a command run in a container writes to stdout.  Each line is written to a file as
+ * it arrives and only the last few lines are kept in memory, so a container that produces a lot of output does not
+ * fill up the heap.  Once the container has finished the whole output can be read back from the file.  Anything
+ * that needs to see the output as it arrives can add a {@link LineListener}.
+ */
+public class ContainerOutput implements Closeable {
+  private static final String FILE_PREFIX = "dtest-output-";
+
+  private final File file;
+  private final int tailLines;
+  private final Deque<String> tail;
+  private final List<LineListener> listeners = new CopyOnWriteArrayList<>();
+  private Writer writer;
+
+  /**
+   * Start capturing the output of a container.
+   * @param file file to write the output to.  Anything already in it is overwritten.
+   * @param tailLines number of lines at the end of the output to keep in memory.
+   * @throws IOException if the file cannot be created.
+   */
+  public ContainerOutput(File file, int tailLines) throws IOException {
+    this.file = file;
+    this.tailLines = Math.max(0, tailLines);
+    tail = new ArrayDeque<>(this.tailLines);
+    writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Get the file the output of a container is written to.
+   * @param containerName name of the container, see
+   *                      {@link org.dtest.core.impl.Utils#buildContainerName(String, String)}
+   * @return handle to the file, which may not exist yet.
+   */
+  public static File fileFor(String containerName) {
+    return new File(System.getProperty("java.io.tmpdir"), FILE_PREFIX + containerName + ".log");
+  }
+
+  /**
+   * Remove output files left behind by an earlier build that did not get to clean up after itself.
+   * @param log logger
+   * @param containerPrefix start of the names of the containers whose output should be removed
+   * @return the files that were removed
+   */
+  public static List<File> removeFiles(DTestLogger log, String containerPrefix) {
+    String prefix = FILE_PREFIX + containerPrefix;
+    File[] files = new File(System.getProperty("java.io.tmpdir")).listFiles((dir, name) -> name.startsWith(prefix));
+    if (files == null) return Collections.emptyList();
+    List<File> removed = new ArrayList<>(files.length);
+    for (File file : files) {
+      if (file.delete()) removed.add(file);
+      else log.warn("Unable to delete file " + file);
+    }
+    return removed;
+  }
+
+  /**
+   * Add a listener to be told about each line of output added from now on.
+   * @param listener listener
+   * @return this
+   */
+  public ContainerOutput addListener(LineListener listener) {
+    listeners.add(listener);
+    return this;
+  }
+
+  /**
+   * Add a line of output.  It is passed on to the listeners once it has been written.
+   * @param line line, without the newline.
+   * @throws IOException if the line cannot be written to the file, or the output has already been closed.
+   */
+  public synchronized void addLine(String line) throws IOException {
+    if (writer == null) throw new IOException("Output in " + file + " has already been closed");
+    writer.write(line);
+    writer.write('\n');
+    if (tailLines > 0) {
+      if (tail.size() == tailLines) tail.removeFirst();
+      tail.addLast(line);
+    }
+    for (LineListener listener : listeners) listener.line(line);
+  }
+
+  /**
+   * Get the last lines of the output.  Unlike the rest of the output these are available without reading the file.
+   * @return the last lines, each followed by a newline.
+   */
+  public synchronized String getTail() {
+    StringBuilder buf = new StringBuilder();
+    for (String line : tail) buf.append(line).append('\n');
+    return buf.toString();
+  }
+
+  /**
+   * Open the output to read it a line at a time.  If the output is still being added to this sees whatever has been
+   * added so far.
+   * @return reader, which the caller must close.
+   * @throws IOException if the file cannot be opened.
+   */
+  public BufferedReader open() throws IOException {
+    flush();
+    return new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Read the entire output into memory.
+   * @return the output
+   * @throws IOException if the file cannot be read.
+   */
+  public String read() throws IOException {
+    flush();
+    return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Get the file the output is written to.
+   * @return handle to the file.
+   */
+  public File getFile() {
+    return file;
+  }
+
+  /**
+   * Finish writing the output.  It can still be read afterwards.
+   * @throws IOException if the file cannot be written.
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    if (writer != null) {
+      writer.close();
+      writer = null;
+    }
+  }
+
+  /**
+   * Close the output and remove the file.  Only the tail is available afterwards.
+   * @throws IOException if the file cannot be removed.
+   */
+  public void delete() throws IOException {
+    close();
+    if (file.exists() && !file.delete()) throw new IOException("Unable to delete file " + file);
+  }
+
+  private synchronized void flush() throws IOException {
+    if (writer != null) writer.flush();
+  }
+}
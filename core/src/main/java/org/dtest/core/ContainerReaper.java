@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2018 Hortonworks Inc.
+ *
+ * Licenced under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dtest.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Removes containers, the temporary directories their reports were fetched to, and the files their output was kept
+ * in, in the background, so that the threads running containers and processing their results never wait on
+ * cleanup.  Containers waiting to be removed are handed to the {@link ContainerClient} in batches of up to
+ * {@link #CFG_CONTAINERREAPER_BATCHSIZE}, so when removal falls behind it catches up with fewer, larger calls.  The
+ * reaper also removes containers and temporary files left behind by an earlier build with the same label that did
+ * not get to clean up after itself.
+ *
+ * <p>Call {@link #start(int)} before handing it anything and {@link #stop()} once everything has been handed to it.
+ * Failures are logged rather than failing the build, since the test results are already known by then.</p>
+ */
+public class ContainerReaper extends Configurable {
+
+  /**
+   * Most containers to remove in one call to the container client.  Defaults to 20.
+   */
+  public static final String CFG_CONTAINERREAPER_BATCHSIZE = "dtest.core.containerreaper.batchsize";
+  private static final int CFG_CONTAINERREAPER_BATCHSIZE_DEFAULT = 20;
+
+  private static final long STOP_TIMEOUT = 60;
+
+  private final ContainerClient client;
+  private final LinkedBlockingQueue<ContainerResult> pending = new LinkedBlockingQueue<>();
+  private ExecutorService executor;
+  private CompletableFuture<Void> orphans = CompletableFuture.completedFuture(null);
+  private int batchSize;
+
+  public ContainerReaper(ContainerClient client) {
+    this.client = client;
+  }
+
+  /**
+   * Start the threads that do the removing.
+   * @param threads number of threads
+   */
+  public void start(int threads) {
+    batchSize = Math.max(1, cfg.getAsInt(CFG_CONTAINERREAPER_BATCHSIZE, CFG_CONTAINERREAPER_BATCHSIZE_DEFAULT));
+    final AtomicInteger threadNum = new AtomicInteger(0);
+    executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(),
+        r -> {
+          Thread t = new Thread(r, "dtest-reaper-" + threadNum.incrementAndGet());
+          t.setDaemon(true);
+          return t;
+        });
+  }
+
+  /**
+   * Start removing containers and temporary files left behind by an earlier build.  Anything the current
+   * build creates with the same names must wait for {@link #awaitOrphans()}.
+   * @param containerPrefix start of the names of the containers to remove, see
+   *                        {@link org.dtest.core.impl.Utils#buildContainerName(String, String)}
+   */
+  public void reapOrphans(String containerPrefix) {
+    orphans = CompletableFuture.runAsync(() -> {
+      try {
+        List<String> removed = client.removeOrphans(containerPrefix);
+        if (!removed.isEmpty()) log.info("Removed containers left behind by an earlier build: " + removed);
+      } catch (IOException e) {
+        log.warn("Failed to remove containers left behind by an earlier build", e);
+      }
+      List<File> removed = new ArrayList<>(TestReports.removeTempDirs(log, containerPrefix));
+      removed.addAll(ContainerOutput.removeFiles(log, containerPrefix));
+      if (!removed.isEmpty()) log.info("Removed files left behind by an earlier build: " + removed);
+    }, executor);
+  }
+
+  /**
+   * Wait for {@link #reapOrphans(String)} to finish.
+   */
+  public void awaitOrphans() {
+    try {
+      orphans.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      log.warn("Interrupted while removing containers left behind by an earlier build");
+    } catch (ExecutionException e) {
+      log.warn("Failed to remove containers left behind by an earlier build", e.getCause());
+    }
+  }
+
+  /**
+   * Remove a container once its reports have been fetched.  This returns straight away.
+   * @param result result of running the container
+   */
+  public void removeContainer(ContainerResult result) {
+    pending.add(result);
+    executor.execute(this::removeBatch);
+  }
+
+  /**
+   * Remove the temporary directory a container's reports were fetched to, once they have been analyzed.  This
+   * returns straight away.
+   * @param reports reports of the container
+   */
+  public void removeTempDir(TestReports reports) {
+    executor.execute(reports::cleanupTempDir);
+  }
+
+  /**
+   * Remove the file a container's output was kept in, once it has been analyzed.  This returns straight away.
+   * @param result result of running the container
+   */
+  public void removeOutput(ContainerResult result) {
+    executor.execute(() -> {
+      try {
+        result.discardOutput();
+      } catch (IOException e) {
+        log.warn("Failed to remove output of container " + result.getContainerName(), e);
+      }
+    });
+  }
+
+  /**
+   * Wait for everything handed to the reaper to be removed and stop its threads.
+   */
+  public void stop() {
+    executor.shutdown();
+    try {
+      if (!executor.awaitTermination(STOP_TIMEOUT, TimeUnit.MINUTES)) {
+        log.warn("Gave up waiting for " + pending.size() + " containers to be removed");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      log.warn("Interrupted while waiting for containers to be removed");
+    }
+  }
+
+  // Each container handed over schedules one of these, so by the time the later ones run earlier ones may have
+  // taken their containers with them and there is nothing left to do.
+  private void removeBatch() {
+    List<ContainerResult> batch = new ArrayList<>(batchSize);
+    pending.drainTo(batch, batchSize);
+    if (batch.isEmpty()) return;
+    try {
+      client.removeContainers(batch);
+    } catch (IOException e) {
+      List<String> names = new ArrayList<>(batch.size());
+      for (ContainerResult result : batch) names.add(result.getContainerName());
+      log.warn("Failed to remove containers " + names, e);
+    }
+  }
+}
@@ -15,6 +15,10 @@
  */
 package org.dtest.core;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+
 /**
  * ContainerResult tracks the result of running a container.
  */
@@ -23,7 +27,8 @@ public class ContainerResult {
 
   private final ContainerCommand cmd;
   private final int rc;
-  private final String stdout;
+  private final String stdout; // null when the output is in a file
+  private final ContainerOutput output;
   private final String containerName;
   private ContainerStatus analysisResult;
   private TestReports reports; // set by the ResultAnalyzer
@@ -40,6 +45,22 @@ public class ContainerResult {
     this.containerName = containerName;
     this.rc = rc;
     this.stdout = stdout;
+    output = null;
+  }
+
+  /**
+   *
+   * @param cmd the command run in the container.
+   * @param containerName name of the container;
+   * @param rc result code from running the command.
+   * @param output the output of the container as printed on stdout, which is kept in a file.
+   */
+  public ContainerResult(ContainerCommand cmd, String containerName, int rc, ContainerOutput output) {
+    this.cmd = cmd;
+    this.containerName = containerName;
+    this.rc = rc;
+    this.output = output;
+    stdout = null;
   }
 
   /**
@@ -59,11 +80,40 @@ public class ContainerResult {
   }
 
   /**
-   * Get the output from the container, concatenated together as one string
+   * Get the output from the container, concatenated together as one string.  If the output was kept in a file this
+   * reads all of it into memory, use {@link #readStdout()} to go through it a line at a time instead.
    * @return what the container sent to stdout.
+   * @throws IOException if the output cannot be read.
+   */
+  public String getStdout() throws IOException {
+    return output == null ? stdout : output.read();
+  }
+
+  /**
+   * Read the output from the container a line at a time.
+   * @return reader, which the caller must close.
+   * @throws IOException if the output cannot be read.
+   */
+  public BufferedReader readStdout() throws IOException {
+    return output == null ? new BufferedReader(new StringReader(stdout)) : output.open();
+  }
+
+  /**
+   * Get the last lines of the output from the container.  This does not need to read the output, so it is cheap
+   * even when the container produced a lot of output.  See {@link ContainerClient#CFG_CONTAINERCLIENT_OUTPUTTAIL}.
+   * @return the last lines, each followed by a newline.
+   */
+  public String getStdoutTail() {
+    return output == null ? stdout : output.getTail();
+  }
+
+  /**
+   * Remove the file the output was kept in, once it is no longer needed.  Only {@link #getStdoutTail()} works
+   * afterwards.  Does nothing if the output is not in a file.
+   * @throws IOException if the file cannot be removed.
    */
-  public String getStdout() {
-    return stdout;
+  public void discardOutput() throws IOException {
+    if (output != null) output.delete();
   }
 
   /**
@@ -23,16 +23,30 @@ import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.Option;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
+import org.dtest.core.impl.Utils;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
 
 /**
  * DockerTest is the main class.  It can be accessed via the command line or called from a tool.  If using from
@@ -46,6 +60,77 @@ public class DockerTest {
   public static final String CFG_DOCKERTEST_NUMCONTAINERS = "dtest.core.dockertest.numcontainers";
   private static final int CFG_DOCKERTEST_NUMCONTAINERS_DEFAULT = 2;
 
+  /**
+   * Whether to run tests in long lived worker containers.  If true, {@link #CFG_DOCKERTEST_NUMCONTAINERS} worker
+   * containers are started, and each runs container commands one after another until there are none left.  This
+   * saves the cost of starting a container for each command and lets faster workers pick up more of the work.  It
+   * works best with small numbers of tests per command.  When the {@link ConcurrencyController} lowers the number
+   * of containers, workers waiting above the new limit are stopped, and started again once it rises.  Defaults to
+   * false.
+   */
+  public static final String CFG_DOCKERTEST_USEWORKERS = "dtest.core.dockertest.useworkers";
+  private static final boolean CFG_DOCKERTEST_USEWORKERS_DEFAULT = false;
+
+  /**
+   * Number of container commands a worker runs before it is replaced by a fresh one, when
+   * {@link #CFG_DOCKERTEST_USEWORKERS} is set.  Workers are only reset between commands, so anything else a test
+   * leaves behind is seen by later commands in the same worker.  This bounds how much can build up.  A worker that
+   * cannot be reset is always replaced.  Defaults to 0, which means workers are never replaced.
+   */
+  public static final String CFG_DOCKERTEST_WORKERBATCHES = "dtest.core.dockertest.workerbatches";
+  private static final int CFG_DOCKERTEST_WORKERBATCHES_DEFAULT = 0;
+
+  /**
+   * Number of failed tests (failures plus errors) after which the build is stopped.  Containers that have not
+   * started are cancelled, running containers are killed, and the build ends in
+   * {@link BuildState.State#ABORTED}.  Defaults to 0, which means the build is never stopped for failed tests.
+   */
+  public static final String CFG_DOCKERTEST_MAXFAILEDTESTS = "dtest.core.dockertest.maxfailedtests";
+  private static final int CFG_DOCKERTEST_MAXFAILEDTESTS_DEFAULT = 0;
+
+  /**
+   * Number of containers that can fail or time out before the build is stopped, as with
+   * {@link #CFG_DOCKERTEST_MAXFAILEDTESTS}.  Defaults to 0, which means the build is never stopped for failed
+   * containers.
+   */
+  public static final String CFG_DOCKERTEST_MAXFAILEDCONTAINERS = "dtest.core.dockertest.maxfailedcontainers";
+  private static final int CFG_DOCKERTEST_MAXFAILEDCONTAINERS_DEFAULT = 0;
+
+  /**
+   * Whether to rerun tests that failed or had errors once all of the containers have run.  The failed tests are
+   * rerun in fresh containers, and any that pass are reported as flaky rather than failed.  If every failed test
+   * passes on rerun the build succeeds.  Defaults to false.
+   */
+  public static final String CFG_DOCKERTEST_RERUNFAILURES = "dtest.core.dockertest.rerunfailures";
+  private static final boolean CFG_DOCKERTEST_RERUNFAILURES_DEFAULT = false;
+
+  /**
+   * Maximum number of failed tests to rerun when {@link #CFG_DOCKERTEST_RERUNFAILURES} is set.  When more tests
+   * than this fail the change most likely broke something, so nothing is rerun.  Defaults to 50.  Set it to 0
+   * to always rerun.
+   */
+  public static final String CFG_DOCKERTEST_MAXRERUNTESTS = "dtest.core.dockertest.maxreruntests";
+  private static final int CFG_DOCKERTEST_MAXRERUNTESTS_DEFAULT = 50;
+
+  /**
+   * Number of threads fetching test reports from containers that have exited.  Fetching is done separately from
+   * running containers so that a container slot is free as soon as its container exits.  Defaults to 2.
+   */
+  public static final String CFG_DOCKERTEST_FETCHTHREADS = "dtest.core.dockertest.fetchthreads";
+  private static final int CFG_DOCKERTEST_FETCHTHREADS_DEFAULT = 2;
+
+  /**
+   * Number of threads analyzing fetched test reports.  Defaults to the number of processors on the machine.
+   */
+  public static final String CFG_DOCKERTEST_ANALYZETHREADS = "dtest.core.dockertest.analyzethreads";
+
+  /**
+   * Number of threads removing containers once their reports have been fetched, and the directories the reports
+   * were fetched to once they have been analyzed.  See {@link ContainerReaper}.  Defaults to 1.
+   */
+  public static final String CFG_DOCKERTEST_REMOVETHREADS = "dtest.core.dockertest.removethreads";
+  private static final int CFG_DOCKERTEST_REMOVETHREADS_DEFAULT = 1;
+
   private static final String TESTONLY_CFGDIR = "dtest.testonly.conf.dir";
 
   private static final String SUMMARY_LOG = "summary";
@@ -63,6 +148,10 @@ public class DockerTest {
   private String branch;
   private String buildDir;
   private Reporter reporter;
+  private ContainerReaper reaper;
+  private final AtomicBoolean aborted = new AtomicBoolean(false);
+  private final AtomicInteger failedContainers = new AtomicInteger(0);
+  private final Set<ContainerCommand> inFlight = ConcurrentHashMap.newKeySet();
 
   @VisibleForTesting boolean isCleanupAfter() {
     return cleanupAfter;
@@ -204,6 +293,12 @@ public class DockerTest {
           .setBuildInfo(buildInfo);
       docker = ContainerClient.getInstance(cfg, log);
       docker.setBuildInfo(buildInfo);
+      reaper = new ContainerReaper(docker);
+      reaper.setConfig(cfg).setLog(log);
+      reaper.start(cfg.getAsInt(CFG_DOCKERTEST_REMOVETHREADS, CFG_DOCKERTEST_REMOVETHREADS_DEFAULT));
+      // An earlier build with this label that crashed would have left containers with the names this one is about
+      // to use.  They can go while the image is built.
+      if (buildInfo.shouldCleanupAfter()) reaper.reapOrphans(Utils.buildContainerName(buildInfo.getLabel(), ""));
       ContainerCommandFactory cmdFactory = ContainerCommandFactory.getInstance(cfg, log);
       mightHaveBuiltImage = true;
       docker.buildImage(cmdFactory);
@@ -221,6 +316,8 @@ public class DockerTest {
       log.error("Failed to run build", t);
       throw t;
     } finally {
+      // The image can't be removed until its containers are
+      if (reaper != null) reaper.stop();
       if (mightHaveBuiltImage && buildInfo.shouldCleanupAfter()) {
         try {
           docker.removeImage();
@@ -264,49 +361,140 @@ public class DockerTest {
       throws IOException {
     log.debug("Beginning our attack run");
     cmdFactory.buildContainerCommands(docker, buildInfo);
+    reaper.awaitOrphans();
 
     final ResultAnalyzer analyzer = ResultAnalyzer.getInstance(cfg, log);
+    analyzer.setTestHistory(buildInfo.getTestHistory());
+    docker.setReportPaths(analyzer.getTestResultsDir(), buildInfo.getYaml().getAdditionalLogs());
+    docker.setResultAnalyzer(analyzer);
+    List<ContainerCommand> cmds = CommandOrderer.getInstance(cfg, log).order(cmdFactory.getCmds());
+    int numContainers = cfg.getAsInt(CFG_DOCKERTEST_NUMCONTAINERS, CFG_DOCKERTEST_NUMCONTAINERS_DEFAULT);
     // I don't need the return value, but by having one I can use the Callable interface instead
     // of Runnable, and Callable catches exceptions for me and passes them back.
-    List <Future<Integer>> tasks = new ArrayList<>(cmdFactory.getCmds().size());
-    ExecutorService executor =
-        Executors.newFixedThreadPool(cfg.getAsInt(CFG_DOCKERTEST_NUMCONTAINERS, CFG_DOCKERTEST_NUMCONTAINERS_DEFAULT));
-    for (ContainerCommand taskCmd : cmdFactory.getCmds()) {
-      log.debug("Going to run task " + taskCmd.containerSuffix());
-      tasks.add(executor.submit(() -> {
-        ContainerResult result = docker.runContainer(taskCmd);
-        docker.fetchTestReports(result, analyzer, reporter, buildInfo.getYaml().getAdditionalLogs());
-        analyzer.analyzeResult(result, taskCmd);
-        StringBuilder statusMsg = new StringBuilder("Task ")
-            .append(result.getCmd().containerSuffix())
-            .append(' ');
-        log.debug("Result from running " + taskCmd.containerSuffix() + ":  " + result.getAnalysisResult());
-        switch (result.getAnalysisResult()) {
-        case TIMED_OUT:
-          statusMsg.append(" had TIMEOUTS");
-          break;
-
-        case FAILED:
-          statusMsg.append(" FAILED to run to completion");
-          break;
-
-        case SUCCEEDED:
-          statusMsg.append(" SUCCEEDED (does not mean all tests passed)");
-          break;
-
-        default:
-          throw new RuntimeException("Unexpected state");
-        }
-        log.info(result.getCmd().containerSuffix(), statusMsg.toString());
-
-        // Copy log files from any failed tests to a directory specific to this container
-        reporter.addFailedTests(docker, result);
-        if (buildInfo.shouldCleanupAfter()) {
-          result.getReports().cleanupTempDir();
-          docker.removeContainer(result);
-        }
-        return 1;
-      }));
+    final List <Future<Integer>> tasks = new ArrayList<>(cmds.size());
+    aborted.set(false);
+    failedContainers.set(0);
+    final ConcurrencyController concurrency = new ConcurrencyController();
+    concurrency.setConfig(cfg).setLog(log);
+    concurrency.start(numContainers);
+    // The controller decides how many of these threads get to run a container at any one time.  Everything that
+    // happens after the container exits is handed to the pipeline so the thread can go on to the next container.
+    ExecutorService executor = Executors.newFixedThreadPool(concurrency.getMax());
+    final Pipeline pipeline = new Pipeline(analyzer, concurrency.getMax());
+    final Queue<ContainerCommand> queue = new ConcurrentLinkedQueue<>(cmds);
+    final AtomicInteger started = new AtomicInteger(0);
+    if (cfg.getAsBoolean(CFG_DOCKERTEST_USEWORKERS, CFG_DOCKERTEST_USEWORKERS_DEFAULT)) {
+      // Each worker takes the next command off the queue when it finishes the last one, so faster workers end up
+      // doing more of the work.
+      int workerBatches = cfg.getAsInt(CFG_DOCKERTEST_WORKERBATCHES, CFG_DOCKERTEST_WORKERBATCHES_DEFAULT);
+      final WorkerSlots slots = new WorkerSlots(concurrency);
+      for (int i = 0; i < Math.min(concurrency.getMax(), cmds.size()); i++) {
+        final String workerName = "worker-" + i;
+        tasks.add(executor.submit(() -> {
+          int batches = 0;
+          int starts = 0;
+          int inWorker = 0;
+          String worker = null;
+          try {
+            ContainerCommand taskCmd;
+            while (!aborted.get() && !queue.isEmpty()) {
+              if (worker != null && slots.stopIfAboveLimit()) {
+                // The limit was lowered, don't keep a container around while waiting for it to come back up
+                log.info("Stopping idle " + worker + ", there are more workers than the limit of " +
+                    concurrency.getLimit());
+                String idle = worker;
+                worker = null;
+                inWorker = 0;
+                try {
+                  docker.stopWorker(idle);
+                } finally {
+                  slots.stopped();
+                }
+              }
+              if (worker == null) {
+                if (!slots.take(() -> aborted.get() || queue.isEmpty())) break;
+                try {
+                  worker = docker.startWorker(starts == 0 ? workerName : workerName + "-" + starts);
+                  starts++;
+                } catch (IOException | RuntimeException e) {
+                  slots.release();
+                  throw e;
+                }
+              }
+              if ((taskCmd = queue.poll()) == null) break;
+              log.debug("Going to run task " + taskCmd.containerSuffix() + " in " + workerName);
+              concurrency.acquire();
+              ContainerResult result;
+              try {
+                // Added before looking for an abort, so that an abort either sees the command and kills it or is
+                // seen here
+                inFlight.add(taskCmd);
+                if (aborted.get()) break;
+                started.incrementAndGet();
+                result = docker.runInWorker(worker, taskCmd);
+              } finally {
+                inFlight.remove(taskCmd);
+                concurrency.release();
+              }
+              // The reports have to be out of the worker before it is reset, the analysis can happen later
+              docker.fetchTestReports(result, analyzer, reporter, buildInfo.getYaml().getAdditionalLogs());
+              pipeline.analyze(result, false, queue);
+              batches++;
+              boolean replace = workerBatches > 0 && ++inWorker >= workerBatches;
+              if (!replace) {
+                try {
+                  docker.resetWorker(worker, result, analyzer, buildInfo.getYaml().getAdditionalLogs());
+                } catch (IOException e) {
+                  log.warn("Failed to reset " + worker + ", replacing it", e);
+                  replace = true;
+                }
+              }
+              if (replace) {
+                // A fresh one is started for the next command, if there is one
+                String replaced = worker;
+                worker = null;
+                inWorker = 0;
+                try {
+                  docker.stopWorker(replaced);
+                } finally {
+                  slots.release();
+                }
+              }
+            }
+          } finally {
+            if (worker != null) {
+              try {
+                docker.stopWorker(worker);
+              } finally {
+                slots.release();
+              }
+            }
+          }
+          log.debug(workerName + " ran " + batches + " tasks");
+          return batches;
+        }));
+      }
+    } else {
+      for (ContainerCommand taskCmd : cmds) {
+        log.debug("Going to run task " + taskCmd.containerSuffix());
+        tasks.add(executor.submit(() -> {
+          concurrency.acquire();
+          ContainerResult result;
+          try {
+            // We may have been aborted while waiting.  Added first, so that an abort either sees the command and
+            // kills it or is seen here.
+            inFlight.add(taskCmd);
+            if (aborted.get()) return 0;
+            started.incrementAndGet();
+            result = docker.runContainer(taskCmd);
+          } finally {
+            inFlight.remove(taskCmd);
+            concurrency.release();
+          }
+          pipeline.fetchAndAnalyze(result, false, queue);
+          return 1;
+        }));
+      }
     }
 
     BuildState buildState = analyzer.getBuildState();
@@ -318,16 +506,332 @@ public class DockerTest {
             " told to quit.", e);
         buildState.fail();
       } catch (ExecutionException e) {
-        log.error("Got an exception while running container, that's generally bad", e);
-        buildState.fail();
+        if (aborted.get()) {
+          // Killing containers can make the tasks running them fail, that's not a reason to fail the build
+          log.warn("Got an exception while running container after the build was aborted", e);
+        } else {
+          log.error("Got an exception while running container, that's generally bad", e);
+          buildState.fail();
+        }
       }
     }
+    // All of the containers have exited, but the pipeline may still be working through their results
+    pipeline.await("Got an exception while processing container results, that's generally bad");
+    if (aborted.get()) {
+      buildState.abort();
+      log.info(SUMMARY_LOG, "Build aborted, " + (cmds.size() - started.get()) + " of " + cmds.size() +
+          " containers were not run");
+    }
     assert buildState.getState() != BuildState.State.NOT_INITIALIZED;
 
+    if (!aborted.get() && buildState.getState() != BuildState.State.FAILED &&
+        cfg.getAsBoolean(CFG_DOCKERTEST_RERUNFAILURES, CFG_DOCKERTEST_RERUNFAILURES_DEFAULT)) {
+      rerunFailures(cmdFactory, analyzer, executor, pipeline, concurrency);
+    }
+
     executor.shutdown();
+    pipeline.shutdown();
+    concurrency.stop();
+    try {
+      buildInfo.getTestHistory().close();
+    } catch (IOException e) {
+      // Losing the history only makes future builds less well balanced, it doesn't affect this one
+      log.warn("Failed to save test history", e);
+    }
     return analyzer;
   }
 
+  /**
+   * Rerun the tests that failed or had errors, each in a fresh container.  Tests that pass are moved from the
+   * failed and error lists to the flaky list.  If nothing is left failing the build is marked as succeeded.
+   */
+  private void rerunFailures(ContainerCommandFactory cmdFactory, ResultAnalyzer analyzer, ExecutorService executor,
+                             Pipeline pipeline, ConcurrencyController concurrency) throws IOException {
+    Map<ContainerCommand, Set<String>> failedTests = analyzer.getFailedTestsByCommand();
+    int numFailed = 0;
+    for (Set<String> tests : failedTests.values()) numFailed += tests.size();
+    if (numFailed == 0) return;
+    if (!analyzer.supportsRerun()) {
+      log.info(SUMMARY_LOG, "Not rerunning failed tests, " + analyzer.getClass().getName() +
+          " does not know how to analyze reruns");
+      return;
+    }
+    int maxRerunTests = cfg.getAsInt(CFG_DOCKERTEST_MAXRERUNTESTS, CFG_DOCKERTEST_MAXRERUNTESTS_DEFAULT);
+    if (maxRerunTests > 0 && numFailed > maxRerunTests) {
+      log.info(SUMMARY_LOG, "Not rerunning failed tests, " + numFailed + " tests failed, which is more than " +
+          maxRerunTests);
+      return;
+    }
+    List<ContainerCommand> reruns = cmdFactory.buildRerunCommands(docker, buildInfo, failedTests);
+    if (reruns.isEmpty()) {
+      log.info(SUMMARY_LOG, "Not rerunning failed tests, " + cmdFactory.getClass().getName() +
+          " does not know how to rerun them");
+      return;
+    }
+    log.info(SUMMARY_LOG, "Rerunning " + numFailed + " failed tests in " + reruns.size() + " containers");
+
+    BuildState buildState = analyzer.getBuildState();
+    List<Future<Integer>> tasks = new ArrayList<>(reruns.size());
+    for (ContainerCommand taskCmd : reruns) {
+      log.debug("Going to rerun task " + taskCmd.containerSuffix());
+      tasks.add(executor.submit(() -> {
+        // Always use a new container, whatever state made the test fail the first time should not be there
+        concurrency.acquire();
+        ContainerResult result;
+        try {
+          result = docker.runContainer(taskCmd);
+        } finally {
+          concurrency.release();
+        }
+        pipeline.fetchAndAnalyze(result, true, null);
+        return 1;
+      }));
+    }
+    for (Future<Integer> task : tasks) {
+      try {
+        task.get();
+      } catch (InterruptedException e) {
+        log.error("Interrupted while waiting for reruns to finish, assuming I was told to quit.", e);
+        buildState.fail();
+      } catch (ExecutionException e) {
+        // The results from the first run still stand, the tests just stay failed
+        log.warn("Got an exception while rerunning failed tests", e);
+      }
+    }
+    pipeline.await(null);
+
+    if (!analyzer.getFlaky().isEmpty()) {
+      log.info(SUMMARY_LOG, analyzer.getFlaky().size() + " of " + numFailed + " failed tests passed on rerun");
+    }
+    if (analyzer.getFailed().isEmpty() && analyzer.getErrors().isEmpty()) buildState.passedOnRerun();
+  }
+
+  /**
+   * Check whether enough has failed that we should give up on the build.  If so, stop any containers that have not
+   * started and kill those that are running.
+   */
+  private void checkFailFast(ContainerResult result, ResultAnalyzer analyzer, Queue<ContainerCommand> queue) {
+    if (result.getAnalysisResult() != ContainerResult.ContainerStatus.SUCCEEDED) failedContainers.incrementAndGet();
+    if (aborted.get()) return;
+    int maxFailedTests = cfg.getAsInt(CFG_DOCKERTEST_MAXFAILEDTESTS, CFG_DOCKERTEST_MAXFAILEDTESTS_DEFAULT);
+    int maxFailedContainers =
+        cfg.getAsInt(CFG_DOCKERTEST_MAXFAILEDCONTAINERS, CFG_DOCKERTEST_MAXFAILEDCONTAINERS_DEFAULT);
+    int failedTests = analyzer.getFailed().size() + analyzer.getErrors().size();
+    String reason;
+    if (maxFailedTests > 0 && failedTests >= maxFailedTests) {
+      reason = failedTests + " tests have failed";
+    } else if (maxFailedContainers > 0 && failedContainers.get() >= maxFailedContainers) {
+      reason = failedContainers.get() + " containers have failed or timed out";
+    } else {
+      return;
+    }
+    if (!aborted.compareAndSet(false, true)) return;
+    log.info(SUMMARY_LOG, "Aborting the build, " + reason);
+    // Tasks that have not started a container yet see the abort and return without running one
+    queue.clear();
+    for (ContainerCommand cmd : inFlight) {
+      try {
+        log.info("Killing container for " + cmd.containerSuffix());
+        docker.killContainer(cmd);
+      } catch (IOException e) {
+        log.warn("Failed to kill container for " + cmd.containerSuffix(), e);
+      }
+    }
+  }
+
+  private void analyzeResult(ContainerResult result, ResultAnalyzer analyzer, boolean rerun) throws IOException {
+    if (rerun) analyzer.analyzeRerunResult(result, result.getCmd());
+    else analyzer.analyzeResult(result, result.getCmd());
+    StringBuilder statusMsg = new StringBuilder("Task ")
+        .append(result.getCmd().containerSuffix())
+        .append(' ');
+    log.debug("Result from running " + result.getCmd().containerSuffix() + ":  " + result.getAnalysisResult());
+    switch (result.getAnalysisResult()) {
+    case TIMED_OUT:
+      statusMsg.append(" had TIMEOUTS");
+      break;
+
+    case FAILED:
+      statusMsg.append(" FAILED to run to completion");
+      break;
+
+    case SUCCEEDED:
+      statusMsg.append(" SUCCEEDED (does not mean all tests passed)");
+      break;
+
+    default:
+      throw new RuntimeException("Unexpected state");
+    }
+    log.info(result.getCmd().containerSuffix(), statusMsg.toString());
+
+    // Copy log files from any failed tests to a directory specific to this container
+    reporter.addFailedTests(docker, result);
+  }
+
+  /**
+   * Handles everything that happens to a container after it exits.  Its reports are fetched and then analyzed, on
+   * the executors sized by {@link #CFG_DOCKERTEST_FETCHTHREADS} and {@link #CFG_DOCKERTEST_ANALYZETHREADS}.  Once
+   * the reports are fetched the container is handed to the {@link ContainerReaper}, and once they are analyzed so
+   * are the directory they were fetched to and the container's output.  The executors have bounded queues.  When a
+   * stage falls behind, the thread handing it work does the work itself, which keeps new containers from starting
+   * until the pipeline catches up.
+   */
+  private class Pipeline {
+    private final ResultAnalyzer analyzer;
+    private final ExecutorService fetchExecutor;
+    private final ExecutorService analyzeExecutor;
+    private final List<CompletableFuture<Void>> inProgress = new ArrayList<>();
+
+    Pipeline(ResultAnalyzer analyzer, int queueSize) {
+      this.analyzer = analyzer;
+      fetchExecutor = boundedExecutor("fetch",
+          cfg.getAsInt(CFG_DOCKERTEST_FETCHTHREADS, CFG_DOCKERTEST_FETCHTHREADS_DEFAULT), queueSize);
+      analyzeExecutor = boundedExecutor("analyze",
+          cfg.getAsInt(CFG_DOCKERTEST_ANALYZETHREADS, Runtime.getRuntime().availableProcessors()), queueSize);
+    }
+
+    /**
+     * Fetch the reports from a container that has exited, then analyze them and remove the container.
+     * @param queue commands that have not been run yet, or null if failing fast does not apply.
+     */
+    void fetchAndAnalyze(ContainerResult result, boolean rerun, Queue<ContainerCommand> queue) {
+      CompletableFuture<ContainerResult> fetched = CompletableFuture.supplyAsync(() -> {
+        try {
+          docker.fetchTestReports(result, analyzer, reporter, buildInfo.getYaml().getAdditionalLogs());
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+        return result;
+      }, fetchExecutor);
+      CompletableFuture<Void> removed = fetched.thenAccept(r -> {
+        if (buildInfo.shouldCleanupAfter()) reaper.removeContainer(r);
+      });
+      add(CompletableFuture.allOf(removed, analyze(fetched, rerun, queue)));
+    }
+
+    /**
+     * Analyze the reports of a container that have already been fetched.
+     * @param queue commands that have not been run yet, or null if failing fast does not apply.
+     */
+    void analyze(ContainerResult result, boolean rerun, Queue<ContainerCommand> queue) {
+      add(analyze(CompletableFuture.completedFuture(result), rerun, queue));
+    }
+
+    private CompletableFuture<Void> analyze(CompletableFuture<ContainerResult> fetched, boolean rerun,
+                                            Queue<ContainerCommand> queue) {
+      return fetched.thenAcceptAsync(r -> {
+        try {
+          analyzeResult(r, analyzer, rerun);
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+        if (buildInfo.shouldCleanupAfter()) {
+          reaper.removeTempDir(r.getReports());
+          reaper.removeOutput(r);
+        }
+        if (queue != null) checkFailFast(r, analyzer, queue);
+      }, analyzeExecutor);
+    }
+
+    private synchronized void add(CompletableFuture<Void> future) {
+      inProgress.add(future);
+    }
+
+    /**
+     * Wait for everything handed to the pipeline so far to finish.
+     * @param failMsg if not null, any failure is logged as an error with this message and fails the build,
+     *                otherwise failures are only warned about.
+     */
+    void await(String failMsg) {
+      List<CompletableFuture<Void>> waitFor;
+      synchronized (this) {
+        waitFor = new ArrayList<>(inProgress);
+        inProgress.clear();
+      }
+      for (CompletableFuture<Void> future : waitFor) {
+        try {
+          future.get();
+        } catch (InterruptedException e) {
+          log.error("Interrupted while waiting for container results, assuming I was told to quit.", e);
+          analyzer.getBuildState().fail();
+        } catch (ExecutionException e) {
+          if (failMsg == null || aborted.get()) {
+            log.warn("Got an exception while processing container results", e.getCause());
+          } else {
+            log.error(failMsg, e.getCause());
+            analyzer.getBuildState().fail();
+          }
+        }
+      }
+    }
+
+    void shutdown() {
+      fetchExecutor.shutdown();
+      analyzeExecutor.shutdown();
+    }
+
+    private ExecutorService boundedExecutor(String stage, int threads, int queueSize) {
+      final AtomicInteger threadNum = new AtomicInteger(0);
+      return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+          new ArrayBlockingQueue<>(Math.max(queueSize, threads)), r -> {
+            Thread t = new Thread(r, "dtest-" + stage + "-" + threadNum.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+          }, new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+  }
+
+  /**
+   * Keeps the number of workers with a container within the {@link ConcurrencyController}'s limit.  A worker takes
+   * a slot before it starts a container and gives it back once it has stopped it.  The controller doesn't say when
+   * the limit changes, so waiting workers look again every second.
+   */
+  private static class WorkerSlots {
+    private final ConcurrencyController concurrency;
+    // Slots taken, including those of workers that are stopping
+    private int live;
+    private int stopping;
+
+    WorkerSlots(ConcurrencyController concurrency) {
+      this.concurrency = concurrency;
+    }
+
+    /**
+     * Wait for a slot.
+     * @param giveUp checked while waiting, once it returns true there is no point in waiting any longer.
+     * @return true if a slot was taken, false if we gave up.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    synchronized boolean take(BooleanSupplier giveUp) throws InterruptedException {
+      while (live >= concurrency.getLimit()) {
+        if (giveUp.getAsBoolean()) return false;
+        wait(1000);
+      }
+      live++;
+      return true;
+    }
+
+    synchronized void release() {
+      live--;
+      notifyAll();
+    }
+
+    /**
+     * Decide whether a worker should stop because there are more workers than the limit allows.
+     * @return true if it should, in which case the caller must stop its container and then call {@link #stopped()}.
+     */
+    synchronized boolean stopIfAboveLimit() {
+      if (live - stopping <= concurrency.getLimit()) return false;
+      stopping++;
+      return true;
+    }
+
+    synchronized void stopped() {
+      stopping--;
+      release();
+    }
+  }
+
   private void outputResults(ResultAnalyzer analyzer) throws IOException {
     reporter.summarize(analyzer);
     reporter.publish();
@@ -344,9 +848,16 @@ public class DockerTest {
         log.info(SUMMARY_LOG, failure);
       }
     }
+    if (analyzer.getFlaky().size() > 0) {
+      log.info(SUMMARY_LOG, "All Flaky:");
+      for (String flaky : analyzer.getFlaky()) {
+        log.info(SUMMARY_LOG, flaky);
+      }
+    }
     log.info(SUMMARY_LOG, "Final counts: Succeeded: " + analyzer.getSucceeded() +
         ", Errors: " + analyzer.getErrors().size() +
-        ", Failures: " + analyzer.getFailed().size());
+        ", Failures: " + analyzer.getFailed().size() +
+        ", Flaky: " + analyzer.getFlaky().size());
     log.info(SUMMARY_LOG, analyzer.getBuildState().getState().getSummary());
   }
 
@@ -376,6 +887,9 @@ public class DockerTest {
             case HAD_FAILURES_OR_ERRORS:
               rc = 1;
               break;
+            case ABORTED:
+              rc = 2;
+              break;
             default:
               rc = -1;
               break;
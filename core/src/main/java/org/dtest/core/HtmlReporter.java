@@ -104,7 +104,16 @@ public class HtmlReporter extends Reporter {
     writer.write("<p>Repository:  " + repo + "</p>\n");
     writer.write("<p>Branch:  " + branch + "</p>\n");
     writer.write("<p>Profile:  " + profile + "</p>\n");
-    writer.write("<p><b>Counts:  Succeeded:  " + numSucceeded + ", Errors:  " + numErrors + ", Failures:  " + numFailures + "</b></p>\n");
+    writer.write("<p><b>Counts:  Succeeded:  " + numSucceeded + ", Errors:  " + numErrors + ", Failures:  " + numFailures +
+        (flaky.isEmpty() ? "" : ", Flaky:  " + flaky.size()) + "</b></p>\n");
+    if (flaky.size() > 0) {
+      writer.write("<p>Tests that failed and then passed when rerun:</p>\n");
+      writer.write("<ul>\n");
+      for (String test : flaky) {
+        writer.write("<li>" + test + "</li>\n");
+      }
+      writer.write("</ul>\n");
+    }
     if (logLinks.size() > 0) {
       writer.write("<p>Links to logfiles for tests with errors, failures, or timeout:</p>\n");
       writer.write("<ul>\n");
@@ -0,0 +1,32 @@
+/*
+ * Copyright (C) 2018 Hortonworks Inc.
+ *
+ * Licenced under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dtest.core;
+
+/**
+ * LineListener is told about each line a command writes to stdout as the container writes it, so that the output
+ * can be analyzed while the container is still running rather than read back once it has finished.  See
+ * {@link ResultAnalyzer#listenTo(ContainerCommand)}.
+ */
+public interface LineListener {
+
+  /**
+   * Called with each line of output, in order.  Calls for one command are never made at the same time, but the
+   * listeners for different commands are called from different threads at once.  This is called from the thread
+   * reading the output, so it should be quick and must not throw.
+   * @param line line of output, without the newline.
+   */
+  void line(String line);
+}
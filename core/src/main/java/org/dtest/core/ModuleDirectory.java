@@ -27,12 +27,17 @@ public class ModuleDirectory {
   private String dir;
   private boolean needsSplit;
   private int testsPerContainer;
+  private int secondsPerContainer;
+  private int weight;
+  private int cpus;
+  private String memory;
   private String[] isolatedTests;
   private String singleTest;
   private String[] skippedTests;
   private String[] failuresToIgnore;
   private Map<String, String> env;
   private Map<String, String> properties;
+  private Map<String, String> tmpfs;
 
   public String getDir() {
     return dir;
@@ -62,6 +67,54 @@ public class ModuleDirectory {
     this.testsPerContainer = testsPerContainer;
   }
 
+  public int getSecondsPerContainer() {
+    return secondsPerContainer;
+  }
+
+  public boolean isSetSecondsPerContainer() {
+    return secondsPerContainer != 0;
+  }
+
+  public void setSecondsPerContainer(int secondsPerContainer) {
+    this.secondsPerContainer = secondsPerContainer;
+  }
+
+  public int getWeight() {
+    return weight;
+  }
+
+  public boolean isSetWeight() {
+    return weight != 0;
+  }
+
+  public void setWeight(int weight) {
+    this.weight = weight;
+  }
+
+  public int getCpus() {
+    return cpus;
+  }
+
+  public boolean isSetCpus() {
+    return cpus != 0;
+  }
+
+  public void setCpus(int cpus) {
+    this.cpus = cpus;
+  }
+
+  public String getMemory() {
+    return memory;
+  }
+
+  public boolean isSetMemory() {
+    return memory != null;
+  }
+
+  public void setMemory(String memory) {
+    this.memory = memory;
+  }
+
   public String[] getIsolatedTests() {
     return isolatedTests;
   }
@@ -114,6 +167,18 @@ public class ModuleDirectory {
     this.properties = properties;
   }
 
+  public Map<String, String> getTmpfs() {
+    return tmpfs;
+  }
+
+  public boolean isSetTmpfs() {
+    return tmpfs != null;
+  }
+
+  public void setTmpfs(Map<String, String> tmpfs) {
+    this.tmpfs = tmpfs;
+  }
+
   public String[] getFailuresToIgnore() {
     return failuresToIgnore;
   }
@@ -137,5 +202,8 @@ public class ModuleDirectory {
     if (needsSplit && singleTest != null) {
       throw new InvalidObjectException("You cannot specify a split on a single test, " + dir);
     }
+    if (cpus < 0) {
+      throw new InvalidObjectException("cpus cannot be negative, " + dir);
+    }
   }
 }
@@ -19,6 +19,8 @@ import org.dtest.core.impl.Utils;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Reporters concisely organize the results of the running DTest for users.
@@ -51,6 +53,7 @@ public abstract class Reporter extends Configurable {
   protected int numErrors;
   protected int numFailures;
   protected int numSucceeded;
+  protected List<String> flaky;
   protected String status;
 
 
@@ -101,6 +104,7 @@ public abstract class Reporter extends Configurable {
     numErrors = analyzer.getErrors().size();
     numFailures = analyzer.getFailed().size();
     numSucceeded = analyzer.getSucceeded();
+    flaky = new ArrayList<>(analyzer.getFlaky());
     status = analyzer.getBuildState().getState().name().replace('_', ' ');
   }
 
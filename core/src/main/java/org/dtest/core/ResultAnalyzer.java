@@ -19,7 +19,10 @@ import org.dtest.core.impl.Utils;
 import org.dtest.core.mvn.MavenResultAnalyzer;
 
 import java.io.IOException;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * ResultAnalyzer analyzes the output of tests.  The implementation is tied to {@link ContainerCommand} since it
@@ -32,6 +35,11 @@ public abstract class ResultAnalyzer extends Configurable {
    */
   protected final BuildState buildState;
 
+  /**
+   * History to record test results in.  May be null, in which case results are not recorded.
+   */
+  protected TestHistory testHistory;
+
   protected ResultAnalyzer() {
     buildState = new BuildState();
   }
@@ -51,6 +59,20 @@ public abstract class ResultAnalyzer extends Configurable {
    */
   public abstract void analyzeResult(ContainerResult containerResult, ContainerCommand cmd) throws IOException;
 
+  /**
+   * Get a listener for the output of a command, which is told about each line as the container writes it.  This
+   * lets an implementation pick what it needs out of the output while the container is running, rather than
+   * reading it back in {@link #analyzeResult(ContainerResult, ContainerCommand)}.  Not every command is listened to,
+   * for example container clients that do not capture output with {@link ContainerOutput} never call this, so
+   * implementations must still be able to analyze results whose output they have not seen.  The default
+   * implementation returns null, meaning the output is not listened to.
+   * @param cmd command that is about to be run.
+   * @return listener, or null.
+   */
+  public LineListener listenTo(ContainerCommand cmd) {
+    return null;
+  }
+
   /**
    * Get the directory where we expect to find test result files.
    * @return directory name.
@@ -75,6 +97,58 @@ public abstract class ResultAnalyzer extends Configurable {
    */
   public abstract List<String> getErrors();
 
+  /**
+   * Get the tests that failed or had errors, grouped by the command that ran them, so that they can be rerun.
+   * The default implementation returns an empty map, which means this analyzer does not support reruns.
+   * @return tests that failed or had errors, named the same way as in {@link #getFailed()} and
+   * {@link #getErrors()}, keyed by the command that ran them.
+   */
+  public Map<ContainerCommand, Set<String>> getFailedTestsByCommand() {
+    return Collections.emptyMap();
+  }
+
+  /**
+   * Whether this analyzer can analyze reruns with {@link #analyzeRerunResult(ContainerResult, ContainerCommand)}.
+   * Failed tests are only rerun when this is true.  The default implementation returns false.
+   * @return true if reruns are supported.
+   */
+  public boolean supportsRerun() {
+    return false;
+  }
+
+  /**
+   * Analyze the result of rerunning tests that failed or had errors.  Tests that pass on rerun should be removed
+   * from the failed and error lists and returned by {@link #getFlaky()} instead.  Tests that fail again stay
+   * where they are.  Unlike {@link #analyzeResult(ContainerResult, ContainerCommand)} this does not change the
+   * state of the build.  Implementations of this method must be thread safe.  It is only called if
+   * {@link #supportsRerun()} returns true.
+   * @param containerResult the result from the container run.
+   * @param cmd command for this container.
+   * @throws IOException if it fails to find the information it needs when analyzing the log.
+   */
+  public void analyzeRerunResult(ContainerResult containerResult, ContainerCommand cmd) throws IOException {
+    throw new UnsupportedOperationException(getClass().getName() + " does not support rerunning tests");
+  }
+
+  /**
+   * Get list of tests that failed or had errors and then passed when they were rerun.
+   * @return name of each flaky test.
+   */
+  public List<String> getFlaky() {
+    return Collections.emptyList();
+  }
+
+  /**
+   * Set the history that results should be recorded in.  Implementations should record the outcome and runtime of
+   * each test they see so that later builds can use them.
+   * @param testHistory test history
+   * @return this
+   */
+  public ResultAnalyzer setTestHistory(TestHistory testHistory) {
+    this.testHistory = testHistory;
+    return this;
+  }
+
   /**
    * Get the global state of the build based on the results analysis.
    * @return state of the build.  If accessed before the build is finished, this will be an incomplete state as it
@@ -0,0 +1,452 @@
+/*
+ * Copyright (C) 2018 Hortonworks Inc.
+ *
+ * Licenced under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dtest.core;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A persistent history of how long tests took and how they turned out.  Results from every build are appended to a
+ * file in the build base directory so that the history survives across builds.  The whole file is read into memory
+ * when the history is opened, so lookups do not touch the disk.  When the file has collected enough rows beyond one
+ * per test it is compacted into a single summary row per test.
+ *
+ * <p>Tests are tracked by module directory, test class, and (optionally) test method.  Class level entries track the
+ * time of the whole class, method level entries the time of the individual test case.  The expected runtime is
+ * an average that weights recent runs more heavily, so that tests that speed up or slow down are noticed quickly.</p>
+ *
+ * <p>Each line in the file is tab separated.  Rows appended by a build look like
+ * <tt>R time module container class method outcome millis</tt>, and rows written by compaction look like
+ * <tt>S time module container class method outcome avgmillis runs failures</tt>.  An empty method denotes a class
+ * level entry.  Several dtest instances can share the file, appends and compaction are serialized with a lock
+ * file.</p>
+ */
+public class TestHistory extends Configurable {
+
+  /**
+   * File to keep the test history in.  Defaults to dtest-test-history.tsv in
+   * {@link BuildInfo#CFG_BUILDINFO_BASEDIR}.
+   */
+  public static final String CFG_TESTHISTORY_FILE = "dtest.core.testhistory.file";
+  private static final String CFG_TESTHISTORY_FILE_DEFAULT = "dtest-test-history.tsv";
+
+  /**
+   * Number of rows beyond one per test the history file can have before it is compacted.  Defaults to 100,000.
+   */
+  public static final String CFG_TESTHISTORY_COMPACTAFTER = "dtest.core.testhistory.compactafter";
+  private static final int CFG_TESTHISTORY_COMPACTAFTER_DEFAULT = 100000;
+
+  /**
+   * Outcome of running a test.
+   */
+  public enum Outcome { SUCCESS, FAILURE, ERROR, SKIPPED, TIMED_OUT }
+
+  // Weight given to the newest run when computing the average runtime, once there are enough runs.
+  private static final double RECENT_WEIGHT = 0.25;
+  private static final String RAW = "R";
+  private static final String SUMMARY = "S";
+  private static final char SEPARATOR = '\t';
+  // File locks are held by the whole JVM, so a thread asking for one that another thread holds gets an
+  // OverlappingFileLockException rather than waiting.  Threads wait on this before taking the file lock instead.
+  private static final Object FILE_LOCK = new Object();
+
+  /**
+   * History of one test class or test method.
+   */
+  public static class Entry {
+    private final String module;
+    private final String testClass;
+    private final String method;
+    private long lastRun;
+    private String lastContainer;
+    private Outcome lastOutcome;
+    private double averageMillis;
+    private int runs;
+    private int failures;
+
+    Entry(String module, String testClass, String method) {
+      this.module = module;
+      this.testClass = testClass;
+      this.method = method;
+    }
+
+    /**
+     * Get the module directory the test is in.
+     * @return module directory, as given in the yaml file
+     */
+    public String getModule() {
+      return module;
+    }
+
+    /**
+     * Get the test class.
+     * @return name of the test class without the package
+     */
+    public String getTestClass() {
+      return testClass;
+    }
+
+    /**
+     * Get the test method.
+     * @return test method, or null if this is the entry for the whole class.
+     */
+    public String getMethod() {
+      return method;
+    }
+
+    /**
+     * Get when the test was last run.
+     * @return time the results were recorded, in milliseconds since the epoch
+     */
+    public long getLastRun() {
+      return lastRun;
+    }
+
+    /**
+     * Get the container the test last ran in.
+     * @return container name
+     */
+    public String getLastContainer() {
+      return lastContainer;
+    }
+
+    /**
+     * Get the outcome the last time the test ran.
+     * @return outcome
+     */
+    public Outcome getLastOutcome() {
+      return lastOutcome;
+    }
+
+    /**
+     * Get the expected runtime of this test.
+     * @return runtime in milliseconds, weighted towards recent runs
+     */
+    public long getAverageMillis() {
+      return Math.round(averageMillis);
+    }
+
+    /**
+     * Get the number of times this test has been run.
+     * @return number of runs
+     */
+    public int getRuns() {
+      return runs;
+    }
+
+    /**
+     * Get the number of times this test has failed, had an error, or timed out.
+     * @return number of failed runs
+     */
+    public int getFailures() {
+      return failures;
+    }
+
+    private synchronized void update(long time, String container, Outcome outcome, long millis) {
+      lastRun = time;
+      lastContainer = container;
+      lastOutcome = outcome;
+      runs++;
+      if (outcome == Outcome.FAILURE || outcome == Outcome.ERROR || outcome == Outcome.TIMED_OUT) failures++;
+      // Errors and skips often finish immediately, don't let them drag the runtime down.
+      if (outcome == Outcome.SUCCESS || outcome == Outcome.FAILURE) {
+        if (averageMillis == 0) {
+          averageMillis = millis;
+        } else {
+          double weight = Math.max(RECENT_WEIGHT, 1.0 / runs);
+          averageMillis = weight * millis + (1 - weight) * averageMillis;
+        }
+      }
+    }
+
+    private synchronized void summarize(long time, String container, Outcome outcome, double avg, int runs,
+                                        int failures) {
+      lastRun = time;
+      lastContainer = container;
+      lastOutcome = outcome;
+      averageMillis = avg;
+      this.runs = runs;
+      this.failures = failures;
+    }
+  }
+
+  private final Map<String, Entry> entries;
+  private final List<String> pending;
+  private File file;
+  private File lockFile;
+  private long rowsInFile;
+
+  public TestHistory() {
+    entries = new ConcurrentHashMap<>();
+    pending = new ArrayList<>();
+  }
+
+  /**
+   * Read the history file.  This must be called after {@link #setConfig(Config)} and {@link #setLog(DTestLogger)}
+   * and before any other methods.  If there is no history file yet the history will start out empty.
+   * @throws IOException if the file cannot be read.
+   */
+  public void load() throws IOException {
+    String fileName = cfg.getAsString(CFG_TESTHISTORY_FILE);
+    if (fileName == null) {
+      String baseDir = cfg.getAsString(BuildInfo.CFG_BUILDINFO_BASEDIR, System.getProperty("java.io.tmpdir"));
+      file = new File(baseDir, CFG_TESTHISTORY_FILE_DEFAULT);
+    } else {
+      file = new File(fileName);
+    }
+    lockFile = new File(file.getAbsolutePath() + ".lock");
+    entries.clear();
+    rowsInFile = 0;
+    if (!file.exists()) {
+      log.info("No test history found at " + file.getAbsolutePath() + ", starting a new one");
+      return;
+    }
+    synchronized (FILE_LOCK) {
+      FileLock lock = lock();
+      try {
+        readFile();
+      } finally {
+        lock.release();
+      }
+    }
+    log.info("Read " + rowsInFile + " rows of test history for " + entries.size() + " tests from " +
+        file.getAbsolutePath());
+  }
+
+  /**
+   * Record the result of running a test.  The result is visible to {@link #get(String, String, String)} right
+   * away, but it is not written to the history file until {@link #flush()} is called.  This is thread safe.
+   * @param module module directory the test ran in
+   * @param container name of the container the test ran in
+   * @param testClass name of the test class, without the package
+   * @param method test method, or null if this is the result for the whole class
+   * @param outcome outcome of the test
+   * @param millis how long the test ran, in milliseconds
+   */
+  public void record(String module, String container, String testClass, String method, Outcome outcome,
+                     long millis) {
+    long now = System.currentTimeMillis();
+    getOrCreate(module, testClass, method).update(now, container, outcome, millis);
+    String row = RAW + SEPARATOR + now + SEPARATOR + clean(module) + SEPARATOR + clean(container) + SEPARATOR +
+        clean(testClass) + SEPARATOR + clean(method) + SEPARATOR + outcome.name() + SEPARATOR + millis;
+    synchronized (pending) {
+      pending.add(row);
+    }
+  }
+
+  /**
+   * Get the history of a test class.
+   * @param module module directory the test is in
+   * @param testClass name of the test class, without the package
+   * @return history, or null if this class has never been seen.
+   */
+  public Entry get(String module, String testClass) {
+    return get(module, testClass, null);
+  }
+
+  /**
+   * Get the history of a test method.
+   * @param module module directory the test is in
+   * @param testClass name of the test class, without the package
+   * @param method name of the test method, or null for the whole class
+   * @return history, or null if this test has never been seen.
+   */
+  public Entry get(String module, String testClass, String method) {
+    return entries.get(key(module, testClass, method));
+  }
+
+  /**
+   * Get the history of every test in the history.
+   * @return all entries
+   */
+  public Collection<Entry> getEntries() {
+    return entries.values();
+  }
+
+  /**
+   * Append any results recorded since the last flush to the history file.  This is thread safe.
+   * @throws IOException if the file cannot be written.
+   */
+  public void flush() throws IOException {
+    List<String> toWrite;
+    synchronized (pending) {
+      if (pending.isEmpty()) return;
+      toWrite = new ArrayList<>(pending);
+      pending.clear();
+    }
+    synchronized (FILE_LOCK) {
+      FileLock lock = lock();
+      try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true),
+          StandardCharsets.UTF_8))) {
+        for (String row : toWrite) {
+          writer.write(row);
+          writer.write('\n');
+        }
+      } finally {
+        lock.release();
+      }
+    }
+    synchronized (this) {
+      rowsInFile += toWrite.size();
+    }
+  }
+
+  /**
+   * Flush any pending results and compact the history file if it has grown large enough.  Call this once the build
+   * is done.
+   * @throws IOException if the file cannot be written.
+   */
+  public void close() throws IOException {
+    flush();
+    if (rowsInFile > entries.size() +
+        cfg.getAsInt(CFG_TESTHISTORY_COMPACTAFTER, CFG_TESTHISTORY_COMPACTAFTER_DEFAULT)) {
+      compact();
+    }
+  }
+
+  /**
+   * Rewrite the history file so that it has one summary row per test.
+   * @throws IOException if the file cannot be rewritten.
+   */
+  @VisibleForTesting
+  void compact() throws IOException {
+    synchronized (FILE_LOCK) {
+      FileLock lock = lock();
+      try {
+        // Other builds may have added to the file since we read it, so read it again while we hold the lock.
+        entries.clear();
+        rowsInFile = 0;
+        readFile();
+        long before = rowsInFile;
+        File tmp = new File(file.getAbsolutePath() + ".compacting");
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp),
+            StandardCharsets.UTF_8))) {
+          for (Entry e : entries.values()) {
+            writer.write(SUMMARY + SEPARATOR + e.lastRun + SEPARATOR + clean(e.module) + SEPARATOR +
+                clean(e.lastContainer) + SEPARATOR + clean(e.testClass) + SEPARATOR + clean(e.method) + SEPARATOR +
+                e.lastOutcome.name() + SEPARATOR + e.averageMillis + SEPARATOR + e.runs + SEPARATOR + e.failures +
+                '\n');
+          }
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        rowsInFile = entries.size();
+        log.info("Compacted test history from " + before + " rows to " + rowsInFile);
+      } finally {
+        lock.release();
+      }
+    }
+  }
+
+  private void readFile() throws IOException {
+    if (!file.exists()) return;
+    int badRows = 0;
+    try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file),
+        StandardCharsets.UTF_8))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        rowsInFile++;
+        String[] cols = line.split("\t", -1);
+        try {
+          if (RAW.equals(cols[0]) && cols.length == 8) {
+            getOrCreate(cols[2], cols[4], cols[5]).update(Long.parseLong(cols[1]), cols[3],
+                Outcome.valueOf(cols[6]), Long.parseLong(cols[7]));
+          } else if (SUMMARY.equals(cols[0]) && cols.length == 10) {
+            getOrCreate(cols[2], cols[4], cols[5]).summarize(Long.parseLong(cols[1]), cols[3],
+                Outcome.valueOf(cols[6]), Double.parseDouble(cols[7]), Integer.parseInt(cols[8]),
+                Integer.parseInt(cols[9]));
+          } else {
+            badRows++;
+          }
+        } catch (IllegalArgumentException e) {
+          badRows++;
+        }
+      }
+    }
+    if (badRows > 0) log.warn("Ignored " + badRows + " unreadable rows in test history " + file.getAbsolutePath());
+  }
+
+  private FileLock lock() throws IOException {
+    File parent = file.getAbsoluteFile().getParentFile();
+    if (!parent.exists() && !parent.mkdirs()) {
+      throw new IOException("Failed to create directory " + parent.getAbsolutePath() + " for test history");
+    }
+    FileChannel channel = new RandomAccessFile(lockFile, "rw").getChannel();
+    try {
+      return new ChannelClosingLock(channel.lock());
+    } catch (IOException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  private Entry getOrCreate(String module, String testClass, String method) {
+    String m = method == null || method.isEmpty() ? null : method;
+    return entries.computeIfAbsent(key(module, testClass, m), s -> new Entry(module, testClass, m));
+  }
+
+  private static String key(String module, String testClass, String method) {
+    return clean(module) + SEPARATOR + clean(testClass) + SEPARATOR + clean(method);
+  }
+
+  private static String clean(String val) {
+    if (val == null) return "";
+    return val.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+  }
+
+  // Wraps the lock so that closing it releases the lock and closes the underlying channel as well.
+  private static class ChannelClosingLock extends FileLock {
+    private final FileLock wrapped;
+
+    ChannelClosingLock(FileLock wrapped) {
+      super(wrapped.channel(), wrapped.position(), wrapped.size(), wrapped.isShared());
+      this.wrapped = wrapped;
+    }
+
+    @Override
+    public boolean isValid() {
+      return wrapped.isValid();
+    }
+
+    @Override
+    public void release() throws IOException {
+      try {
+        wrapped.release();
+      } finally {
+        wrapped.channel().close();
+      }
+    }
+  }
+}
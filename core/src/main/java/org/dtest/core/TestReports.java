@@ -23,6 +23,8 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -51,7 +53,7 @@ public class TestReports {
    */
   public TestReports(DTestLogger log, String containerName, File reportDir) throws IOException {
     this.log = log;
-    tmpDir = new File(System.getProperty("java.io.tmpdir"), "dtest-fetched-logfiles-" + containerName);
+    tmpDir = tempDirFor(containerName);
     if (!tmpDir.mkdir() && !tmpDir.isDirectory()) {
       throw new IOException("Failed to create temporary directory " + tmpDir.getAbsolutePath());
     }
@@ -61,6 +63,16 @@ public class TestReports {
     this.reportDir = reportDir;
   }
 
+  /**
+   * Get the temporary directory the reports from a container are put in.  A {@link ContainerClient} that writes
+   * reports there before constructing this, for example by mounting it in the container, can use this to find it.
+   * @param containerName Name of the container the test reports are from
+   * @return handle to the directory, which may not exist yet.
+   */
+  public static File tempDirFor(String containerName) {
+    return new File(System.getProperty("java.io.tmpdir"), "dtest-fetched-logfiles-" + containerName);
+  }
+
   /**
    * Get the temporary directory the reports are cached in after being moved from the docker container.
    * @return handle to the directory.
@@ -120,6 +132,25 @@ public class TestReports {
    * Removes the temporary directory and all the files that were placed in it.
    */
   public void cleanupTempDir() {
+    delete(log, tmpDir);
+  }
+
+  /**
+   * Remove the temporary directories of containers whose names start with the given prefix.  This is for
+   * directories left behind by an earlier build that did not get to clean up after itself.
+   * @param log logger
+   * @param containerPrefix start of the container names, see {@link org.dtest.core.impl.Utils#buildContainerName(String, String)}
+   * @return the directories that were removed
+   */
+  public static List<File> removeTempDirs(DTestLogger log, String containerPrefix) {
+    File prefix = tempDirFor(containerPrefix);
+    File[] dirs = prefix.getParentFile().listFiles((dir, name) -> name.startsWith(prefix.getName()));
+    if (dirs == null) return Collections.emptyList();
+    for (File dir : dirs) delete(log, dir);
+    return Arrays.asList(dirs);
+  }
+
+  private static void delete(DTestLogger log, File tmpDir) {
     try {
       Files.walkFileTree(tmpDir.toPath(), new FileVisitor<Path>() {
         @Override
@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2018 Hortonworks Inc.
+ *
+ * Licenced under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dtest.core.docker;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Hands out disjoint sets of CPUs on this machine to containers, so that containers running at the same time do not
+ * compete for the same cores.  Where the machine has more than one NUMA node a container is kept to the CPUs of one
+ * node if it fits, and is given that node's memory too.  One allocator is shared by every build in this process,
+ * see {@link #forThisMachine()}.
+ */
+public class CpusetAllocator {
+  private static final Pattern NODE_DIR = Pattern.compile("node(\\d+)");
+
+  private static CpusetAllocator thisMachine;
+
+  // Free CPUs of each NUMA node, indexed the same as nodeIds
+  private final List<TreeSet<Integer>> free;
+  private final List<Integer> nodeIds;
+  // Which entry in free each CPU belongs in
+  private final Map<Integer, Integer> nodeOf = new HashMap<>();
+
+  /**
+   * CPUs given to a container.
+   */
+  public static class Allocation {
+    private final List<Integer> cpus;
+    private final Integer node;
+
+    private Allocation(List<Integer> cpus, Integer node) {
+      this.cpus = cpus;
+      this.node = node;
+    }
+
+    /**
+     * Get the CPUs, in the form docker takes for --cpuset-cpus, e.g. 0-3,8.
+     * @return CPUs
+     */
+    public String getCpus() {
+      return formatList(cpus);
+    }
+
+    /**
+     * Get the memory node the container should use, in the form docker takes for --cpuset-mems.
+     * @return memory node, or null if the CPUs are not all on one node or the machine only has one.
+     */
+    public String getMems() {
+      return node == null ? null : node.toString();
+    }
+
+    @Override
+    public String toString() {
+      return getCpus() + (node == null ? "" : " on node " + node);
+    }
+  }
+
+  /**
+   * Create an allocator for a machine with the given layout.
+   * @param nodeIds number of each NUMA node
+   * @param nodes CPUs of each NUMA node, in the same order as nodeIds.  A machine without NUMA is one node.
+   */
+  @VisibleForTesting
+  CpusetAllocator(List<Integer> nodeIds, List<List<Integer>> nodes) {
+    this.nodeIds = nodeIds;
+    free = new ArrayList<>();
+    for (List<Integer> node : nodes) {
+      for (int cpu : node) nodeOf.put(cpu, free.size());
+      free.add(new TreeSet<>(node));
+    }
+  }
+
+  /**
+   * Get the allocator for this machine.  The layout is read from /sys/devices/system/node where that is available,
+   * otherwise the machine is taken to be one node with as many CPUs as the JVM can see.
+   * @return allocator
+   */
+  public static synchronized CpusetAllocator forThisMachine() {
+    if (thisMachine == null) thisMachine = fromSysfs(new File("/sys/devices/system/node"));
+    return thisMachine;
+  }
+
+  @VisibleForTesting
+  static CpusetAllocator fromSysfs(File nodeRoot) {
+    List<Integer> nodeIds = new ArrayList<>();
+    List<List<Integer>> nodes = new ArrayList<>();
+    File[] dirs = nodeRoot.listFiles();
+    if (dirs != null) {
+      List<Integer> found = new ArrayList<>();
+      for (File dir : dirs) {
+        Matcher m = NODE_DIR.matcher(dir.getName());
+        if (m.matches()) found.add(Integer.valueOf(m.group(1)));
+      }
+      Collections.sort(found);
+      for (int id : found) {
+        try {
+          String cpuList = new String(Files.readAllBytes(new File(nodeRoot, "node" + id + "/cpulist").toPath()),
+              StandardCharsets.UTF_8).trim();
+          List<Integer> cpus = parseList(cpuList);
+          // Nodes with only memory have no CPUs to hand out
+          if (cpus.isEmpty()) continue;
+          nodeIds.add(id);
+          nodes.add(cpus);
+        } catch (IOException|NumberFormatException e) {
+          // Don't trust half a layout
+          nodeIds.clear();
+          nodes.clear();
+          break;
+        }
+      }
+    }
+    if (nodes.isEmpty()) {
+      List<Integer> cpus = new ArrayList<>();
+      for (int i = 0; i < Runtime.getRuntime().availableProcessors(); i++) cpus.add(i);
+      nodeIds.add(0);
+      nodes.add(cpus);
+    }
+    return new CpusetAllocator(nodeIds, nodes);
+  }
+
+  /**
+   * Take CPUs for a container.  The CPUs come from the node with the fewest free CPUs that still has enough, to
+   * leave room on the others for larger containers.  If no one node has enough they are taken from several.
+   * @param cpus number of CPUs wanted
+   * @return the CPUs, or null if there are not that many free.  These must be given back with
+   * {@link #release(Allocation)}.
+   */
+  public synchronized Allocation acquire(int cpus) {
+    int best = -1;
+    int totalFree = 0;
+    for (int i = 0; i < free.size(); i++) {
+      int size = free.get(i).size();
+      totalFree += size;
+      if (size >= cpus && (best < 0 || size < free.get(best).size())) best = i;
+    }
+    if (best >= 0) {
+      return new Allocation(take(free.get(best), cpus), free.size() > 1 ? nodeIds.get(best) : null);
+    }
+    if (totalFree < cpus) return null;
+    List<Integer> taken = new ArrayList<>();
+    for (TreeSet<Integer> node : free) taken.addAll(take(node, Math.min(cpus - taken.size(), node.size())));
+    Collections.sort(taken);
+    return new Allocation(taken, null);
+  }
+
+  /**
+   * Give back CPUs from {@link #acquire(int)}.
+   * @param allocation CPUs to give back
+   */
+  public synchronized void release(Allocation allocation) {
+    for (int cpu : allocation.cpus) free.get(nodeOf.get(cpu)).add(cpu);
+  }
+
+  @VisibleForTesting
+  synchronized int free() {
+    int total = 0;
+    for (TreeSet<Integer> node : free) total += node.size();
+    return total;
+  }
+
+  private static List<Integer> take(TreeSet<Integer> from, int n) {
+    List<Integer> taken = new ArrayList<>(n);
+    for (int i = 0; i < n; i++) taken.add(from.pollFirst());
+    return taken;
+  }
+
+  @VisibleForTesting
+  static List<Integer> parseList(String list) {
+    List<Integer> cpus = new ArrayList<>();
+    if (list.isEmpty()) return cpus;
+    for (String range : list.split(",")) {
+      int dash = range.indexOf('-');
+      if (dash < 0) {
+        cpus.add(Integer.valueOf(range.trim()));
+      } else {
+        int end = Integer.parseInt(range.substring(dash + 1).trim());
+        for (int i = Integer.parseInt(range.substring(0, dash).trim()); i <= end; i++) cpus.add(i);
+      }
+    }
+    return cpus;
+  }
+
+  @VisibleForTesting
+  static String formatList(List<Integer> cpus) {
+    StringBuilder buf = new StringBuilder();
+    for (int i = 0; i < cpus.size(); i++) {
+      int start = cpus.get(i);
+      while (i + 1 < cpus.size() && cpus.get(i + 1) == cpus.get(i) + 1) i++;
+      if (buf.length() > 0) buf.append(',');
+      buf.append(start);
+      if (cpus.get(i) != start) buf.append('-').append(cpus.get(i));
+    }
+    return buf.toString();
+  }
+}
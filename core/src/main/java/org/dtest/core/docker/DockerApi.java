@@ -0,0 +1,565 @@
+/*
+ * Copyright (C) 2018 Hortonworks Inc.
+ *
+ * Licenced under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dtest.core.docker;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.InvocationTargetException;
+import java.net.ProtocolFamily;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A small HTTP/1.1 client for the Docker Engine API.  It talks to the daemon over its unix socket or over TCP and
+ * keeps a pool of idle connections so that each call does not have to open a new one.  Only what
+ * {@link DockerApiContainerClient} needs is supported: plain, chunked, and streamed request bodies, responses with
+ * a content length or chunked encoding, and hijacked connections for attaching to containers.  Talking to the unix
+ * socket requires Java 16 or later, TCP works everywhere.
+ */
+public class DockerApi implements Closeable {
+  /**
+   * Engine API version requested.  1.25 is Docker 1.13, everything used here is in it.
+   */
+  public static final String API_VERSION = "v1.25";
+
+  private final String host;
+  private final String socketPath;
+  private final String tcpHost;
+  private final int tcpPort;
+  private final int maxIdle;
+  private final Deque<Connection> idle = new ArrayDeque<>();
+  private final ObjectMapper mapper = new ObjectMapper();
+
+  /**
+   * @param host daemon to talk to, in the same form as DOCKER_HOST, e.g. unix:///var/run/docker.sock or
+   *             tcp://buildhost:2375.
+   * @param maxIdle number of idle connections to keep for reuse.
+   * @throws IOException if the host is not understood, or is a unix socket and this JVM can't talk to one.
+   */
+  public DockerApi(String host, int maxIdle) throws IOException {
+    this.host = host;
+    this.maxIdle = maxIdle;
+    URI uri = URI.create(host);
+    if ("unix".equals(uri.getScheme())) {
+      if (!supportsUnixSockets()) throw new IOException(unixSocketsUnsupported(host));
+      socketPath = uri.getPath();
+      tcpHost = null;
+      tcpPort = 0;
+    } else if ("tcp".equals(uri.getScheme()) || "http".equals(uri.getScheme())) {
+      socketPath = null;
+      tcpHost = uri.getHost();
+      tcpPort = uri.getPort() > 0 ? uri.getPort() : 2375;
+    } else {
+      throw new IOException("Don't know how to talk to docker at " + host + ", expected unix:// or tcp://");
+    }
+  }
+
+  /**
+   * Whether this JVM can talk to a unix socket, which needs Java 16 or later.
+   * @return true if unix:// hosts can be used.
+   */
+  public static boolean supportsUnixSockets() {
+    try {
+      Class.forName("java.net.UnixDomainSocketAddress");
+      return true;
+    } catch (ClassNotFoundException e) {
+      return false;
+    }
+  }
+
+  private static String unixSocketsUnsupported(String host) {
+    return "Talking to docker over a unix socket requires Java 16 or later, this is Java " +
+        System.getProperty("java.version") + ".  Use a tcp:// host instead of " + host +
+        " or use DockerContainerClient instead.";
+  }
+
+  public String getHost() {
+    return host;
+  }
+
+  public ObjectMapper getMapper() {
+    return mapper;
+  }
+
+  /**
+   * Make a call with an optional JSON body.
+   * @param method HTTP method
+   * @param path path and query, without the API version, e.g. /containers/create?name=foo
+   * @param body request body, or null if there is none.
+   * @return response, which must be closed.
+   * @throws IOException if the daemon cannot be reached.
+   */
+  public Response call(String method, String path, JsonNode body) throws IOException {
+    byte[] bytes = body == null ? null : mapper.writeValueAsBytes(body);
+    return execute(method, path, body == null ? null : "application/json", bytes, null, false);
+  }
+
+  /**
+   * Make a call whose body is streamed with chunked encoding, such as the build context for an image.
+   * @param method HTTP method
+   * @param path path and query, without the API version
+   * @param contentType type of the body
+   * @param body writes the body.  The stream passed to it must not be closed.
+   * @return response, which must be closed.
+   * @throws IOException if the daemon cannot be reached or the body cannot be written.
+   */
+  public Response upload(String method, String path, String contentType, BodyWriter body) throws IOException {
+    return execute(method, path, contentType, null, body, false);
+  }
+
+  /**
+   * Make a call that takes over the connection, as attaching to a container or starting an exec does.  The body of
+   * the response is the raw stream from the daemon, read until the daemon closes it.  The connection is never
+   * reused.
+   * @param method HTTP method
+   * @param path path and query, without the API version
+   * @param body request body, or null if there is none.
+   * @return response, which must be closed.
+   * @throws IOException if the daemon cannot be reached.
+   */
+  public Response hijack(String method, String path, JsonNode body) throws IOException {
+    byte[] bytes = body == null ? null : mapper.writeValueAsBytes(body);
+    return execute(method, path, body == null ? null : "application/json", bytes, null, true);
+  }
+
+  /**
+   * Encode a value for use in a query string or path.
+   * @param value value to encode
+   * @return encoded value
+   */
+  public static String encode(String value) {
+    try {
+      return URLEncoder.encode(value, "UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  @Override
+  public void close() {
+    synchronized (idle) {
+      for (Connection conn : idle) conn.close();
+      idle.clear();
+    }
+  }
+
+  private Response execute(String method, String path, String contentType, byte[] body, BodyWriter writer,
+                           boolean hijack) throws IOException {
+    // A pooled connection may have been closed by the daemon while it sat idle.  If so, try again on a new one,
+    // which is only safe if the body can be sent again.
+    boolean canRetry = writer == null;
+    while (true) {
+      Connection conn = canRetry ? pooled() : null;
+      boolean reused = conn != null;
+      if (conn == null) conn = open();
+      try {
+        writeRequest(conn, method, path, contentType, body, writer, hijack);
+      } catch (IOException e) {
+        conn.close();
+        if (!reused) throw e;
+        continue;
+      }
+      try {
+        return readResponse(conn, method, hijack);
+      } catch (StaleConnectionException e) {
+        conn.close();
+        if (!reused) throw e;
+      } catch (IOException e) {
+        // The daemon may have acted on the request, so it isn't safe to send it again
+        conn.close();
+        throw e;
+      }
+    }
+  }
+
+  private void writeRequest(Connection conn, String method, String path, String contentType, byte[] body,
+                            BodyWriter writer, boolean hijack) throws IOException {
+    StringBuilder req = new StringBuilder()
+        .append(method).append(" /").append(API_VERSION).append(path).append(" HTTP/1.1\r\n")
+        .append("Host: docker\r\n")
+        .append("User-Agent: dtest\r\n");
+    if (contentType != null) req.append("Content-Type: ").append(contentType).append("\r\n");
+    if (writer != null) req.append("Transfer-Encoding: chunked\r\n");
+    else req.append("Content-Length: ").append(body == null ? 0 : body.length).append("\r\n");
+    if (hijack) req.append("Connection: Upgrade\r\nUpgrade: tcp\r\n");
+    req.append("\r\n");
+    conn.out.write(req.toString().getBytes(StandardCharsets.ISO_8859_1));
+    if (body != null) conn.out.write(body);
+    if (writer != null) {
+      ChunkedOutputStream chunked = new ChunkedOutputStream(conn.out);
+      // Buffer so that small writes don't each become a chunk
+      BufferedOutputStream buffered = new BufferedOutputStream(chunked, 64 * 1024);
+      writer.write(buffered);
+      buffered.flush();
+      chunked.finish();
+    }
+    conn.out.flush();
+  }
+
+  private Response readResponse(Connection conn, String method, boolean hijack) throws IOException {
+    String statusLine = readLine(conn.in);
+    if (statusLine == null) throw new StaleConnectionException("Docker daemon at " + host + " closed the connection");
+    String[] parts = statusLine.split(" ", 3);
+    if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+      throw new IOException("Unexpected response from docker daemon at " + host + ": " + statusLine);
+    }
+    int status = Integer.parseInt(parts[1]);
+    Map<String, String> headers = new HashMap<>();
+    String line;
+    while ((line = readLine(conn.in)) != null && !line.isEmpty()) {
+      int colon = line.indexOf(':');
+      if (colon > 0) headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+    }
+
+    String contentType = headers.getOrDefault("content-type", "");
+    Body body;
+    if (status == 101 || (hijack && status / 100 == 2 && contentType.startsWith("application/vnd.docker"))) {
+      body = new UntilClosedBody(conn.in);
+    } else if (status == 204 || status == 304 || status / 100 == 1 || method.equals("HEAD")) {
+      body = new LengthBody(conn.in, 0);
+    } else if ("chunked".equalsIgnoreCase(headers.get("transfer-encoding"))) {
+      body = new ChunkedBody(conn.in);
+    } else if (headers.containsKey("content-length")) {
+      body = new LengthBody(conn.in, Long.parseLong(headers.get("content-length")));
+    } else {
+      body = new UntilClosedBody(conn.in);
+    }
+    boolean keepAlive = !hijack && !(body instanceof UntilClosedBody) &&
+        !"close".equalsIgnoreCase(headers.get("connection"));
+    return new Response(status, headers, body, conn, keepAlive);
+  }
+
+  private Connection pooled() {
+    synchronized (idle) {
+      return idle.pollFirst();
+    }
+  }
+
+  private void release(Connection conn) {
+    synchronized (idle) {
+      if (idle.size() < maxIdle) {
+        idle.addFirst(conn);
+        return;
+      }
+    }
+    conn.close();
+  }
+
+  private Connection open() throws IOException {
+    if (socketPath == null) {
+      Socket socket = new Socket(tcpHost, tcpPort);
+      socket.setTcpNoDelay(true);
+      return new Connection(socket.getInputStream(), socket.getOutputStream(), socket);
+    }
+    SocketChannel channel;
+    try {
+      // Unix domain sockets arrived in Java 16, and we compile for 8, so find them by reflection
+      SocketAddress address = (SocketAddress)Class.forName("java.net.UnixDomainSocketAddress")
+          .getMethod("of", String.class).invoke(null, socketPath);
+      ProtocolFamily unix = StandardProtocolFamily.valueOf("UNIX");
+      channel = (SocketChannel)SocketChannel.class.getMethod("open", ProtocolFamily.class).invoke(null, unix);
+      channel.connect(address);
+    } catch (ClassNotFoundException|NoSuchMethodException|IllegalArgumentException|IllegalAccessException e) {
+      throw new IOException(unixSocketsUnsupported(host), e);
+    } catch (InvocationTargetException e) {
+      throw new IOException("Failed to connect to docker at " + host, e.getCause());
+    }
+    return new Connection(Channels.newInputStream(channel), Channels.newOutputStream(channel), channel);
+  }
+
+  private static String readLine(InputStream in) throws IOException {
+    ByteArrayOutputStream line = new ByteArrayOutputStream();
+    int b;
+    while ((b = in.read()) >= 0) {
+      if (b == '\n') {
+        byte[] bytes = line.toByteArray();
+        int len = bytes.length > 0 && bytes[bytes.length - 1] == '\r' ? bytes.length - 1 : bytes.length;
+        return new String(bytes, 0, len, StandardCharsets.ISO_8859_1);
+      }
+      line.write(b);
+    }
+    return line.size() == 0 ? null : line.toString("ISO-8859-1");
+  }
+
+  /**
+   * Writes the body of a streamed request.
+   */
+  @FunctionalInterface
+  public interface BodyWriter {
+    void write(OutputStream out) throws IOException;
+  }
+
+  /**
+   * A response from the daemon.  Closing it returns the connection to the pool if the body was read to the end,
+   * otherwise the connection is closed.
+   */
+  public class Response implements Closeable {
+    private final int status;
+    private final Map<String, String> headers;
+    private final Body body;
+    private final Connection conn;
+    private final boolean keepAlive;
+    private boolean closed;
+
+    private Response(int status, Map<String, String> headers, Body body, Connection conn, boolean keepAlive) {
+      this.status = status;
+      this.headers = headers;
+      this.body = body;
+      this.conn = conn;
+      this.keepAlive = keepAlive;
+    }
+
+    public int getStatus() {
+      return status;
+    }
+
+    /**
+     * Get a header.
+     * @param name header name, in any case.
+     * @return header value, or null if it was not sent.
+     */
+    public String getHeader(String name) {
+      return headers.get(name.toLowerCase());
+    }
+
+    /**
+     * Get the body of the response as a stream.
+     * @return body
+     */
+    public InputStream getBody() {
+      return body;
+    }
+
+    /**
+     * Read the whole body as a string.
+     * @return body
+     * @throws IOException if the body cannot be read.
+     */
+    public String readString() throws IOException {
+      ByteArrayOutputStream buf = new ByteArrayOutputStream();
+      byte[] bytes = new byte[8192];
+      int r;
+      while ((r = body.read(bytes)) >= 0) buf.write(bytes, 0, r);
+      return buf.toString("UTF-8");
+    }
+
+    /**
+     * Read the whole body as JSON.
+     * @return parsed body
+     * @throws IOException if the body cannot be read or is not JSON.
+     */
+    public JsonNode readJson() throws IOException {
+      return mapper.readTree(readString());
+    }
+
+    /**
+     * Get the error message the daemon sent with a failed call.
+     * @return message, or the status if there was none.
+     */
+    public String readError() {
+      try {
+        String text = readString();
+        try {
+          JsonNode msg = mapper.readTree(text).get("message");
+          if (msg != null) return msg.asText();
+        } catch (IOException e) {
+          // Not JSON, use it as is
+        }
+        return text.isEmpty() ? "status " + status : text.trim();
+      } catch (IOException e) {
+        return "status " + status;
+      }
+    }
+
+    /**
+     * Close the connection underneath this response straight away.  This can be called from another thread to
+     * unblock a thread reading the body.
+     */
+    public void abort() {
+      conn.close();
+    }
+
+    @Override
+    public synchronized void close() {
+      if (closed) return;
+      closed = true;
+      if (keepAlive && body.isComplete()) release(conn);
+      else conn.close();
+    }
+  }
+
+  private static class Connection {
+    final InputStream in;
+    final OutputStream out;
+    final Closeable underlying;
+
+    Connection(InputStream in, OutputStream out, Closeable underlying) {
+      this.in = new BufferedInputStream(in);
+      this.out = new BufferedOutputStream(out);
+      this.underlying = underlying;
+    }
+
+    void close() {
+      try {
+        underlying.close();
+      } catch (IOException e) {
+        // Nothing more we can do with it
+      }
+    }
+  }
+
+  private static class StaleConnectionException extends EOFException {
+    private static final long serialVersionUID = 1L;
+
+    StaleConnectionException(String msg) {
+      super(msg);
+    }
+  }
+
+  private static abstract class Body extends InputStream {
+    protected final InputStream in;
+    protected boolean complete;
+
+    Body(InputStream in) {
+      this.in = in;
+    }
+
+    boolean isComplete() {
+      return complete;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      int r = read(b, 0, 1);
+      return r < 0 ? -1 : b[0] & 0xff;
+    }
+  }
+
+  private static class LengthBody extends Body {
+    private long remaining;
+
+    LengthBody(InputStream in, long length) {
+      super(in);
+      remaining = length;
+      complete = length == 0;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (remaining == 0) return -1;
+      int r = in.read(b, off, (int)Math.min(len, remaining));
+      if (r < 0) throw new EOFException("Docker daemon closed the connection with " + remaining + " bytes unread");
+      remaining -= r;
+      if (remaining == 0) complete = true;
+      return r;
+    }
+  }
+
+  private static class ChunkedBody extends Body {
+    private long chunkRemaining;
+
+    ChunkedBody(InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (complete) return -1;
+      if (chunkRemaining == 0) {
+        String sizeLine = readLine(in);
+        if (sizeLine == null) throw new EOFException("Docker daemon closed the connection in the middle of a chunk");
+        int semi = sizeLine.indexOf(';');
+        chunkRemaining = Long.parseLong((semi < 0 ? sizeLine : sizeLine.substring(0, semi)).trim(), 16);
+        if (chunkRemaining == 0) {
+          // Skip any trailers
+          String line;
+          while ((line = readLine(in)) != null && !line.isEmpty());
+          complete = true;
+          return -1;
+        }
+      }
+      int r = in.read(b, off, (int)Math.min(len, chunkRemaining));
+      if (r < 0) throw new EOFException("Docker daemon closed the connection in the middle of a chunk");
+      chunkRemaining -= r;
+      if (chunkRemaining == 0) readLine(in); // the CRLF after each chunk
+      return r;
+    }
+  }
+
+  private static class UntilClosedBody extends Body {
+    UntilClosedBody(InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int r = in.read(b, off, len);
+      if (r < 0) complete = true;
+      return r;
+    }
+  }
+
+  private static class ChunkedOutputStream extends FilterOutputStream {
+    ChunkedOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[]{(byte)b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      if (len == 0) return;
+      out.write((Integer.toHexString(len) + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+      out.write(b, off, len);
+      out.write('\r');
+      out.write('\n');
+    }
+
+    void finish() throws IOException {
+      out.write("0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    @Override
+    public void close() {
+      // The connection outlives the body
+    }
+  }
+}
@@ -0,0 +1,617 @@
+/*
+ * Copyright (C) 2018 Hortonworks Inc.
+ *
+ * Licenced under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dtest.core.docker;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.annotations.VisibleForTesting;
+import org.dtest.core.ContainerCommand;
+import org.dtest.core.ContainerOutput;
+import org.dtest.core.ContainerResult;
+import org.dtest.core.Reporter;
+import org.dtest.core.ResultAnalyzer;
+import org.dtest.core.TestReports;
+import org.dtest.core.impl.ProcessResults;
+import org.dtest.core.impl.Tar;
+import org.dtest.core.impl.Utils;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * ContainerClient that talks to the Docker Engine API directly rather than running the docker command.  Each
+ * container costs a few calls over pooled connections instead of several docker processes, each with threads to
+ * read its output.  Container output is read from the attached stream as it is produced, and test reports are
+ * copied out of containers as tar streams.  Everything else, including the Dockerfile, is the same as
+ * {@link DockerContainerClient}.  The daemon is the one set by {@link #setDockerHost(String)}, or else
+ * DOCKER_HOST, or else /var/run/docker.sock.  Talking to a unix socket requires Java 16 or later; on older JVMs
+ * the first call fails, before anything is sent, saying so.
+ */
+public class DockerApiContainerClient extends DockerContainerClient {
+
+  /**
+   * Number of idle connections to the docker daemon to keep for reuse.  Defaults to 8.
+   */
+  public static final String CFG_DOCKERAPICONTAINERCLIENT_MAXIDLECONNECTIONS =
+      "dtest.core.dockerapicontainerclient.maxidleconnections";
+  private static final int CFG_DOCKERAPICONTAINERCLIENT_MAXIDLECONNECTIONS_DEFAULT = 8;
+
+  private static final String DEFAULT_HOST = "unix:///var/run/docker.sock";
+  private static final long RESET_TIMEOUT = 60;
+  private static final Pattern MEMORY = Pattern.compile("(\\d+)\\s*([bkmgBKMG]?)");
+
+  // Closes streams that have run too long.  Shared, since all it does is close things.
+  private static ScheduledExecutorService watchdog;
+
+  private DockerApi api;
+  // Numbers the containers used to look in the image, since several threads can do that at once
+  private final AtomicInteger imageChecks = new AtomicInteger();
+
+  @Override
+  public void buildDefinedImage() throws IOException {
+    log.info("Building image on " + api().getHost());
+    long timeout = cfg.getAsTime(CFG_CONTAINERCLIENT_IMAGEBUILDTIME, TimeUnit.SECONDS,
+        CFG_CONTAINERCLIENT_IMAGEBUILDTIME_DEFAULT);
+    File context = buildInfo.getBuildDir();
+    StringBuilder stdout = new StringBuilder();
+    StringBuilder stderr = new StringBuilder();
+    int rc = 0;
+    try (DockerApi.Response res = api().upload("POST", "/build?rm=1&forcerm=1&t=" + DockerApi.encode(getImageName()),
+        "application/x-tar", out -> Tar.write(context, out))) {
+      if (res.getStatus() != 200) throw new IOException("Failed to build image: " + res.readError());
+      AtomicBoolean timedOut = new AtomicBoolean(false);
+      ScheduledFuture<?> deadline = abortAfter(res, timeout, timedOut, null);
+      // The daemon sends a JSON object for each bit of progress
+      try (MappingIterator<JsonNode> progress = api.getMapper().readerFor(JsonNode.class).readValues(res.getBody())) {
+        while (progress.hasNextValue()) {
+          JsonNode msg = progress.nextValue();
+          if (msg.has("stream")) {
+            String text = msg.get("stream").asText();
+            stdout.append(text);
+            for (String line : text.split("\n")) {
+              if (!line.isEmpty()) log.debug(BUILD_CONTAINER_NAME, line);
+            }
+          }
+          if (msg.has("error")) {
+            stderr.append(msg.get("error").asText()).append('\n');
+            rc = 1;
+          }
+        }
+      } catch (IOException e) {
+        if (timedOut.get()) throw new IOException("Image build failed to finish in " + timeout + " seconds");
+        throw e;
+      } finally {
+        deadline.cancel(false);
+      }
+    }
+    finishImageBuild(new ProcessResults(stdout.toString(), stderr.toString(), rc));
+  }
+
+  @Override
+  public ContainerResult runContainer(ContainerCommand cmd) throws IOException {
+    // Checked again once it has started, as the command isn't recorded as running until it has been created
+    checkNotKilled(cmd, null);
+    String containerName = Utils.buildContainerName(buildInfo.getLabel(), cmd.containerSuffix());
+    Map<File, String> mounts = reportMounts(cmd, containerName);
+    List<String> binds = new ArrayList<>();
+    for (Map.Entry<File, String> mount : mounts.entrySet()) {
+      binds.add(mount.getKey().getAbsolutePath() + ":" + mount.getValue());
+    }
+    String m2 = sharedM2Volume();
+    if (m2 != null) binds.add(m2 + ":" + getM2Dir());
+    Map<String, String> tmpfs = tmpfsMounts(cmd, containerName, !mounts.isEmpty());
+    try {
+      createContainer(containerName, cmd.shellCommand(), binds, tmpfs,
+          limitResources(cmd.getModuleDir(), containerName));
+    } catch (IOException e) {
+      releaseResources(containerName);
+      throw e;
+    }
+    // Unlike the docker command, the container is not removed automatically, since that could race with /wait
+    if (!mounts.isEmpty()) mounted.add(containerName);
+    running.put(cmd, containerName);
+    try (ContainerOutput output = captureOutput(cmd)) {
+      // Attach before starting so that no output is missed
+      DockerApi.Response attached = api().hijack("POST", "/containers/" + containerName +
+          "/attach?stream=1&stdout=1&stderr=1", null);
+      try {
+        if (attached.getStatus() / 100 != 1 && attached.getStatus() / 100 != 2) {
+          throw new IOException("Failed to attach to container " + containerName + ": " + attached.readError());
+        }
+        startContainer(containerName);
+        // A kill that came after the check above could not stop it
+        if (isKilled(cmd)) kill(containerName);
+        long timeout = cfg.getAsTime(CFG_CONTAINERCLIENT_CONTAINERRUNTIME, TimeUnit.SECONDS,
+            CFG_CONTAINERCLIENT_CONTAINERRUNTIME_DEFAULT);
+        readOutput(attached, cmd.containerSuffix(), containerName, timeout, output, () -> {
+          try {
+            kill(containerName);
+          } catch (IOException e) {
+            log.warn("Failed to kill container " + containerName + " after it timed out", e);
+          }
+        });
+        int rc;
+        try (DockerApi.Response res = api().call("POST", "/containers/" + containerName + "/wait", null)) {
+          if (res.getStatus() != 200) {
+            throw new IOException("Failed to get exit code of container " + containerName + ": " + res.readError());
+          }
+          rc = res.readJson().get("StatusCode").asInt();
+        }
+        return new ContainerResult(cmd, containerName, rc, output);
+      } finally {
+        attached.close();
+      }
+    } finally {
+      running.remove(cmd);
+      releaseResources(containerName);
+    }
+  }
+
+  @Override
+  public String startWorker(String workerName) throws IOException {
+    String containerName = Utils.buildContainerName(buildInfo.getLabel(), workerName);
+    // Keep the container alive doing nothing so we can exec commands in it
+    String m2 = sharedM2Volume();
+    try {
+      // Workers run commands from every directory, so they get the default limits
+      createContainer(containerName, new String[]{"sleep", "infinity"},
+          m2 == null ? Collections.emptyList() : Collections.singletonList(m2 + ":" + getM2Dir()),
+          Collections.emptyMap(), limitResources(null, containerName));
+      startContainer(containerName);
+    } catch (IOException e) {
+      releaseResources(containerName);
+      throw e;
+    }
+    workers.add(containerName);
+    log.info("Started worker container " + containerName);
+    return containerName;
+  }
+
+  @Override
+  public ContainerResult runInWorker(String worker, ContainerCommand cmd) throws IOException {
+    running.put(cmd, worker);
+    try (ContainerOutput output = captureOutput(cmd)) {
+      checkNotKilled(cmd, output);
+      ProcessResults res = exec(worker, cmd.containerSuffix(), cfg.getAsTime(CFG_CONTAINERCLIENT_CONTAINERRUNTIME,
+          TimeUnit.SECONDS, CFG_CONTAINERCLIENT_CONTAINERRUNTIME_DEFAULT), output, cmd.shellCommand());
+      return new ContainerResult(cmd, worker, res.rc, output);
+    } finally {
+      running.remove(cmd);
+    }
+  }
+
+  @Override
+  public void resetWorker(String worker, ContainerResult result, ResultAnalyzer analyzer, String[] additionalLogs)
+      throws IOException {
+    List<String> rmCmd = new ArrayList<>();
+    Collections.addAll(rmCmd, "rm", "-rf");
+    rmCmd.addAll(workerResetPaths(result, analyzer, additionalLogs));
+    ProcessResults res = exec(worker, "resetting-" + worker, RESET_TIMEOUT, null, rmCmd.toArray(new String[0]));
+    if (res.rc != 0) {
+      // If we can't clear out the old reports we'd count them again for the next batch
+      throw new IOException("Failed to clear test reports from worker " + worker + ": " + res.stderr);
+    }
+  }
+
+  @Override
+  public void stopWorker(String worker) throws IOException {
+    workers.remove(worker);
+    String path;
+    String method;
+    if (buildInfo.shouldCleanupAfter()) {
+      method = "DELETE";
+      path = "/containers/" + worker + "?force=1";
+    } else {
+      log.info("Stopping but not removing worker container " + worker + " since no-cleanup is set");
+      method = "POST";
+      path = "/containers/" + worker + "/stop";
+    }
+    try (DockerApi.Response res = api().call(method, path, null)) {
+      if (res.getStatus() / 100 != 2 && res.getStatus() != 304) {
+        log.warn("Failed to stop worker container " + worker + ": " + res.readError());
+      }
+    }
+    releaseResources(worker);
+  }
+
+  @Override
+  public void killContainer(ContainerCommand cmd) throws IOException {
+    markKilled(cmd);
+    String containerName = running.get(cmd);
+    if (containerName == null) return; // Not started, and now never will be, or already finished
+    // For a worker this kills the whole worker, which is what we want since we're giving up
+    kill(containerName);
+  }
+
+  @Override
+  public void fetchTestReports(ContainerResult result, ResultAnalyzer analyzer, Reporter reporter,
+                               String[] additionalLogs) throws IOException {
+    // Name the reports after the command rather than the container, as a worker container runs many commands
+    String reportsName = Utils.buildContainerName(buildInfo.getLabel(), result.getCmd().containerSuffix());
+    result.setReports(new TestReports(log, reportsName, reporter.getLogDirForContainer(result)));
+    if (mounted.contains(result.getContainerName())) {
+      for (String additionalLog : additionalLogs) result.getReports().addAdditionalLog(additionalLog);
+      return;
+    }
+    File tempDir = result.getReports().getTempDir();
+    // The archive holds the directory itself, we want its contents
+    copyFromContainer(result.getContainerName(), result.getCmd().containerDirectory() + File.separator +
+        analyzer.getTestResultsDir(), tempDir, 1);
+    for (String additionalLog : additionalLogs) {
+      copyFromContainer(result.getContainerName(), result.getCmd().containerDirectory() + File.separator +
+          additionalLog, tempDir, 0);
+      result.getReports().addAdditionalLog(additionalLog);
+    }
+  }
+
+  @Override
+  public void removeContainer(ContainerResult result) throws IOException {
+    mounted.remove(result.getContainerName());
+    if (buildInfo.shouldCleanupAfter()) {
+      try (DockerApi.Response res = api().call("DELETE", "/containers/" + result.getContainerName(), null)) {
+        if (res.getStatus() / 100 != 2) log.warn("Failed to cleanup containers: " + res.readError());
+      }
+    } else {
+      log.info("Skipping cleanup of container " + result.getContainerName() + " since no-cleanup is set");
+    }
+  }
+
+  @Override
+  public void removeContainers(List<ContainerResult> results) throws IOException {
+    // Nothing is run with --rm and the API has no call to remove more than one, each is a quick call on a pooled
+    // connection anyway
+    for (ContainerResult result : results) removeContainer(result);
+  }
+
+  @Override
+  public List<String> removeOrphans(String prefix) throws IOException {
+    ObjectNode filters = api().getMapper().createObjectNode();
+    filters.putArray("name").add(prefix);
+    List<String> orphans = new ArrayList<>();
+    try (DockerApi.Response res = api().call("GET", "/containers/json?all=1&filters=" +
+        DockerApi.encode(filters.toString()), null)) {
+      if (res.getStatus() != 200) throw new IOException("Failed to list containers: " + res.readError());
+      for (JsonNode container : res.readJson()) {
+        for (JsonNode name : container.path("Names")) {
+          // Names start with a /, and the filter matches anywhere in the name
+          String n = name.asText().startsWith("/") ? name.asText().substring(1) : name.asText();
+          if (n.startsWith(prefix)) orphans.add(n);
+        }
+      }
+    }
+    for (String orphan : orphans) {
+      try (DockerApi.Response res = api().call("DELETE", "/containers/" + orphan + "?force=1", null)) {
+        if (res.getStatus() / 100 != 2 && res.getStatus() != 404) {
+          throw new IOException("Failed to remove container " + orphan + ": " + res.readError());
+        }
+      }
+    }
+    return orphans;
+  }
+
+  @Override
+  public void removeImage() throws IOException {
+    super.removeImage();
+    api().close();
+  }
+
+  @Override
+  protected boolean imageExists(String image) throws IOException {
+    try (DockerApi.Response res = api().call("GET", "/images/" + image + "/json", null)) {
+      if (res.getStatus() == 404) return false;
+      if (res.getStatus() != 200) throw new IOException("Failed to look for image " + image + ": " + res.readError());
+      res.readString();
+      return true;
+    }
+  }
+
+  @Override
+  protected void deleteImage(String image) throws IOException {
+    try (DockerApi.Response res = api().call("DELETE", "/images/" + image, null)) {
+      if (res.getStatus() / 100 != 2) log.error("Failed to cleanup image " + image + ": " + res.readError());
+    }
+  }
+
+  @Override
+  protected void createM2Volume(String volume) throws IOException {
+    String containerName = volume + "-fill";
+    createContainer(containerName, new String[]{"true"}, Collections.singletonList(volume + ":" + getM2Dir()),
+        Collections.emptyMap(), ResourceLimits.NONE);
+    try {
+      startContainer(containerName);
+      try (DockerApi.Response res = api().call("POST", "/containers/" + containerName + "/wait", null)) {
+        if (res.getStatus() != 200) throw new IOException("Failed to create volume " + volume + ": " + res.readError());
+        res.readString();
+      }
+    } finally {
+      try (DockerApi.Response res = api().call("DELETE", "/containers/" + containerName, null)) {
+        if (res.getStatus() / 100 != 2) {
+          log.warn("Failed to remove container " + containerName + ": " + res.readError());
+        }
+      }
+    }
+  }
+
+  @Override
+  protected void deleteVolume(String volume) throws IOException {
+    try (DockerApi.Response res = api().call("DELETE", "/volumes/" + DockerApi.encode(volume), null)) {
+      if (res.getStatus() / 100 != 2) log.error("Failed to cleanup volume " + volume + ": " + res.readError());
+    }
+  }
+
+  private synchronized DockerApi api() throws IOException {
+    if (api == null) {
+      String host = getDockerHost();
+      if (host == null) host = System.getenv("DOCKER_HOST");
+      if (host == null || host.isEmpty()) host = DEFAULT_HOST;
+      api = new DockerApi(host, cfg.getAsInt(CFG_DOCKERAPICONTAINERCLIENT_MAXIDLECONNECTIONS,
+          CFG_DOCKERAPICONTAINERCLIENT_MAXIDLECONNECTIONS_DEFAULT));
+    }
+    return api;
+  }
+
+  @Override
+  protected String runInImage(String logId, List<String> shellCommand) throws IOException {
+    // Keep the container alive doing nothing and exec the command, the same as a worker, so stdout is easy to read
+    String containerName = Utils.buildContainerName(buildInfo.getLabel(), logId + "-" + imageChecks.incrementAndGet());
+    createContainer(containerName, new String[]{"sleep", "infinity"}, Collections.emptyList(), Collections.emptyMap(),
+        ResourceLimits.NONE);
+    try {
+      startContainer(containerName);
+      ProcessResults res = exec(containerName, logId, 60, null, shellCommand.toArray(new String[0]));
+      if (res.rc != 0) {
+        throw new IOException("Failed to run " + shellCommand + " in " + getImageName() + ": " + res.stderr);
+      }
+      return res.stdout;
+    } finally {
+      try (DockerApi.Response res = api().call("DELETE", "/containers/" + containerName + "?force=1", null)) {
+        if (res.getStatus() / 100 != 2) {
+          log.warn("Failed to remove container " + containerName + ": " + res.readError());
+        }
+      }
+    }
+  }
+
+  private void createContainer(String containerName, String[] shellCommand, List<String> binds,
+                               Map<String, String> tmpfs, ResourceLimits limits) throws IOException {
+    ObjectNode create = api().getMapper().createObjectNode();
+    create.put("Image", getImageName());
+    ArrayNode cmd = create.putArray("Cmd");
+    for (String arg : shellCommand) cmd.add(arg);
+    create.put("AttachStdout", true);
+    create.put("AttachStderr", true);
+    create.put("Tty", false);
+    ObjectNode hostConfig = create.putObject("HostConfig");
+    if (!binds.isEmpty()) {
+      ArrayNode hostBinds = hostConfig.putArray("Binds");
+      for (String bind : binds) hostBinds.add(bind);
+    }
+    if (!tmpfs.isEmpty()) {
+      ObjectNode hostTmpfs = hostConfig.putObject("Tmpfs");
+      for (Map.Entry<String, String> mount : tmpfs.entrySet()) hostTmpfs.put(mount.getKey(), mount.getValue());
+    }
+    if (limits.cpuset != null) {
+      hostConfig.put("CpusetCpus", limits.cpuset.getCpus());
+      if (limits.cpuset.getMems() != null) hostConfig.put("CpusetMems", limits.cpuset.getMems());
+    } else if (limits.cpus > 0) {
+      hostConfig.put("NanoCpus", limits.cpus * 1000000000L);
+    }
+    if (limits.memory != null) hostConfig.put("Memory", parseMemory(limits.memory));
+    try (DockerApi.Response res = api().call("POST", "/containers/create?name=" + DockerApi.encode(containerName),
+        create)) {
+      if (res.getStatus() != 201) {
+        throw new IOException("Failed to create container " + containerName + ": " + res.readError());
+      }
+      res.readString();
+    }
+  }
+
+  /**
+   * Turn a memory size in the form the docker command takes, e.g. 512m or 4g, into bytes.
+   * @param memory memory size
+   * @return number of bytes
+   * @throws IOException if the size is not understood.
+   */
+  @VisibleForTesting
+  static long parseMemory(String memory) throws IOException {
+    Matcher m = MEMORY.matcher(memory.trim());
+    if (!m.matches()) throw new IOException("Unable to understand memory size " + memory);
+    long size = Long.parseLong(m.group(1));
+    switch (m.group(2).toLowerCase()) {
+      case "g": return size << 30;
+      case "m": return size << 20;
+      case "k": return size << 10;
+      default: return size;
+    }
+  }
+
+  private void startContainer(String containerName) throws IOException {
+    try (DockerApi.Response res = api().call("POST", "/containers/" + containerName + "/start", null)) {
+      if (res.getStatus() != 204 && res.getStatus() != 304) {
+        throw new IOException("Failed to start container " + containerName + ": " + res.readError());
+      }
+    }
+  }
+
+  private void kill(String containerName) throws IOException {
+    try (DockerApi.Response res = api().call("POST", "/containers/" + containerName + "/kill", null)) {
+      if (res.getStatus() != 204) log.warn("Failed to kill container " + containerName + ": " + res.readError());
+    }
+  }
+
+  private ProcessResults exec(String container, String logId, long timeout, ContainerOutput stdout, String... cmd)
+      throws IOException {
+    ObjectNode create = api().getMapper().createObjectNode();
+    create.put("AttachStdout", true);
+    create.put("AttachStderr", true);
+    ArrayNode args = create.putArray("Cmd");
+    for (String arg : cmd) args.add(arg);
+    String execId;
+    try (DockerApi.Response res = api().call("POST", "/containers/" + container + "/exec", create)) {
+      if (res.getStatus() != 201) {
+        throw new IOException("Failed to create exec in container " + container + ": " + res.readError());
+      }
+      execId = res.readJson().get("Id").asText();
+    }
+    ObjectNode start = api().getMapper().createObjectNode();
+    start.put("Detach", false);
+    start.put("Tty", false);
+    ProcessResults output;
+    try (DockerApi.Response res = api().hijack("POST", "/exec/" + execId + "/start", start)) {
+      if (res.getStatus() / 100 != 1 && res.getStatus() / 100 != 2) {
+        throw new IOException("Failed to start exec in container " + container + ": " + res.readError());
+      }
+      output = readOutput(res, logId, container, timeout, stdout, null);
+    }
+    try (DockerApi.Response res = api().call("GET", "/exec/" + execId + "/json", null)) {
+      if (res.getStatus() != 200) {
+        throw new IOException("Failed to get exit code of exec in container " + container + ": " + res.readError());
+      }
+      return new ProcessResults(output.stdout, output.stderr, res.readJson().get("ExitCode").asInt());
+    }
+  }
+
+  /**
+   * Read the output of an attached container or exec until it finishes.  The daemon multiplexes stdout and stderr
+   * into one stream, each frame having an 8 byte header giving the stream and the length.  Lines are logged as
+   * they arrive, the same as when running the docker command.
+   * @param stdout where to write stdout as it arrives.  If null it is kept in memory.
+   * @return the output.  The return code is not known yet and is always 0.  Stdout is empty if it was written to
+   * {@code stdout}.
+   */
+  private ProcessResults readOutput(DockerApi.Response res, String logId, String containerName, long timeout,
+                                    ContainerOutput stdout, Runnable onTimeout) throws IOException {
+    AtomicBoolean timedOut = new AtomicBoolean(false);
+    ScheduledFuture<?> deadline = abortAfter(res, timeout, timedOut, onTimeout);
+    StringBuilder out = new StringBuilder();
+    StringBuilder stderr = new StringBuilder();
+    StringBuilder[] partial = {new StringBuilder(), new StringBuilder()};
+    DataInputStream in = new DataInputStream(res.getBody());
+    byte[] header = new byte[8];
+    try {
+      while (true) {
+        try {
+          in.readFully(header);
+        } catch (EOFException e) {
+          break;
+        }
+        int size = ((header[4] & 0xff) << 24) | ((header[5] & 0xff) << 16) | ((header[6] & 0xff) << 8) |
+            (header[7] & 0xff);
+        byte[] frame = new byte[size];
+        in.readFully(frame);
+        String text = new String(frame, StandardCharsets.UTF_8);
+        boolean isErr = header[0] == 2;
+        if (isErr) stderr.append(text);
+        else if (stdout == null) out.append(text);
+        logLines(partial[isErr ? 1 : 0].append(text), logId, isErr ? null : stdout);
+      }
+    } catch (IOException e) {
+      if (timedOut.get()) {
+        throw new IOException("In container " + containerName + " process " + logId + " failed to run in " +
+            timeout + " seconds");
+      }
+      throw e;
+    } finally {
+      deadline.cancel(false);
+    }
+    for (StringBuilder rest : partial) {
+      if (rest.length() > 0) log.debug(logId, rest.toString());
+    }
+    if (stdout != null && partial[0].length() > 0) stdout.addLine(partial[0].toString());
+    return new ProcessResults(out.toString(), stderr.toString(), 0);
+  }
+
+  private void logLines(StringBuilder buf, String logId, ContainerOutput output) throws IOException {
+    int newline;
+    while ((newline = buf.indexOf("\n")) >= 0) {
+      String line = buf.substring(0, newline);
+      log.debug(logId, line);
+      if (output != null) output.addLine(line);
+      buf.delete(0, newline + 1);
+    }
+  }
+
+  private void copyFromContainer(String containerName, String path, File destDir, int stripComponents)
+      throws IOException {
+    try (DockerApi.Response res = api().call("GET", "/containers/" + containerName + "/archive?path=" +
+        DockerApi.encode(path), null)) {
+      if (res.getStatus() == 404) {
+        // Same as docker cp, it just isn't there
+        log.debug("No " + path + " in container " + containerName);
+        res.readString();
+        return;
+      }
+      if (res.getStatus() != 200) {
+        log.warn("Failed to copy " + path + " from container " + containerName + ": " + res.readError());
+        return;
+      }
+      AtomicBoolean timedOut = new AtomicBoolean(false);
+      long timeout = cfg.getAsTime(CFG_DOCKERCONTAINERCLIENT_COPYTIME, TimeUnit.SECONDS,
+          CFG_DOCKERCONTAINERCLIENT_COPYTIME_DEFAULT);
+      ScheduledFuture<?> deadline = abortAfter(res, timeout, timedOut, null);
+      try {
+        Tar.extract(res.getBody(), destDir, stripComponents);
+        // Read whatever padding is left so the connection can be reused
+        res.readString();
+      } catch (IOException e) {
+        if (timedOut.get()) {
+          throw new IOException("Copying " + path + " from container " + containerName + " took more than " +
+              timeout + " seconds");
+        }
+        throw e;
+      } finally {
+        deadline.cancel(false);
+      }
+    }
+  }
+
+  private static ScheduledFuture<?> abortAfter(DockerApi.Response res, long seconds, AtomicBoolean timedOut,
+                                               Runnable onTimeout) {
+    return watchdog().schedule(() -> {
+      timedOut.set(true);
+      if (onTimeout != null) onTimeout.run();
+      res.abort();
+    }, seconds, TimeUnit.SECONDS);
+  }
+
+  private static synchronized ScheduledExecutorService watchdog() {
+    if (watchdog == null) {
+      watchdog = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "dtest-docker-api-watchdog");
+        t.setDaemon(true);
+        return t;
+      });
+    }
+    return watchdog;
+  }
+}
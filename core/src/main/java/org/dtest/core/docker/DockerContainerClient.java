@@ -15,26 +15,53 @@
  */
 package org.dtest.core.docker;
 
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.hash.Hashing;
+import org.apache.commons.lang3.StringUtils;
 import org.dtest.core.BuildInfo;
 import org.dtest.core.ContainerClient;
 import org.dtest.core.ContainerCommand;
 import org.dtest.core.ContainerCommandFactory;
+import org.dtest.core.ContainerOutput;
 import org.dtest.core.ContainerResult;
+import org.dtest.core.ModuleDirectory;
 import org.dtest.core.Reporter;
 import org.dtest.core.TestReports;
 import org.dtest.core.ResultAnalyzer;
 import org.dtest.core.impl.CommandFinder;
 import org.dtest.core.impl.ProcessResults;
+import org.dtest.core.impl.Tar;
 import org.dtest.core.impl.Utils;
 
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -45,9 +72,125 @@ public class DockerContainerClient extends ContainerClient {
   protected static final Pattern IMAGE_SUCCESS = Pattern.compile("BUILD SUCCESS");
   protected static final Pattern USING_CACHE = Pattern.compile("Using cache");
   private static final String IMAGE_BASE = "dtest-";
-  private static final String BUILD_CONTAINER_NAME = "image_build";
+  protected static final String BUILD_CONTAINER_NAME = "image_build";
+  // Times to try killing a container, a second apart, in case docker run has not created it yet
+  private static final int KILL_ATTEMPTS = 10;
+  private static final Pattern LOCAL_DOCKER_HOST = Pattern.compile("unix://.*|(tcp|http)://(localhost|127\\.0\\.0\\.1)(:\\d+)?/?");
+
+  /**
+   * Maximum time to spend copying the test reports and additional logs out of a container.  Defaults to 60 seconds.
+   */
+  public static final String CFG_DOCKERCONTAINERCLIENT_COPYTIME = "dtest.core.dockercontainerclient.copytime";
+  protected static final long CFG_DOCKERCONTAINERCLIENT_COPYTIME_DEFAULT = 60;
+
+  /**
+   * Whether to mount a directory on this machine in each container at the test results directory and at the
+   * directories of the additional logs, rather than copying them out after the container exits.  The reports are
+   * then already in place when the container exits, and the container is run with --rm.  This only works when the
+   * docker daemon is on this machine, and it is not used for worker containers.  An additional log ending in / is
+   * a directory and is mounted at its own path, any other additional log is a file and the directory it is in is
+   * mounted.  A mount hides whatever the image has at that path, so the reports are only mounted when none of these
+   * directories exist in the image, e.g. a log directory under target/ that only the tests create.  Otherwise they are
+   * copied out as usual.  An additional log directly in the command's directory is never mounted.  Defaults to false.
+   */
+  public static final String CFG_DOCKERCONTAINERCLIENT_MOUNTREPORTS = "dtest.core.dockercontainerclient.mountreports";
+  protected static final boolean CFG_DOCKERCONTAINERCLIENT_MOUNTREPORTS_DEFAULT = false;
+
+  /**
+   * Whether to share one Maven local repository between all the containers in a build, rather than each container
+   * having its own copy from the image.  Whatever one container downloads is then there for the rest.  The
+   * repository is a docker volume that starts as a copy of the image's and is removed along with the image.  It
+   * is not shared between builds, since it holds the build's own snapshots.  Defaults to false.
+   */
+  public static final String CFG_DOCKERCONTAINERCLIENT_SHAREM2 = "dtest.core.dockercontainerclient.sharem2";
+  protected static final boolean CFG_DOCKERCONTAINERCLIENT_SHAREM2_DEFAULT = false;
+
+  /**
+   * Number of images to keep so that later builds of the same code can reuse them.  When this is set, the image is
+   * named after a hash of its Dockerfile, which checks out the exact revision found by
+   * {@link org.dtest.core.CodeSource#resolveRevision(org.dtest.core.BuildYaml)}.  If an image with that name is
+   * already there it is used as is rather than built again.  Rather than removing its image, each build removes the
+   * least recently used images beyond this number.  Defaults to 0, which builds a new image every time and removes
+   * it at the end of the build.
+   */
+  public static final String CFG_DOCKERCONTAINERCLIENT_KEEPIMAGES = "dtest.core.dockercontainerclient.keepimages";
+  protected static final int CFG_DOCKERCONTAINERCLIENT_KEEPIMAGES_DEFAULT = 0;
+
+  /**
+   * Number of times in a row an image can be built on top of a kept image of an earlier revision of the same
+   * branch, rather than from scratch.  Such a build starts from the earlier image, moves the source to the new
+   * revision, and only rebuilds what changed, using {@link ContainerCommandFactory#getIncrementalBuildCommand(String)}.
+   * Each one adds a layer, so after this many the next image is built from scratch again.  Only used when
+   * {@link #CFG_DOCKERCONTAINERCLIENT_KEEPIMAGES} is set.  Defaults to 0, which always builds from scratch.
+   */
+  public static final String CFG_DOCKERCONTAINERCLIENT_INCREMENTALBUILDS = "dtest.core.dockercontainerclient.incrementalbuilds";
+  protected static final int CFG_DOCKERCONTAINERCLIENT_INCREMENTALBUILDS_DEFAULT = 0;
+
+  /**
+   * Comma separated list of paths to remove from a worker container after each command, on top of the test reports
+   * and additional logs, so that what the tests leave behind there does not affect the next command.  Paths are
+   * relative to the directory the command ran in, e.g. target/tmp.  Defaults to none.
+   */
+  public static final String CFG_DOCKERCONTAINERCLIENT_RESETPATHS = "dtest.core.dockercontainerclient.resetpaths";
+
+  /**
+   * Number of CPUs each container can use, unless its {@link ModuleDirectory} sets its own.  Defaults to 0, which
+   * does not limit them.
+   */
+  public static final String CFG_DOCKERCONTAINERCLIENT_CPUS = "dtest.core.dockercontainerclient.cpus";
+  protected static final int CFG_DOCKERCONTAINERCLIENT_CPUS_DEFAULT = 0;
+
+  /**
+   * Memory limit of each container, in the form docker takes, e.g. 4g, unless its {@link ModuleDirectory} sets its
+   * own.  Defaults to none.
+   */
+  public static final String CFG_DOCKERCONTAINERCLIENT_MEMORY = "dtest.core.dockercontainerclient.memory";
+
+  /**
+   * Whether to give each container with a CPU limit its own CPUs, using {@link CpusetAllocator}, rather than a share
+   * of all of them.  Containers running at the same time then never run on the same cores, and on NUMA machines a
+   * container is kept to one node and its memory where it fits.  If there are not enough free CPUs the container
+   * gets a share instead.  Only used when the docker daemon is on this machine.  Defaults to false.
+   */
+  public static final String CFG_DOCKERCONTAINERCLIENT_PINCPUS = "dtest.core.dockercontainerclient.pincpus";
+  protected static final boolean CFG_DOCKERCONTAINERCLIENT_PINCPUS_DEFAULT = false;
+
+  // Runs the copies out of containers, shared since the threads spend all their time waiting on docker
+  private static ExecutorService copier;
 
   private String imageName;
+  private String dockerHost;
+  /**
+   * Container each running command is in, so they can be killed.
+   */
+  protected final Map<ContainerCommand, String> running = new ConcurrentHashMap<>();
+  /**
+   * Containers that were run with their reports mounted, so there is nothing to copy out of them.
+   */
+  protected final Set<String> mounted = ConcurrentHashMap.newKeySet();
+  /**
+   * Worker containers that have been started and not yet stopped, so reports can be copied out of them while they
+   * run.
+   */
+  protected final Set<String> workers = ConcurrentHashMap.newKeySet();
+  /**
+   * Whether paths in containers exist in the image, so that the image is only looked at once for each.
+   */
+  private final Map<String, Boolean> inImage = new ConcurrentHashMap<>();
+  private String testResultsDir;
+  private String[] additionalLogs;
+  private String m2Volume;
+  // CPUs given to each container, by container name, so they can be given back
+  private final Map<String, CpusetAllocator.Allocation> pinned = new ConcurrentHashMap<>();
+  // Revision the image checks out, only set when images are being kept for reuse
+  private String revision;
+  // Hash of everything the image is built from other than the revision, images with the same one can be built on
+  private String baseKey;
+  // Image this one was built on incrementally, and how many incremental builds are layered in it
+  private String parentImage;
+  private int incrementalBuilds;
+  // Whether the image built successfully or was found already built.  Only such images are kept for reuse.
+  private boolean imageReady;
 
   @Override
   public void setBuildInfo(BuildInfo buildInfo) throws IOException {
@@ -55,6 +198,32 @@ public class DockerContainerClient extends ContainerClient {
     imageName = IMAGE_BASE + buildInfo.getYaml().getProjectName().toLowerCase() + "-" + buildInfo.getLabel();
   }
 
+  /**
+   * Set the docker daemon this client talks to.  This is passed to docker as -H, so it takes the same values as
+   * DOCKER_HOST, e.g. unix:///var/run/docker.sock or tcp://buildhost:2375.  If this is not set the docker command
+   * finds the daemon the way it normally does.
+   * @param dockerHost docker daemon to use, or null for the default.
+   * @return this
+   */
+  public DockerContainerClient setDockerHost(String dockerHost) {
+    this.dockerHost = dockerHost;
+    return this;
+  }
+
+  /**
+   * Get the docker daemon this client talks to.
+   * @return docker daemon, or null if the default is being used.
+   */
+  public String getDockerHost() {
+    return dockerHost;
+  }
+
+  @Override
+  public void setReportPaths(String testResultsDir, String[] additionalLogs) {
+    this.testResultsDir = testResultsDir;
+    this.additionalLogs = additionalLogs;
+  }
+
   @Override
   public String getContainerBaseDir() {
     return getHomeDir() + File.separator + buildInfo.getYaml().getProjectDir();
@@ -62,46 +231,716 @@ public class DockerContainerClient extends ContainerClient {
 
   @Override
   public void buildImage(ContainerCommandFactory cmdFactory) throws IOException {
+    if (cfg.getAsInt(CFG_DOCKERCONTAINERCLIENT_KEEPIMAGES, CFG_DOCKERCONTAINERCLIENT_KEEPIMAGES_DEFAULT) > 0) {
+      revision = buildInfo.getSrc().resolveRevision(buildInfo.getYaml());
+      if (revision == null) log.warn("Unable to determine the revision to build, so the image will not be reused");
+    }
     defineImage(cmdFactory);
-    log.info("Building image");
-    checkBuildSucceeded(Utils.runProcess(BUILD_CONTAINER_NAME,
+    if (revision == null) {
+      buildDefinedImage();
+      return;
+    }
+    nameImageAfterDockerfile();
+    if (imageExists(imageName)) {
+      log.info("Reusing image " + imageName + " of revision " + revision);
+      imageReady = true;
+      return;
+    }
+    int maxIncremental = cfg.getAsInt(CFG_DOCKERCONTAINERCLIENT_INCREMENTALBUILDS,
+        CFG_DOCKERCONTAINERCLIENT_INCREMENTALBUILDS_DEFAULT);
+    KeptImage previous = maxIncremental > 0 && baseKey != null ? findPreviousImage(maxIncremental) : null;
+    if (previous != null && previous.revision.equals(revision)) {
+      log.info("Reusing image " + previous.name + " of revision " + revision);
+      imageName = previous.name;
+      incrementalBuilds = previous.incrementalBuilds;
+      imageReady = true;
+      return;
+    }
+    if (previous != null && defineIncrementalImage(cmdFactory, previous.name, previous.revision)) {
+      nameImageAfterDockerfile();
+      parentImage = previous.name;
+      incrementalBuilds = previous.incrementalBuilds + 1;
+      log.info("Building image of revision " + revision + " on " + previous.name + " of revision " +
+          previous.revision);
+      try {
+        buildDefinedImage();
+        return;
+      } catch (IOException e) {
+        // The broken image has already been deleted, so nothing will be built on it later
+        log.warn("Failed to build the image incrementally, building it from scratch", e);
+      }
+      parentImage = null;
+      incrementalBuilds = 0;
+      defineImage(cmdFactory);
+      nameImageAfterDockerfile();
+    }
+    buildDefinedImage();
+  }
+
+  private void nameImageAfterDockerfile() throws IOException {
+    imageName = IMAGE_BASE + buildInfo.getYaml().getProjectName().toLowerCase() + ":" +
+        hash(new String(Files.readAllBytes(new File(buildInfo.getBuildDir(), "Dockerfile").toPath()),
+            StandardCharsets.UTF_8));
+  }
+
+  private static String hash(String text) {
+    return Hashing.sha256().hashString(text, StandardCharsets.UTF_8).toString().substring(0, 16);
+  }
+
+  /**
+   * Find the most recently used kept image that this build's image can be built on.  That is one built from the
+   * same base layers and source, which is not already too many incremental builds deep.  An image of the same
+   * revision is preferred, however deep it is, since it can be used as is.
+   * @param maxIncremental maximum number of incremental builds in an image
+   * @return kept image, or null if there is none.
+   * @throws IOException if the index of kept images cannot be read or docker cannot be reached.
+   */
+  private KeptImage findPreviousImage(int maxIncremental) throws IOException {
+    List<KeptImage> candidates = updateImageIndex(kept -> {
+      List<KeptImage> found = new ArrayList<>();
+      for (KeptImage image : kept.values()) {
+        if (baseKey.equals(image.baseKey) && image.revision != null &&
+            (image.revision.equals(revision) || image.incrementalBuilds < maxIncremental)) {
+          found.add(image);
+        }
+      }
+      found.sort((a, b) -> {
+        int cmp = Boolean.compare(b.revision.equals(revision), a.revision.equals(revision));
+        return cmp != 0 ? cmp : Long.compare(b.lastUsed, a.lastUsed);
+      });
+      return found;
+    });
+    for (KeptImage image : candidates) {
+      if (imageExists(image.name)) return image;
+    }
+    return null;
+  }
+
+  /**
+   * Write a Dockerfile that builds this build's image on top of an image of an earlier revision.  It moves the
+   * source to this build's revision and rebuilds what changed since the earlier one.
+   * @param cmdFactory used to generate the incremental build command.
+   * @param fromImage image to build on
+   * @param fromRevision revision that image was built from
+   * @return true if the Dockerfile was written, false if the code source or the command factory does not support
+   * incremental builds.
+   * @throws IOException if the file cannot be written.
+   */
+  protected boolean defineIncrementalImage(ContainerCommandFactory cmdFactory, String fromImage, String fromRevision)
+      throws IOException {
+    List<String> updateCmds = buildInfo.getSrc().updateCommands(buildInfo.getYaml(), revision);
+    String diffCmd = buildInfo.getSrc().diffCommand(buildInfo.getYaml(), fromRevision, revision);
+    List<String> buildCmds = diffCmd == null ? Collections.emptyList() : cmdFactory.getIncrementalBuildCommand(diffCmd);
+    if (updateCmds == null || buildCmds.isEmpty()) {
+      log.info("Incremental builds are not supported by " + buildInfo.getSrc().getClass().getName() + " and " +
+          cmdFactory.getClass().getName() + ", building the image from scratch");
+      return false;
+    }
+    try (FileWriter writer = new FileWriter(new File(buildInfo.getBuildDir(), "Dockerfile"))) {
+      writer.write("FROM " + fromImage + "\n");
+      writer.write("\n");
+      writer.write("RUN { \\\n");
+      writer.write("    cd " + getContainerBaseDir() + "; \\\n");
+      for (String line : updateCmds) writer.write("    " + line + "; \\\n");
+      for (String line : buildCmds) writer.write("    " + line + "; \\\n");
+      writer.write("    echo This image is of revision " + revision + ", built on revision " + fromRevision +
+          "; \\\n");
+      writer.write("}\n");
+    }
+    return true;
+  }
+
+  /**
+   * Use the same image as another client, e.g. one talking to a different daemon that has already built it.
+   * @param other client whose image to use.
+   */
+  void useImageOf(DockerContainerClient other) {
+    imageName = other.imageName;
+    revision = other.revision;
+    baseKey = other.baseKey;
+    parentImage = other.parentImage;
+    incrementalBuilds = other.incrementalBuilds;
+  }
+
+  /**
+   * Get the image this build's image was built on incrementally.  The daemon needs that image to build this one
+   * from the Dockerfile.
+   * @return image name, or null if the image was built from scratch.
+   */
+  String getParentImage() {
+    return parentImage;
+  }
+
+  /**
+   * Whether the image for this build has already been built, which can only happen when images are being kept.
+   * @return true if the image is there and does not need to be built.
+   * @throws IOException if docker cannot be reached.
+   */
+  boolean hasReusableImage() throws IOException {
+    return revision != null && imageExists(imageName);
+  }
+
+  /**
+   * Note that this build's image is there and good to use without building it here, for example because it was
+   * loaded from another daemon.
+   */
+  void markImageReady() {
+    imageReady = true;
+  }
+
+  /**
+   * Build the image from the Dockerfile written by {@link #defineImage(ContainerCommandFactory)}.  This lets the
+   * same Dockerfile be built on several daemons.
+   * @throws IOException if the image fails to build.
+   */
+  public void buildDefinedImage() throws IOException {
+    log.info("Building image" + (dockerHost == null ? "" : " on " + dockerHost));
+    finishImageBuild(Utils.runProcess(BUILD_CONTAINER_NAME,
         cfg.getAsTime(CFG_CONTAINERCLIENT_IMAGEBUILDTIME, TimeUnit.SECONDS,
             CFG_CONTAINERCLIENT_IMAGEBUILDTIME_DEFAULT),
-        log, CommandFinder.get(cfg).findCommand("docker"), "build", "--tag", imageName, buildInfo.getBuildDir().getAbsolutePath()));
+        log, dockerCmd("build", "--tag", imageName, buildInfo.getBuildDir().getAbsolutePath())));
+  }
+
+  /**
+   * Check the image built, see {@link #checkBuildSucceeded(ProcessResults)}.  The commands in the Dockerfile do not
+   * stop at the first failure, so docker tags the image even when the build in it failed.  Such an image is deleted
+   * straight away, so that it is never kept or built on by a later build.
+   * @param res result of building the image
+   * @throws IOException if the image did not build.
+   */
+  protected void finishImageBuild(ProcessResults res) throws IOException {
+    try {
+      checkBuildSucceeded(res);
+    } catch (IOException e) {
+      if (imageExists(imageName)) deleteImage(imageName);
+      throw e;
+    }
+    imageReady = true;
   }
 
   @Override
   public ContainerResult runContainer(ContainerCommand cmd) throws IOException {
     List<String> runCmd = new ArrayList<>();
     String containerName = Utils.buildContainerName(buildInfo.getLabel(), cmd.containerSuffix());
-    Collections.addAll(runCmd, CommandFinder.get(cfg).findCommand("docker"), "run", "--name", containerName, imageName);
+    Collections.addAll(runCmd, dockerCmd("run", "--name", containerName));
+    Map<File, String> mounts = reportMounts(cmd, containerName);
+    for (Map.Entry<File, String> mount : mounts.entrySet()) {
+      Collections.addAll(runCmd, "--volume", mount.getKey().getAbsolutePath() + ":" + mount.getValue());
+    }
+    if (!mounts.isEmpty()) {
+      mounted.add(containerName);
+      // Nothing is needed from the container once it exits
+      if (buildInfo.shouldCleanupAfter()) runCmd.add("--rm");
+    }
+    for (Map.Entry<String, String> tmpfs : tmpfsMounts(cmd, containerName, !mounts.isEmpty()).entrySet()) {
+      Collections.addAll(runCmd, "--tmpfs", tmpfs.getKey() + ":" + tmpfs.getValue());
+    }
+    String m2 = sharedM2Volume();
+    if (m2 != null) Collections.addAll(runCmd, "--volume", m2 + ":" + getM2Dir());
+    runCmd.addAll(limitResources(cmd.getModuleDir(), containerName).toDockerArgs());
+    runCmd.add(imageName);
     Collections.addAll(runCmd, cmd.shellCommand());
-    ProcessResults res = Utils.runProcess(cmd.containerSuffix(),
-        cfg.getAsTime(CFG_CONTAINERCLIENT_CONTAINERRUNTIME, TimeUnit.SECONDS,
-            CFG_CONTAINERCLIENT_CONTAINERRUNTIME_DEFAULT), log, runCmd.toArray(new String[0]));
-    return new ContainerResult(cmd, containerName, res.rc, res.stdout);
+    running.put(cmd, containerName);
+    try (ContainerOutput output = captureOutput(cmd)) {
+      checkNotKilled(cmd, output);
+      ProcessResults res = Utils.runProcess(cmd.containerSuffix(),
+          cfg.getAsTime(CFG_CONTAINERCLIENT_CONTAINERRUNTIME, TimeUnit.SECONDS,
+              CFG_CONTAINERCLIENT_CONTAINERRUNTIME_DEFAULT), log, output, runCmd.toArray(new String[0]));
+      return new ContainerResult(cmd, containerName, res.rc, output);
+    } finally {
+      running.remove(cmd);
+      releaseResources(containerName);
+    }
+  }
+
+  @Override
+  public String startWorker(String workerName) throws IOException {
+    String containerName = Utils.buildContainerName(buildInfo.getLabel(), workerName);
+    List<String> runCmd = new ArrayList<>();
+    Collections.addAll(runCmd, dockerCmd("run", "--detach", "--name", containerName));
+    String m2 = sharedM2Volume();
+    if (m2 != null) Collections.addAll(runCmd, "--volume", m2 + ":" + getM2Dir());
+    // Workers run commands from every directory, so they get the default limits
+    runCmd.addAll(limitResources(null, containerName).toDockerArgs());
+    // Keep the container alive doing nothing so we can exec commands in it
+    Collections.addAll(runCmd, imageName, "sleep", "infinity");
+    ProcessResults res = Utils.runProcess(workerName, 300, log, runCmd.toArray(new String[0]));
+    if (res.rc != 0) {
+      releaseResources(containerName);
+      throw new IOException("Failed to start worker container " + containerName + ": " + res.stderr);
+    }
+    workers.add(containerName);
+    log.info("Started worker container " + containerName);
+    return containerName;
+  }
+
+  @Override
+  public ContainerResult runInWorker(String worker, ContainerCommand cmd) throws IOException {
+    List<String> execCmd = new ArrayList<>();
+    Collections.addAll(execCmd, dockerCmd("exec", worker));
+    Collections.addAll(execCmd, cmd.shellCommand());
+    running.put(cmd, worker);
+    try (ContainerOutput output = captureOutput(cmd)) {
+      checkNotKilled(cmd, output);
+      ProcessResults res = Utils.runProcess(cmd.containerSuffix(),
+          cfg.getAsTime(CFG_CONTAINERCLIENT_CONTAINERRUNTIME, TimeUnit.SECONDS,
+              CFG_CONTAINERCLIENT_CONTAINERRUNTIME_DEFAULT), log, output, execCmd.toArray(new String[0]));
+      return new ContainerResult(cmd, worker, res.rc, output);
+    } finally {
+      running.remove(cmd);
+    }
+  }
+
+  @Override
+  public void resetWorker(String worker, ContainerResult result, ResultAnalyzer analyzer, String[] additionalLogs)
+      throws IOException {
+    List<String> rmCmd = new ArrayList<>();
+    Collections.addAll(rmCmd, dockerCmd("exec", worker, "rm", "-rf"));
+    rmCmd.addAll(workerResetPaths(result, analyzer, additionalLogs));
+    ProcessResults res = Utils.runProcess("resetting-" + worker, 60, log, rmCmd.toArray(new String[0]));
+    if (res.rc != 0) {
+      // If we can't clear out the old reports we'd count them again for the next batch
+      throw new IOException("Failed to clear test reports from worker " + worker + ": " + res.stderr);
+    }
+  }
+
+  /**
+   * Get the paths to remove from a worker to get it ready for the next command.
+   * @param result result of the last command run in the worker
+   * @param analyzer result analyzer, to find where the test reports are
+   * @param additionalLogs additional logs the last command wrote
+   * @return absolute paths in the container
+   */
+  protected List<String> workerResetPaths(ContainerResult result, ResultAnalyzer analyzer, String[] additionalLogs) {
+    String dir = result.getCmd().containerDirectory() + File.separator;
+    List<String> paths = new ArrayList<>();
+    paths.add(dir + analyzer.getTestResultsDir());
+    if (additionalLogs != null) {
+      for (String additionalLog : additionalLogs) paths.add(dir + additionalLog);
+    }
+    String resetPaths = cfg.getAsString(CFG_DOCKERCONTAINERCLIENT_RESETPATHS);
+    if (resetPaths != null) {
+      for (String path : resetPaths.split(",")) {
+        if (!path.trim().isEmpty()) paths.add(dir + path.trim());
+      }
+    }
+    return paths;
+  }
+
+  @Override
+  public void stopWorker(String worker) throws IOException {
+    workers.remove(worker);
+    ProcessResults res;
+    if (buildInfo.shouldCleanupAfter()) {
+      res = Utils.runProcess("cleanup", 300, log, dockerCmd("rm", "--force", worker));
+    } else {
+      log.info("Stopping but not removing worker container " + worker + " since no-cleanup is set");
+      res = Utils.runProcess("cleanup", 300, log, dockerCmd("stop", worker));
+    }
+    if (res.rc != 0) {
+      log.warn("Failed to stop worker container " + worker + ": " + res.stderr);
+    }
+    releaseResources(worker);
+  }
+
+  @Override
+  public void killContainer(ContainerCommand cmd) throws IOException {
+    markKilled(cmd);
+    for (int attempt = 1; ; attempt++) {
+      String containerName = running.get(cmd);
+      if (containerName == null) return; // Not started, and now never will be, or already finished
+      // For a worker this kills the whole worker, which is what we want since we're giving up
+      ProcessResults res = Utils.runProcess("kill-" + cmd.containerSuffix(), 60, log, dockerCmd("kill", containerName));
+      if (res.rc == 0) return;
+      // docker run may not have created the container yet, in which case it will shortly
+      if (attempt >= KILL_ATTEMPTS) {
+        log.warn("Failed to kill container " + containerName + ": " + res.stderr);
+        return;
+      }
+      try {
+        Thread.sleep(1000);
+      } catch (InterruptedException e) {
+        throw new IOException("Interrupted while killing container " + containerName, e);
+      }
+    }
   }
 
   @Override
   public void fetchTestReports(ContainerResult result, ResultAnalyzer analyzer, Reporter reporter, String[] additionalLogs) throws IOException {
-    result.setReports(new TestReports(log, result.getContainerName(), reporter.getLogDirForContainer(result)));
-    Utils.runProcess("copying-files-for-" + result.getContainerName(), 60, log,
-        CommandFinder.get(cfg).findCommand("docker"), "cp",
-        result.getContainerName() + ":" + result.getCmd().containerDirectory() + File.separator + analyzer.getTestResultsDir() +
-            File.separator + ".",
-        result.getReports().getTempDir().getAbsolutePath());
+    // Name the reports after the command rather than the container, as a worker container runs many commands
+    String reportsName = Utils.buildContainerName(buildInfo.getLabel(), result.getCmd().containerSuffix());
+    result.setReports(new TestReports(log, reportsName, reporter.getLogDirForContainer(result)));
+    if (mounted.contains(result.getContainerName())) {
+      // The container wrote them straight into the reports directory
+      for (String additionalLog : additionalLogs) result.getReports().addAdditionalLog(additionalLog);
+      return;
+    }
+    long timeout = cfg.getAsTime(CFG_DOCKERCONTAINERCLIENT_COPYTIME, TimeUnit.SECONDS,
+        CFG_DOCKERCONTAINERCLIENT_COPYTIME_DEFAULT);
+    // A worker is still running, so it can pack up everything we want in one go.  A container that has exited can
+    // only be copied from a path at a time.
+    boolean fetched = workers.contains(result.getContainerName()) &&
+        fetchAsOneArchive(result, analyzer, additionalLogs, timeout);
+    if (!fetched) fetchEachPath(result, analyzer, additionalLogs, timeout);
+    for (String additionalLog : additionalLogs) result.getReports().addAdditionalLog(additionalLog);
+  }
+
+  /**
+   * Copy the test reports and additional logs out of a running container as a single tar stream, built by tar in
+   * the container and unpacked straight into the reports directory.
+   * @return true if it worked, false if the container could not produce the whole archive (say because it has no
+   * tar), in which case nothing is left in the reports directory.
+   */
+  private boolean fetchAsOneArchive(ContainerResult result, ResultAnalyzer analyzer, String[] additionalLogs,
+                                    long timeout) throws IOException {
+    List<String> tarCmd = new ArrayList<>();
+    Collections.addAll(tarCmd, dockerCmd("exec", result.getContainerName(), "tar", "-C",
+        result.getCmd().containerDirectory(), "--ignore-failed-read", "-cf", "-", analyzer.getTestResultsDir()));
+    Collections.addAll(tarCmd, additionalLogs);
+    File tempDir = result.getReports().getTempDir();
+    UnaryOperator<String> placement = reportPlacement(analyzer.getTestResultsDir(), additionalLogs);
+    AtomicInteger unpacked = new AtomicInteger();
+    ProcessResults res = Utils.runProcess("copying-files-for-" + result.getContainerName(), timeout, log,
+        in -> unpacked.set(Tar.extract(in, tempDir, placement).size()), tarCmd.toArray(new String[0]));
+    if (res.rc != 0) {
+      log.debug("Unable to fetch reports from " + result.getContainerName() + " as one archive after unpacking " +
+          unpacked.get() + " files, copying them one at a time: " + res.stderr);
+      // Don't leave part of the archive mixed in with what gets copied next
+      result.getReports().cleanupTempDir();
+      if (!tempDir.mkdir()) throw new IOException("Failed to recreate temporary directory " + tempDir);
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Copy the test reports and each additional log out of a container separately.  The copies run in parallel and
+   * are unpacked as they are streamed rather than being written out by docker first.
+   */
+  private void fetchEachPath(ContainerResult result, ResultAnalyzer analyzer, String[] additionalLogs,
+                             long timeout) throws IOException {
+    List<String> paths = new ArrayList<>();
+    paths.add(analyzer.getTestResultsDir());
+    Collections.addAll(paths, additionalLogs);
+    File tempDir = result.getReports().getTempDir();
+    List<CompletableFuture<ProcessResults>> copies = new ArrayList<>();
+    for (int i = 0; i < paths.size(); i++) {
+      String path = result.getCmd().containerDirectory() + File.separator + paths.get(i);
+      // docker names the archive entries from the last element of the path, the reports go in the top directory
+      int strip = i == 0 ? 1 : 0;
+      copies.add(CompletableFuture.supplyAsync(() -> {
+        try {
+          return Utils.runProcess("copying-files-for-" + result.getContainerName(), timeout, log,
+              in -> Tar.extract(in, tempDir, strip), dockerCmd("cp", result.getContainerName() + ":" + path, "-"));
+        } catch (IOException e) {
+          throw new CompletionException(e);
+        }
+      }, copier()));
+    }
+    for (int i = 0; i < copies.size(); i++) {
+      ProcessResults res;
+      try {
+        res = copies.get(i).join();
+      } catch (CompletionException e) {
+        if (e.getCause() instanceof IOException) throw (IOException)e.getCause();
+        throw e;
+      }
+      // Same as before, something that isn't there just isn't copied
+      if (res.rc != 0) log.debug("Failed to copy " + paths.get(i) + " from " + result.getContainerName() + ": " + res.stderr);
+    }
+  }
+
+  /**
+   * Get the tmpfs mounts for a container, from the tmpfs of its {@link ModuleDirectory}.  Relative paths are taken
+   * to be relative to the command's directory.  Anything written to a tmpfs is gone once the container exits, so a
+   * tmpfs that the test reports or additional logs would be written to is left out, unless the reports are mounted
+   * from this machine, which puts them on top of the tmpfs.
+   * @param cmd command the container will run
+   * @param containerName name of the container
+   * @param reportsMounted whether the reports are mounted, see {@link #reportMounts(ContainerCommand, String)}
+   * @return path in the container mapped to its mount options, empty if there are none.
+   */
+  protected Map<String, String> tmpfsMounts(ContainerCommand cmd, String containerName, boolean reportsMounted) {
+    ModuleDirectory moduleDir = cmd.getModuleDir();
+    if (moduleDir == null || !moduleDir.isSetTmpfs()) return Collections.emptyMap();
+    List<String> reportPaths = new ArrayList<>();
+    if (!reportsMounted) {
+      if (testResultsDir != null) reportPaths.add(inContainer(cmd, testResultsDir));
+      if (additionalLogs != null) {
+        for (String additionalLog : additionalLogs) reportPaths.add(inContainer(cmd, additionalLog));
+      }
+    }
+    Map<String, String> tmpfs = new LinkedHashMap<>();
+    for (Map.Entry<String, String> entry : moduleDir.getTmpfs().entrySet()) {
+      String path = inContainer(cmd, entry.getKey());
+      String covered = null;
+      for (String reportPath : reportPaths) {
+        if (reportPath.equals(path) || reportPath.startsWith(path + "/")) covered = reportPath;
+      }
+      if (covered != null) {
+        log.warn("Not mounting tmpfs at " + path + " in " + containerName + " since " + covered +
+            " would be lost when the container exits");
+        continue;
+      }
+      // The user in the container is not root, and tests often run what they write
+      StringBuilder options = new StringBuilder("rw,exec,mode=1777");
+      if (entry.getValue() != null && !entry.getValue().trim().isEmpty()) {
+        options.append(",size=").append(entry.getValue().trim());
+      }
+      tmpfs.put(path, options.toString());
+    }
+    return tmpfs;
+  }
+
+  private static String inContainer(ContainerCommand cmd, String path) {
+    String full = path.startsWith("/") ? path : cmd.containerDirectory() + "/" + path;
+    while (full.length() > 1 && full.endsWith("/")) full = full.substring(0, full.length() - 1);
+    return full;
+  }
+
+  /**
+   * Work out the resources a container can use, from its {@link ModuleDirectory} or else
+   * {@link #CFG_DOCKERCONTAINERCLIENT_CPUS} and {@link #CFG_DOCKERCONTAINERCLIENT_MEMORY}.  If
+   * {@link #CFG_DOCKERCONTAINERCLIENT_PINCPUS} is set the container is given its own CPUs, which must be given back
+   * with {@link #releaseResources(String)} once it exits.
+   * @param moduleDir directory the container runs tests for, or null for a worker
+   * @param containerName name of the container
+   * @return limits for the container
+   */
+  protected ResourceLimits limitResources(ModuleDirectory moduleDir, String containerName) {
+    int cpus = moduleDir != null && moduleDir.isSetCpus() ? moduleDir.getCpus() :
+        cfg.getAsInt(CFG_DOCKERCONTAINERCLIENT_CPUS, CFG_DOCKERCONTAINERCLIENT_CPUS_DEFAULT);
+    String memory = moduleDir != null && moduleDir.isSetMemory() ? moduleDir.getMemory() :
+        cfg.getAsString(CFG_DOCKERCONTAINERCLIENT_MEMORY);
+    CpusetAllocator.Allocation cpuset = null;
+    if (cpus > 0 && cfg.getAsBoolean(CFG_DOCKERCONTAINERCLIENT_PINCPUS, CFG_DOCKERCONTAINERCLIENT_PINCPUS_DEFAULT)) {
+      if (!isLocalDaemon()) {
+        log.debug("Not pinning CPUs for " + containerName + " since docker is on " + daemonHost());
+      } else {
+        cpuset = getCpusetAllocator().acquire(cpus);
+        if (cpuset == null) {
+          log.debug("Not enough free CPUs to pin " + containerName + ", giving it a share of " + cpus);
+        } else {
+          log.debug("Pinning " + containerName + " to CPUs " + cpuset);
+          pinned.put(containerName, cpuset);
+        }
+      }
+    }
+    return new ResourceLimits(cpus, memory, cpuset);
+  }
+
+  /**
+   * Give back the CPUs of a container that has exited, if it was given its own.
+   * @param containerName name of the container
+   */
+  protected void releaseResources(String containerName) {
+    CpusetAllocator.Allocation cpuset = pinned.remove(containerName);
+    if (cpuset != null) getCpusetAllocator().release(cpuset);
+  }
+
+  /**
+   * Get the allocator that hands out CPUs when {@link #CFG_DOCKERCONTAINERCLIENT_PINCPUS} is set.
+   * @return allocator
+   */
+  protected CpusetAllocator getCpusetAllocator() {
+    return CpusetAllocator.forThisMachine();
+  }
+
+  /**
+   * Resources a container can use.
+   */
+  protected static class ResourceLimits {
+    /**
+     * No limits at all.
+     */
+    protected static final ResourceLimits NONE = new ResourceLimits(0, null, null);
+
+    /**
+     * Number of CPUs, 0 if not limited.
+     */
+    protected final int cpus;
+    /**
+     * Memory limit in the form docker takes, null if not limited.
+     */
+    protected final String memory;
+    /**
+     * CPUs the container is pinned to, null if it is not.
+     */
+    protected final CpusetAllocator.Allocation cpuset;
+
+    ResourceLimits(int cpus, String memory, CpusetAllocator.Allocation cpuset) {
+      this.cpus = cpus;
+      this.memory = memory;
+      this.cpuset = cpuset;
+    }
+
+    /**
+     * Get the limits as arguments to docker run.
+     * @return arguments, empty if nothing is limited.
+     */
+    protected List<String> toDockerArgs() {
+      List<String> args = new ArrayList<>();
+      if (cpuset != null) {
+        Collections.addAll(args, "--cpuset-cpus", cpuset.getCpus());
+        if (cpuset.getMems() != null) Collections.addAll(args, "--cpuset-mems", cpuset.getMems());
+      } else if (cpus > 0) {
+        Collections.addAll(args, "--cpus", Integer.toString(cpus));
+      }
+      if (memory != null) Collections.addAll(args, "--memory", memory);
+      return args;
+    }
+  }
+
+  private String daemonHost() {
+    return dockerHost != null ? dockerHost : System.getenv("DOCKER_HOST");
+  }
+
+  private boolean isLocalDaemon() {
+    String host = daemonHost();
+    return host == null || host.isEmpty() || LOCAL_DOCKER_HOST.matcher(host).matches();
+  }
+
+  /**
+   * Get the directories to mount in a container so that its reports are written straight to the directory they
+   * are read from, if {@link #CFG_DOCKERCONTAINERCLIENT_MOUNTREPORTS} is set.  The directories are created, empty,
+   * and writable by the user in the container.
+   * @param cmd command the container will run
+   * @param containerName name of the container
+   * @return directories on this machine mapped to where they go in the container, empty if the reports will not
+   * be mounted.
+   * @throws IOException if the directories cannot be created.
+   */
+  protected Map<File, String> reportMounts(ContainerCommand cmd, String containerName) throws IOException {
+    if (!cfg.getAsBoolean(CFG_DOCKERCONTAINERCLIENT_MOUNTREPORTS, CFG_DOCKERCONTAINERCLIENT_MOUNTREPORTS_DEFAULT) ||
+        testResultsDir == null) {
+      return Collections.emptyMap();
+    }
+    if (!isLocalDaemon()) {
+      log.debug("Not mounting reports for " + containerName + " since docker is on " + daemonHost());
+      return Collections.emptyMap();
+    }
+    List<String> logDirs = new ArrayList<>();
     for (String additionalLog : additionalLogs) {
-      Utils.runProcess("copying-additional-logs-for-" + result.getContainerName(), 60, log, CommandFinder.get(cfg).findCommand("docker"),
-          "cp", result.getContainerName() + ":" + result.getCmd().containerDirectory() + File.separator + additionalLog,
-          result.getReports().getTempDir().getAbsolutePath());
-      result.getReports().addAdditionalLog(additionalLog);
+      String dir = additionalLog.endsWith("/") ? trimSlashes(additionalLog) : new File(additionalLog).getParent();
+      if (dir == null || dir.isEmpty()) {
+        // Mounting over the command's directory would hide the code
+        log.debug("Not mounting reports for " + containerName + " since " + additionalLog + " is not in a subdirectory");
+        return Collections.emptyMap();
+      }
+      logDirs.add(dir);
+    }
+    List<String> containerDirs = new ArrayList<>();
+    containerDirs.add(cmd.containerDirectory() + File.separator + testResultsDir);
+    for (String dir : logDirs) containerDirs.add(cmd.containerDirectory() + File.separator + dir);
+    List<String> hidden = existingInImage(containerDirs);
+    if (!hidden.isEmpty()) {
+      log.info("Copying reports out of " + containerName + " rather than mounting them, since mounting would hide " +
+          String.join(", ", hidden) + " in the image");
+      return Collections.emptyMap();
     }
+    File hostDir = TestReports.tempDirFor(containerName);
+    // Don't pick up reports left behind by an earlier build with the same label
+    if (hostDir.exists()) new TestReports(log, containerName, null).cleanupTempDir();
+    Map<File, String> mounts = new LinkedHashMap<>();
+    mounts.put(hostDir, cmd.containerDirectory() + File.separator + testResultsDir);
+    // Put each log's directory where TestReports expects to find the log
+    for (String dir : logDirs) mounts.put(new File(hostDir, dir), cmd.containerDirectory() + File.separator + dir);
+    for (File dir : mounts.keySet()) {
+      if (!dir.mkdirs() && !dir.isDirectory()) throw new IOException("Unable to create directory " + dir);
+      for (File d = dir; !d.equals(hostDir.getParentFile()); d = d.getParentFile()) {
+        // The user in the container is not us
+        if (!d.setWritable(true, false) || !d.setExecutable(true, false)) {
+          throw new IOException("Unable to make " + d + " writable from the container");
+        }
+      }
+    }
+    return mounts;
+  }
+
+  private List<String> existingInImage(List<String> paths) throws IOException {
+    List<String> unknown = new ArrayList<>();
+    for (String path : paths) if (!inImage.containsKey(path)) unknown.add(path);
+    if (!unknown.isEmpty()) {
+      List<String> script = new ArrayList<>();
+      // Print whichever of the arguments exist
+      Collections.addAll(script, "/bin/sh", "-c", "for p in \"$@\"; do if [ -e \"$p\" ]; then echo \"$p\"; fi; done",
+          "sh");
+      script.addAll(unknown);
+      Set<String> found = new TreeSet<>(Arrays.asList(runInImage("checking-image-paths", script).split("\n")));
+      for (String path : unknown) inImage.put(path, found.contains(path));
+    }
+    List<String> existing = new ArrayList<>();
+    for (String path : paths) if (inImage.get(path)) existing.add(path);
+    return existing;
+  }
+
+  /**
+   * Run a short command in a throwaway container from the image, to look at what is in it.
+   * @param logId name to use for this in the logs
+   * @param shellCommand command to run
+   * @return what the command wrote to stdout
+   * @throws IOException if the container cannot be run or the command fails
+   */
+  protected String runInImage(String logId, List<String> shellCommand) throws IOException {
+    List<String> runCmd = new ArrayList<>();
+    Collections.addAll(runCmd, dockerCmd("run", "--rm", imageName));
+    runCmd.addAll(shellCommand);
+    ProcessResults res = Utils.runProcess(logId, 60, log, runCmd.toArray(new String[0]));
+    if (res.rc != 0) throw new IOException("Failed to run " + shellCommand + " in " + imageName + ": " + res.stderr);
+    return res.stdout;
+  }
+
+  /**
+   * Work out where an entry from an archive made in the container directory goes in the reports directory.  Test
+   * reports go in the top directory and additional logs are named by their last path element, the same as copying
+   * each of them out separately.
+   */
+  @VisibleForTesting
+  static UnaryOperator<String> reportPlacement(String testResultsDir, String[] additionalLogs) {
+    Map<String, String> prefixes = new HashMap<>();
+    prefixes.put(trimSlashes(testResultsDir), "");
+    for (String additionalLog : additionalLogs) {
+      String trimmed = trimSlashes(additionalLog);
+      prefixes.put(trimmed, trimmed.substring(trimmed.lastIndexOf('/') + 1));
+    }
+    return path -> {
+      for (Map.Entry<String, String> e : prefixes.entrySet()) {
+        if (path.equals(e.getKey())) return e.getValue().isEmpty() ? null : e.getValue();
+        if (path.startsWith(e.getKey() + "/")) {
+          String rest = path.substring(e.getKey().length() + 1);
+          return e.getValue().isEmpty() ? rest : e.getValue() + "/" + rest;
+        }
+      }
+      return null;
+    };
+  }
+
+  private static String trimSlashes(String path) {
+    String trimmed = path;
+    while (trimmed.startsWith("./")) trimmed = trimmed.substring(2);
+    while (trimmed.startsWith("/")) trimmed = trimmed.substring(1);
+    while (trimmed.endsWith("/")) trimmed = trimmed.substring(0, trimmed.length() - 1);
+    return trimmed;
+  }
+
+  private static synchronized ExecutorService copier() {
+    if (copier == null) {
+      AtomicInteger threadNum = new AtomicInteger();
+      copier = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "dtest-copy-" + threadNum.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      });
+    }
+    return copier;
   }
 
   @Override
   public void removeContainer(ContainerResult result) throws IOException {
+    // Run with --rm, so docker already removed it
+    if (mounted.remove(result.getContainerName()) && buildInfo.shouldCleanupAfter()) return;
     if (buildInfo.shouldCleanupAfter()) {
-      ProcessResults res = Utils.runProcess("cleanup", 300, log, CommandFinder.get(cfg).findCommand("docker"), "rm", result.getContainerName());
+      ProcessResults res = Utils.runProcess("cleanup", 300, log, dockerCmd("rm", result.getContainerName()));
       if (res.rc != 0) {
         log.warn("Failed to cleanup containers: " + res.stderr);
       }
@@ -110,12 +949,230 @@ public class DockerContainerClient extends ContainerClient {
     }
   }
 
+  @Override
+  public void removeContainers(List<ContainerResult> results) throws IOException {
+    if (!buildInfo.shouldCleanupAfter()) {
+      super.removeContainers(results);
+      return;
+    }
+    List<String> names = new ArrayList<>();
+    for (ContainerResult result : results) {
+      // Run with --rm, so docker already removed it
+      if (!mounted.remove(result.getContainerName())) names.add(result.getContainerName());
+    }
+    if (names.isEmpty()) return;
+    List<String> rmCmd = new ArrayList<>();
+    Collections.addAll(rmCmd, dockerCmd("rm"));
+    rmCmd.addAll(names);
+    ProcessResults res = Utils.runProcess("cleanup", 300, log, rmCmd.toArray(new String[0]));
+    if (res.rc != 0) {
+      log.warn("Failed to cleanup containers: " + res.stderr);
+    }
+  }
+
+  @Override
+  public List<String> removeOrphans(String prefix) throws IOException {
+    ProcessResults res = Utils.runProcess("find-orphans", 300, log,
+        dockerCmd("ps", "--all", "--filter", "name=" + prefix, "--format", "{{.Names}}"));
+    if (res.rc != 0) throw new IOException("Failed to list containers: " + res.stderr);
+    List<String> orphans = new ArrayList<>();
+    // The filter matches anywhere in the name
+    for (String name : res.stdout.split("\n")) {
+      if (name.trim().startsWith(prefix)) orphans.add(name.trim());
+    }
+    if (orphans.isEmpty()) return orphans;
+    List<String> rmCmd = new ArrayList<>();
+    Collections.addAll(rmCmd, dockerCmd("rm", "--force"));
+    rmCmd.addAll(orphans);
+    res = Utils.runProcess("remove-orphans", 300, log, rmCmd.toArray(new String[0]));
+    if (res.rc != 0) throw new IOException("Failed to remove containers " + orphans + ": " + res.stderr);
+    return orphans;
+  }
+
   @Override
   public void removeImage() throws IOException {
-    ProcessResults res = Utils.runProcess("cleanup", 300, log, CommandFinder.get(cfg).findCommand("docker"), "image", "rm", imageName);
+    // An image that was never built, or that failed to build and has already been deleted, is left alone
+    if (imageReady && revision == null) {
+      deleteImage(imageName);
+    } else if (imageReady) {
+      // Keep this image for the next build, and make room for it
+      for (String image : recordImageUse(
+          cfg.getAsInt(CFG_DOCKERCONTAINERCLIENT_KEEPIMAGES, CFG_DOCKERCONTAINERCLIENT_KEEPIMAGES_DEFAULT))) {
+        log.info("Removing least recently used image " + image);
+        deleteImage(image);
+      }
+    }
+    removeM2Volume();
+  }
+
+  /**
+   * Determine whether an image exists.
+   * @param image name of the image
+   * @return true if the daemon has it.
+   * @throws IOException if docker cannot be run.
+   */
+  protected boolean imageExists(String image) throws IOException {
+    return Utils.runProcess("checking-image", 60, log, dockerCmd("image", "inspect", "--format", "{{.Id}}", image)).rc == 0;
+  }
+
+  /**
+   * Delete an image.
+   * @param image name of the image
+   * @throws IOException if docker cannot be run.
+   */
+  protected void deleteImage(String image) throws IOException {
+    ProcessResults res = Utils.runProcess("cleanup", 300, log, dockerCmd("image", "rm", image));
     if (res.rc != 0) {
-      log.error("Failed to cleanup image: " + res.stderr);
+      log.error("Failed to cleanup image " + image + ": " + res.stderr);
+    }
+  }
+
+  /**
+   * Note that this build's image was just used in the index of kept images.
+   * @param keep number of images to keep.
+   * @return the least recently used images beyond the number to keep, which are dropped from the index.  This
+   * build's image is never among them.
+   * @throws IOException if the index cannot be read or written.
+   */
+  private List<String> recordImageUse(int keep) throws IOException {
+    return updateImageIndex(kept -> {
+      kept.put(imageName, new KeptImage(System.currentTimeMillis(), imageName, baseKey, revision, incrementalBuilds));
+      List<KeptImage> images = new ArrayList<>(kept.values());
+      images.sort((a, b) -> {
+        // Most recent first, and this build's image ahead of any used in the same millisecond
+        int cmp = Long.compare(b.lastUsed, a.lastUsed);
+        return cmp != 0 ? cmp : Boolean.compare(b.name.equals(imageName), a.name.equals(imageName));
+      });
+      List<String> evicted = new ArrayList<>();
+      for (KeptImage image : images.subList(Math.min(keep, images.size()), images.size())) {
+        evicted.add(image.name);
+        kept.remove(image.name);
+      }
+      return evicted;
+    });
+  }
+
+  /**
+   * Read and update the index of kept images.  This is a file kept in the build base directory, with a line for
+   * each image giving the time it was last used and what it was built from.  There is one file per daemon, and it
+   * is locked while it is read and rewritten since several builds can be using the same daemon.
+   * @param update reads and changes the kept images, keyed by image name
+   * @param <T> what the update returns
+   * @return what the update returned
+   * @throws IOException if the file cannot be read or written.
+   */
+  private <T> T updateImageIndex(Function<Map<String, KeptImage>, T> update) throws IOException {
+    String hostSuffix = dockerHost == null ? "" : "-" + dockerHost.replaceAll("[^A-Za-z0-9]+", "_");
+    File index = new File(cfg.getAsString(BuildInfo.CFG_BUILDINFO_BASEDIR, System.getProperty("java.io.tmpdir")),
+        "dtest-images" + hostSuffix);
+    try (FileChannel channel = FileChannel.open(index.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+        StandardOpenOption.WRITE)) {
+      FileLock lock = channel.lock();
+      try {
+        ByteBuffer contents = ByteBuffer.allocate((int)channel.size());
+        while (contents.hasRemaining()) {
+          if (channel.read(contents) < 0) break;
+        }
+        Map<String, KeptImage> kept = new HashMap<>();
+        for (String line : new String(contents.array(), StandardCharsets.UTF_8).split("\n")) {
+          KeptImage image = KeptImage.parse(line);
+          if (image != null) kept.put(image.name, image);
+        }
+        T result = update.apply(kept);
+        StringBuilder buf = new StringBuilder();
+        for (KeptImage image : kept.values()) buf.append(image).append('\n');
+        channel.truncate(0);
+        channel.write(ByteBuffer.wrap(buf.toString().getBytes(StandardCharsets.UTF_8)), 0);
+        return result;
+      } finally {
+        lock.release();
+      }
+    }
+  }
+
+  private static class KeptImage {
+    final long lastUsed;
+    final String name;
+    final String baseKey;
+    final String revision;
+    final int incrementalBuilds;
+
+    KeptImage(long lastUsed, String name, String baseKey, String revision, int incrementalBuilds) {
+      this.lastUsed = lastUsed;
+      this.name = name;
+      this.baseKey = baseKey;
+      this.revision = revision;
+      this.incrementalBuilds = incrementalBuilds;
+    }
+
+    static KeptImage parse(String line) {
+      String[] parts = line.trim().split(" ");
+      if (parts.length < 2) return null;
+      return new KeptImage(Long.parseLong(parts[0]), parts[1],
+          parts.length > 2 && !parts[2].equals("-") ? parts[2] : null,
+          parts.length > 3 && !parts[3].equals("-") ? parts[3] : null,
+          parts.length > 4 ? Integer.parseInt(parts[4]) : 0);
+    }
+
+    @Override
+    public String toString() {
+      return lastUsed + " " + name + " " + (baseKey == null ? "-" : baseKey) + " " +
+          (revision == null ? "-" : revision) + " " + incrementalBuilds;
+    }
+  }
+
+  /**
+   * Get the volume to mount as the Maven local repository of each container, if
+   * {@link #CFG_DOCKERCONTAINERCLIENT_SHAREM2} is set.  The volume is created the first time this is called.
+   * @return name of the volume, or null if the containers each have their own.
+   * @throws IOException if the volume cannot be created.
+   */
+  protected synchronized String sharedM2Volume() throws IOException {
+    if (!cfg.getAsBoolean(CFG_DOCKERCONTAINERCLIENT_SHAREM2, CFG_DOCKERCONTAINERCLIENT_SHAREM2_DEFAULT)) return null;
+    if (m2Volume == null) {
+      String volume = imageName.replace(':', '-') + "-m2";
+      log.info("Creating volume " + volume + " for the shared Maven repository");
+      createM2Volume(volume);
+      m2Volume = volume;
     }
+    return m2Volume;
+  }
+
+  /**
+   * Create the shared Maven repository volume.  It has to be filled from the image before any test container uses
+   * it, otherwise containers starting at the same time would each see an empty repository.  Docker copies what the
+   * image has at a mount point into a new volume, so running a container that does nothing does the job.
+   * @param volume name of the volume
+   * @throws IOException if the volume cannot be created.
+   */
+  protected void createM2Volume(String volume) throws IOException {
+    ProcessResults res = Utils.runProcess("creating-" + volume, 300, log, dockerCmd("run", "--rm",
+        "--volume", volume + ":" + getM2Dir(), imageName, "true"));
+    if (res.rc != 0) throw new IOException("Failed to create volume " + volume + ": " + res.stderr);
+  }
+
+  /**
+   * Remove the shared Maven repository volume, if there is one and the build is cleaning up after itself.
+   * @throws IOException if the volume cannot be removed.
+   */
+  protected synchronized void removeM2Volume() throws IOException {
+    if (m2Volume == null) return;
+    if (buildInfo.shouldCleanupAfter()) {
+      deleteVolume(m2Volume);
+    } else {
+      log.info("Skipping cleanup of volume " + m2Volume + " since no-cleanup is set");
+    }
+    m2Volume = null;
+  }
+
+  /**
+   * Delete a docker volume.
+   * @param volume name of the volume
+   * @throws IOException if docker cannot be run.
+   */
+  protected void deleteVolume(String volume) throws IOException {
+    ProcessResults res = Utils.runProcess("cleanup", 300, log, dockerCmd("volume", "rm", volume));
+    if (res.rc != 0) log.error("Failed to cleanup volume " + volume + ": " + res.stderr);
   }
 
   /**
@@ -126,40 +1183,93 @@ public class DockerContainerClient extends ContainerClient {
    * @throws IOException if the file cannot be written.
    */
   public void defineImage(ContainerCommandFactory cmdFactory) throws IOException {
-    FileWriter writer = new FileWriter(new File(buildInfo.getBuildDir(), "Dockerfile"));
+    // Each step is its own layer, ordered from least to most likely to change, so that docker can reuse the layers
+    // that have not changed since the last time.  Only the last one, which fetches and builds the source, is
+    // always rebuilt.
+    StringWriter writer = new StringWriter();
     writer.write("FROM " + buildInfo.getYaml().getBaseImage() + "\n");
     writer.write("\n");
     String image = buildInfo.getYaml().getBaseImage();
+    // Sort them so the same packages always make the same layer
+    Set<String> packages = new TreeSet<>();
+    Collections.addAll(packages, buildInfo.getYaml().getRequiredPackages());
+    packages.addAll(buildInfo.getSrc().getRequiredPackages());
+    packages.addAll(cmdFactory.getRequiredPackages());
+    // Update and install in one step, otherwise a cached update could be used with new packages
     if (image.startsWith("centos")) {
-      writer.write("RUN yum upgrade -y && yum update -y\n");
-      writer.write("RUN yum install -y ");
+      writer.write("RUN yum upgrade -y && yum update -y && \\\n");
+      writer.write("    yum install -y " + StringUtils.join(packages, " ") + "\n");
     } else if (image.startsWith("ubuntu") || image.startsWith("debian")) {
-      writer.write("RUN apt-get update\n");
-      writer.write("RUN apt-get install -y ");
+      writer.write("RUN apt-get update && \\\n");
+      writer.write("    apt-get install -y " + StringUtils.join(packages, " ") + "\n");
     } else {
       throw new IOException("I'm sorry, I don't know how to install packages on " + image +
           ".  Currently I know how to install packages on centos, ubuntu, and debian.");
     }
-    for (String pkg : buildInfo.getYaml().getRequiredPackages()) writer.write(pkg + " ");
-    for (String pkg : buildInfo.getSrc().getRequiredPackages()) writer.write(pkg + " ");
-    for (String pkg : cmdFactory.getRequiredPackages()) writer.write(pkg + " ");
-    writer.write("\n\n");
+    writer.write("\n");
     for (String cmd : cmdFactory.getAdditionalDockerBuildCommands()) writer.write(cmd + "\n");
     writer.write("\n");
     writer.write("RUN useradd -m " + getUser() + "\n");
     writer.write("\n");
     writer.write("USER " + getUser() + "\n");
     writer.write("\n");
+    List<String> dependencyCmds = cmdFactory.getDependencyCommands();
+    if (!dependencyCmds.isEmpty()) {
+      // Fetch the source just to download what it needs, then throw the source away.  This step doesn't change from
+      // build to build, so docker will reuse it.
+      writer.write("RUN { \\\n");
+      writer.write("    cd " + getHomeDir() + "; \\\n");
+      for (String line : buildInfo.getSrc().srcCommands(buildInfo.getYaml())) {
+        writer.write("    " + line + "; \\\n");
+      }
+      for (String line : dependencyCmds) writer.write("    " + line + "; \\\n");
+      writer.write("    cd " + getHomeDir() + "; \\\n");
+      writer.write("    rm -rf " + buildInfo.getYaml().getProjectDir() + "; \\\n");
+      writer.write("}\n");
+      writer.write("\n");
+    }
+    // Images of other revisions with everything up to here the same, and the same source, can be built on
+    baseKey = hash(writer.toString() + buildInfo.getSrc().srcCommands(buildInfo.getYaml()));
+    // The timestamp makes this step different every time, so it is never reused and the source is always current.
+    // When images are kept the exact revision is checked out instead, so the step only changes when the code does.
     writer.write("RUN { \\\n");
     writer.write("    cd " + getHomeDir() + "; \\\n");
-    for (String line : buildInfo.getSrc().srcCommands(buildInfo.getYaml())) {
-      writer.write("    " + line + "; \\\n");
-    }
+    List<String> srcCmds = revision == null ? buildInfo.getSrc().srcCommands(buildInfo.getYaml()) :
+        buildInfo.getSrc().srcCommands(buildInfo.getYaml(), revision);
+    for (String line : srcCmds) writer.write("    " + line + "; \\\n");
     for (String line : cmdFactory.getInitialBuildCommand()) writer.write("    " + line + "; \\\n");
-    writer.write("    echo This build is labeled " + buildInfo.getLabel() + " and was generated at " +
-        LocalDateTime.now().toString() + "; \\\n");
+    if (revision == null) {
+      writer.write("    echo This build is labeled " + buildInfo.getLabel() + " and was generated at " +
+          LocalDateTime.now().toString() + "; \\\n");
+    } else {
+      writer.write("    echo This image is of revision " + revision + "; \\\n");
+    }
     writer.write("}\n");
-    writer.close();
+    try (FileWriter file = new FileWriter(new File(buildInfo.getBuildDir(), "Dockerfile"))) {
+      file.write(writer.toString());
+    }
+  }
+
+  /**
+   * Build a docker command line.  If a daemon has been set with {@link #setDockerHost(String)} the command is
+   * pointed at it.
+   * @param args arguments to docker
+   * @return full command line, starting with the docker executable.
+   */
+  protected String[] dockerCmd(String... args) {
+    List<String> cmd = new ArrayList<>(args.length + 3);
+    cmd.add(CommandFinder.get(cfg).findCommand("docker"));
+    if (dockerHost != null) Collections.addAll(cmd, "-H", dockerHost);
+    Collections.addAll(cmd, args);
+    return cmd.toArray(new String[0]);
+  }
+
+  /**
+   * Get the name of the image built for this build.
+   * @return image name
+   */
+  protected String getImageName() {
+    return imageName;
   }
 
   /**
@@ -196,4 +1306,12 @@ public class DockerContainerClient extends ContainerClient {
   protected String getHomeDir() {
     return "/home/" + getUser();
   }
+
+  /**
+   * Get the directory in the container that Maven keeps its settings and local repository in.
+   * @return directory
+   */
+  protected String getM2Dir() {
+    return getHomeDir() + File.separator + ".m2";
+  }
 }
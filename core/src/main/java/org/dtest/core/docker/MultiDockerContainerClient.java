@@ -0,0 +1,424 @@
+/*
+ * Copyright (C) 2018 Hortonworks Inc.
+ *
+ * Licenced under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dtest.core.docker;
+
+import org.apache.commons.lang3.StringUtils;
+import org.dtest.core.BuildInfo;
+import org.dtest.core.ContainerClient;
+import org.dtest.core.ContainerCommand;
+import org.dtest.core.ContainerCommandFactory;
+import org.dtest.core.ContainerResult;
+import org.dtest.core.Reporter;
+import org.dtest.core.ResultAnalyzer;
+import org.dtest.core.impl.ProcessResults;
+import org.dtest.core.impl.Utils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ContainerClient that spreads containers across several docker daemons.  Each daemon is driven by its own
+ * endpoint client (by default a {@link DockerContainerClient} pointed at the daemon with -H).  The image is built
+ * on every daemon, and each container is placed on the daemon that is least loaded relative to its limit.  All
+ * later calls for a container (fetching reports, removing it, killing it) go to the daemon that ran it.
+ * <p>Set {@link org.dtest.core.DockerTest#CFG_DOCKERTEST_NUMCONTAINERS} to the total number of containers you want
+ * across all of the daemons.</p>
+ */
+public class MultiDockerContainerClient extends ContainerClient {
+
+  /**
+   * Docker daemons to use, separated by commas.  Each takes the same form as DOCKER_HOST, e.g.
+   * unix:///var/run/docker.sock or tcp://buildhost:2375.  A daemon can be given its own limit on the number of
+   * containers it runs at once by appending =<i>limit</i>, e.g. tcp://buildhost:2375=8.  There is no default, this
+   * must be set.
+   */
+  public static final String CFG_MULTIDOCKERCONTAINERCLIENT_HOSTS = "dtest.core.multidockercontainerclient.hosts";
+
+  /**
+   * Maximum number of containers to run at once on each daemon that does not have its own limit in
+   * {@link #CFG_MULTIDOCKERCONTAINERCLIENT_HOSTS}.  Defaults to 0, which means no limit.
+   */
+  public static final String CFG_MULTIDOCKERCONTAINERCLIENT_CONTAINERSPERHOST =
+      "dtest.core.multidockercontainerclient.containersperhost";
+  private static final int CFG_MULTIDOCKERCONTAINERCLIENT_CONTAINERSPERHOST_DEFAULT = 0;
+
+  /**
+   * Class used to talk to each daemon.  Defaults to DockerContainerClient.  Subclasses of DockerContainerClient
+   * are given the daemon via {@link DockerContainerClient#setDockerHost(String)}.
+   */
+  public static final String CFG_MULTIDOCKERCONTAINERCLIENT_ENDPOINTIMPL =
+      "dtest.core.multidockercontainerclient.endpointimpl";
+
+  /**
+   * If true, build the image on the first daemon and copy it to the others with docker save and docker load,
+   * rather than building it on each daemon.  This is faster when the daemons do not have cached layers from
+   * earlier builds.  Defaults to false.
+   */
+  public static final String CFG_MULTIDOCKERCONTAINERCLIENT_LOADIMAGE =
+      "dtest.core.multidockercontainerclient.loadimage";
+  private static final boolean CFG_MULTIDOCKERCONTAINERCLIENT_LOADIMAGE_DEFAULT = false;
+
+  private List<Endpoint> endpoints;
+  // Daemon each command ran on, so that later calls for it go to the same place
+  private final Map<ContainerCommand, Endpoint> placements = new ConcurrentHashMap<>();
+  private final Map<String, Endpoint> workers = new ConcurrentHashMap<>();
+  // Command each worker is running or last ran, so its placement can be dropped when the worker goes away
+  private final Map<String, ContainerCommand> workerCmds = new ConcurrentHashMap<>();
+
+  /**
+   * A docker daemon and the client used to talk to it.
+   */
+  protected static class Endpoint {
+    final String host;
+    final ContainerClient client;
+    final int limit; // 0 means no limit
+    int running; // guarded by the enclosing MultiDockerContainerClient
+    int placed;  // guarded by the enclosing MultiDockerContainerClient
+
+    Endpoint(String host, ContainerClient client, int limit) {
+      this.host = host;
+      this.client = client;
+      this.limit = limit;
+    }
+
+    boolean isFull() {
+      return limit > 0 && running >= limit;
+    }
+
+    double load() {
+      return (double)running / (limit > 0 ? limit : 1);
+    }
+
+    public String getHost() {
+      return host;
+    }
+
+    public ContainerClient getClient() {
+      return client;
+    }
+  }
+
+  @Override
+  public void setBuildInfo(BuildInfo buildInfo) throws IOException {
+    super.setBuildInfo(buildInfo);
+    String hosts = cfg.getAsString(CFG_MULTIDOCKERCONTAINERCLIENT_HOSTS, "");
+    if (hosts.trim().isEmpty()) {
+      throw new IOException("You must set " + CFG_MULTIDOCKERCONTAINERCLIENT_HOSTS + " to use " + getClass().getName());
+    }
+    int defaultLimit = cfg.getAsInt(CFG_MULTIDOCKERCONTAINERCLIENT_CONTAINERSPERHOST,
+        CFG_MULTIDOCKERCONTAINERCLIENT_CONTAINERSPERHOST_DEFAULT);
+    endpoints = new ArrayList<>();
+    for (String hostSpec : hosts.split(",")) {
+      hostSpec = hostSpec.trim();
+      if (hostSpec.isEmpty()) continue;
+      String host = hostSpec;
+      int limit = defaultLimit;
+      int eq = hostSpec.lastIndexOf('=');
+      if (eq >= 0) {
+        host = hostSpec.substring(0, eq);
+        try {
+          limit = Integer.parseInt(hostSpec.substring(eq + 1));
+        } catch (NumberFormatException e) {
+          throw new IOException("Unable to parse container limit for docker host " + hostSpec, e);
+        }
+      }
+      ContainerClient client = createEndpointClient(host);
+      client.setConfig(cfg).setLog(log);
+      client.setBuildInfo(buildInfo);
+      endpoints.add(new Endpoint(host, client, limit));
+      log.info("Using docker host " + host + (limit > 0 ? " for up to " + limit + " containers" : ""));
+    }
+  }
+
+  /**
+   * Create the client that talks to one docker daemon.  Protected so that subclasses (and tests) can provide
+   * their own.
+   * @param host docker daemon, in the form used by DOCKER_HOST.
+   * @return client for that daemon.  Config, log, and build info will be set by the caller.
+   * @throws IOException if the client cannot be created.
+   */
+  protected ContainerClient createEndpointClient(String host) throws IOException {
+    ContainerClient client = Utils.getInstance(cfg.getAsClass(CFG_MULTIDOCKERCONTAINERCLIENT_ENDPOINTIMPL,
+        ContainerClient.class, DockerContainerClient.class));
+    if (client instanceof DockerContainerClient) ((DockerContainerClient)client).setDockerHost(host);
+    return client;
+  }
+
+  /**
+   * Get the daemons in use.
+   * @return endpoints, in the order they were configured.
+   */
+  protected List<Endpoint> getEndpoints() {
+    return Collections.unmodifiableList(endpoints);
+  }
+
+  @Override
+  public String getContainerBaseDir() {
+    return endpoints.get(0).client.getContainerBaseDir();
+  }
+
+  @Override
+  public void buildImage(ContainerCommandFactory cmdFactory) throws IOException {
+    // The first build writes the Dockerfile, the rest reuse it
+    Endpoint first = endpoints.get(0);
+    first.client.buildImage(cmdFactory);
+    if (endpoints.size() == 1) return;
+
+    boolean loadImage = cfg.getAsBoolean(CFG_MULTIDOCKERCONTAINERCLIENT_LOADIMAGE,
+        CFG_MULTIDOCKERCONTAINERCLIENT_LOADIMAGE_DEFAULT);
+    ExecutorService executor = Executors.newFixedThreadPool(endpoints.size() - 1);
+    try {
+      List<Future<?>> builds = new ArrayList<>();
+      for (Endpoint endpoint : endpoints.subList(1, endpoints.size())) {
+        builds.add(executor.submit(() -> {
+          if (!(endpoint.client instanceof DockerContainerClient)) {
+            endpoint.client.buildImage(cmdFactory);
+            return null;
+          }
+          DockerContainerClient client = (DockerContainerClient)endpoint.client;
+          // Use the first one's image name, since it may be named after the Dockerfile and revision it was built from
+          if (first.client instanceof DockerContainerClient) client.useImageOf((DockerContainerClient)first.client);
+          if (client.hasReusableImage()) {
+            log.info("Reusing image " + client.getImageName() + " on " + client.getDockerHost());
+            client.markImageReady();
+          } else if (first.client instanceof DockerContainerClient && (loadImage ||
+              (client.getParentImage() != null && !client.imageExists(client.getParentImage())))) {
+            // An image built incrementally can only be built where the image it was built on is
+            loadImage((DockerContainerClient)first.client, client);
+            client.markImageReady();
+          } else {
+            client.buildDefinedImage();
+          }
+          return null;
+        }));
+      }
+      for (Future<?> build : builds) {
+        try {
+          build.get();
+        } catch (ExecutionException e) {
+          if (e.getCause() instanceof IOException) throw (IOException)e.getCause();
+          throw new IOException("Failed to build image", e.getCause());
+        } catch (InterruptedException e) {
+          throw new IOException("Interrupted while building images", e);
+        }
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private void loadImage(DockerContainerClient from, DockerContainerClient to) throws IOException {
+    log.info("Loading image from " + from.getDockerHost() + " to " + to.getDockerHost());
+    String pipe = StringUtils.join(from.dockerCmd("save", from.getImageName()), " ") + " | " +
+        StringUtils.join(to.dockerCmd("load"), " ");
+    ProcessResults res = Utils.runProcess("loading-image", cfg.getAsTime(CFG_CONTAINERCLIENT_IMAGEBUILDTIME,
+        TimeUnit.SECONDS, CFG_CONTAINERCLIENT_IMAGEBUILDTIME_DEFAULT), log, "/bin/sh", "-c", pipe);
+    if (res.rc != 0) {
+      throw new IOException("Failed to load image on " + to.getDockerHost() + ": " + res.stderr);
+    }
+  }
+
+  @Override
+  public ContainerResult runContainer(ContainerCommand cmd) throws IOException {
+    Endpoint endpoint = acquire(cmd.containerSuffix());
+    placements.put(cmd, endpoint);
+    try {
+      // A kill that came while we were waiting for a daemon had nowhere to go
+      if (isKilled(cmd)) endpoint.client.killContainer(cmd);
+      log.debug("Running " + cmd.containerSuffix() + " on " + endpoint.host);
+      return endpoint.client.runContainer(cmd);
+    } finally {
+      release(endpoint);
+    }
+  }
+
+  @Override
+  public String startWorker(String workerName) throws IOException {
+    // A worker holds its place on the daemon until it is stopped
+    Endpoint endpoint = acquire(workerName);
+    try {
+      String worker = endpoint.client.startWorker(workerName);
+      workers.put(worker, endpoint);
+      log.info("Started worker " + worker + " on " + endpoint.host);
+      return worker;
+    } catch (IOException | RuntimeException e) {
+      release(endpoint);
+      throw e;
+    }
+  }
+
+  @Override
+  public ContainerResult runInWorker(String worker, ContainerCommand cmd) throws IOException {
+    Endpoint endpoint = workerEndpoint(worker);
+    placements.put(cmd, endpoint);
+    workerCmds.put(worker, cmd);
+    if (isKilled(cmd)) endpoint.client.killContainer(cmd);
+    return endpoint.client.runInWorker(worker, cmd);
+  }
+
+  @Override
+  public void resetWorker(String worker, ContainerResult result, ResultAnalyzer analyzer, String[] additionalLogs)
+      throws IOException {
+    workerEndpoint(worker).client.resetWorker(worker, result, analyzer, additionalLogs);
+    placements.remove(result.getCmd());
+    workerCmds.remove(worker);
+  }
+
+  @Override
+  public void stopWorker(String worker) throws IOException {
+    Endpoint endpoint = workers.remove(worker);
+    if (endpoint == null) return;
+    ContainerCommand cmd = workerCmds.remove(worker);
+    if (cmd != null) placements.remove(cmd);
+    try {
+      endpoint.client.stopWorker(worker);
+    } finally {
+      release(endpoint);
+    }
+  }
+
+  @Override
+  public void killContainer(ContainerCommand cmd) throws IOException {
+    markKilled(cmd);
+    Endpoint endpoint = placements.get(cmd);
+    if (endpoint != null) endpoint.client.killContainer(cmd);
+  }
+
+  @Override
+  public void setReportPaths(String testResultsDir, String[] additionalLogs) {
+    for (Endpoint endpoint : endpoints) endpoint.client.setReportPaths(testResultsDir, additionalLogs);
+  }
+
+  @Override
+  public void setResultAnalyzer(ResultAnalyzer analyzer) {
+    super.setResultAnalyzer(analyzer);
+    for (Endpoint endpoint : endpoints) endpoint.client.setResultAnalyzer(analyzer);
+  }
+
+  @Override
+  public void fetchTestReports(ContainerResult result, ResultAnalyzer analyzer, Reporter reporter,
+                               String[] additionalLogs) throws IOException {
+    placement(result).client.fetchTestReports(result, analyzer, reporter, additionalLogs);
+  }
+
+  @Override
+  public void removeContainer(ContainerResult result) throws IOException {
+    placement(result).client.removeContainer(result);
+    placements.remove(result.getCmd());
+  }
+
+  @Override
+  public void removeContainers(List<ContainerResult> results) throws IOException {
+    Map<Endpoint, List<ContainerResult>> byEndpoint = new LinkedHashMap<>();
+    for (ContainerResult result : results) {
+      byEndpoint.computeIfAbsent(placement(result), e -> new ArrayList<>()).add(result);
+    }
+    for (Map.Entry<Endpoint, List<ContainerResult>> entry : byEndpoint.entrySet()) {
+      entry.getKey().client.removeContainers(entry.getValue());
+    }
+    for (ContainerResult result : results) placements.remove(result.getCmd());
+  }
+
+  @Override
+  public List<String> removeOrphans(String prefix) throws IOException {
+    IOException failure = null;
+    List<String> orphans = new ArrayList<>();
+    for (Endpoint endpoint : endpoints) {
+      try {
+        orphans.addAll(endpoint.client.removeOrphans(prefix));
+      } catch (IOException e) {
+        // Keep going so that the other daemons still get cleaned up
+        log.warn("Failed to remove old containers from " + endpoint.host, e);
+        failure = e;
+      }
+    }
+    if (failure != null) throw failure;
+    return orphans;
+  }
+
+  @Override
+  public void removeImage() throws IOException {
+    IOException failure = null;
+    for (Endpoint endpoint : endpoints) {
+      try {
+        endpoint.client.removeImage();
+      } catch (IOException e) {
+        // Keep going so that the other daemons still get cleaned up
+        log.warn("Failed to remove image from " + endpoint.host, e);
+        failure = e;
+      }
+    }
+    if (failure != null) throw failure;
+  }
+
+  private Endpoint placement(ContainerResult result) throws IOException {
+    Endpoint endpoint = placements.get(result.getCmd());
+    if (endpoint == null) {
+      throw new IOException("Unable to find the docker host that ran " + result.getCmd().containerSuffix());
+    }
+    return endpoint;
+  }
+
+  private Endpoint workerEndpoint(String worker) throws IOException {
+    Endpoint endpoint = workers.get(worker);
+    if (endpoint == null) throw new IOException("Unknown worker " + worker);
+    return endpoint;
+  }
+
+  /**
+   * Pick the daemon to run the next container on, waiting if every daemon is at its limit.  Daemons are compared
+   * by how many containers they are running relative to their limit, with ties going to the daemon that has been
+   * given the fewest containers so far.
+   */
+  private synchronized Endpoint acquire(String what) throws IOException {
+    while (true) {
+      Endpoint best = null;
+      for (Endpoint endpoint : endpoints) {
+        if (endpoint.isFull()) continue;
+        if (best == null || endpoint.load() < best.load() ||
+            (endpoint.load() == best.load() && endpoint.placed < best.placed)) {
+          best = endpoint;
+        }
+      }
+      if (best != null) {
+        best.running++;
+        best.placed++;
+        return best;
+      }
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while waiting for a docker host to run " + what, e);
+      }
+    }
+  }
+
+  private synchronized void release(Endpoint endpoint) {
+    endpoint.running--;
+    notifyAll();
+  }
+}
@@ -17,10 +17,15 @@ package org.dtest.core.git;
 
 import org.dtest.core.BuildYaml;
 import org.dtest.core.CodeSource;
+import org.dtest.core.impl.CommandFinder;
+import org.dtest.core.impl.ProcessResults;
+import org.dtest.core.impl.Utils;
 
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.regex.Pattern;
 
 /**
  * Implementation of {@link CodeSource} for git.  Uses 'master' as the default branch name for builds.
@@ -28,17 +33,74 @@ import java.util.List;
 public class GitSource extends CodeSource  {
 
   private static final String BRANCH_DEFAULT = "master";
+  private static final Pattern COMMIT = Pattern.compile("[0-9a-f]{40}");
 
   @Override
   public List<String> srcCommands(BuildYaml yaml) {
-    String repo = yaml.getRepo();
-    String branch = yaml.getBranch();
-    if (branch == null) branch = BRANCH_DEFAULT;
+    return srcCommands(yaml, getBranch(yaml));
+  }
 
+  @Override
+  public List<String> srcCommands(BuildYaml yaml, String revision) {
     return Arrays.asList(
-        "/usr/bin/git clone " + repo,
+        "/usr/bin/git clone " + yaml.getRepo(),
         "cd " + yaml.getProjectDir(),
-        "/usr/bin/git checkout " + branch);
+        "/usr/bin/git checkout " + revision);
+  }
+
+  @Override
+  public String resolveRevision(BuildYaml yaml) throws IOException {
+    String branch = getBranch(yaml);
+    if (COMMIT.matcher(branch).matches()) return branch;
+    String git = CommandFinder.get(cfg).findCommand("git");
+    if (git == null) {
+      log.warn("Unable to find git to resolve " + branch + ", it will be resolved in the image");
+      return null;
+    }
+    ProcessResults res = Utils.runProcess("resolving-" + branch, 60, log, git, "ls-remote", yaml.getRepo(), branch);
+    if (res.rc != 0) {
+      log.warn("Failed to resolve " + branch + " in " + yaml.getRepo() + ": " + res.stderr);
+      return null;
+    }
+    return parseLsRemote(res.stdout, branch);
+  }
+
+  /**
+   * Pick the commit for a branch or tag out of the output of git ls-remote.  Branches win over tags, and for an
+   * annotated tag the commit it points to is used rather than the tag object.
+   * @param output output of ls-remote, one "commit\tref" per line.
+   * @param branch branch or tag that was asked for
+   * @return commit, or null if the branch or tag is not there.
+   */
+  static String parseLsRemote(String output, String branch) {
+    String[] wanted = { "refs/heads/" + branch, "refs/tags/" + branch + "^{}", "refs/tags/" + branch };
+    for (String ref : wanted) {
+      for (String line : output.split("\n")) {
+        String[] parts = line.trim().split("\\s+");
+        if (parts.length == 2 && parts[1].equals(ref) && COMMIT.matcher(parts[0]).matches()) return parts[0];
+      }
+    }
+    return null;
+  }
+
+  @Override
+  public String changedFilesCommand(BuildYaml yaml, String baseRef) {
+    // The three dot form diffs against the merge base, so changes made on the base since the branch was created
+    // are not included.
+    String base = baseRef == null ? "origin/" + BRANCH_DEFAULT : baseRef;
+    return "/usr/bin/git diff --name-only " + base + "...HEAD";
+  }
+
+  @Override
+  public List<String> updateCommands(BuildYaml yaml, String revision) {
+    return Arrays.asList(
+        "/usr/bin/git fetch origin",
+        "/usr/bin/git checkout " + revision);
+  }
+
+  @Override
+  public String diffCommand(BuildYaml yaml, String fromRevision, String toRevision) {
+    return "/usr/bin/git diff --name-only " + fromRevision + " " + toRevision;
   }
 
   @Override
@@ -46,6 +108,10 @@ public class GitSource extends CodeSource  {
     return Collections.singletonList("git");
   }
 
+  private String getBranch(BuildYaml yaml) {
+    return yaml.getBranch() == null ? BRANCH_DEFAULT : yaml.getBranch();
+  }
+
   @Override
   public String getDefaultBranch() {
     return BRANCH_DEFAULT;
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2018 Hortonworks Inc.
+ *
+ * Licenced under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dtest.core.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+/**
+ * Reads how busy the build machine is from /proc and, when DTest is itself running in a container, from the cgroup
+ * files under /sys/fs/cgroup.  CPU and iowait are measured between successive calls to {@link #sample()}, so the
+ * first sample only establishes a baseline and reports them as 0.  This only works on Linux.  On other systems
+ * {@link #isAvailable()} returns false.
+ */
+public class HostLoad {
+
+  /**
+   * One measurement of the load on the machine.  All values are fractions between 0 and 1.
+   */
+  public static class Sample {
+    public final double cpu;
+    public final double iowait;
+    public final double memory;
+
+    public Sample(double cpu, double iowait, double memory) {
+      this.cpu = cpu;
+      this.iowait = iowait;
+      this.memory = memory;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("cpu %.0f%%, iowait %.0f%%, memory %.0f%%", cpu * 100, iowait * 100, memory * 100);
+    }
+  }
+
+  private final File procDir;
+  private final File cgroupDir;
+  private long[] lastCpu;
+
+  public HostLoad() {
+    this(new File("/proc"), new File("/sys/fs/cgroup"));
+  }
+
+  /**
+   * For testing, read the files from somewhere other than /proc and /sys/fs/cgroup.
+   * @param procDir replacement for /proc
+   * @param cgroupDir replacement for /sys/fs/cgroup
+   */
+  public HostLoad(File procDir, File cgroupDir) {
+    this.procDir = procDir;
+    this.cgroupDir = cgroupDir;
+  }
+
+  /**
+   * Determine whether load information can be read on this machine.
+   * @return true if /proc/stat and /proc/meminfo can be read.
+   */
+  public boolean isAvailable() {
+    return new File(procDir, "stat").canRead() && new File(procDir, "meminfo").canRead();
+  }
+
+  /**
+   * Take a sample of the current load.
+   * @return load since the last sample
+   * @throws IOException if the files cannot be read.
+   */
+  public synchronized Sample sample() throws IOException {
+    double cpu = 0, iowait = 0;
+    long[] now = readCpu();
+    if (lastCpu != null) {
+      long total = 0;
+      for (int i = 0; i < now.length; i++) total += now[i] - lastCpu[i];
+      if (total > 0) {
+        // Fields are user nice system idle iowait irq softirq steal
+        long idle = (now[3] - lastCpu[3]) + (now[4] - lastCpu[4]);
+        cpu = (double)(total - idle) / total;
+        iowait = (double)(now[4] - lastCpu[4]) / total;
+      }
+    }
+    lastCpu = now;
+    return new Sample(cpu, iowait, Math.max(readHostMemory(), readCgroupMemory()));
+  }
+
+  private long[] readCpu() throws IOException {
+    for (String line : readLines(new File(procDir, "stat"))) {
+      if (line.startsWith("cpu ")) {
+        String[] cols = line.trim().split("\\s+");
+        long[] vals = new long[8];
+        for (int i = 0; i < vals.length && i + 1 < cols.length; i++) vals[i] = Long.parseLong(cols[i + 1]);
+        return vals;
+      }
+    }
+    throw new IOException("Unable to find cpu line in " + procDir + "/stat");
+  }
+
+  private double readHostMemory() throws IOException {
+    long total = 0, available = -1;
+    for (String line : readLines(new File(procDir, "meminfo"))) {
+      if (line.startsWith("MemTotal:")) total = parseKb(line);
+      else if (line.startsWith("MemAvailable:")) available = parseKb(line);
+    }
+    if (total <= 0 || available < 0) return 0;
+    return (double)(total - available) / total;
+  }
+
+  private double readCgroupMemory() {
+    try {
+      // cgroup v2
+      File max = new File(cgroupDir, "memory.max");
+      if (max.canRead()) {
+        String limit = readLines(max).get(0).trim();
+        if (limit.equals("max")) return 0;
+        return (double)Long.parseLong(readLines(new File(cgroupDir, "memory.current")).get(0).trim()) /
+            Long.parseLong(limit);
+      }
+      // cgroup v1.  An unlimited cgroup reports a huge limit, which works out to nearly 0 anyway.
+      File limit = new File(cgroupDir, "memory" + File.separator + "memory.limit_in_bytes");
+      if (limit.canRead()) {
+        return (double)Long.parseLong(readLines(new File(cgroupDir, "memory" + File.separator + "memory.usage_in_bytes"))
+            .get(0).trim()) / Long.parseLong(readLines(limit).get(0).trim());
+      }
+    } catch (IOException | NumberFormatException | IndexOutOfBoundsException e) {
+      // Not in a cgroup we can read, rely on the host numbers
+    }
+    return 0;
+  }
+
+  private static long parseKb(String line) {
+    String[] cols = line.trim().split("\\s+");
+    return Long.parseLong(cols[1]);
+  }
+
+  private static List<String> readLines(File file) throws IOException {
+    return Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+  }
+}
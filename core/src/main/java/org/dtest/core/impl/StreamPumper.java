@@ -16,86 +16,136 @@
 package org.dtest.core.impl;
 
 import com.google.common.annotations.VisibleForTesting;
+import org.dtest.core.ContainerOutput;
 import org.dtest.core.DTestLogger;
 
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Utility class used to pull in the output of a stream.  This is useful for running processes that generate large
  * amounts of output that would overflow the buffer of a {@link Process}.  This is connected to a single stream
  * (usually stdout or stderr).  It is designed to be run in a separate thread so that it can continually read its
- * input stream and buffer up the contents without the main thread needing to loop.  The contents of the stream can
- * be fetched at any time.
+ * input stream and buffer up the contents without the main thread needing to loop.  The thread blocks reading the
+ * stream, so it picks up each line as soon as it is written and is done as soon as the stream ends.  The contents
+ * of the stream can be fetched at any time, unless they are being written to a {@link ContainerOutput}, in which
+ * case they are not kept here at all.
  */
 public class StreamPumper implements Runnable {
 
-  private final AtomicBoolean keepGoing;
+  // How long to wait for the end of the stream once the process has exited.  The stream ends when the process and
+  // anything it started that shares the stream have exited, which is normally straight away.
+  private static final long FINAL_WAIT = 5;
+
+  // Threads that do the pumping, reused since many of the processes only run for a moment
+  private static ExecutorService pumpers;
+
   private final BufferedReader reader;
   private final StringBuilder buffer;
   private final String containerId;
   private final DTestLogger log;
+  private final ContainerOutput output;
+  private final CountDownLatch done = new CountDownLatch(1);
 
   /**
    *
-   * @param keepGoing An AtomicBoolean shared between the calling thread and this class.  When the calling thread wishes
-   *                  to terminate pumping the stream it sets this value to false.  This should be done after
-   *                  the process whose output is being pumped has terminated and before calling
-   *                  {@link #finalPump()} to assure that all the output is collected.
    * @param input input stream to read.
    * @param containerId id of the container whose output is being pumped.  This value is used in the log.
    * @param log log object
    */
   @VisibleForTesting
-  public StreamPumper(AtomicBoolean keepGoing, InputStream input, String containerId, DTestLogger log) {
-    this.keepGoing = keepGoing;
-    reader = new BufferedReader(new InputStreamReader(input));
+  public StreamPumper(InputStream input, String containerId, DTestLogger log) {
+    this(input, containerId, log, null);
+  }
+
+  /**
+   *
+   * @param input input stream to read.
+   * @param containerId id of the container whose output is being pumped.  This value is used in the log.
+   * @param log log object
+   * @param output where to write the contents of the stream.  If null they are buffered in memory.
+   */
+  public StreamPumper(InputStream input, String containerId, DTestLogger log, ContainerOutput output) {
+    reader = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8));
     this.containerId = containerId;
     this.log = log;
+    this.output = output;
     buffer = new StringBuilder();
   }
 
+  /**
+   * Start pumping the stream in a background thread.
+   * @return this
+   */
+  public StreamPumper start() {
+    pumpers().execute(this);
+    return this;
+  }
+
   /**
    * Get the result of the output.  This does not guarantee all output has been collected, it grabs whatever
-   * is currently available.
-   * @return output
+   * is currently available.  Call {@link #finalPump()} first to get all of it.
+   * @return output, or an empty string if it is being written to a {@link ContainerOutput}.
    */
-  String getOutput() {
+  synchronized String getOutput() {
     return buffer.toString();
   }
 
   @Override
   public void run() {
     try {
-      while (keepGoing.get()) {
-        if (reader.ready()) {
-          String s = reader.readLine();
-          log.debug(containerId, s);
-          buffer.append(s).append('\n');
+      String s;
+      // A last line without a newline is returned once the stream ends, so nothing is lost
+      while ((s = reader.readLine()) != null) {
+        log.debug(containerId, s);
+        if (output != null) {
+          output.addLine(s);
         } else {
-          Thread.sleep(1000);
+          synchronized (this) {
+            buffer.append(s).append('\n');
+          }
         }
       }
-    } catch (Exception e) {
+    } catch (IOException e) {
       log.error("Caught exception while pumping stream", e);
+    } finally {
+      done.countDown();
     }
   }
 
   /**
-   * Run this after you've finished the process to make sure the last lines are collected.  It checks to make sure
-   * the calling thread has told the stream to stop pumping.
-   * @throws IOException if the read from the stream fails.
+   * Run this after the process has finished to make sure the last lines are collected.  It waits for the pumping
+   * thread to reach the end of the stream.
+   * @throws IOException if interrupted while waiting.
    */
   public void finalPump() throws IOException {
-    assert !keepGoing.get();
-    while (reader.ready()) {
-      String s = reader.readLine();
-      log.debug(containerId, s);
-      buffer.append(s).append('\n');
+    try {
+      if (!done.await(FINAL_WAIT, TimeUnit.SECONDS)) {
+        // Most likely something the process started still has the stream open
+        log.debug(containerId, "Output did not end within " + FINAL_WAIT + " seconds of the process exiting");
+      }
+    } catch (InterruptedException e) {
+      throw new IOException(e);
     }
+  }
 
+  private static synchronized ExecutorService pumpers() {
+    if (pumpers == null) {
+      final AtomicInteger threadNum = new AtomicInteger(0);
+      pumpers = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "dtest-pumper-" + threadNum.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      });
+    }
+    return pumpers;
   }
 }
@@ -0,0 +1,308 @@
+/*
+ * Copyright (C) 2018 Hortonworks Inc.
+ *
+ * Licenced under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dtest.core.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.UnaryOperator;
+
+/**
+ * Reads and writes tar streams.  Docker moves files in and out of containers as tar streams, so this lets us deal
+ * with it directly rather than going through the docker command.  Only what docker produces and needs is supported:
+ * regular files and directories, with long names in either GNU or PAX form.  Links and other special files are
+ * skipped when reading.
+ */
+public class Tar {
+  private static final int BLOCK = 512;
+
+  /**
+   * Write the contents of a directory as a tar stream.  Entries are named relative to the directory.  The stream is
+   * finished but not closed.
+   * @param dir directory to write
+   * @param out stream to write to
+   * @throws IOException if a file cannot be read or the stream cannot be written.
+   */
+  public static void write(File dir, OutputStream out) throws IOException {
+    writeDir(dir, "", out);
+    out.write(new byte[BLOCK * 2]);
+    out.flush();
+  }
+
+  /**
+   * Unpack a tar stream into a directory.
+   * @param in stream to read.  It is read to the end of the archive but not closed.
+   * @param destDir directory to unpack into, which must exist.
+   * @param stripComponents number of leading path elements to remove from each entry, as with tar's
+   *                        --strip-components.  Entries that have nothing left are skipped.
+   * @return the regular files that were unpacked.
+   * @throws IOException if the stream is not a valid tar stream or a file cannot be written.
+   */
+  public static List<File> extract(InputStream in, File destDir, int stripComponents) throws IOException {
+    return extract(in, destDir, path -> {
+      String[] parts = path.split("/");
+      return parts.length <= stripComponents ? null :
+          String.join("/", Arrays.copyOfRange(parts, stripComponents, parts.length));
+    });
+  }
+
+  /**
+   * Unpack a tar stream into a directory, choosing where each entry goes.
+   * @param in stream to read.  It is read to the end of the archive but not closed.
+   * @param destDir directory to unpack into, which must exist.
+   * @param rename given the path of an entry, with no leading or trailing slashes, returns the path to unpack it
+   *               to relative to destDir, or null to skip it.
+   * @return the regular files that were unpacked.
+   * @throws IOException if the stream is not a valid tar stream or a file cannot be written.
+   */
+  public static List<File> extract(InputStream in, File destDir, UnaryOperator<String> rename) throws IOException {
+    List<File> files = new ArrayList<>();
+    byte[] header = new byte[BLOCK];
+    String longName = null;
+    while (readBlock(in, header)) {
+      if (isZero(header)) break; // end of archive
+      String name = longName != null ? longName : headerName(header);
+      longName = null;
+      long size = parseNumber(header, 124, 12);
+      byte type = header[156];
+      switch (type) {
+      case 'L': // GNU long name for the next entry
+      case 'x': // PAX extended header for the next entry
+        byte[] data = readData(in, size);
+        longName = type == 'L' ? cString(data, 0, data.length) : paxPath(data);
+        continue;
+
+      case '0':
+      case 0:
+      case '7': {
+        File dest = destination(destDir, name, rename);
+        if (dest == null) {
+          skip(in, padded(size));
+        } else {
+          if (!dest.getParentFile().isDirectory() && !dest.getParentFile().mkdirs()) {
+            throw new IOException("Unable to create directory " + dest.getParentFile());
+          }
+          try (OutputStream out = new FileOutputStream(dest)) {
+            copy(in, out, size);
+          }
+          skip(in, padded(size) - size);
+          files.add(dest);
+        }
+        break;
+      }
+
+      case '5': {
+        File dest = destination(destDir, name, rename);
+        if (dest != null && !dest.isDirectory() && !dest.mkdirs()) {
+          throw new IOException("Unable to create directory " + dest);
+        }
+        skip(in, padded(size));
+        break;
+      }
+
+      default:
+        skip(in, padded(size));
+        break;
+      }
+    }
+    return files;
+  }
+
+  private static void writeDir(File dir, String prefix, OutputStream out) throws IOException {
+    File[] contents = dir.listFiles();
+    if (contents == null) throw new IOException("Unable to list " + dir);
+    Arrays.sort(contents);
+    for (File f : contents) {
+      String name = prefix + f.getName();
+      if (f.isDirectory()) {
+        writeHeader(out, name + "/", 0, '5', f.lastModified());
+        writeDir(f, name + "/", out);
+      } else if (f.isFile()) {
+        writeHeader(out, name, f.length(), '0', f.lastModified());
+        long written;
+        try (InputStream in = new FileInputStream(f)) {
+          written = copy(in, out, f.length());
+        }
+        out.write(new byte[(int)(padded(written) - written)]);
+      }
+    }
+  }
+
+  private static void writeHeader(OutputStream out, String name, long size, char type, long mtime)
+      throws IOException {
+    byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+    if (nameBytes.length > 100) {
+      // GNU long name, the real name goes in the data of an entry before this one
+      byte[] data = Arrays.copyOf(nameBytes, nameBytes.length + 1);
+      writeHeader(out, "././@LongLink", data.length, 'L', 0);
+      out.write(data);
+      out.write(new byte[(int)(padded(data.length) - data.length)]);
+      nameBytes = Arrays.copyOf(nameBytes, 100);
+    }
+    byte[] header = new byte[BLOCK];
+    System.arraycopy(nameBytes, 0, header, 0, nameBytes.length);
+    putOctal(header, 100, 8, type == '5' ? 0755 : 0644);
+    putOctal(header, 108, 8, 0);
+    putOctal(header, 116, 8, 0);
+    putOctal(header, 124, 12, size);
+    putOctal(header, 136, 12, mtime / 1000);
+    header[156] = (byte)type;
+    System.arraycopy("ustar\0".getBytes(StandardCharsets.US_ASCII), 0, header, 257, 6);
+    header[263] = '0';
+    header[264] = '0';
+    // The checksum is calculated with the checksum field set to spaces
+    Arrays.fill(header, 148, 156, (byte)' ');
+    long sum = 0;
+    for (byte b : header) sum += b & 0xff;
+    putOctal(header, 148, 7, sum);
+    out.write(header);
+  }
+
+  private static void putOctal(byte[] header, int offset, int len, long value) {
+    String octal = Long.toOctalString(value);
+    if (octal.length() > len - 1) throw new IllegalArgumentException("Value " + value + " too large for tar header");
+    int pad = len - 1 - octal.length();
+    for (int i = 0; i < pad; i++) header[offset + i] = '0';
+    for (int i = 0; i < octal.length(); i++) header[offset + pad + i] = (byte)octal.charAt(i);
+    header[offset + len - 1] = 0;
+  }
+
+  private static String headerName(byte[] header) {
+    String name = cString(header, 0, 100);
+    // ustar splits long names between the name and prefix fields
+    if (new String(header, 257, 5, StandardCharsets.US_ASCII).equals("ustar")) {
+      String prefix = cString(header, 345, 155);
+      if (!prefix.isEmpty()) name = prefix + "/" + name;
+    }
+    return name;
+  }
+
+  private static String paxPath(byte[] data) {
+    // Records are "<length> <key>=<value>\n", where length covers the whole record
+    String path = null;
+    int pos = 0;
+    while (pos < data.length) {
+      int space = pos;
+      while (space < data.length && data[space] != ' ') space++;
+      if (space >= data.length) break;
+      int len = Integer.parseInt(new String(data, pos, space - pos, StandardCharsets.US_ASCII));
+      if (len <= 0) break;
+      String record = new String(data, space + 1, pos + len - space - 2, StandardCharsets.UTF_8);
+      if (record.startsWith("path=")) path = record.substring(5);
+      pos += len;
+    }
+    return path;
+  }
+
+  private static File destination(File destDir, String name, UnaryOperator<String> rename) {
+    List<String> parts = new ArrayList<>();
+    for (String part : name.split("/")) {
+      if (part.isEmpty() || part.equals(".")) continue;
+      // Never write outside the destination directory
+      if (part.equals("..")) return null;
+      parts.add(part);
+    }
+    if (parts.isEmpty()) return null;
+    String renamed = rename.apply(String.join("/", parts));
+    return renamed == null ? null : new File(destDir, renamed.replace('/', File.separatorChar));
+  }
+
+  private static long parseNumber(byte[] header, int offset, int len) {
+    if ((header[offset] & 0x80) != 0) {
+      // GNU base-256 encoding for large values
+      long value = 0;
+      for (int i = 1; i < len; i++) value = (value << 8) | (header[offset + i] & 0xff);
+      return value;
+    }
+    long value = 0;
+    for (int i = offset; i < offset + len; i++) {
+      byte b = header[i];
+      if (b == 0 || b == ' ') {
+        if (value > 0) break;
+        continue;
+      }
+      value = value * 8 + (b - '0');
+    }
+    return value;
+  }
+
+  private static String cString(byte[] buf, int offset, int len) {
+    int end = offset;
+    while (end < offset + len && buf[end] != 0) end++;
+    return new String(buf, offset, end - offset, StandardCharsets.UTF_8);
+  }
+
+  private static boolean isZero(byte[] block) {
+    for (byte b : block) if (b != 0) return false;
+    return true;
+  }
+
+  private static long padded(long size) {
+    return (size + BLOCK - 1) / BLOCK * BLOCK;
+  }
+
+  private static boolean readBlock(InputStream in, byte[] block) throws IOException {
+    int read = 0;
+    while (read < block.length) {
+      int r = in.read(block, read, block.length - read);
+      if (r < 0) {
+        // Some writers leave off the end of archive blocks
+        if (read == 0) return false;
+        throw new EOFException("Tar stream ended in the middle of a header");
+      }
+      read += r;
+    }
+    return true;
+  }
+
+  private static byte[] readData(InputStream in, long size) throws IOException {
+    ByteArrayOutputStream data = new ByteArrayOutputStream((int)size);
+    copy(in, data, size);
+    skip(in, padded(size) - size);
+    return data.toByteArray();
+  }
+
+  private static long copy(InputStream in, OutputStream out, long size) throws IOException {
+    byte[] buf = new byte[8192];
+    long remaining = size;
+    while (remaining > 0) {
+      int r = in.read(buf, 0, (int)Math.min(buf.length, remaining));
+      if (r < 0) throw new EOFException("Tar stream ended with " + remaining + " bytes of an entry unread");
+      out.write(buf, 0, r);
+      remaining -= r;
+    }
+    return size;
+  }
+
+  private static void skip(InputStream in, long size) throws IOException {
+    long remaining = size;
+    byte[] buf = new byte[BLOCK];
+    while (remaining > 0) {
+      int r = in.read(buf, 0, (int)Math.min(buf.length, remaining));
+      if (r < 0) throw new EOFException("Tar stream ended in the middle of an entry");
+      remaining -= r;
+    }
+  }
+}
@@ -16,13 +16,16 @@
 package org.dtest.core.impl;
 
 import org.apache.commons.lang3.StringUtils;
+import org.dtest.core.ContainerOutput;
 import org.dtest.core.DTestLogger;
 import org.dtest.core.DockerTest;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.Random;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 import java.util.function.Supplier;
 
 /**
@@ -80,28 +83,152 @@ public class Utils {
    */
   public static ProcessResults runProcess(String containerId, long secondsToWait,
                                           DTestLogger log, String... cmd) throws IOException {
+    return runStoppableProcess(containerId, secondsToWait, log, null, cmd);
+  }
+
+  /**
+   * Run a process the same as {@link #runProcess(String, long, DTestLogger, String...)}, but write its stdout to
+   * the given output rather than keeping it in memory.  The stdout in the returned results is empty.
+   * @param containerId id of the container, used in logging
+   * @param secondsToWait how long to wait for this process, in seconds, before timing out.
+   * @param log log object
+   * @param output where to write stdout.  The caller is responsible for closing it.
+   * @param cmd Command to run.  Executable should be the first element in the array, and the arguments passed
+   *            as one element each.
+   * @return the results of running the process.
+   * @throws IOException if the process times out or is interrupted.
+   */
+  public static ProcessResults runProcess(String containerId, long secondsToWait, DTestLogger log,
+                                          ContainerOutput output, String... cmd) throws IOException {
+    return runStoppableProcess(containerId, secondsToWait, log, null, output, cmd);
+  }
+
+  /**
+   * Run a process the same as {@link #runProcess(String, long, DTestLogger, String...)}, but hand it to the caller
+   * as soon as it has started so that it can be stopped from another thread.  Since the caller has no other way to
+   * stop it, the process is destroyed if it times out.
+   * @param containerId id of the container, used in logging
+   * @param secondsToWait how long to wait for this process, in seconds, before timing out.
+   * @param log log object
+   * @param started called with the process once it has started.  If null, the process is left running if it
+   *                times out.
+   * @param cmd Command to run.  Executable should be the first element in the array, and the arguments passed
+   *            as one element each.
+   * @return the results of running the process.
+   * @throws IOException if the process times out or is interrupted.
+   */
+  public static ProcessResults runStoppableProcess(String containerId, long secondsToWait, DTestLogger log,
+                                                  Consumer<Process> started, String... cmd) throws IOException {
+    return runStoppableProcess(containerId, secondsToWait, log, started, null, cmd);
+  }
+
+  /**
+   * Run a process the same as {@link #runStoppableProcess(String, long, DTestLogger, Consumer, String...)}, but
+   * write its stdout to the given output rather than keeping it in memory.  The stdout in the returned results is
+   * empty.
+   * @param containerId id of the container, used in logging
+   * @param secondsToWait how long to wait for this process, in seconds, before timing out.
+   * @param log log object
+   * @param started called with the process once it has started.  If null, the process is left running if it
+   *                times out.
+   * @param output where to write stdout.  The caller is responsible for closing it.  If null stdout is kept in
+   *               memory.
+   * @param cmd Command to run.  Executable should be the first element in the array, and the arguments passed
+   *            as one element each.
+   * @return the results of running the process.
+   * @throws IOException if the process times out or is interrupted.
+   */
+  public static ProcessResults runStoppableProcess(String containerId, long secondsToWait, DTestLogger log,
+                                                  Consumer<Process> started, ContainerOutput output,
+                                                  String... cmd) throws IOException {
     log.info(DockerTest.EXEC_LOG, "Going to run: " + StringUtils.join(cmd, " "));
     Process proc = Runtime.getRuntime().exec(cmd);
-    AtomicBoolean running = new AtomicBoolean(true);
-    StreamPumper stdout = new StreamPumper(running, proc.getInputStream(), containerId, log);
-    StreamPumper stderr = new StreamPumper(running, proc.getErrorStream(), containerId, log);
-    new Thread(stdout).start();
-    new Thread(stderr).start();
+    if (started != null) started.accept(proc);
+    StreamPumper stdout = new StreamPumper(proc.getInputStream(), containerId, log, output).start();
+    StreamPumper stderr = new StreamPumper(proc.getErrorStream(), containerId, log).start();
     try {
       if (!proc.waitFor(secondsToWait, TimeUnit.SECONDS)) {
+        if (started != null) proc.destroy();
         throw new IOException("In container " + containerId + " process " + cmd[0] + " failed to run in " +
             secondsToWait + " seconds");
       }
     } catch (InterruptedException e) {
+      if (started != null) proc.destroy();
       throw new IOException(e);
-    } finally {
-      running.set(false);
-      stdout.finalPump();
-      stderr.finalPump();
     }
+    stdout.finalPump();
+    stderr.finalPump();
     return new ProcessResults(stdout.getOutput(), stderr.getOutput(), proc.exitValue());
   }
 
+  /**
+   * Reads the stdout of a process as a stream, see {@link #runProcess(String, long, DTestLogger, OutputReader, String...)}.
+   */
+  @FunctionalInterface
+  public interface OutputReader {
+    void read(InputStream stdout) throws IOException;
+  }
+
+  /**
+   * Run a process, handing its stdout to a reader as it is produced rather than collecting it.  This is for
+   * processes that produce data, such as a tar stream, rather than text for the log.  Stderr is handled the same
+   * as in {@link #runProcess(String, long, DTestLogger, String...)}.  Whatever the reader leaves unread is
+   * discarded so the process is not left blocked writing it.
+   * @param containerId id of the container, used in logging
+   * @param secondsToWait how long to wait for this process, including reading its output, in seconds, before
+   *                      timing out.
+   * @param log log object
+   * @param reader reads stdout.  It is called in a separate thread.
+   * @param cmd Command to run.  Executable should be the first element in the array, and the arguments passed
+   *            as one element each.
+   * @return the results of running the process.  stdout is always empty.
+   * @throws IOException if the process times out or is interrupted, or the reader fails.  As with
+   * {@link #runProcess(String, long, DTestLogger, String...)} this will not be thrown if running the process
+   * itself fails.
+   */
+  public static ProcessResults runProcess(String containerId, long secondsToWait, DTestLogger log,
+                                          OutputReader reader, String... cmd) throws IOException {
+    log.info(DockerTest.EXEC_LOG, "Going to run: " + StringUtils.join(cmd, " "));
+    Process proc = Runtime.getRuntime().exec(cmd);
+    StreamPumper stderr = new StreamPumper(proc.getErrorStream(), containerId, log).start();
+    AtomicReference<IOException> readFailure = new AtomicReference<>();
+    Thread readerThread = new Thread(() -> {
+      try (InputStream in = proc.getInputStream()) {
+        try {
+          reader.read(in);
+        } catch (IOException e) {
+          readFailure.set(e);
+          proc.destroyForcibly();
+        }
+        byte[] buf = new byte[8192];
+        while (in.read(buf) >= 0) ;
+      } catch (IOException e) {
+        // The process went away, which is all we were waiting for
+      }
+    }, "reader-" + containerId);
+    readerThread.start();
+    long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(secondsToWait);
+    try {
+      if (!proc.waitFor(secondsToWait, TimeUnit.SECONDS)) {
+        proc.destroyForcibly();
+        throw new IOException("In container " + containerId + " process " + cmd[0] + " failed to run in " +
+            secondsToWait + " seconds");
+      }
+      // Once the process has exited its output ends, so this only waits for the reader to catch up
+      readerThread.join(Math.max(1, deadline - System.currentTimeMillis()));
+      if (readerThread.isAlive()) {
+        throw new IOException("In container " + containerId + " output of " + cmd[0] + " was not read in " +
+            secondsToWait + " seconds");
+      }
+    } catch (InterruptedException e) {
+      proc.destroyForcibly();
+      throw new IOException(e);
+    }
+    stderr.finalPump();
+    if (readFailure.get() != null) throw readFailure.get();
+    return new ProcessResults("", stderr.getOutput(), proc.exitValue());
+  }
+
   /**
    * Does the generic work for a shell command to be executed in the container root directory.
    * @param dir directory in the container
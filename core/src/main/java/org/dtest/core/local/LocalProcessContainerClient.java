@@ -0,0 +1,300 @@
+/*
+ * Copyright (C) 2018 Hortonworks Inc.
+ *
+ * Licenced under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dtest.core.local;
+
+import com.google.common.annotations.VisibleForTesting;
+import org.dtest.core.BuildInfo;
+import org.dtest.core.ContainerClient;
+import org.dtest.core.ContainerCommand;
+import org.dtest.core.ContainerCommandFactory;
+import org.dtest.core.ContainerOutput;
+import org.dtest.core.ContainerResult;
+import org.dtest.core.Reporter;
+import org.dtest.core.ResultAnalyzer;
+import org.dtest.core.TestReports;
+import org.dtest.core.impl.ProcessResults;
+import org.dtest.core.impl.Utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A {@link ContainerClient} that runs each command as a process on this machine rather than in a container.  In
+ * place of an image there is one checkout of the project that has been built, and each command runs in its own
+ * copy of it, so commands can run side by side the same way they would in containers.  The copies are made with
+ * {@link #CFG_LOCALPROCESSCONTAINERCLIENT_COPYCOMMAND}, which by default uses reflinks where the filesystem supports
+ * them, making them nearly free.  Paths to the checkout in a command are pointed at its copy.  Nothing is
+ * isolated: the commands share this machine's tools, network, and Maven repository.  This is meant for quick runs
+ * on a developer's machine.
+ */
+public class LocalProcessContainerClient extends ContainerClient {
+
+  /**
+   * Directory of an existing checkout of the project that has already been built.  If this is set, commands run in
+   * copies of it and no build is done.  Defaults to none, in which case the project is checked out and built in
+   * the build directory the same way it would be in an image.
+   */
+  public static final String CFG_LOCALPROCESSCONTAINERCLIENT_SRCDIR = "dtest.core.localprocesscontainerclient.srcdir";
+
+  /**
+   * Command used to copy the checkout for each command.  It is passed the checkout and the directory to copy it to.
+   * Defaults to "cp -c -pR" on macOS, which clones the files on APFS, and to GNU's "cp -a --reflink=auto" elsewhere,
+   * which shares the data with the checkout when the filesystem supports it and otherwise makes a full copy.  If the
+   * default fails, say because cp is not GNU's or the filesystem cannot clone, a plain "cp -pR" copy is made
+   * instead.  A command that is set is used as it is.
+   */
+  public static final String CFG_LOCALPROCESSCONTAINERCLIENT_COPYCOMMAND =
+      "dtest.core.localprocesscontainerclient.copycommand";
+  protected static final String CFG_LOCALPROCESSCONTAINERCLIENT_COPYCOMMAND_DEFAULT =
+      System.getProperty("os.name", "").startsWith("Mac") ? "cp -c -pR" : "cp -a --reflink=auto";
+
+  // Works with any cp, for when the default copy command does not
+  private static final String PLAIN_COPY_COMMAND = "cp -pR";
+
+  private static final String BUILD_NAME = "local_build";
+  // Runs the command in the background in its own process group, so that stopping this shell stops everything the
+  // command started.
+  private static final String RUN_SCRIPT = "set -m; \"$@\" & child=$!; trap 'kill -TERM -$child' TERM; wait $child";
+
+  private File srcRoot;
+  private File workDir;
+  private String baseDir;
+  private String testResultsDir;
+  private String[] additionalLogs;
+  private final Map<ContainerCommand, Process> running = new ConcurrentHashMap<>();
+
+  @Override
+  public void setBuildInfo(BuildInfo buildInfo) throws IOException {
+    super.setBuildInfo(buildInfo);
+    String srcDir = cfg.getAsString(CFG_LOCALPROCESSCONTAINERCLIENT_SRCDIR);
+    if (srcDir == null) {
+      srcRoot = new File(buildInfo.getBuildDir(), "dtest-" + buildInfo.getLabel() + "-src");
+      baseDir = new File(srcRoot, buildInfo.getYaml().getProjectDir()).getAbsolutePath();
+    } else {
+      baseDir = new File(srcDir).getAbsolutePath();
+    }
+    workDir = new File(buildInfo.getBuildDir(), "dtest-" + buildInfo.getLabel() + "-work");
+  }
+
+  @Override
+  public void setReportPaths(String testResultsDir, String[] additionalLogs) {
+    this.testResultsDir = testResultsDir;
+    this.additionalLogs = additionalLogs;
+  }
+
+  @Override
+  public String getContainerBaseDir() {
+    return baseDir;
+  }
+
+  @Override
+  public void buildImage(ContainerCommandFactory cmdFactory) throws IOException {
+    if (!workDir.mkdirs() && !workDir.isDirectory()) throw new IOException("Failed to create directory " + workDir);
+    if (srcRoot == null) {
+      log.info("Using the existing build in " + baseDir);
+      return;
+    }
+    if (srcRoot.exists()) delete(srcRoot);
+    if (!srcRoot.mkdirs()) throw new IOException("Failed to create directory " + srcRoot);
+    // Run the same commands the image is built with, one after another in one shell
+    List<String> cmds = new ArrayList<>();
+    cmds.add("cd " + srcRoot.getAbsolutePath());
+    cmds.addAll(buildInfo.getSrc().srcCommands(buildInfo.getYaml()));
+    cmds.addAll(cmdFactory.getInitialBuildCommand());
+    log.info("Building the project in " + srcRoot.getAbsolutePath());
+    ProcessResults res = Utils.runStoppableProcess(BUILD_NAME, cfg.getAsTime(CFG_CONTAINERCLIENT_IMAGEBUILDTIME,
+        TimeUnit.SECONDS, CFG_CONTAINERCLIENT_IMAGEBUILDTIME_DEFAULT), log, process -> { },
+        "/bin/bash", "-c", String.join(" && ", cmds));
+    if (res.rc != 0) throw new IOException("Failed to build the project: " + res.stderr);
+  }
+
+  @Override
+  public ContainerResult runContainer(ContainerCommand cmd) throws IOException {
+    String containerName = Utils.buildContainerName(buildInfo.getLabel(), cmd.containerSuffix());
+    File copy = copyDir(containerName);
+    if (copy.exists()) delete(copy);
+    long timeout = cfg.getAsTime(CFG_CONTAINERCLIENT_CONTAINERRUNTIME, TimeUnit.SECONDS,
+        CFG_CONTAINERCLIENT_CONTAINERRUNTIME_DEFAULT);
+    String copyCommand = cfg.getAsString(CFG_LOCALPROCESSCONTAINERCLIENT_COPYCOMMAND);
+    ProcessResults copied = copy(copyCommand == null ? CFG_LOCALPROCESSCONTAINERCLIENT_COPYCOMMAND_DEFAULT :
+        copyCommand, copy, containerName, timeout);
+    if (copied.rc != 0 && copyCommand == null) {
+      log.info("Unable to copy " + baseDir + " for " + containerName + " with " +
+          CFG_LOCALPROCESSCONTAINERCLIENT_COPYCOMMAND_DEFAULT + ", making a plain copy instead: " + copied.stderr);
+      delete(copy);
+      copied = copy(PLAIN_COPY_COMMAND, copy, containerName, timeout);
+    }
+    if (copied.rc != 0) throw new IOException("Failed to copy " + baseDir + " for " + containerName + ": " + copied.stderr);
+    // An existing build may have reports from an earlier run, which would be counted again
+    File dir = commandDir(cmd, containerName);
+    if (testResultsDir != null) delete(new File(dir, testResultsDir));
+    if (additionalLogs != null) {
+      for (String additionalLog : additionalLogs) delete(new File(dir, additionalLog));
+    }
+    List<String> runCmd = new ArrayList<>();
+    Collections.addAll(runCmd, "/bin/bash", "-c", RUN_SCRIPT, containerName);
+    for (String arg : cmd.shellCommand()) runCmd.add(inCopy(arg, baseDir, copy.getAbsolutePath()));
+    try (ContainerOutput output = captureOutput(cmd)) {
+      checkNotKilled(cmd, output);
+      ProcessResults res = Utils.runStoppableProcess(cmd.containerSuffix(), timeout, log, process -> {
+        running.put(cmd, process);
+        // A kill that came after the check above found nothing to stop
+        if (isKilled(cmd)) process.destroy();
+      }, output, runCmd.toArray(new String[0]));
+      return new ContainerResult(cmd, containerName, res.rc, output);
+    } finally {
+      running.remove(cmd);
+    }
+  }
+
+  @Override
+  public void killContainer(ContainerCommand cmd) {
+    markKilled(cmd);
+    Process process = running.get(cmd);
+    if (process != null) process.destroy();
+  }
+
+  @Override
+  public void fetchTestReports(ContainerResult result, ResultAnalyzer analyzer, Reporter reporter,
+                               String[] additionalLogs) throws IOException {
+    result.setReports(new TestReports(log, result.getContainerName(), reporter.getLogDirForContainer(result)));
+    // The command ran in the copy, so that is where its reports are.  Move them rather than copy them, since the
+    // copy is about to be removed.
+    File dir = commandDir(result.getCmd(), result.getContainerName());
+    File tempDir = result.getReports().getTempDir();
+    File[] reports = new File(dir, analyzer.getTestResultsDir()).listFiles();
+    if (reports != null) {
+      for (File report : reports) move(report, new File(tempDir, report.getName()));
+    }
+    for (String additionalLog : additionalLogs) {
+      File logFile = new File(dir, additionalLog);
+      if (logFile.exists()) move(logFile, new File(tempDir, logFile.getName()));
+      result.getReports().addAdditionalLog(additionalLog);
+    }
+  }
+
+  @Override
+  public void removeContainer(ContainerResult result) throws IOException {
+    File copy = copyDir(result.getContainerName());
+    if (buildInfo.shouldCleanupAfter()) {
+      delete(copy);
+    } else {
+      log.info("Skipping cleanup of " + copy.getAbsolutePath() + " since no-cleanup is set");
+    }
+  }
+
+  @Override
+  public List<String> removeOrphans(String prefix) throws IOException {
+    // Commands left running by an earlier build went with it, so only the copies are left
+    List<String> orphans = new ArrayList<>();
+    File[] copies = workDir.listFiles((dir, name) -> name.startsWith(prefix));
+    if (copies == null) return orphans;
+    for (File copy : copies) {
+      delete(copy);
+      orphans.add(copy.getName());
+    }
+    return orphans;
+  }
+
+  @Override
+  public void removeImage() throws IOException {
+    if (!buildInfo.shouldCleanupAfter()) return;
+    delete(workDir);
+    if (srcRoot != null) delete(srcRoot);
+  }
+
+  private File copyDir(String containerName) {
+    return new File(workDir, containerName);
+  }
+
+  // Where the command's directory is in its copy of the checkout
+  private File commandDir(ContainerCommand cmd, String containerName) {
+    return new File(inCopy(cmd.containerDirectory(), baseDir, copyDir(containerName).getAbsolutePath()));
+  }
+
+  private ProcessResults copy(String copyCommand, File copy, String containerName, long timeout) throws IOException {
+    List<String> copyCmd = new ArrayList<>(Arrays.asList(copyCommand.trim().split("\\s+")));
+    Collections.addAll(copyCmd, baseDir, copy.getAbsolutePath());
+    return Utils.runStoppableProcess("copying-for-" + containerName, timeout, log, process -> { },
+        copyCmd.toArray(new String[0]));
+  }
+
+  /**
+   * Point the paths to the checkout in an argument at the copy.  Only whole paths are changed: the checkout's path
+   * must start a path and be followed by a / or the end of the path, so a sibling directory whose name starts the
+   * same is left alone.  The path can be anywhere in the argument, since commands are often shell scripts that cd
+   * to it.
+   */
+  @VisibleForTesting
+  static String inCopy(String arg, String baseDir, String copyDir) {
+    return Pattern.compile("(?<=^|[\\s=:'\"(])" + Pattern.quote(baseDir) + "(?=/|$|[\\s;:'\")])").matcher(arg)
+        .replaceAll(Matcher.quoteReplacement(copyDir));
+  }
+
+  private static void move(File from, File to) throws IOException {
+    if (from.isDirectory()) {
+      // It may be on another filesystem, in which case a directory has to be moved a file at a time
+      Files.walkFileTree(from.toPath(), new SimpleFileVisitor<Path>() {
+        @Override
+        public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+          Files.createDirectories(to.toPath().resolve(from.toPath().relativize(dir)));
+          return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+          Files.move(file, to.toPath().resolve(from.toPath().relativize(file)), StandardCopyOption.REPLACE_EXISTING);
+          return FileVisitResult.CONTINUE;
+        }
+      });
+    } else {
+      Files.move(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  private static void delete(File dir) throws IOException {
+    if (!Files.exists(dir.toPath(), LinkOption.NOFOLLOW_LINKS)) return;
+    Files.walkFileTree(dir.toPath(), new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+        Files.delete(file);
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+        Files.delete(dir);
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+}
@@ -33,6 +33,14 @@ import java.util.function.Supplier;
  */
 public class MavenContainerCommand extends ContainerCommand {
 
+  /**
+   * Whether to run maven in offline mode in the containers, so that tests only use what is already in the local
+   * repository.  Only set this if the image build, or a shared local repository, has everything the tests need.
+   * Defaults to false.
+   */
+  public static final String CFG_MAVENCONTAINERCOMMAND_OFFLINE = "dtest.core.mavencontainercommand.offline";
+  protected static final boolean CFG_MAVENCONTAINERCOMMAND_OFFLINE_DEFAULT = false;
+
   protected final String buildDir;
   protected final int cmdNumber;
   protected List<String> tests; // set of tests to run
@@ -138,6 +146,9 @@ public class MavenContainerCommand extends ContainerCommand {
 
       buf.append("/usr/bin/mvn test -Dsurefire.timeout=")
           .append(cfg.getAsTime(CFG_CONTAINERCOMMAND_SINGLERUNTIME, TimeUnit.SECONDS, CFG_CONTAINERCOMMAND_SINGLERUNTIME_DEFAULT));
+      if (cfg.getAsBoolean(CFG_MAVENCONTAINERCOMMAND_OFFLINE, CFG_MAVENCONTAINERCOMMAND_OFFLINE_DEFAULT)) {
+        buf.append(" --offline");
+      }
 
       if (!tests.isEmpty()) {
         buf.append(" -Dtest=");
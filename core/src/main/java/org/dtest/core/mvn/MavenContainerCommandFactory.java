@@ -17,22 +17,34 @@ package org.dtest.core.mvn;
 
 import org.dtest.core.BuildInfo;
 import org.dtest.core.BuildYaml;
+import org.dtest.core.CodeSource;
 import org.dtest.core.ContainerClient;
 import org.dtest.core.ContainerCommand;
 import org.dtest.core.ContainerCommandFactory;
 import org.dtest.core.ContainerResult;
 import org.dtest.core.ModuleDirectory;
+import org.dtest.core.TestHistory;
 import org.dtest.core.impl.Utils;
 
 import java.io.IOException;
 import java.io.InvalidObjectException;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Deque;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToLongFunction;
 
 /**
  * Default implementation of ContainerCommandFactory with maven specific logic.
@@ -44,6 +56,11 @@ public class MavenContainerCommandFactory extends ContainerCommandFactory {
    */
   protected int containerNumber;
 
+  /**
+   * History of previous test runs, used to estimate how long tests will take.
+   */
+  protected TestHistory testHistory;
+
   public MavenContainerCommandFactory() {
     containerNumber = 0;
 
@@ -52,16 +69,45 @@ public class MavenContainerCommandFactory extends ContainerCommandFactory {
   @Override
   public void buildContainerCommands(ContainerClient containerClient, BuildInfo buildInfo)
       throws IOException {
+    testHistory = buildInfo.getTestHistory();
     setup(containerClient, buildInfo);
 
     ModuleDirectory[] mDirs = getModuleDirs(buildInfo.getYaml());
+    if (cfg.getAsBoolean(CFG_CONTAINERCOMMANDFACTORY_CHANGEDONLY, CFG_CONTAINERCOMMANDFACTORY_CHANGEDONLY_DEFAULT)) {
+      mDirs = selectChangedDirs(mDirs, containerClient, buildInfo);
+    }
     for (ModuleDirectory mDir : mDirs) {
       mDir.validate();
       int testsPerContainer = mDir.isSetTestsPerContainer() ?
           mDir.getTestsPerContainer() : cfg.getAsInt(CFG_CONTAINERCOMMANDFACTORY_TESTSPERCONTAINER,
           CFG_CONTAINERCOMMANDFACTORY_TESTSPERCONTAINER_DEFAULT);
+      int firstNew = cmds.size();
       buildOneContainerCommand(mDir, containerClient, buildInfo, testsPerContainer);
+      for (ContainerCommand cmd : cmds.subList(firstNew, cmds.size())) {
+        if (cmd.getExpectedRuntime() == 0) cmd.setExpectedRuntime(estimateRuntime(mDir, cmd));
+      }
+    }
+  }
+
+  @Override
+  public List<ContainerCommand> buildRerunCommands(ContainerClient containerClient, BuildInfo buildInfo,
+                                                   Map<ContainerCommand, Set<String>> failedTests) throws IOException {
+    // Go through the commands in a fixed order so the reruns are numbered the same way every time
+    List<ContainerCommand> original = new ArrayList<>(failedTests.keySet());
+    original.sort(Comparator.comparing(ContainerCommand::containerSuffix));
+    List<ContainerCommand> reruns = new ArrayList<>();
+    for (ContainerCommand cmd : original) {
+      ModuleDirectory mDir = cmd.getModuleDir();
+      if (mDir == null) {
+        log.warn("Unable to rerun tests from " + cmd.containerSuffix() + " because it has no module directory");
+        continue;
+      }
+      int testsPerContainer = mDir.isSetTestsPerContainer() ?
+          mDir.getTestsPerContainer() : cfg.getAsInt(CFG_CONTAINERCOMMANDFACTORY_TESTSPERCONTAINER,
+          CFG_CONTAINERCOMMANDFACTORY_TESTSPERCONTAINER_DEFAULT);
+      reruns.addAll(buildRerunCommands(mDir, cmd, containerClient, failedTests.get(cmd), testsPerContainer));
     }
+    return reruns;
   }
 
   @Override
@@ -69,6 +115,24 @@ public class MavenContainerCommandFactory extends ContainerCommandFactory {
     return Collections.singletonList("/usr/bin/mvn install -DskipTests");
   }
 
+  @Override
+  public List<String> getIncrementalBuildCommand(String changedFilesCommand) {
+    return Arrays.asList(
+        // A changed file belongs to the module in the closest directory above it that has a pom
+        "modules=$(" + changedFilesCommand + " | while read f; do d=$(dirname \"$f\"); " +
+            "while [ \"$d\" != . ] && [ ! -f \"$d/pom.xml\" ]; do d=$(dirname \"$d\"); done; echo \"$d\"; done | " +
+            "sort -u | paste -sd , -)",
+        // Rebuild those modules and everything that depends on them
+        "if [ -n \"$modules\" ]; then /usr/bin/mvn install -DskipTests -pl \"$modules\" -amd; " +
+            "else /usr/bin/mvn validate -N; fi");
+  }
+
+  @Override
+  public List<String> getDependencyCommands() {
+    // Quiet, so it says nothing about BUILD SUCCESS that could be mistaken for the real build
+    return Collections.singletonList("/usr/bin/mvn -q dependency:go-offline --fail-at-end");
+  }
+
   @Override
   public List<String> getRequiredPackages() {
     return Arrays.asList("unzip", "maven");
@@ -129,22 +193,37 @@ public class MavenContainerCommandFactory extends ContainerCommandFactory {
               containerClient.getContainerBaseDir() + "/" + mDir.getDir(), containerNumber++);
           setEnvsAndProperties(mDir, mvn);
           mvn.addTest(test);
+          mvn.setIsolated(true);
           log.debug("Isolating test " + test + " in container " + (containerNumber - 1));
           cmds.add(mvn);
           tests.remove(test);
         }
       }
 
-      while (!tests.isEmpty()) {
-        MavenContainerCommand mvn = new MavenContainerCommand(mDir,
-            containerClient.getContainerBaseDir() + "/" + mDir.getDir(), containerNumber++);
-        setEnvsAndProperties(mDir, mvn);
-        for (int i = 0; i < testsPerContainer && !tests.isEmpty(); i++) {
-          String single = tests.pop();
-          log.debug("Adding test " + single + " to container " + (containerNumber - 1));
-          mvn.addTest(single);
+      long secondsPerContainer = getSecondsPerContainer(mDir);
+      if (secondsPerContainer > 0) {
+        for (List<String> group : packByRuntime(tests, test -> expectedTestRuntime(mDir, test), secondsPerContainer)) {
+          MavenContainerCommand mvn = new MavenContainerCommand(mDir,
+              containerClient.getContainerBaseDir() + "/" + mDir.getDir(), containerNumber++);
+          setEnvsAndProperties(mDir, mvn);
+          for (String single : group) {
+            log.debug("Adding test " + single + " to container " + (containerNumber - 1));
+            mvn.addTest(single);
+          }
+          cmds.add(mvn);
+        }
+      } else {
+        while (!tests.isEmpty()) {
+          MavenContainerCommand mvn = new MavenContainerCommand(mDir,
+              containerClient.getContainerBaseDir() + "/" + mDir.getDir(), containerNumber++);
+          setEnvsAndProperties(mDir, mvn);
+          for (int i = 0; i < testsPerContainer && !tests.isEmpty(); i++) {
+            String single = tests.pop();
+            log.debug("Adding test " + single + " to container " + (containerNumber - 1));
+            mvn.addTest(single);
+          }
+          cmds.add(mvn);
         }
-        cmds.add(mvn);
       }
     } else if (mDir.isSetSingleTest()) {
       // Running a single test
@@ -159,6 +238,166 @@ public class MavenContainerCommandFactory extends ContainerCommandFactory {
     }
   }
 
+  /**
+   * Build the commands to rerun the failed tests from one command.  This implementation uses surefire's
+   * Class#method1+method2 syntax to run only the failed methods, putting up to testsPerContainer classes in each
+   * command.  Subclasses that run tests some other way can override it.
+   * @param mDir information on this directory
+   * @param cmd command that originally ran the tests
+   * @param containerClient container client handle
+   * @param tests tests to rerun, in the form Class.method
+   * @param testsPerContainer number of test classes to run in each container
+   * @return commands to rerun the tests
+   * @throws IOException if it fails to build the commands
+   */
+  protected List<ContainerCommand> buildRerunCommands(ModuleDirectory mDir, ContainerCommand cmd,
+                                                      ContainerClient containerClient, Collection<String> tests,
+                                                      int testsPerContainer) throws IOException {
+    // An empty set of methods means rerun the whole class
+    Map<String, Set<String>> methodsByClass = new TreeMap<>();
+    for (String test : tests) {
+      int dot = test.indexOf('.');
+      if (dot < 0) {
+        methodsByClass.computeIfAbsent(test, c -> new TreeSet<>());
+        continue;
+      }
+      String method = test.substring(dot + 1);
+      // Parameterized tests are reported as method[params], which surefire can't select, so run every variation
+      int bracket = method.indexOf('[');
+      if (bracket >= 0) method = method.substring(0, bracket);
+      methodsByClass.computeIfAbsent(test.substring(0, dot), c -> new TreeSet<>()).add(method);
+    }
+
+    List<ContainerCommand> reruns = new ArrayList<>();
+    MavenContainerCommand mvn = null;
+    for (Map.Entry<String, Set<String>> e : methodsByClass.entrySet()) {
+      if (mvn == null || mvn.tests.size() >= testsPerContainer) {
+        mvn = new MavenContainerCommand(mDir, containerClient.getContainerBaseDir() + "/" + mDir.getDir(),
+            containerNumber++);
+        setEnvsAndProperties(mDir, mvn);
+        mvn.setIsolated(cmd.isIsolated());
+        reruns.add(mvn);
+      }
+      String selector = e.getValue().isEmpty() ? e.getKey() : e.getKey() + "#" + String.join("+", e.getValue());
+      log.debug("Rerunning " + selector + " from " + cmd.containerSuffix() + " in container " + (containerNumber - 1));
+      mvn.addTest(selector);
+    }
+    return reruns;
+  }
+
+  /**
+   * Determine the target runtime for containers in this directory when splitting tests.  A value set in the yaml
+   * file takes precedence over {@link #CFG_CONTAINERCOMMANDFACTORY_CONTAINERRUNTIME}.
+   * @param mDir information on this directory
+   * @return target runtime in seconds, or 0 if tests should be packed by count instead.
+   */
+  protected long getSecondsPerContainer(ModuleDirectory mDir) {
+    return mDir.isSetSecondsPerContainer() ? mDir.getSecondsPerContainer() :
+        cfg.getAsTime(CFG_CONTAINERCOMMANDFACTORY_CONTAINERRUNTIME, TimeUnit.SECONDS,
+            CFG_CONTAINERCOMMANDFACTORY_CONTAINERRUNTIME_DEFAULT);
+  }
+
+  /**
+   * Get the expected runtime of a test.  This implementation uses the runtime of the test class recorded in the
+   * {@link TestHistory}, or {@link #CFG_CONTAINERCOMMANDFACTORY_DEFAULTTESTRUNTIME} if the test has not been run
+   * before.  Subclasses that know more about their tests can override it.
+   * @param mDir directory the test is in
+   * @param test name of the test
+   * @return expected runtime in seconds
+   */
+  protected long expectedTestRuntime(ModuleDirectory mDir, String test) {
+    if (testHistory != null) {
+      TestHistory.Entry entry = testHistory.get(mDir.getDir() == null ? "" : mDir.getDir(), test);
+      if (entry != null && entry.getAverageMillis() > 0) {
+        return Math.max(1, TimeUnit.MILLISECONDS.toSeconds(entry.getAverageMillis()));
+      }
+    }
+    return cfg.getAsTime(CFG_CONTAINERCOMMANDFACTORY_DEFAULTTESTRUNTIME, TimeUnit.SECONDS,
+        CFG_CONTAINERCOMMANDFACTORY_DEFAULTTESTRUNTIME_DEFAULT);
+  }
+
+  /**
+   * Estimate how long a command will take to run, so that the {@link org.dtest.core.CommandOrderer} can start the
+   * longest running commands first.  For commands that run a list of tests this is the sum of
+   * {@link #expectedTestRuntime(ModuleDirectory, String)} for each test.  For commands that run all the tests in a
+   * directory it is the sum of the runtimes of every test class recorded in the {@link TestHistory} for that
+   * directory.
+   * @param mDir directory the command runs in
+   * @param cmd command to estimate
+   * @return expected runtime in seconds, or 0 if it cannot be estimated.
+   */
+  protected long estimateRuntime(ModuleDirectory mDir, ContainerCommand cmd) {
+    if (!(cmd instanceof MavenContainerCommand)) return 0;
+    MavenContainerCommand mvn = (MavenContainerCommand)cmd;
+    if (!mvn.tests.isEmpty()) {
+      long total = 0;
+      for (String test : mvn.tests) total += expectedTestRuntime(mDir, test);
+      return total;
+    }
+    if (testHistory == null) return 0;
+    String module = mDir.getDir() == null ? "" : mDir.getDir();
+    Set<String> excluded = new HashSet<>(mvn.excludedTests);
+    long millis = 0;
+    for (TestHistory.Entry entry : testHistory.getEntries()) {
+      if (entry.getMethod() == null && module.equals(entry.getModule()) && !excluded.contains(entry.getTestClass())) {
+        millis += entry.getAverageMillis();
+      }
+    }
+    return TimeUnit.MILLISECONDS.toSeconds(millis);
+  }
+
+  /**
+   * Pack tests into groups of roughly equal expected runtime.  The number of groups is the total expected runtime
+   * divided by the target runtime, and tests are assigned longest first to whichever group currently has the least
+   * work.  Protected so that subclasses can use it when constructing their commands.
+   * @param tests tests to pack
+   * @param runtime function that returns the expected runtime for a test
+   * @param targetRuntime target runtime for a single group, in the same units as runtime
+   * @return groups of tests, none of which will be empty.  If there are no tests there are no groups, since a command
+   * with no tests would run the whole module.
+   */
+  protected List<List<String>> packByRuntime(Collection<String> tests, ToLongFunction<String> runtime,
+                                             long targetRuntime) {
+    if (tests.isEmpty()) return Collections.emptyList();
+    List<String> sorted = new ArrayList<>(tests);
+    Map<String, Long> runtimes = new HashMap<>();
+    long total = 0;
+    for (String test : sorted) {
+      long r = Math.max(1, runtime.applyAsLong(test));
+      runtimes.put(test, r);
+      total += r;
+    }
+    // Longest first, break ties by name so the packing is deterministic
+    sorted.sort((a, b) -> {
+      int c = Long.compare(runtimes.get(b), runtimes.get(a));
+      return c == 0 ? a.compareTo(b) : c;
+    });
+
+    int numGroups = (int)Math.max(1, Math.min(sorted.size(), (total + targetRuntime - 1) / targetRuntime));
+    List<List<String>> groups = new ArrayList<>(numGroups);
+    long[] loads = new long[numGroups];
+    PriorityQueue<Integer> leastLoaded = new PriorityQueue<>(numGroups, (a, b) -> {
+      int c = Long.compare(loads[a], loads[b]);
+      return c == 0 ? Integer.compare(a, b) : c;
+    });
+    for (int i = 0; i < numGroups; i++) {
+      groups.add(new ArrayList<>());
+      leastLoaded.add(i);
+    }
+    for (String test : sorted) {
+      int group = leastLoaded.poll();
+      groups.get(group).add(test);
+      loads[group] += runtimes.get(test);
+      leastLoaded.add(group);
+    }
+    if (log.isDebugEnabled()) {
+      for (int i = 0; i < numGroups; i++) {
+        log.debug("Packed " + groups.get(i).size() + " tests with expected runtime of " + loads[i] + " into group " + i);
+      }
+    }
+    return groups;
+  }
+
   /**
    * A chance for the subclass to override how the module directories are obtained.  This should be used if the
    * subclass has overridden the implementation of BuildYaml and it wants to return module directories with
@@ -171,6 +410,70 @@ public class MavenContainerCommandFactory extends ContainerCommandFactory {
     return yaml.getDirs();
   }
 
+  /**
+   * Drop the module directories that are not affected by the change being built.  The changed files are found with
+   * {@link CodeSource#changedFilesCommand(BuildYaml, String)} and mapped to modules and the modules that depend on
+   * them using a {@link MavenReactor} built from the project's pom files.  A directory is kept if it contains or
+   * is inside an affected module.  If the changed files cannot be determined, nothing changed, or the poms cannot
+   * be read or parsed, every directory is kept.  Protected so that subclasses can change how directories are
+   * selected.
+   * @param mDirs all of the module directories
+   * @param containerClient container client handle, used to run git and read the poms.
+   * @param buildInfo build information
+   * @return directories to build commands for
+   * @throws IOException not thrown by this implementation, declared for subclasses.
+   */
+  protected ModuleDirectory[] selectChangedDirs(ModuleDirectory[] mDirs, ContainerClient containerClient,
+                                                BuildInfo buildInfo) throws IOException {
+    String baseRef = cfg.getAsString(CFG_CONTAINERCOMMANDFACTORY_BASEREF);
+    String diffCmd = buildInfo.getSrc().changedFilesCommand(buildInfo.getYaml(), baseRef);
+    if (diffCmd == null) {
+      log.warn(buildInfo.getSrc().getClass().getName() + " cannot determine which files changed, running all tests");
+      return mDirs;
+    }
+    List<String> changed = new ArrayList<>();
+    try {
+      for (String line : runContainer(containerClient, null, buildInfo.getLabel(), "changed-files", diffCmd).split("\n")) {
+        if (!line.trim().isEmpty()) changed.add(line.trim());
+      }
+    } catch (IOException e) {
+      log.warn("Unable to determine which files changed, running all tests", e);
+      return mDirs;
+    }
+    String base = baseRef == null ? "the default branch" : baseRef;
+    if (changed.isEmpty()) {
+      log.info("No files changed from " + base + ", running all tests");
+      return mDirs;
+    }
+
+    MavenReactor reactor;
+    try {
+      reactor = MavenReactor.parse(
+          runContainer(containerClient, null, buildInfo.getLabel(), "read-poms", MavenReactor.POM_DUMP_CMD));
+    } catch (IOException e) {
+      log.warn("Unable to read the project's poms, running all tests", e);
+      return mDirs;
+    }
+    Set<String> affected = reactor.affectedModules(changed);
+    List<ModuleDirectory> selected = new ArrayList<>();
+    for (ModuleDirectory mDir : mDirs) {
+      String dir = mDir.getDir() == null ? "" : mDir.getDir().replaceAll("^\\./|/$", "");
+      boolean keep = false;
+      for (String module : affected) {
+        if (dir.isEmpty() || module.isEmpty() || module.equals(dir) || module.startsWith(dir + "/") ||
+            dir.startsWith(module + "/")) {
+          keep = true;
+          break;
+        }
+      }
+      if (keep) selected.add(mDir);
+      else log.debug("Skipping tests in " + mDir.getDir() + ", nothing it depends on changed");
+    }
+    log.info("Running tests in " + selected.size() + " of " + mDirs.length + " directories, " + changed.size() +
+        " files changed from " + base + " affecting " + affected.size() + " modules");
+    return selected.toArray(new ModuleDirectory[0]);
+  }
+
   /**
    * Translate environment variable and properties from the yaml file to the container command.  Protected so
    * that subclasses can use it when constructing commands.
@@ -220,10 +523,13 @@ public class MavenContainerCommandFactory extends ContainerCommandFactory {
         });
     if (result.getRc() != 0) {
       String msg = "Failed to run cmd " + cmd + " as part of determining tests to run";
-      log.error(msg);
+      log.error(msg + ", it ended with:\n" + result.getStdoutTail());
+      result.discardOutput();
       throw new IOException(msg);
     }
     containerClient.removeContainer(result);
-    return result.getStdout();
+    String output = result.getStdout();
+    result.discardOutput();
+    return output;
   }
 }
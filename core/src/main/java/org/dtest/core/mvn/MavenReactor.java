@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2018 Hortonworks Inc.
+ *
+ * Licenced under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dtest.core.mvn;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * The modules of a Maven project and how they depend on each other, built from the project's pom files.  This is
+ * used to work out which modules are affected by a set of changed files, which is every module a file changed in
+ * plus every module that depends on one of those, directly or not.  A module's parent counts as a dependency, so a
+ * change to a parent pom affects all of its children.  Only dependencies declared in the project or its profiles
+ * are considered, and the only property resolved is the project's own groupId.
+ */
+public class MavenReactor {
+
+  static final String POM_MARKER = "#### dtest pom: ";
+
+  /**
+   * Shell command that prints every pom file in the project, each preceded by a line of {@link #POM_MARKER}
+   * followed by its path.  It should be run from the project directory.
+   */
+  public static final String POM_DUMP_CMD = "find . -name pom.xml -not -path '*/target/*' -not -path '*/src/*' | " +
+      "sort | while read f; do echo \"" + POM_MARKER + "$f\"; cat \"$f\"; done";
+
+  // module directory relative to the project directory, "" for the top level, to groupId:artifactId
+  private final Map<String, String> dirToId = new HashMap<>();
+  // groupId:artifactId to ids of modules in the reactor that depend on it
+  private final Map<String, Set<String>> dependents = new HashMap<>();
+  private final Map<String, String> idToDir = new HashMap<>();
+
+  /**
+   * Build the reactor from the output of {@link #POM_DUMP_CMD}.
+   * @param pomDump output of the command
+   * @return reactor
+   * @throws IOException if a pom cannot be parsed.
+   */
+  public static MavenReactor parse(String pomDump) throws IOException {
+    MavenReactor reactor = new MavenReactor();
+    String path = null;
+    StringBuilder pom = new StringBuilder();
+    for (String line : pomDump.split("\n")) {
+      if (line.startsWith(POM_MARKER)) {
+        if (path != null) reactor.addPom(path, pom.toString());
+        path = line.substring(POM_MARKER.length()).trim();
+        pom.setLength(0);
+      } else if (path != null) {
+        pom.append(line).append('\n');
+      }
+    }
+    if (path != null) reactor.addPom(path, pom.toString());
+    return reactor;
+  }
+
+  /**
+   * Add one module to the reactor.
+   * @param path path of the pom file, relative to the project directory.
+   * @param pomXml contents of the pom file.
+   * @throws IOException if the pom cannot be parsed.
+   */
+  public void addPom(String path, String pomXml) throws IOException {
+    Element project;
+    try {
+      DocumentBuilder builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+      Document doc = builder.parse(new InputSource(new StringReader(pomXml)));
+      project = doc.getDocumentElement();
+    } catch (ParserConfigurationException|SAXException e) {
+      throw new IOException("Unable to parse " + path, e);
+    }
+    Element parent = child(project, "parent");
+    String groupId = text(project, "groupId");
+    if (groupId == null && parent != null) groupId = text(parent, "groupId");
+    String id = groupId + ":" + text(project, "artifactId");
+    String dir = moduleDir(path);
+    dirToId.put(dir, id);
+    idToDir.put(id, dir);
+
+    if (parent != null) addDependency(id, text(parent, "groupId") + ":" + text(parent, "artifactId"));
+    List<Element> dependencyLists = new ArrayList<>();
+    Element deps = child(project, "dependencies");
+    if (deps != null) dependencyLists.add(deps);
+    Element profiles = child(project, "profiles");
+    if (profiles != null) {
+      for (Element profile : children(profiles, "profile")) {
+        deps = child(profile, "dependencies");
+        if (deps != null) dependencyLists.add(deps);
+      }
+    }
+    for (Element list : dependencyLists) {
+      for (Element dep : children(list, "dependency")) {
+        String depGroup = text(dep, "groupId");
+        if (depGroup == null) continue;
+        depGroup = depGroup.replace("${project.groupId}", groupId).replace("${pom.groupId}", groupId);
+        addDependency(id, depGroup + ":" + text(dep, "artifactId"));
+      }
+    }
+  }
+
+  /**
+   * Get the directories of all of the modules, relative to the project directory.  The top level module is "".
+   * @return module directories
+   */
+  public Set<String> getModuleDirs() {
+    return new TreeSet<>(dirToId.keySet());
+  }
+
+  /**
+   * Find the modules affected by a set of changed files.  Each file belongs to the module in the deepest directory
+   * that contains it.
+   * @param changedFiles paths relative to the project directory.
+   * @return directories of the affected modules, relative to the project directory.
+   */
+  public Set<String> affectedModules(Collection<String> changedFiles) {
+    Deque<String> toVisit = new ArrayDeque<>();
+    for (String file : changedFiles) {
+      String dir = owningModule(file);
+      if (dir != null) toVisit.add(dirToId.get(dir));
+    }
+    Set<String> affected = new HashSet<>();
+    while (!toVisit.isEmpty()) {
+      String id = toVisit.poll();
+      if (!affected.add(id)) continue;
+      Set<String> deps = dependents.get(id);
+      if (deps != null) toVisit.addAll(deps);
+    }
+    Set<String> dirs = new TreeSet<>();
+    for (String id : affected) dirs.add(idToDir.get(id));
+    return dirs;
+  }
+
+  private String owningModule(String file) {
+    String path = file.startsWith("./") ? file.substring(2) : file;
+    while (true) {
+      int slash = path.lastIndexOf('/');
+      path = slash < 0 ? "" : path.substring(0, slash);
+      if (dirToId.containsKey(path)) return path;
+      if (path.isEmpty()) return null;
+    }
+  }
+
+  private void addDependency(String module, String dependsOn) {
+    dependents.computeIfAbsent(dependsOn, s -> new HashSet<>()).add(module);
+  }
+
+  private static String moduleDir(String pomPath) {
+    String dir = pomPath.startsWith("./") ? pomPath.substring(2) : pomPath;
+    int slash = dir.lastIndexOf('/');
+    return slash < 0 ? "" : dir.substring(0, slash);
+  }
+
+  private static Element child(Element parent, String name) {
+    for (Node n = parent.getFirstChild(); n != null; n = n.getNextSibling()) {
+      if (n instanceof Element && name.equals(n.getNodeName())) return (Element)n;
+    }
+    return null;
+  }
+
+  private static List<Element> children(Element parent, String name) {
+    List<Element> elements = new ArrayList<>();
+    for (Node n = parent.getFirstChild(); n != null; n = n.getNextSibling()) {
+      if (n instanceof Element && name.equals(n.getNodeName())) elements.add((Element)n);
+    }
+    return elements;
+  }
+
+  private static String text(Element parent, String name) {
+    Element e = child(parent, name);
+    return e == null ? null : e.getTextContent().trim();
+  }
+}
@@ -18,7 +18,9 @@ package org.dtest.core.mvn;
 import org.dtest.core.BuildState;
 import org.dtest.core.ContainerCommand;
 import org.dtest.core.ContainerResult;
+import org.dtest.core.LineListener;
 import org.dtest.core.ResultAnalyzer;
+import org.dtest.core.TestHistory;
 import org.xml.sax.Attributes;
 import org.xml.sax.SAXException;
 import org.xml.sax.helpers.DefaultHandler;
@@ -26,6 +28,7 @@ import org.xml.sax.helpers.DefaultHandler;
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
@@ -33,15 +36,18 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /**
  * Implementation of ResultAnalyzer with maven specific logic.  This class understands how to parse maven output
- * to interpret test failures, etc.
+ * to interpret test failures, etc.  It listens to the output of each command while the container runs, watching for
+ * timeouts and logging progress as surefire reports each test class finishing.
  */
 public class MavenResultAnalyzer extends ResultAnalyzer {
 
@@ -55,7 +61,12 @@ public class MavenResultAnalyzer extends ResultAnalyzer {
   private AtomicInteger succeeded;
   private List<String> failed;
   private List<String> errors;
+  private List<String> flaky;
+  private Map<ContainerCommand, Set<String>> failedByCommand;
+  private final Map<ContainerCommand, OutputListener> listening;
   private final Pattern timeout;
+  private final Pattern testStarted;
+  private final Pattern testFinished;
   //private BuildState lastContainerState;
 
   public MavenResultAnalyzer() {
@@ -63,7 +74,13 @@ public class MavenResultAnalyzer extends ResultAnalyzer {
     succeeded = new AtomicInteger(0);
     failed = new Vector<>();
     errors = new Vector<>();
+    flaky = new Vector<>();
+    failedByCommand = new ConcurrentHashMap<>();
+    listening = new ConcurrentHashMap<>();
     timeout = Pattern.compile(".*Failed to execute goal .* There was a timeout or other error in the fork.*");
+    testStarted = Pattern.compile("(?:\\[INFO\\] )?Running ([\\w.$]+)");
+    testFinished = Pattern.compile(".*Tests run: (\\d+), Failures: (\\d+), Errors: (\\d+), Skipped: (\\d+), " +
+        "Time elapsed: .* - in ([\\w.$]+)");
   }
 
   @Override
@@ -83,30 +100,46 @@ public class MavenResultAnalyzer extends ResultAnalyzer {
     return errors;
   }
 
+  @Override
+  public List<String> getFlaky() {
+    Collections.sort(flaky);
+    return flaky;
+  }
+
+  @Override
+  public Map<ContainerCommand, Set<String>> getFailedTestsByCommand() {
+    return failedByCommand;
+  }
+
   @Override
   public void analyzeResult(ContainerResult result, ContainerCommand cmd) throws IOException {
     BuildState containerState = new BuildState();
-    String[] lines = result.getStdout().split("\n");
-    for (String line : lines) {
-      assert line != null;
-      lookForTimeouts(containerState, result, line);
-    }
-    examineReports(containerState, result, cmd);
     try {
-      if (containerState.getState() == BuildState.State.HAD_TIMEOUTS) {
-        result.setAnalysisResult(ContainerResult.ContainerStatus.TIMED_OUT);
-      } else if (containerState.getState() == BuildState.State.HAD_FAILURES_OR_ERRORS) {
-        result.setAnalysisResult(ContainerResult.ContainerStatus.FAILED);
-      } else {
-        containerState.success();
-        result.setAnalysisResult(ContainerResult.ContainerStatus.SUCCEEDED);
-      }
+      analyze(containerState, result, cmd, false);
     } finally {
       // This can get overwritten by later analysis.  It won't overwrite early analysis if there was a failure
       buildState.update(containerState);
     }
   }
 
+  @Override
+  public boolean supportsRerun() {
+    return true;
+  }
+
+  @Override
+  public void analyzeRerunResult(ContainerResult result, ContainerCommand cmd) throws IOException {
+    // The build state is left alone, the tests being rerun already marked it as having failures.
+    analyze(new BuildState(), result, cmd, true);
+  }
+
+  @Override
+  public LineListener listenTo(ContainerCommand cmd) {
+    OutputListener listener = new OutputListener(cmd);
+    listening.put(cmd, listener);
+    return listener;
+  }
+
   @Override
   public String getTestResultsDir() {
     return "target" + File.separator + "surefire-reports";
@@ -133,16 +166,69 @@ public class MavenResultAnalyzer extends ResultAnalyzer {
     return testName;
   }
 
-  private void lookForTimeouts(BuildState containerState, ContainerResult result, String line) throws IOException {
-    // Look for timeouts
-    Matcher m = timeout.matcher(line);
-    if (m.matches()) {
+  /**
+   * Called when the output of a command shows surefire has started running a test class.  This is called while the
+   * container is running, from the thread reading its output, so it should be quick.  The default implementation
+   * does nothing.
+   * @param cmd command running the test
+   * @param testClass fully qualified name of the test class
+   */
+  protected void testStarted(ContainerCommand cmd, String testClass) {
+  }
+
+  /**
+   * Called when the output of a command shows surefire has finished running a test class.  This is called while the
+   * container is running, from the thread reading its output, so it should be quick.  The results are only what
+   * surefire prints, the reports are examined once the container has finished.  The default implementation does
+   * nothing.
+   * @param cmd command running the test
+   * @param testClass fully qualified name of the test class
+   * @param run number of tests run
+   * @param failures number of tests that failed
+   * @param errors number of tests that had errors
+   * @param skipped number of tests skipped
+   */
+  protected void testFinished(ContainerCommand cmd, String testClass, int run, int failures, int errors,
+                              int skipped) {
+  }
+
+  private void analyze(BuildState containerState, ContainerResult result, ContainerCommand cmd, boolean rerun)
+      throws IOException {
+    OutputListener listener = listening.remove(cmd);
+    boolean timedOut = false;
+    if (listener != null) {
+      timedOut = listener.timedOut;
+    } else {
+      // Nothing listened to the output while the container ran, so go through it now.  Do it a line at a time, it
+      // can be far too big to read into memory all at once.
+      try (BufferedReader reader = result.readStdout()) {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          if (timeout.matcher(line).matches()) timedOut = true;
+        }
+      }
+    }
+    if (timedOut) {
       containerState.sawTimeouts();
       result.getReports().keepAdditionalLogs(MavenResultAnalyzer.TIMED_OUT_KEY);
     }
+    try {
+      examineReports(containerState, result, cmd, rerun);
+    } finally {
+      flushHistory(result);
+    }
+    if (containerState.getState() == BuildState.State.HAD_TIMEOUTS) {
+      result.setAnalysisResult(ContainerResult.ContainerStatus.TIMED_OUT);
+    } else if (containerState.getState() == BuildState.State.HAD_FAILURES_OR_ERRORS) {
+      result.setAnalysisResult(ContainerResult.ContainerStatus.FAILED);
+    } else {
+      containerState.success();
+      result.setAnalysisResult(ContainerResult.ContainerStatus.SUCCEEDED);
+    }
   }
 
-  private void examineReports(BuildState containerState, ContainerResult result, ContainerCommand cmd) throws IOException {
+  private void examineReports(BuildState containerState, ContainerResult result, ContainerCommand cmd, boolean rerun)
+      throws IOException {
     // find all the xml files
     File[] xmlFiles = result.getReports().getTempDir().listFiles((dir, name) -> name.endsWith(".xml"));
     if (xmlFiles == null) {
@@ -161,16 +247,31 @@ public class MavenResultAnalyzer extends ResultAnalyzer {
         SAXParser parser = factory.newSAXParser();
         Handler handler = new Handler();
         parser.parse(xmlFile, handler);
-        succeeded.addAndGet(handler.report.numRun - handler.report.errors - handler.report.failures - handler.report.skipped);
+        // Tests that pass on rerun are counted as flaky rather than succeeded
+        if (!rerun) {
+          succeeded.addAndGet(handler.report.numRun - handler.report.errors - handler.report.failures - handler.report.skipped);
+        }
+        recordHistory(result, cmd, handler.report);
         for (TestCase tc : handler.report.cases) {
-          if (tc.result != TestResult.SUCCESS) {
-            String testName = handler.report.name.substring(handler.report.name.lastIndexOf('.') + 1);
-            String fullTestName = testName + "." + determineTestCaseName(tc.name);
+          String testName = handler.report.name.substring(handler.report.name.lastIndexOf('.') + 1);
+          String fullTestName = testName + "." + determineTestCaseName(tc.name);
+          if (rerun && tc.result == TestResult.SUCCESS) {
+            // Remove every copy, in case the same test failed in more than one container
+            boolean wasFailed = failed.removeAll(Collections.singleton(fullTestName));
+            boolean wasError = errors.removeAll(Collections.singleton(fullTestName));
+            if (wasFailed || wasError) {
+              log.info(result.getCmd().containerSuffix(), fullTestName + " passed on rerun, marking it flaky");
+              flaky.add(fullTestName);
+            }
+          } else if (tc.result == TestResult.FAILURE || tc.result == TestResult.ERROR) {
             if (failuresToIgnore.contains(fullTestName)) continue;
             containerState.sawTestFailureOrError();
-            if (tc.result == TestResult.FAILURE) failed.add(testName + "." + determineTestCaseName(tc.name));
-            else if (tc.result == TestResult.ERROR) errors.add(testName + "." + determineTestCaseName(tc.name));
-            else throw new RuntimeException("Unexpected enum value");
+            if (!rerun) {
+              if (tc.result == TestResult.FAILURE) failed.add(fullTestName);
+              else if (tc.result == TestResult.ERROR) errors.add(fullTestName);
+              else throw new RuntimeException("Unexpected enum value");
+              failedByCommand.computeIfAbsent(cmd, c -> ConcurrentHashMap.newKeySet()).add(fullTestName);
+            }
             File[] toFetch = result.getReports().getTempDir().listFiles(
                 (dir, name) -> name.contains(handler.report.name + ".txt") || name.contains(handler.report.name + "-output.txt"));
             if (toFetch == null) log.warn("Unable to find any logfile for testcase " + testNameForLogs(testName, tc.name));
@@ -184,17 +285,67 @@ public class MavenResultAnalyzer extends ResultAnalyzer {
     }
   }
 
+  private void recordHistory(ContainerResult result, ContainerCommand cmd, Report report) {
+    if (testHistory == null || report.name == null) return;
+    String module = cmd.getModuleDir() == null || cmd.getModuleDir().getDir() == null ? "" : cmd.getModuleDir().getDir();
+    String testName = report.name.substring(report.name.lastIndexOf('.') + 1);
+    TestHistory.Outcome classOutcome = report.cases.isEmpty() ? TestHistory.Outcome.SUCCESS : TestHistory.Outcome.SKIPPED;
+    for (TestCase tc : report.cases) {
+      TestHistory.Outcome outcome = tc.result.outcome;
+      testHistory.record(module, result.getContainerName(), testName, determineTestCaseName(tc.name), outcome, tc.millis);
+      // The class takes on the worst outcome of its cases, ignoring skipped cases
+      if (classOutcome == TestHistory.Outcome.SKIPPED ||
+          (outcome != TestHistory.Outcome.SKIPPED && outcome.ordinal() > classOutcome.ordinal())) {
+        classOutcome = outcome;
+      }
+    }
+    testHistory.record(module, result.getContainerName(), testName, null, classOutcome, report.millis);
+  }
+
+  private void flushHistory(ContainerResult result) {
+    if (testHistory == null) return;
+    try {
+      testHistory.flush();
+    } catch (IOException e) {
+      // Not fatal, the history just won't have the results from this container
+      log.warn("Failed to write test history for container " + result.getContainerName(), e);
+    }
+  }
+
+  private static long parseMillis(String time) {
+    if (time == null) return 0;
+    try {
+      // Surefire sometimes formats times with grouping separators, e.g. 1,234.5
+      return Math.round(Double.parseDouble(time.replace(",", "")) * 1000);
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+
   private static class Report {
     String name;
     List<TestCase> cases = new ArrayList<>();
     int numRun, errors, failures, skipped;
+    long millis;
   }
 
-  private enum TestResult { SUCCESS, ERROR, FAILURE }
+  private enum TestResult {
+    SUCCESS(TestHistory.Outcome.SUCCESS),
+    ERROR(TestHistory.Outcome.ERROR),
+    FAILURE(TestHistory.Outcome.FAILURE),
+    SKIPPED(TestHistory.Outcome.SKIPPED);
+
+    final TestHistory.Outcome outcome;
+
+    TestResult(TestHistory.Outcome outcome) {
+      this.outcome = outcome;
+    }
+  }
 
   private static class TestCase {
     TestResult result;
     String name;
+    long millis;
   }
 
   private static class Handler extends DefaultHandler {
@@ -209,9 +360,11 @@ public class MavenResultAnalyzer extends ResultAnalyzer {
         report.errors = Integer.parseInt(attributes.getValue("errors"));
         report.failures = Integer.parseInt(attributes.getValue("failures"));
         report.skipped = Integer.parseInt(attributes.getValue("skipped"));
+        report.millis = parseMillis(attributes.getValue("time"));
       } else if ("testcase".equals(qName)) {
         TestCase tc = new TestCase();
         tc.name = attributes.getValue("name");
+        tc.millis = parseMillis(attributes.getValue("time"));
         report.cases.add(tc);
         currentTestCase = tc;
         currentTestCase.result = TestResult.SUCCESS;
@@ -221,6 +374,50 @@ public class MavenResultAnalyzer extends ResultAnalyzer {
       } else if ("error".equals(qName)) {
         assert currentTestCase != null;
         currentTestCase.result = TestResult.ERROR;
+      } else if ("skipped".equals(qName)) {
+        assert currentTestCase != null;
+        currentTestCase.result = TestResult.SKIPPED;
+      }
+    }
+  }
+
+  /**
+   * Watches the output of one command as the container writes it.  Only the thread reading the output calls
+   * {@link #line(String)}, so the counts need no locking.
+   */
+  private class OutputListener implements LineListener {
+    private final ContainerCommand cmd;
+    private volatile boolean timedOut;
+    private int testClasses;
+    private int tests;
+    private int failedOrErrors;
+
+    OutputListener(ContainerCommand cmd) {
+      this.cmd = cmd;
+    }
+
+    @Override
+    public void line(String line) {
+      if (timeout.matcher(line).matches()) {
+        timedOut = true;
+        return;
+      }
+      Matcher m = testStarted.matcher(line);
+      if (m.matches()) {
+        testStarted(cmd, m.group(1));
+        return;
+      }
+      m = testFinished.matcher(line);
+      if (m.matches()) {
+        int run = Integer.parseInt(m.group(1));
+        int failures = Integer.parseInt(m.group(2));
+        int errors = Integer.parseInt(m.group(3));
+        testClasses++;
+        tests += run;
+        failedOrErrors += failures + errors;
+        log.info(cmd.containerSuffix(), "Finished " + m.group(5) + ", " + testClasses + " test classes and " + tests +
+            " tests run so far, " + failedOrErrors + " failed or had errors");
+        testFinished(cmd, m.group(5), run, failures, errors, Integer.parseInt(m.group(4)));
       }
     }
   }
@@ -0,0 +1,32 @@
+/*
+ * Copyright (C) 2018 Hortonworks Inc.
+ *
+ * Licenced under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dtest.core.order;
+
+import org.dtest.core.CommandOrderer;
+import org.dtest.core.ContainerCommand;
+
+import java.util.Comparator;
+
+/**
+ * Runs commands for isolated tests first, on the theory that tests were isolated because they are big or
+ * troublesome.  Within isolated and non-isolated commands the longest running are run first.
+ */
+public class IsolatedFirstCommandOrderer extends CommandOrderer {
+  @Override
+  protected Comparator<ContainerCommand> comparator() {
+    return Comparator.comparing((ContainerCommand cmd) -> !cmd.isIsolated()).thenComparing(LONGEST_FIRST);
+  }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2018 Hortonworks Inc.
+ *
+ * Licenced under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dtest.core.order;
+
+import org.dtest.core.CommandOrderer;
+import org.dtest.core.ContainerCommand;
+import org.dtest.core.ModuleDirectory;
+
+import java.util.Comparator;
+
+/**
+ * Runs commands in order of the weight given to their directory in the yaml file, heaviest first.  This is useful
+ * when there is no test history yet but you know which directories take the longest.  Commands with equal weight
+ * are run longest first.
+ */
+public class WeightCommandOrderer extends CommandOrderer {
+  @Override
+  protected Comparator<ContainerCommand> comparator() {
+    return Comparator.comparingInt((ContainerCommand cmd) -> -weight(cmd)).thenComparing(LONGEST_FIRST);
+  }
+
+  private static int weight(ContainerCommand cmd) {
+    ModuleDirectory mDir = cmd.getModuleDir();
+    return mDir == null ? 0 : mDir.getWeight();
+  }
+}
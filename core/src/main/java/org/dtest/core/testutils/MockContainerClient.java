@@ -85,7 +85,9 @@ public class MockContainerClient extends ContainerClient {
 
   @Override
   public void fetchTestReports(ContainerResult result, ResultAnalyzer analyzer, Reporter reporter, String[] additionalLogs) throws IOException {
-    result.setReports(new TestReports(log, result.getContainerName(), reporter.getLogDirForContainer(result)));
+    // Name the reports after the command, as the real clients do, since one container may run several commands
+    String reportsName = result.getContainerName() + "-" + result.getCmd().containerSuffix().replaceAll("[^A-Za-z0-9_-]", "-");
+    result.setReports(new TestReports(log, reportsName, reporter.getLogDirForContainer(result)));
     for (Map.Entry<String, String> e : testReports.entrySet()) {
       FileWriter writer = new FileWriter(new File(result.getReports().getTempDir(), e.getKey()));
       writer.write(e.getValue());
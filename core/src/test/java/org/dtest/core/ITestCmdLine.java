@@ -33,7 +33,6 @@ import java.nio.file.Paths;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicBoolean;
 
 public class ITestCmdLine {
   private static final Logger LOG = LoggerFactory.getLogger(ITestCmdLine.class);
@@ -60,16 +59,12 @@ public class ITestCmdLine {
       int i = 0;
       for (Map.Entry<String, String> e : env.entrySet()) envArray[i++] = e.getKey() + "=" + e.getValue();
       Process proc = Runtime.getRuntime().exec(cmd, envArray);
-      AtomicBoolean running = new AtomicBoolean(true);
       TestLogger dtestLog = new TestLogger();
-      StreamPumper stdout = new StreamPumper(running, proc.getInputStream(), "itest", dtestLog);
-      StreamPumper stderr = new StreamPumper(running, proc.getErrorStream(), "itest", dtestLog);
-      new Thread(stdout).start();
-      new Thread(stderr).start();
+      StreamPumper stdout = new StreamPumper(proc.getInputStream(), "itest", dtestLog).start();
+      StreamPumper stderr = new StreamPumper(proc.getErrorStream(), "itest", dtestLog).start();
       try {
         Assert.assertTrue(proc.waitFor(300, TimeUnit.SECONDS));
       } finally {
-        running.set(false);
         stdout.finalPump();
         stderr.finalPump();
       }
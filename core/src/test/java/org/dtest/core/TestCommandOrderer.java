@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2018 Hortonworks Inc.
+ *
+ * Licenced under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dtest.core;
+
+import org.dtest.core.order.CreationCommandOrderer;
+import org.dtest.core.order.IsolatedFirstCommandOrderer;
+import org.dtest.core.order.RuntimeCommandOrderer;
+import org.dtest.core.order.WeightCommandOrderer;
+import org.dtest.core.testutils.MockContainerCommand;
+import org.dtest.core.testutils.TestLogger;
+import org.dtest.core.testutils.TestUtilities;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class TestCommandOrderer {
+
+  @Test
+  public void longestFirst() throws IOException {
+    CommandOrderer orderer = CommandOrderer.getInstance(TestUtilities.buildCfg(), new TestLogger());
+    Assert.assertTrue(orderer instanceof RuntimeCommandOrderer);
+    // Unknown runtimes go first, ties stay in creation order
+    Assert.assertEquals(Arrays.asList("unknown", "long", "medium1", "medium2", "short"),
+        names(orderer.order(Arrays.asList(cmd("short", 10, false, 0), cmd("medium1", 100, false, 0),
+            cmd("unknown", 0, false, 0), cmd("long", 1000, false, 0), cmd("medium2", 100, false, 0)))));
+  }
+
+  @Test
+  public void isolatedFirst() throws IOException {
+    CommandOrderer orderer = CommandOrderer.getInstance(TestUtilities.buildCfg(CommandOrderer.CFG_COMMANDORDERER_IMPL,
+        IsolatedFirstCommandOrderer.class.getName()), new TestLogger());
+    Assert.assertEquals(Arrays.asList("isolated-long", "isolated-short", "long", "short"),
+        names(orderer.order(Arrays.asList(cmd("short", 10, false, 0), cmd("isolated-short", 10, true, 0),
+            cmd("long", 1000, false, 0), cmd("isolated-long", 100, true, 0)))));
+  }
+
+  @Test
+  public void byWeight() throws IOException {
+    CommandOrderer orderer = CommandOrderer.getInstance(TestUtilities.buildCfg(CommandOrderer.CFG_COMMANDORDERER_IMPL,
+        WeightCommandOrderer.class.getName()), new TestLogger());
+    Assert.assertEquals(Arrays.asList("heavy", "medium-long", "medium-short", "light"),
+        names(orderer.order(Arrays.asList(cmd("light", 1000, false, 0), cmd("medium-short", 10, false, 5),
+            cmd("heavy", 10, false, 10), cmd("medium-long", 100, false, 5)))));
+  }
+
+  @Test
+  public void creationOrder() throws IOException {
+    CommandOrderer orderer = CommandOrderer.getInstance(TestUtilities.buildCfg(CommandOrderer.CFG_COMMANDORDERER_IMPL,
+        CreationCommandOrderer.class.getName()), new TestLogger());
+    Assert.assertEquals(Arrays.asList("a", "b", "c"),
+        names(orderer.order(Arrays.asList(cmd("a", 10, false, 0), cmd("b", 1000, true, 0), cmd("c", 0, false, 10)))));
+  }
+
+  private ContainerCommand cmd(String name, long runtime, boolean isolated, int weight) {
+    ModuleDirectory mDir = new ModuleDirectory();
+    mDir.setWeight(weight);
+    ContainerCommand cmd = new MockContainerCommand(mDir, name, "/tmp", "/bin/true");
+    cmd.setExpectedRuntime(runtime);
+    cmd.setIsolated(isolated);
+    return cmd;
+  }
+
+  private List<String> names(List<ContainerCommand> cmds) {
+    List<String> names = new ArrayList<>();
+    for (ContainerCommand cmd : cmds) names.add(cmd.containerSuffix());
+    return names;
+  }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2018 Hortonworks Inc.
+ *
+ * Licenced under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dtest.core;
+
+import org.dtest.core.impl.HostLoad;
+import org.dtest.core.testutils.TestLogger;
+import org.dtest.core.testutils.TestUtilities;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+
+public class TestConcurrencyController {
+
+  @Test
+  public void fixed() {
+    ConcurrencyController controller = controller(TestUtilities.buildCfg());
+    controller.start(3);
+    Assert.assertEquals(3, controller.getMax());
+    Assert.assertEquals(3, controller.getLimit());
+    controller.stop();
+  }
+
+  @Test
+  public void adjust() throws InterruptedException {
+    TestLogger log = new TestLogger();
+    ConcurrencyController controller = controller(TestUtilities.buildCfg(
+        ConcurrencyController.CFG_CONCURRENCYCONTROLLER_ADAPTIVE, "true",
+        ConcurrencyController.CFG_CONCURRENCYCONTROLLER_MIN, "1",
+        ConcurrencyController.CFG_CONCURRENCYCONTROLLER_MAX, "4",
+        ConcurrencyController.CFG_CONCURRENCYCONTROLLER_INTERVAL, "1h"));
+    controller.setLog(log);
+    controller.start(2);
+    Assert.assertEquals(4, controller.getMax());
+    Assert.assertEquals(2, controller.getLimit());
+
+    // Idle machine but nothing is running, so no point in adding more
+    controller.adjust(new HostLoad.Sample(0.1, 0, 0.2));
+    Assert.assertEquals(2, controller.getLimit());
+
+    // Idle machine with all containers busy
+    controller.acquire();
+    controller.acquire();
+    controller.adjust(new HostLoad.Sample(0.1, 0, 0.2));
+    Assert.assertEquals(3, controller.getLimit());
+    controller.acquire();
+    controller.adjust(new HostLoad.Sample(0.1, 0, 0.2));
+    Assert.assertEquals(4, controller.getLimit());
+    controller.acquire();
+    controller.adjust(new HostLoad.Sample(0.1, 0, 0.2));
+    Assert.assertEquals(4, controller.getLimit());
+
+    // Near target, stay put
+    controller.adjust(new HostLoad.Sample(0.8, 0, 0.2));
+    Assert.assertEquals(4, controller.getLimit());
+
+    // Memory, iowait, and CPU pressure all reduce
+    controller.adjust(new HostLoad.Sample(0.5, 0, 0.95));
+    Assert.assertEquals(3, controller.getLimit());
+    controller.adjust(new HostLoad.Sample(0.5, 0.3, 0.2));
+    Assert.assertEquals(2, controller.getLimit());
+    controller.adjust(new HostLoad.Sample(1.0, 0, 0.2));
+    Assert.assertEquals(1, controller.getLimit());
+    controller.adjust(new HostLoad.Sample(1.0, 0, 0.2));
+    Assert.assertEquals(1, controller.getLimit());
+
+    // Running containers keep going, but no new ones start until we're back under the limit
+    for (int i = 0; i < 4; i++) controller.release();
+    controller.acquire();
+    controller.release();
+    controller.stop();
+    Assert.assertTrue(log.toString().contains("Lowering number of containers from 4 to 3, memory above 90%"));
+    Assert.assertTrue(log.toString().contains("Raising number of containers from 2 to 3, CPU below target"));
+    log.dumpToLog();
+  }
+
+  private ConcurrencyController controller(Config cfg) {
+    // Point at files that are always there so the test doesn't depend on the machine it runs on
+    File tmp = new File(System.getProperty("java.io.tmpdir"));
+    ConcurrencyController controller = new ConcurrencyController(new HostLoad(tmp, tmp) {
+      @Override
+      public boolean isAvailable() {
+        return true;
+      }
+    });
+    controller.setConfig(cfg).setLog(new TestLogger());
+    return controller;
+  }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2018 Hortonworks Inc.
+ *
+ * Licenced under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dtest.core;
+
+import org.dtest.core.testutils.MockContainerCommand;
+import org.dtest.core.testutils.TestLogger;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class TestContainerOutput {
+
+  @Test
+  public void tail() throws IOException {
+    File file = ContainerOutput.fileFor("dtest-outputtest_tail");
+    ContainerOutput output = new ContainerOutput(file, 3);
+    try {
+      for (int i = 1; i <= 10; i++) output.addLine("line " + i);
+      // Lines can be read before the output is closed
+      try (BufferedReader reader = output.open()) {
+        Assert.assertEquals("line 1", reader.readLine());
+      }
+      output.close();
+      Assert.assertEquals("line 8\nline 9\nline 10\n", output.getTail());
+      ContainerResult result = new ContainerResult(new MockContainerCommand("tail", "/tmp"), "tail", 0, output);
+      StringBuilder expected = new StringBuilder();
+      for (int i = 1; i <= 10; i++) expected.append("line ").append(i).append('\n');
+      Assert.assertEquals(expected.toString(), result.getStdout());
+      int lines = 0;
+      try (BufferedReader reader = result.readStdout()) {
+        while (reader.readLine() != null) lines++;
+      }
+      Assert.assertEquals(10, lines);
+      result.discardOutput();
+      Assert.assertFalse(file.exists());
+      Assert.assertEquals("line 8\nline 9\nline 10\n", result.getStdoutTail());
+    } finally {
+      output.delete();
+    }
+  }
+
+  @Test
+  public void listeners() throws IOException {
+    ContainerOutput output = new ContainerOutput(ContainerOutput.fileFor("dtest-outputtest_listeners"), 0);
+    try {
+      output.addLine("before");
+      List<String> heard = new ArrayList<>();
+      output.addListener(heard::add);
+      output.addLine("first");
+      output.addLine("second");
+      output.close();
+      Assert.assertEquals(Arrays.asList("first", "second"), heard);
+      Assert.assertEquals("before\nfirst\nsecond\n", output.read());
+      Assert.assertEquals("", output.getTail());
+    } finally {
+      output.delete();
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void closed() throws IOException {
+    ContainerOutput output = new ContainerOutput(ContainerOutput.fileFor("dtest-outputtest_closed"), 3);
+    try {
+      output.close();
+      output.addLine("too late");
+    } finally {
+      output.delete();
+    }
+  }
+
+  @Test
+  public void removeFiles() throws IOException {
+    File orphan = ContainerOutput.fileFor("dtest-outputtest_old-1");
+    File other = ContainerOutput.fileFor("dtest-outputtestother_old-1");
+    new ContainerOutput(orphan, 0).close();
+    new ContainerOutput(other, 0).close();
+    try {
+      Assert.assertEquals(1, ContainerOutput.removeFiles(new TestLogger(), "dtest-outputtest_").size());
+      Assert.assertFalse(orphan.exists());
+      Assert.assertTrue(other.exists());
+    } finally {
+      Assert.assertTrue(other.delete());
+    }
+  }
+}
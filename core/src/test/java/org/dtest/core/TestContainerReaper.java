@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2018 Hortonworks Inc.
+ *
+ * Licenced under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dtest.core;
+
+import org.dtest.core.testutils.MockContainerClient;
+import org.dtest.core.testutils.MockContainerCommand;
+import org.dtest.core.testutils.TestLogger;
+import org.dtest.core.testutils.TestUtilities;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class TestContainerReaper {
+
+  @Test
+  public void batches() throws IOException, InterruptedException {
+    BatchingClient client = new BatchingClient();
+    ContainerReaper reaper = reaper(client, 4);
+    reaper.start(1);
+    reaper.removeContainer(result("first"));
+    // Everything handed over while the first one is being removed piles up
+    Assert.assertTrue(client.removing.await(10, TimeUnit.SECONDS));
+    for (int i = 0; i < 9; i++) reaper.removeContainer(result("c" + i));
+    client.finish.countDown();
+    reaper.stop();
+    Assert.assertEquals(4, client.batches.size());
+    Assert.assertEquals(Collections.singletonList("dtest-reaper_first"), client.batches.get(0));
+    Assert.assertEquals(4, client.batches.get(1).size());
+    Assert.assertEquals(4, client.batches.get(2).size());
+    Assert.assertEquals(Collections.singletonList("dtest-reaper_c8"), client.batches.get(3));
+  }
+
+  @Test
+  public void orphans() throws IOException {
+    BatchingClient client = new BatchingClient();
+    client.finish.countDown();
+    File orphan = TestReports.tempDirFor("dtest-reaper_old-1");
+    File other = TestReports.tempDirFor("dtest-reaperother_old-1");
+    for (File dir : new File[] {orphan, other}) {
+      Assert.assertTrue(new File(dir, "surefire-reports").mkdirs() || dir.isDirectory());
+    }
+    File orphanOutput = ContainerOutput.fileFor("dtest-reaper_old-1");
+    new ContainerOutput(orphanOutput, 0).close();
+    try {
+      TestLogger log = new TestLogger();
+      ContainerReaper reaper = reaper(client, 4);
+      reaper.setLog(log);
+      reaper.start(1);
+      reaper.reapOrphans("dtest-reaper_");
+      reaper.awaitOrphans();
+      reaper.stop();
+      Assert.assertEquals(Collections.singletonList("dtest-reaper_"), client.orphanPrefixes);
+      Assert.assertFalse(orphan.exists());
+      Assert.assertFalse(orphanOutput.exists());
+      Assert.assertTrue(other.exists());
+      Assert.assertTrue(log.toString(), log.toString().contains("Removed containers left behind by an earlier build: " +
+          "[dtest-reaper_old-1]"));
+    } finally {
+      new TestReports(new TestLogger(), "dtest-reaperother_old-1", null).cleanupTempDir();
+    }
+  }
+
+  private static ContainerReaper reaper(ContainerClient client, int batchSize) {
+    ContainerReaper reaper = new ContainerReaper(client);
+    reaper.setConfig(TestUtilities.buildCfg(ContainerReaper.CFG_CONTAINERREAPER_BATCHSIZE,
+        Integer.toString(batchSize))).setLog(new TestLogger());
+    return reaper;
+  }
+
+  private static ContainerResult result(String name) {
+    return new ContainerResult(new MockContainerCommand(name, "/tmp"), "dtest-reaper_" + name, 0, "");
+  }
+
+  private static class BatchingClient extends MockContainerClient {
+    final List<List<String>> batches = new CopyOnWriteArrayList<>();
+    final List<String> orphanPrefixes = new CopyOnWriteArrayList<>();
+    final CountDownLatch removing = new CountDownLatch(1);
+    final CountDownLatch finish = new CountDownLatch(1);
+
+    BatchingClient() throws IOException {
+      super("reaper", null, TestUtilities.createBuildDir(), 0);
+    }
+
+    @Override
+    public void removeContainers(List<ContainerResult> results) throws IOException {
+      List<String> names = new ArrayList<>();
+      for (ContainerResult result : results) names.add(result.getContainerName());
+      batches.add(names);
+      removing.countDown();
+      try {
+        finish.await(10, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        throw new IOException(e);
+      }
+    }
+
+    @Override
+    public List<String> removeOrphans(String prefix) {
+      orphanPrefixes.add(prefix);
+      return Collections.singletonList(prefix + "old-1");
+    }
+  }
+}
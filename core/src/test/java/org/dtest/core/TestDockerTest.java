@@ -27,15 +27,23 @@ import org.junit.Test;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class TestDockerTest {
   private static boolean imageBuilt;
   private static int succeeded;
   private static List<String> failures;
   private static List<String> errors;
+  private static List<String> flaky;
   private static File buildDir;
 
   public static class SuccessfulClient extends MockContainerClient {
@@ -85,6 +93,200 @@ public class TestDockerTest {
   }
 
 
+  /**
+   * Containers after the first {@link #runImmediately} run until they are killed, like real tests would when the
+   * build is stopped early.
+   */
+  public static class KillableClientWithFailures extends ClientWithFailures {
+    static int runImmediately;
+    static AtomicInteger runs;
+    static CountDownLatch killed;
+
+    public KillableClientWithFailures() throws IOException {
+      super();
+    }
+
+    @Override
+    public ContainerResult runContainer(ContainerCommand cmd) {
+      if (runs.getAndIncrement() >= runImmediately) {
+        try {
+          // Don't hang the test if the abort never comes
+          killed.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+          throw new RuntimeException(e);
+        }
+      }
+      return super.runContainer(cmd);
+    }
+
+    @Override
+    public void killContainer(ContainerCommand cmd) {
+      killed.countDown();
+    }
+
+    static void reset(int immediate) {
+      runImmediately = immediate;
+      runs = new AtomicInteger(0);
+      killed = new CountDownLatch(1);
+    }
+  }
+
+  /**
+   * Fetching reports holds until every container has run.
+   */
+  public static class SlowFetchClient extends SuccessfulClient {
+    static AtomicInteger ran;
+    static AtomicInteger ranBeforeFetch;
+    static AtomicInteger removed;
+    static CountDownLatch allRan;
+
+    public SlowFetchClient() throws IOException {
+      super();
+    }
+
+    @Override
+    public ContainerResult runContainer(ContainerCommand cmd) {
+      ran.incrementAndGet();
+      allRan.countDown();
+      return super.runContainer(cmd);
+    }
+
+    @Override
+    public void fetchTestReports(ContainerResult result, ResultAnalyzer analyzer, Reporter reporter,
+                                 String[] additionalLogs) throws IOException {
+      try {
+        allRan.await(10, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        throw new IOException(e);
+      }
+      ranBeforeFetch.set(ran.get());
+      super.fetchTestReports(result, analyzer, reporter, additionalLogs);
+    }
+
+    @Override
+    public void removeContainer(ContainerResult result) {
+      removed.incrementAndGet();
+      super.removeContainer(result);
+    }
+
+    static void reset() {
+      ran = new AtomicInteger(0);
+      ranBeforeFetch = new AtomicInteger(0);
+      removed = new AtomicInteger(0);
+      allRan = new CountDownLatch(5);
+    }
+  }
+
+  public static class FlakyClient extends ClientWithFailures {
+    private final MockContainerClient rerunClient;
+
+    public FlakyClient() throws IOException {
+      super();
+      rerunClient = new MockContainerClient(CONTAINER_NAME, "rerun", buildDir, CONTAINER_RC);
+    }
+
+    @Override
+    public Configurable setLog(DTestLogger log) {
+      rerunClient.setLog(log);
+      return super.setLog(log);
+    }
+
+    @Override
+    public ContainerResult runContainer(ContainerCommand cmd) {
+      return isRerun(cmd) ? rerunClient.runContainer(cmd) : super.runContainer(cmd);
+    }
+
+    @Override
+    public void fetchTestReports(ContainerResult result, ResultAnalyzer analyzer, Reporter reporter, String[] additionalLogs) throws IOException {
+      if (isRerun(result.getCmd())) rerunClient.fetchTestReports(result, analyzer, reporter, additionalLogs);
+      else super.fetchTestReports(result, analyzer, reporter, additionalLogs);
+    }
+
+    private boolean isRerun(ContainerCommand cmd) {
+      return cmd.containerSuffix().startsWith("rerun");
+    }
+  }
+
+  public static class WorkerClient extends SuccessfulClient {
+    static final AtomicInteger workersStarted = new AtomicInteger();
+    static final AtomicInteger workersStopped = new AtomicInteger();
+    static final AtomicInteger resets = new AtomicInteger();
+    static final AtomicInteger live = new AtomicInteger();
+    static final AtomicInteger maxLive = new AtomicInteger();
+    static final Set<String> ran = ConcurrentHashMap.newKeySet();
+    static volatile boolean resetsFail;
+
+    public WorkerClient() throws IOException {
+      super();
+    }
+
+    @Override
+    public String startWorker(String workerName) {
+      workersStarted.incrementAndGet();
+      maxLive.accumulateAndGet(live.incrementAndGet(), Math::max);
+      return workerName;
+    }
+
+    @Override
+    public ContainerResult runInWorker(String worker, ContainerCommand cmd) {
+      ran.add(cmd.containerSuffix());
+      return new ContainerResult(cmd, worker, CONTAINER_RC, "");
+    }
+
+    @Override
+    public void resetWorker(String worker, ContainerResult result, ResultAnalyzer analyzer, String[] additionalLogs)
+        throws IOException {
+      resets.incrementAndGet();
+      if (resetsFail) throw new IOException("Unable to reset " + worker);
+    }
+
+    static void reset(boolean failResets) {
+      workersStarted.set(0);
+      workersStopped.set(0);
+      resets.set(0);
+      live.set(0);
+      maxLive.set(0);
+      ran.clear();
+      resetsFail = failResets;
+    }
+
+    @Override
+    public void stopWorker(String worker) {
+      workersStopped.incrementAndGet();
+      live.decrementAndGet();
+    }
+  }
+
+  public static class FiveCommandList extends MockContainerCommandFactory {
+    public FiveCommandList() {
+      super(fiveCommands());
+    }
+
+    private static List<ContainerCommand> fiveCommands() {
+      List<ContainerCommand> cmds = new ArrayList<>();
+      for (int i = 0; i < 5; i++) {
+        final int cmdNum = i;
+        cmds.add(new ContainerCommand(new ModuleDirectory()) {
+          @Override
+          public String containerSuffix() {
+            return "batch-" + cmdNum;
+          }
+
+          @Override
+          public String[] shellCommand() {
+            return new String[] {"echo", "hello", "world"};
+          }
+
+          @Override
+          public String containerDirectory() {
+            return buildDir.getAbsolutePath();
+          }
+        });
+      }
+      return cmds;
+    }
+  }
+
   public static class HelloWorldCommandList extends MockContainerCommandFactory {
 
     public HelloWorldCommandList() {
@@ -107,6 +309,32 @@ public class TestDockerTest {
     }
   }
 
+  public static class RerunningCommandList extends HelloWorldCommandList {
+    static final AtomicInteger rerunTests = new AtomicInteger();
+
+    @Override
+    public List<ContainerCommand> buildRerunCommands(ContainerClient containerClient, BuildInfo buildInfo,
+                                                     Map<ContainerCommand, Set<String>> failedTests) {
+      for (Set<String> tests : failedTests.values()) rerunTests.addAndGet(tests.size());
+      return Collections.singletonList(new ContainerCommand(new ModuleDirectory()) {
+        @Override
+        public String containerSuffix() {
+          return "rerun-friendly";
+        }
+
+        @Override
+        public String[] shellCommand() {
+          return new String[] {"echo", "hello", "again"};
+        }
+
+        @Override
+        public String containerDirectory() {
+          return buildDir.getAbsolutePath();
+        }
+      });
+    }
+  }
+
   public static class FailureIgnoringCommandList extends MockContainerCommandFactory {
     public FailureIgnoringCommandList() {
       super(Collections.singletonList(new ContainerCommand(new ModuleDirectory().setFailuresToIgnore(new String[] {"TestFakeTwo.errorTwo", "TestFake.fail"})) {
@@ -155,6 +383,27 @@ public static class SpyingResultAnalyzer extends ResultAnalyzer {
       wrapped.analyzeResult(containerResult, cmd);
     }
 
+    @Override
+    public boolean supportsRerun() {
+      return wrapped.supportsRerun();
+    }
+
+    @Override
+    public void analyzeRerunResult(ContainerResult containerResult, ContainerCommand cmd) throws IOException {
+      wrapped.analyzeRerunResult(containerResult, cmd);
+    }
+
+    @Override
+    public Map<ContainerCommand, Set<String>> getFailedTestsByCommand() {
+      return wrapped.getFailedTestsByCommand();
+    }
+
+    @Override
+    public List<String> getFlaky() {
+      flaky = wrapped.getFlaky();
+      return flaky;
+    }
+
     @Override
     public String getTestResultsDir() {
       return wrapped.getTestResultsDir();
@@ -192,6 +441,7 @@ public static class SpyingResultAnalyzer extends ResultAnalyzer {
     succeeded = 0;
     failures = new ArrayList<>();
     errors = new ArrayList<>();
+    flaky = new ArrayList<>();
     buildDir = TestUtilities.createBuildDir();
   }
 
@@ -278,6 +528,256 @@ public static class SpyingResultAnalyzer extends ResultAnalyzer {
     Assert.assertTrue(log.toString().contains("HAD FAILURES OR ERRORS, the build ran to completion but some tests failed or had errors"));
   }
 
+  @Test
+  public void rerunFailures() throws IOException {
+    TestLogger log = new TestLogger();
+    RerunningCommandList.rerunTests.set(0);
+    Properties props = TestUtilities.buildProperties(
+        ContainerClient.CFG_CONTAINERCLIENT_IMPL, FlakyClient.class.getName(),
+        ContainerCommandFactory.CFG_CONTAINERCOMMANDLIST_IMPL, RerunningCommandList.class.getName(),
+        ResultAnalyzer.CFG_RESULTANALYZER_IMPL, SpyingResultAnalyzer.class.getName(),
+        DockerTest.CFG_DOCKERTEST_RERUNFAILURES, "true",
+        BuildInfo.CFG_BUILDINFO_BASEDIR, System.getProperty("java.io.tmpdir"),
+        BuildInfo.CFG_BUILDINFO_LABEL, "rerun");
+    DockerTest test = TestUtilities.getAndPrepDockerTest(props, log);
+    BuildState state = test.runBuild();
+    log.dumpToLog();
+    // Both failed tests pass on rerun, so the build succeeds
+    Assert.assertEquals(BuildState.State.SUCCEEDED, state.getState());
+    Assert.assertEquals(2, RerunningCommandList.rerunTests.get());
+    Assert.assertEquals(0, errors.size());
+    Assert.assertEquals(0, failures.size());
+    Assert.assertEquals(Arrays.asList("TestFake.fail", "TestFakeTwo.errorTwo"), flaky);
+    Assert.assertEquals(17, succeeded);
+    Assert.assertTrue(log.toString().contains("Rerunning 2 failed tests in 1 containers"));
+    Assert.assertTrue(log.toString().contains("2 of 2 failed tests passed on rerun"));
+  }
+
+  public static class NoRerunResultAnalyzer extends SpyingResultAnalyzer {
+    @Override
+    public boolean supportsRerun() {
+      return false;
+    }
+  }
+
+  @Test
+  public void rerunNotSupported() throws IOException {
+    TestLogger log = new TestLogger();
+    RerunningCommandList.rerunTests.set(0);
+    Properties props = TestUtilities.buildProperties(
+        ContainerClient.CFG_CONTAINERCLIENT_IMPL, FlakyClient.class.getName(),
+        ContainerCommandFactory.CFG_CONTAINERCOMMANDLIST_IMPL, RerunningCommandList.class.getName(),
+        ResultAnalyzer.CFG_RESULTANALYZER_IMPL, NoRerunResultAnalyzer.class.getName(),
+        DockerTest.CFG_DOCKERTEST_RERUNFAILURES, "true",
+        BuildInfo.CFG_BUILDINFO_BASEDIR, System.getProperty("java.io.tmpdir"),
+        BuildInfo.CFG_BUILDINFO_LABEL, "rerun-not-supported");
+    DockerTest test = TestUtilities.getAndPrepDockerTest(props, log);
+    BuildState state = test.runBuild();
+    log.dumpToLog();
+    Assert.assertEquals(BuildState.State.HAD_FAILURES_OR_ERRORS, state.getState());
+    Assert.assertEquals(0, RerunningCommandList.rerunTests.get());
+    Assert.assertEquals(1, errors.size());
+    Assert.assertEquals(1, failures.size());
+    Assert.assertTrue(log.toString().contains("does not know how to analyze reruns"));
+  }
+
+  @Test
+  public void tooManyToRerun() throws IOException {
+    TestLogger log = new TestLogger();
+    RerunningCommandList.rerunTests.set(0);
+    Properties props = TestUtilities.buildProperties(
+        ContainerClient.CFG_CONTAINERCLIENT_IMPL, FlakyClient.class.getName(),
+        ContainerCommandFactory.CFG_CONTAINERCOMMANDLIST_IMPL, RerunningCommandList.class.getName(),
+        ResultAnalyzer.CFG_RESULTANALYZER_IMPL, SpyingResultAnalyzer.class.getName(),
+        DockerTest.CFG_DOCKERTEST_RERUNFAILURES, "true",
+        DockerTest.CFG_DOCKERTEST_MAXRERUNTESTS, "1",
+        BuildInfo.CFG_BUILDINFO_BASEDIR, System.getProperty("java.io.tmpdir"),
+        BuildInfo.CFG_BUILDINFO_LABEL, "too-many-to-rerun");
+    DockerTest test = TestUtilities.getAndPrepDockerTest(props, log);
+    BuildState state = test.runBuild();
+    log.dumpToLog();
+    Assert.assertEquals(BuildState.State.HAD_FAILURES_OR_ERRORS, state.getState());
+    Assert.assertEquals(0, RerunningCommandList.rerunTests.get());
+    Assert.assertEquals(1, errors.size());
+    Assert.assertEquals(1, failures.size());
+    Assert.assertEquals(0, flaky.size());
+    Assert.assertTrue(log.toString().contains("Not rerunning failed tests, 2 tests failed, which is more than 1"));
+  }
+
+  @Test
+  public void workers() throws IOException {
+    TestLogger log = new TestLogger();
+    WorkerClient.reset(false);
+    Properties props = TestUtilities.buildProperties(
+        ContainerClient.CFG_CONTAINERCLIENT_IMPL, WorkerClient.class.getName(),
+        ContainerCommandFactory.CFG_CONTAINERCOMMANDLIST_IMPL, FiveCommandList.class.getName(),
+        ResultAnalyzer.CFG_RESULTANALYZER_IMPL, SpyingResultAnalyzer.class.getName(),
+        DockerTest.CFG_DOCKERTEST_USEWORKERS, "true",
+        DockerTest.CFG_DOCKERTEST_NUMCONTAINERS, "2",
+        BuildInfo.CFG_BUILDINFO_BASEDIR, System.getProperty("java.io.tmpdir"),
+        BuildInfo.CFG_BUILDINFO_LABEL, "workers");
+    DockerTest test = TestUtilities.getAndPrepDockerTest(props, log);
+    BuildState state = test.runBuild();
+    log.dumpToLog();
+    Assert.assertEquals(BuildState.State.SUCCEEDED, state.getState());
+    Assert.assertEquals(2, WorkerClient.workersStarted.get());
+    Assert.assertEquals(2, WorkerClient.workersStopped.get());
+    Assert.assertEquals(5, WorkerClient.resets.get());
+    Assert.assertEquals(5, WorkerClient.ran.size());
+    Assert.assertEquals(5 * 17, succeeded);
+  }
+
+  @Test
+  public void replacedWorkers() throws IOException {
+    TestLogger log = new TestLogger();
+    WorkerClient.reset(false);
+    Properties props = TestUtilities.buildProperties(
+        ContainerClient.CFG_CONTAINERCLIENT_IMPL, WorkerClient.class.getName(),
+        ContainerCommandFactory.CFG_CONTAINERCOMMANDLIST_IMPL, FiveCommandList.class.getName(),
+        ResultAnalyzer.CFG_RESULTANALYZER_IMPL, SpyingResultAnalyzer.class.getName(),
+        DockerTest.CFG_DOCKERTEST_USEWORKERS, "true",
+        DockerTest.CFG_DOCKERTEST_WORKERBATCHES, "2",
+        DockerTest.CFG_DOCKERTEST_NUMCONTAINERS, "1",
+        BuildInfo.CFG_BUILDINFO_BASEDIR, System.getProperty("java.io.tmpdir"),
+        BuildInfo.CFG_BUILDINFO_LABEL, "replaced-workers");
+    DockerTest test = TestUtilities.getAndPrepDockerTest(props, log);
+    BuildState state = test.runBuild();
+    log.dumpToLog();
+    Assert.assertEquals(BuildState.State.SUCCEEDED, state.getState());
+    // Two commands each in the first two workers, one in the last
+    Assert.assertEquals(3, WorkerClient.workersStarted.get());
+    Assert.assertEquals(3, WorkerClient.workersStopped.get());
+    // Workers aren't reset before they are replaced
+    Assert.assertEquals(3, WorkerClient.resets.get());
+    Assert.assertEquals(5, WorkerClient.ran.size());
+  }
+
+  @Test
+  public void workersWithinLimit() throws IOException {
+    TestLogger log = new TestLogger();
+    WorkerClient.reset(false);
+    // Memory is always above 0%, so the limit can only go down, and it starts at the minimum
+    Properties props = TestUtilities.buildProperties(
+        ContainerClient.CFG_CONTAINERCLIENT_IMPL, WorkerClient.class.getName(),
+        ContainerCommandFactory.CFG_CONTAINERCOMMANDLIST_IMPL, FiveCommandList.class.getName(),
+        ResultAnalyzer.CFG_RESULTANALYZER_IMPL, SpyingResultAnalyzer.class.getName(),
+        DockerTest.CFG_DOCKERTEST_USEWORKERS, "true",
+        DockerTest.CFG_DOCKERTEST_NUMCONTAINERS, "1",
+        ConcurrencyController.CFG_CONCURRENCYCONTROLLER_ADAPTIVE, "true",
+        ConcurrencyController.CFG_CONCURRENCYCONTROLLER_MIN, "1",
+        ConcurrencyController.CFG_CONCURRENCYCONTROLLER_MAX, "3",
+        ConcurrencyController.CFG_CONCURRENCYCONTROLLER_MAXMEMORY, "0",
+        BuildInfo.CFG_BUILDINFO_BASEDIR, System.getProperty("java.io.tmpdir"),
+        BuildInfo.CFG_BUILDINFO_LABEL, "workers-within-limit");
+    DockerTest test = TestUtilities.getAndPrepDockerTest(props, log);
+    BuildState state = test.runBuild();
+    log.dumpToLog();
+    Assert.assertEquals(BuildState.State.SUCCEEDED, state.getState());
+    Assert.assertEquals(5, WorkerClient.ran.size());
+    // Workers waiting for a turn don't keep a container
+    Assert.assertEquals(1, WorkerClient.maxLive.get());
+    Assert.assertEquals(WorkerClient.workersStarted.get(), WorkerClient.workersStopped.get());
+  }
+
+  @Test
+  public void workersThatCannotBeReset() throws IOException {
+    TestLogger log = new TestLogger();
+    WorkerClient.reset(true);
+    Properties props = TestUtilities.buildProperties(
+        ContainerClient.CFG_CONTAINERCLIENT_IMPL, WorkerClient.class.getName(),
+        ContainerCommandFactory.CFG_CONTAINERCOMMANDLIST_IMPL, FiveCommandList.class.getName(),
+        ResultAnalyzer.CFG_RESULTANALYZER_IMPL, SpyingResultAnalyzer.class.getName(),
+        DockerTest.CFG_DOCKERTEST_USEWORKERS, "true",
+        DockerTest.CFG_DOCKERTEST_NUMCONTAINERS, "1",
+        BuildInfo.CFG_BUILDINFO_BASEDIR, System.getProperty("java.io.tmpdir"),
+        BuildInfo.CFG_BUILDINFO_LABEL, "unresettable-workers");
+    DockerTest test = TestUtilities.getAndPrepDockerTest(props, log);
+    BuildState state = test.runBuild();
+    log.dumpToLog();
+    WorkerClient.resetsFail = false;
+    Assert.assertEquals(BuildState.State.SUCCEEDED, state.getState());
+    // Each command gets a fresh worker
+    Assert.assertEquals(5, WorkerClient.workersStarted.get());
+    Assert.assertEquals(5, WorkerClient.workersStopped.get());
+    Assert.assertEquals(5, WorkerClient.ran.size());
+    Assert.assertTrue(log.toString().contains("Failed to reset worker-0, replacing it"));
+  }
+
+  @Test
+  public void failFast() throws IOException {
+    TestLogger log = new TestLogger();
+    Properties props = TestUtilities.buildProperties(
+        ContainerClient.CFG_CONTAINERCLIENT_IMPL, KillableClientWithFailures.class.getName(),
+        ContainerCommandFactory.CFG_CONTAINERCOMMANDLIST_IMPL, FiveCommandList.class.getName(),
+        ResultAnalyzer.CFG_RESULTANALYZER_IMPL, SpyingResultAnalyzer.class.getName(),
+        DockerTest.CFG_DOCKERTEST_NUMCONTAINERS, "1",
+        DockerTest.CFG_DOCKERTEST_MAXFAILEDTESTS, "2",
+        BuildInfo.CFG_BUILDINFO_BASEDIR, System.getProperty("java.io.tmpdir"),
+        BuildInfo.CFG_BUILDINFO_LABEL, "fail-fast");
+    KillableClientWithFailures.reset(1);
+    DockerTest test = TestUtilities.getAndPrepDockerTest(props, log);
+    BuildState state = test.runBuild();
+    log.dumpToLog();
+    Assert.assertEquals(BuildState.State.ABORTED, state.getState());
+    // The first container's results abort the build.  The next one has usually started by then, it is killed and
+    // its results still reported.
+    int ran = KillableClientWithFailures.runs.get();
+    Assert.assertTrue(ran < 5);
+    Assert.assertEquals(ran, errors.size());
+    Assert.assertEquals(ran, failures.size());
+    Assert.assertEquals(ran * 17, succeeded);
+    Assert.assertTrue(log.toString().contains("Aborting the build, 2 tests have failed"));
+    Assert.assertTrue(log.toString().contains("Build aborted, " + (5 - ran) + " of 5 containers were not run"));
+    Assert.assertTrue(log.toString().contains("ABORTED, the build was stopped early"));
+  }
+
+  @Test
+  public void failFastWorkers() throws IOException {
+    TestLogger log = new TestLogger();
+    Properties props = TestUtilities.buildProperties(
+        ContainerClient.CFG_CONTAINERCLIENT_IMPL, KillableClientWithFailures.class.getName(),
+        ContainerCommandFactory.CFG_CONTAINERCOMMANDLIST_IMPL, FiveCommandList.class.getName(),
+        ResultAnalyzer.CFG_RESULTANALYZER_IMPL, SpyingResultAnalyzer.class.getName(),
+        DockerTest.CFG_DOCKERTEST_NUMCONTAINERS, "1",
+        DockerTest.CFG_DOCKERTEST_USEWORKERS, "true",
+        DockerTest.CFG_DOCKERTEST_MAXFAILEDCONTAINERS, "2",
+        BuildInfo.CFG_BUILDINFO_BASEDIR, System.getProperty("java.io.tmpdir"),
+        BuildInfo.CFG_BUILDINFO_LABEL, "fail-fast-workers");
+    KillableClientWithFailures.reset(2);
+    DockerTest test = TestUtilities.getAndPrepDockerTest(props, log);
+    BuildState state = test.runBuild();
+    log.dumpToLog();
+    Assert.assertEquals(BuildState.State.ABORTED, state.getState());
+    int ran = KillableClientWithFailures.runs.get();
+    Assert.assertTrue(ran >= 2 && ran < 5);
+    Assert.assertEquals(ran * 17, succeeded);
+    Assert.assertTrue(log.toString().contains("Aborting the build, 2 containers have failed or timed out"));
+    Assert.assertTrue(log.toString().contains("Build aborted, " + (5 - ran) + " of 5 containers were not run"));
+  }
+
+  @Test
+  public void slowFetchDoesNotHoldContainers() throws IOException {
+    TestLogger log = new TestLogger();
+    Properties props = TestUtilities.buildProperties(
+        ContainerClient.CFG_CONTAINERCLIENT_IMPL, SlowFetchClient.class.getName(),
+        ContainerCommandFactory.CFG_CONTAINERCOMMANDLIST_IMPL, FiveCommandList.class.getName(),
+        ResultAnalyzer.CFG_RESULTANALYZER_IMPL, SpyingResultAnalyzer.class.getName(),
+        DockerTest.CFG_DOCKERTEST_NUMCONTAINERS, "1",
+        DockerTest.CFG_DOCKERTEST_FETCHTHREADS, "5",
+        BuildInfo.CFG_BUILDINFO_BASEDIR, System.getProperty("java.io.tmpdir"),
+        BuildInfo.CFG_BUILDINFO_LABEL, "slow-fetch");
+    SlowFetchClient.reset();
+    DockerTest test = TestUtilities.getAndPrepDockerTest(props, log);
+    BuildState state = test.runBuild();
+    log.dumpToLog();
+    Assert.assertEquals(BuildState.State.SUCCEEDED, state.getState());
+    // Fetching holds until all five containers have run, which can only happen if the one container slot is freed
+    // before the reports are fetched.
+    Assert.assertEquals(5, SlowFetchClient.ranBeforeFetch.get());
+    Assert.assertEquals(5 * 17, succeeded);
+    Assert.assertEquals(5, SlowFetchClient.removed.get());
+  }
+
   @Test
   public void cmdline() {
     DockerTest test = new DockerTest();
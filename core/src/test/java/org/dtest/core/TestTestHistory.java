@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2018 Hortonworks Inc.
+ *
+ * Licenced under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dtest.core;
+
+import org.dtest.core.testutils.TestLogger;
+import org.dtest.core.testutils.TestUtilities;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class TestTestHistory {
+
+  @Test
+  public void recordAndReload() throws IOException {
+    File historyFile = new File(TestUtilities.createBuildDir(), "history.tsv");
+    Config cfg = TestUtilities.buildCfg(TestHistory.CFG_TESTHISTORY_FILE, historyFile.getAbsolutePath());
+    TestHistory history = open(cfg);
+    Assert.assertNull(history.get("ql", "TestCleaner"));
+
+    history.record("ql", "container-1", "TestCleaner", null, TestHistory.Outcome.SUCCESS, 1000);
+    history.record("ql", "container-1", "TestCleaner", "cleanIt", TestHistory.Outcome.FAILURE, 400);
+    // Visible before being flushed
+    Assert.assertEquals(1000, history.get("ql", "TestCleaner").getAverageMillis());
+    history.close();
+
+    history = open(cfg);
+    TestHistory.Entry entry = history.get("ql", "TestCleaner");
+    Assert.assertNotNull(entry);
+    Assert.assertNull(entry.getMethod());
+    Assert.assertEquals(1000, entry.getAverageMillis());
+    Assert.assertEquals(1, entry.getRuns());
+    Assert.assertEquals(0, entry.getFailures());
+    Assert.assertEquals("container-1", entry.getLastContainer());
+    entry = history.get("ql", "TestCleaner", "cleanIt");
+    Assert.assertEquals(400, entry.getAverageMillis());
+    Assert.assertEquals(1, entry.getFailures());
+    Assert.assertEquals(TestHistory.Outcome.FAILURE, entry.getLastOutcome());
+    // Different module is a different test
+    Assert.assertNull(history.get("cli", "TestCleaner"));
+  }
+
+  @Test
+  public void averageFavorsRecentRuns() throws IOException {
+    File historyFile = new File(TestUtilities.createBuildDir(), "history.tsv");
+    Config cfg = TestUtilities.buildCfg(TestHistory.CFG_TESTHISTORY_FILE, historyFile.getAbsolutePath());
+    TestHistory history = open(cfg);
+    history.record("ql", "c", "TestSlow", null, TestHistory.Outcome.SUCCESS, 1000);
+    history.record("ql", "c", "TestSlow", null, TestHistory.Outcome.SUCCESS, 2000);
+    // Second run gets half the weight
+    Assert.assertEquals(1500, history.get("ql", "TestSlow").getAverageMillis());
+    for (int i = 0; i < 10; i++) {
+      history.record("ql", "c", "TestSlow", null, TestHistory.Outcome.SUCCESS, 10000);
+    }
+    // After 10 more runs at 10s the old runs should barely matter
+    Assert.assertTrue(history.get("ql", "TestSlow").getAverageMillis() > 9000);
+    // Errors don't count towards the runtime
+    history.record("ql", "c", "TestSlow", null, TestHistory.Outcome.ERROR, 1);
+    Assert.assertTrue(history.get("ql", "TestSlow").getAverageMillis() > 9000);
+    Assert.assertEquals(13, history.get("ql", "TestSlow").getRuns());
+    Assert.assertEquals(1, history.get("ql", "TestSlow").getFailures());
+  }
+
+  @Test
+  public void compact() throws IOException {
+    File historyFile = new File(TestUtilities.createBuildDir(), "history.tsv");
+    Config cfg = TestUtilities.buildCfg(TestHistory.CFG_TESTHISTORY_FILE, historyFile.getAbsolutePath(),
+        TestHistory.CFG_TESTHISTORY_COMPACTAFTER, "5");
+    TestLogger log = new TestLogger();
+    TestHistory history = new TestHistory();
+    history.setConfig(cfg).setLog(log);
+    history.load();
+    for (int i = 0; i < 10; i++) {
+      history.record("ql", "c", "TestA", null, TestHistory.Outcome.SUCCESS, 100 * (i + 1));
+      history.record("ql", "c", "TestB", null, TestHistory.Outcome.FAILURE, 50);
+    }
+    long expectedA = history.get("ql", "TestA").getAverageMillis();
+    history.close();
+    Assert.assertEquals(2, Files.readAllLines(historyFile.toPath()).size());
+    Assert.assertTrue(log.toString(), log.toString().contains("Compacted test history from 20 rows to 2"));
+
+    history = open(cfg);
+    Assert.assertEquals(expectedA, history.get("ql", "TestA").getAverageMillis());
+    Assert.assertEquals(10, history.get("ql", "TestA").getRuns());
+    Assert.assertEquals(10, history.get("ql", "TestB").getFailures());
+
+    // New results are applied on top of the summary
+    history.record("ql", "c", "TestA", null, TestHistory.Outcome.SUCCESS, 100);
+    history.close();
+    history = open(cfg);
+    Assert.assertEquals(11, history.get("ql", "TestA").getRuns());
+    Assert.assertEquals(3, Files.readAllLines(historyFile.toPath()).size());
+  }
+
+  @Test
+  public void concurrentFlushes() throws Exception {
+    File historyFile = new File(TestUtilities.createBuildDir(), "history.tsv");
+    Config cfg = TestUtilities.buildCfg(TestHistory.CFG_TESTHISTORY_FILE, historyFile.getAbsolutePath());
+    TestHistory history = open(cfg);
+    int threads = 2;
+    int flushes = 200;
+    CyclicBarrier start = new CyclicBarrier(threads);
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<Void>> futures = new ArrayList<>();
+      for (int t = 0; t < threads; t++) {
+        String testClass = "Test" + t;
+        futures.add(executor.submit(() -> {
+          start.await();
+          for (int i = 0; i < flushes; i++) {
+            history.record("ql", "c", testClass, null, TestHistory.Outcome.SUCCESS, 100);
+            history.flush();
+          }
+          return null;
+        }));
+      }
+      // Any OverlappingFileLockException comes out of here
+      for (Future<Void> future : futures) future.get();
+    } finally {
+      executor.shutdownNow();
+    }
+    Assert.assertEquals(threads * flushes, Files.readAllLines(historyFile.toPath()).size());
+  }
+
+  @Test
+  public void ignoresBadRows() throws IOException {
+    File historyFile = new File(TestUtilities.createBuildDir(), "history.tsv");
+    Files.write(historyFile.toPath(), ("garbage\n" +
+        "R\t1\tql\tc\tTestA\t\tSUCCESS\tnotanumber\n" +
+        "R\t1\tql\tc\tTestA\t\tSUCCESS\t300\n").getBytes());
+    Config cfg = TestUtilities.buildCfg(TestHistory.CFG_TESTHISTORY_FILE, historyFile.getAbsolutePath());
+    TestHistory history = open(cfg);
+    Assert.assertEquals(1, history.getEntries().size());
+    Assert.assertEquals(300, history.get("ql", "TestA").getAverageMillis());
+  }
+
+  private TestHistory open(Config cfg) throws IOException {
+    TestHistory history = new TestHistory();
+    history.setConfig(cfg).setLog(new TestLogger());
+    history.load();
+    return history;
+  }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2018 Hortonworks Inc.
+ *
+ * Licenced under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dtest.core.docker;
+
+import org.dtest.core.testutils.TestUtilities;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+
+public class TestCpusetAllocator {
+
+  @Test
+  public void lists() {
+    Assert.assertEquals(Arrays.asList(0, 1, 2, 3, 8, 10, 11), CpusetAllocator.parseList("0-3,8,10-11"));
+    Assert.assertEquals(Collections.emptyList(), CpusetAllocator.parseList(""));
+    Assert.assertEquals("0-3,8,10-11", CpusetAllocator.formatList(Arrays.asList(0, 1, 2, 3, 8, 10, 11)));
+    Assert.assertEquals("5", CpusetAllocator.formatList(Collections.singletonList(5)));
+  }
+
+  @Test
+  public void oneNode() {
+    CpusetAllocator allocator = new CpusetAllocator(Collections.singletonList(0),
+        Collections.singletonList(Arrays.asList(0, 1, 2, 3)));
+    CpusetAllocator.Allocation first = allocator.acquire(2);
+    CpusetAllocator.Allocation second = allocator.acquire(2);
+    Assert.assertEquals("0-1", first.getCpus());
+    Assert.assertEquals("2-3", second.getCpus());
+    // Nothing to gain from naming the only node
+    Assert.assertNull(first.getMems());
+    Assert.assertNull(allocator.acquire(1));
+    allocator.release(first);
+    Assert.assertEquals("0", allocator.acquire(1).getCpus());
+  }
+
+  @Test
+  public void numaNodes() {
+    CpusetAllocator allocator = new CpusetAllocator(Arrays.asList(0, 1),
+        Arrays.asList(Arrays.asList(0, 1, 2, 3), Arrays.asList(4, 5, 6, 7)));
+    CpusetAllocator.Allocation first = allocator.acquire(3);
+    Assert.assertEquals("0-2", first.getCpus());
+    Assert.assertEquals("0", first.getMems());
+    // Goes in the gap left on node 0, leaving node 1 whole
+    CpusetAllocator.Allocation second = allocator.acquire(1);
+    Assert.assertEquals("3", second.getCpus());
+    Assert.assertEquals("0", second.getMems());
+    allocator.release(second);
+    CpusetAllocator.Allocation third = allocator.acquire(4);
+    Assert.assertEquals("4-7", third.getCpus());
+    Assert.assertEquals("1", third.getMems());
+    allocator.release(first);
+    allocator.release(third);
+    // Too big for either node, so it spans both and gets no memory node
+    CpusetAllocator.Allocation wide = allocator.acquire(6);
+    Assert.assertEquals("0-5", wide.getCpus());
+    Assert.assertNull(wide.getMems());
+    allocator.release(wide);
+    Assert.assertEquals(8, allocator.free());
+  }
+
+  @Test
+  public void fromSysfs() throws IOException {
+    File root = new File(TestUtilities.createBuildDir(), "sysfs-node");
+    writeCpuList(root, 0, "0-1,4-5");
+    writeCpuList(root, 1, "2-3,6-7");
+    // Memory only
+    writeCpuList(root, 2, "");
+    Assert.assertTrue(new File(root, "possible").createNewFile());
+    CpusetAllocator allocator = CpusetAllocator.fromSysfs(root);
+    Assert.assertEquals(8, allocator.free());
+    CpusetAllocator.Allocation first = allocator.acquire(4);
+    Assert.assertEquals("0-1,4-5", first.getCpus());
+    Assert.assertEquals("0", first.getMems());
+    Assert.assertEquals("1", allocator.acquire(2).getMems());
+
+    // No NUMA information, everything the JVM can see
+    allocator = CpusetAllocator.fromSysfs(new File(root, "missing"));
+    Assert.assertEquals(Runtime.getRuntime().availableProcessors(), allocator.free());
+  }
+
+  private static void writeCpuList(File root, int node, String cpus) throws IOException {
+    File dir = new File(root, "node" + node);
+    Assert.assertTrue(dir.mkdirs());
+    try (FileWriter writer = new FileWriter(new File(dir, "cpulist"))) {
+      writer.write(cpus + "\n");
+    }
+  }
+}
@@ -0,0 +1,907 @@
+/*
+ * Copyright (C) 2018 Hortonworks Inc.
+ *
+ * Licenced under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dtest.core.docker;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.dtest.core.BuildInfo;
+import org.dtest.core.BuildYaml;
+import org.dtest.core.CodeSource;
+import org.dtest.core.Config;
+import org.dtest.core.ContainerClient;
+import org.dtest.core.ContainerCommandFactory;
+import org.dtest.core.ContainerResult;
+import org.dtest.core.ModuleDirectory;
+import org.dtest.core.TestReports;
+import org.dtest.core.git.GitSource;
+import org.dtest.core.impl.Tar;
+import org.dtest.core.mvn.MavenContainerCommandFactory;
+import org.dtest.core.mvn.MavenResultAnalyzer;
+import org.dtest.core.testutils.MockContainerCommand;
+import org.dtest.core.testutils.MockReporter;
+import org.dtest.core.testutils.TestLogger;
+import org.dtest.core.testutils.TestUtilities;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ProtocolFamily;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TestDockerApiContainerClient {
+  private Config cfg;
+  private TestLogger log;
+  private StandInDaemon daemon;
+
+  @Before
+  public void setup() throws IOException {
+    daemon = new StandInDaemon();
+    cfg = TestUtilities.buildCfg(
+        BuildInfo.CFG_BUILDINFO_LABEL, "dockerapi",
+        BuildInfo.CFG_BUILDINFO_BASEDIR, System.getProperty("java.io.tmpdir"),
+        ContainerClient.CFG_CONTAINERCLIENT_CONTAINERRUNTIME, "2s");
+    log = new TestLogger();
+  }
+
+  @After
+  public void teardown() throws IOException {
+    daemon.close();
+    log.dumpToLog();
+  }
+
+  @Test
+  public void buildImage() throws IOException {
+    DockerApiContainerClient client = client();
+    ContainerCommandFactory cmdFactory = new MavenContainerCommandFactory();
+    cmdFactory.setConfig(cfg).setLog(log);
+    client.buildImage(cmdFactory);
+    // The Dockerfile went to the daemon as the build context
+    Assert.assertTrue(daemon.buildContext.contains("Dockerfile"));
+    Assert.assertTrue(daemon.requests.get(0).startsWith("POST /v1.25/build?rm=1&forcerm=1&t="));
+  }
+
+  @Test
+  public void buildImageFails() throws IOException {
+    daemon.buildSucceeds = false;
+    DockerApiContainerClient client = client();
+    ContainerCommandFactory cmdFactory = new MavenContainerCommandFactory();
+    cmdFactory.setConfig(cfg).setLog(log);
+    try {
+      client.buildImage(cmdFactory);
+      Assert.fail();
+    } catch (IOException e) {
+      Assert.assertTrue(e.getMessage(), e.getMessage().contains("no such package"));
+    }
+  }
+
+  @Test
+  public void runAndFetch() throws IOException {
+    DockerApiContainerClient client = client();
+    MockContainerCommand cmd = new MockContainerCommand("run-1", "/home/dtestuser/faky/ql", "/bin/bash", "-c", "mvn test");
+    ContainerResult result = client.runContainer(cmd);
+    Assert.assertEquals(0, result.getRc());
+    Assert.assertEquals("Running tests\nTests run: 4\n", result.getStdout());
+    Assert.assertTrue(log.toString().contains("something on stderr"));
+
+    File logDir = TestUtilities.createBuildDir();
+    MavenResultAnalyzer analyzer = new MavenResultAnalyzer();
+    analyzer.setConfig(cfg).setLog(log);
+    client.fetchTestReports(result, analyzer, new MockReporter(logDir), new String[] {"hive.log", "missing.log"});
+    File[] reports = result.getReports().getTempDir().listFiles();
+    Assert.assertNotNull(reports);
+    Arrays.sort(reports);
+    Assert.assertEquals(Arrays.toString(reports), 3, reports.length);
+    Assert.assertEquals("TEST-org.dtest.core.TestFake.xml", reports[0].getName());
+    Assert.assertEquals("hive.log", reports[1].getName());
+    Assert.assertEquals("org.dtest.core.TestFake.txt", reports[2].getName());
+    result.getReports().cleanupTempDir();
+    client.removeContainer(result);
+
+    String name = "dtest-dockerapi_run-1";
+    Assert.assertEquals(Arrays.asList(
+        "POST /v1.25/containers/create?name=" + name,
+        "POST /v1.25/containers/" + name + "/attach?stream=1&stdout=1&stderr=1",
+        "POST /v1.25/containers/" + name + "/start",
+        "POST /v1.25/containers/" + name + "/wait",
+        "GET /v1.25/containers/" + name + "/archive?path=%2Fhome%2Fdtestuser%2Ffaky%2Fql%2Ftarget%2Fsurefire-reports",
+        "GET /v1.25/containers/" + name + "/archive?path=%2Fhome%2Fdtestuser%2Ffaky%2Fql%2Fhive.log",
+        "GET /v1.25/containers/" + name + "/archive?path=%2Fhome%2Fdtestuser%2Ffaky%2Fql%2Fmissing.log",
+        "DELETE /v1.25/containers/" + name), daemon.requests);
+    Assert.assertEquals("[\"/bin/bash\",\"-c\",\"mvn test\"]", daemon.createdCmds.get(name));
+    // One connection for the attach, everything else shares one
+    Assert.assertEquals(2, daemon.connections.get());
+  }
+
+  @Test
+  public void mountedReports() throws IOException {
+    cfg = TestUtilities.buildCfg(
+        BuildInfo.CFG_BUILDINFO_LABEL, "dockerapi",
+        BuildInfo.CFG_BUILDINFO_BASEDIR, System.getProperty("java.io.tmpdir"),
+        DockerContainerClient.CFG_DOCKERCONTAINERCLIENT_MOUNTREPORTS, "true");
+    DockerApiContainerClient client = client();
+    client.setReportPaths("target/surefire-reports", new String[] {"target/tmp/log/hive.log"});
+    MockContainerCommand cmd = new MockContainerCommand("mounted", "/home/dtestuser/faky/ql", "mvn", "test");
+    ContainerResult result = client.runContainer(cmd);
+    Assert.assertEquals(0, result.getRc());
+
+    String name = "dtest-dockerapi_mounted";
+    File hostDir = TestReports.tempDirFor(name);
+    Assert.assertEquals("[\"" + hostDir.getAbsolutePath() + ":/home/dtestuser/faky/ql/target/surefire-reports\",\"" +
+        hostDir.getAbsolutePath() + "/target/tmp/log:/home/dtestuser/faky/ql/target/tmp/log\"]",
+        daemon.createdBinds.get(name));
+    Assert.assertTrue(new File(hostDir, "target/tmp/log").isDirectory());
+
+    MavenResultAnalyzer analyzer = new MavenResultAnalyzer();
+    analyzer.setConfig(cfg).setLog(log);
+    client.fetchTestReports(result, analyzer, new MockReporter(TestUtilities.createBuildDir()),
+        new String[] {"target/tmp/log/hive.log"});
+    Assert.assertEquals(hostDir, result.getReports().getTempDir());
+    client.removeContainer(result);
+    result.getReports().cleanupTempDir();
+    // Nothing to copy out of the container
+    for (String request : daemon.requests) Assert.assertFalse(request, request.contains("/archive"));
+    Assert.assertEquals("DELETE /v1.25/containers/" + name, daemon.requests.get(daemon.requests.size() - 1));
+  }
+
+  @Test
+  public void mountWouldHideImage() throws IOException {
+    cfg = TestUtilities.buildCfg(
+        BuildInfo.CFG_BUILDINFO_LABEL, "dockerapi",
+        BuildInfo.CFG_BUILDINFO_BASEDIR, System.getProperty("java.io.tmpdir"),
+        DockerContainerClient.CFG_DOCKERCONTAINERCLIENT_MOUNTREPORTS, "true");
+    daemon.imagePaths.add("/home/dtestuser/faky/ql/target");
+    DockerApiContainerClient client = client();
+    // Mounting target would hide everything the image built there
+    client.setReportPaths("target/surefire-reports", new String[] {"target/foo.log"});
+    ContainerResult result = client.runContainer(new MockContainerCommand("hiding", "/home/dtestuser/faky/ql", "mvn"));
+    Assert.assertEquals(0, result.getRc());
+    Assert.assertNull(daemon.createdBinds.get("dtest-dockerapi_hiding"));
+    client.removeContainer(result);
+
+    // A log directory is mounted at its own path, which the image does not have
+    client.setReportPaths("target/surefire-reports", new String[] {"target/tmp/logs/"});
+    result = client.runContainer(new MockContainerCommand("logdir", "/home/dtestuser/faky/ql", "mvn"));
+    File hostDir = TestReports.tempDirFor("dtest-dockerapi_logdir");
+    Assert.assertEquals("[\"" + hostDir.getAbsolutePath() + ":/home/dtestuser/faky/ql/target/surefire-reports\",\"" +
+        hostDir.getAbsolutePath() + "/target/tmp/logs:/home/dtestuser/faky/ql/target/tmp/logs\"]",
+        daemon.createdBinds.get("dtest-dockerapi_logdir"));
+    client.removeContainer(result);
+    TestReports.removeTempDirs(log, "dtest-dockerapi_logdir");
+
+    // The image is only looked at once for each path
+    client.runContainer(new MockContainerCommand("again", "/home/dtestuser/faky/ql", "mvn"));
+    Assert.assertEquals(2, daemon.execCmds.size());
+    TestReports.removeTempDirs(log, "dtest-dockerapi_again");
+  }
+
+  @Test
+  public void sharedM2() throws IOException {
+    cfg = TestUtilities.buildCfg(
+        BuildInfo.CFG_BUILDINFO_LABEL, "dockerapi",
+        BuildInfo.CFG_BUILDINFO_BASEDIR, System.getProperty("java.io.tmpdir"),
+        DockerContainerClient.CFG_DOCKERCONTAINERCLIENT_SHAREM2, "true");
+    DockerApiContainerClient client = client();
+    String volume = client.getImageName() + "-m2";
+    String bind = "[\"" + volume + ":/home/dtestuser/.m2\"]";
+    client.runContainer(new MockContainerCommand("first", "/home/dtestuser/faky", "mvn", "test"));
+    String worker = client.startWorker("worker-0");
+    // The volume is filled once, before anything uses it
+    Assert.assertEquals("[\"true\"]", daemon.createdCmds.get(volume + "-fill"));
+    Assert.assertEquals(bind, daemon.createdBinds.get(volume + "-fill"));
+    Assert.assertEquals(1, daemon.requests.stream().filter(r -> r.contains("-fill/start")).count());
+    Assert.assertEquals(bind, daemon.createdBinds.get("dtest-dockerapi_first"));
+    Assert.assertEquals(bind, daemon.createdBinds.get(worker));
+    client.removeImage();
+    Assert.assertTrue(daemon.requests.contains("DELETE /v1.25/volumes/" + volume));
+  }
+
+  @Test
+  public void timeout() throws IOException {
+    daemon.containersFinish = false;
+    DockerApiContainerClient client = client();
+    MockContainerCommand cmd = new MockContainerCommand("forever", "/home/dtestuser/faky", "sleep", "1000");
+    try {
+      client.runContainer(cmd);
+      Assert.fail();
+    } catch (IOException e) {
+      Assert.assertTrue(e.getMessage(), e.getMessage().contains("failed to run in 2 seconds"));
+    }
+    Assert.assertTrue(daemon.requests.contains("POST /v1.25/containers/dtest-dockerapi_forever/kill"));
+  }
+
+  @Test
+  public void workers() throws IOException {
+    cfg = TestUtilities.buildCfg(
+        BuildInfo.CFG_BUILDINFO_LABEL, "dockerapi",
+        BuildInfo.CFG_BUILDINFO_BASEDIR, System.getProperty("java.io.tmpdir"),
+        DockerContainerClient.CFG_DOCKERCONTAINERCLIENT_RESETPATHS, "target/tmp, target/warehouse");
+    DockerApiContainerClient client = client();
+    String worker = client.startWorker("worker-0");
+    Assert.assertEquals("dtest-dockerapi_worker-0", worker);
+    Assert.assertEquals("[\"sleep\",\"infinity\"]", daemon.createdCmds.get(worker));
+    MockContainerCommand cmd = new MockContainerCommand("batch-1", "/home/dtestuser/faky", "mvn", "test");
+    ContainerResult result = client.runInWorker(worker, cmd);
+    Assert.assertEquals(3, result.getRc());
+    Assert.assertEquals("Running tests\nTests run: 4\n", result.getStdout());
+    MavenResultAnalyzer analyzer = new MavenResultAnalyzer();
+    analyzer.setConfig(cfg).setLog(log);
+    client.resetWorker(worker, result, analyzer, new String[0]);
+    client.stopWorker(worker);
+    Assert.assertTrue(daemon.requests.contains("POST /v1.25/exec/exec-1/start"));
+    Assert.assertEquals("[\"rm\",\"-rf\",\"/home/dtestuser/faky/target/surefire-reports\"," +
+        "\"/home/dtestuser/faky/target/tmp\",\"/home/dtestuser/faky/target/warehouse\"]",
+        daemon.execCmds.get("exec-2"));
+    Assert.assertEquals("DELETE /v1.25/containers/" + worker + "?force=1",
+        daemon.requests.get(daemon.requests.size() - 1));
+  }
+
+  @Test
+  public void keptImages() throws IOException {
+    File baseDir = new File(TestUtilities.createBuildDir(), "kept-images");
+    Assert.assertTrue(baseDir.mkdirs());
+    cfg = TestUtilities.buildCfg(
+        BuildInfo.CFG_BUILDINFO_LABEL, "dockerapi",
+        BuildInfo.CFG_BUILDINFO_BASEDIR, baseDir.getAbsolutePath(),
+        DockerContainerClient.CFG_DOCKERCONTAINERCLIENT_KEEPIMAGES, "2");
+    ContainerCommandFactory cmdFactory = new MavenContainerCommandFactory();
+    cmdFactory.setConfig(cfg).setLog(log);
+    String[] revisions = {
+        "1111111111111111111111111111111111111111", "1111111111111111111111111111111111111111",
+        "2222222222222222222222222222222222222222", "3333333333333333333333333333333333333333"
+    };
+    String[] imageNames = new String[revisions.length];
+    for (int i = 0; i < revisions.length; i++) {
+      DockerApiContainerClient client = client(revisions[i]);
+      client.buildImage(cmdFactory);
+      imageNames[i] = client.getImageName();
+      client.removeImage();
+    }
+    Assert.assertTrue(imageNames[0], imageNames[0].matches("dtest-[a-z]+:[0-9a-f]{16}"));
+    // The same revision gets the same image, which is only built once
+    Assert.assertEquals(imageNames[0], imageNames[1]);
+    Assert.assertEquals(3, daemon.requests.stream().filter(r -> r.startsWith("POST /v1.25/build")).count());
+    // Only the two most recently used are kept
+    Assert.assertTrue(daemon.requests.contains("DELETE /v1.25/images/" + imageNames[0]));
+    Assert.assertEquals(new HashSet<>(Arrays.asList(imageNames[2], imageNames[3])), daemon.images);
+  }
+
+  @Test
+  public void failedImageNotKept() throws IOException {
+    File baseDir = new File(TestUtilities.createBuildDir(), "failed-images");
+    Assert.assertTrue(baseDir.mkdirs());
+    cfg = TestUtilities.buildCfg(
+        BuildInfo.CFG_BUILDINFO_LABEL, "dockerapi",
+        BuildInfo.CFG_BUILDINFO_BASEDIR, baseDir.getAbsolutePath(),
+        DockerContainerClient.CFG_DOCKERCONTAINERCLIENT_KEEPIMAGES, "2");
+    ContainerCommandFactory cmdFactory = new MavenContainerCommandFactory();
+    cmdFactory.setConfig(cfg).setLog(log);
+    String revision = "1111111111111111111111111111111111111111";
+    daemon.mavenSucceeds = false;
+    DockerApiContainerClient client = client(revision);
+    try {
+      client.buildImage(cmdFactory);
+      Assert.fail("Expected the image build to fail");
+    } catch (IOException e) {
+      Assert.assertTrue(e.getMessage(), e.getMessage().startsWith("Failed to build image"));
+    }
+    client.removeImage();
+    // The image was tagged, but is deleted rather than kept
+    Assert.assertTrue(daemon.images.isEmpty());
+    Assert.assertFalse(readImageIndex(baseDir).contains(revision));
+    // So the next build of the same revision builds it again
+    daemon.mavenSucceeds = true;
+    client = client(revision);
+    client.buildImage(cmdFactory);
+    client.removeImage();
+    Assert.assertEquals(2, daemon.requests.stream().filter(r -> r.startsWith("POST /v1.25/build")).count());
+    Assert.assertEquals(Collections.singleton(client.getImageName()), daemon.images);
+    Assert.assertTrue(readImageIndex(baseDir).contains(revision));
+  }
+
+  // The index of kept images is named after the daemon, which is on a different port every time
+  private static String readImageIndex(File baseDir) throws IOException {
+    StringBuilder contents = new StringBuilder();
+    File[] indexes = baseDir.listFiles((dir, name) -> name.startsWith("dtest-images"));
+    assert indexes != null;
+    for (File index : indexes) contents.append(new String(Files.readAllBytes(index.toPath()), StandardCharsets.UTF_8));
+    return contents.toString();
+  }
+
+  @Test
+  public void incrementalImages() throws IOException {
+    File baseDir = new File(TestUtilities.createBuildDir(), "incremental-images");
+    Assert.assertTrue(baseDir.mkdirs());
+    cfg = TestUtilities.buildCfg(
+        BuildInfo.CFG_BUILDINFO_LABEL, "dockerapi",
+        BuildInfo.CFG_BUILDINFO_BASEDIR, baseDir.getAbsolutePath(),
+        DockerContainerClient.CFG_DOCKERCONTAINERCLIENT_KEEPIMAGES, "5",
+        DockerContainerClient.CFG_DOCKERCONTAINERCLIENT_INCREMENTALBUILDS, "1");
+    ContainerCommandFactory cmdFactory = new MavenContainerCommandFactory();
+    cmdFactory.setConfig(cfg).setLog(log);
+    String a = "aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa";
+    String b = "bbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbb";
+    String c = "cccccccccccccccccccccccccccccccccccccccc";
+    String[] dockerfiles = new String[3];
+    String[] imageNames = new String[4];
+    String[] revisions = {a, b, c, b};
+    for (int i = 0; i < revisions.length; i++) {
+      DockerApiContainerClient client = client(revisions[i]);
+      client.buildImage(cmdFactory);
+      if (i < dockerfiles.length) dockerfiles[i] = daemon.dockerfile;
+      imageNames[i] = client.getImageName();
+      client.removeImage();
+    }
+    Assert.assertFalse(dockerfiles[0], dockerfiles[0].startsWith("FROM dtest-"));
+    // b is built on a
+    Assert.assertTrue(dockerfiles[1], dockerfiles[1].startsWith("FROM " + imageNames[0] + "\n"));
+    Assert.assertTrue(dockerfiles[1], dockerfiles[1].contains("/usr/bin/git checkout " + b + ";"));
+    Assert.assertTrue(dockerfiles[1], dockerfiles[1].contains("/usr/bin/git diff --name-only " + a + " " + b));
+    Assert.assertTrue(dockerfiles[1], dockerfiles[1].contains(" -amd;"));
+    // b is already one incremental build deep, so c is built on a as well
+    Assert.assertTrue(dockerfiles[2], dockerfiles[2].startsWith("FROM " + imageNames[0] + "\n"));
+    // b's image is found and reused
+    Assert.assertEquals(imageNames[1], imageNames[3]);
+    Assert.assertEquals(3, daemon.requests.stream().filter(r -> r.startsWith("POST /v1.25/build")).count());
+  }
+
+  @Test
+  public void failedIncrementalImageNotBuiltOn() throws IOException {
+    File baseDir = new File(TestUtilities.createBuildDir(), "failed-incremental-images");
+    Assert.assertTrue(baseDir.mkdirs());
+    cfg = TestUtilities.buildCfg(
+        BuildInfo.CFG_BUILDINFO_LABEL, "dockerapi",
+        BuildInfo.CFG_BUILDINFO_BASEDIR, baseDir.getAbsolutePath(),
+        DockerContainerClient.CFG_DOCKERCONTAINERCLIENT_KEEPIMAGES, "5",
+        DockerContainerClient.CFG_DOCKERCONTAINERCLIENT_INCREMENTALBUILDS, "2");
+    ContainerCommandFactory cmdFactory = new MavenContainerCommandFactory();
+    cmdFactory.setConfig(cfg).setLog(log);
+    String a = "aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa";
+    String b = "bbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbb";
+    String c = "cccccccccccccccccccccccccccccccccccccccc";
+    DockerApiContainerClient client = client(a);
+    client.buildImage(cmdFactory);
+    String imageA = client.getImageName();
+    client.removeImage();
+
+    // b fails to build, both on a and then from scratch
+    daemon.mavenSucceeds = false;
+    client = client(b);
+    try {
+      client.buildImage(cmdFactory);
+      Assert.fail("Expected the image build to fail");
+    } catch (IOException e) {
+      Assert.assertTrue(e.getMessage(), e.getMessage().startsWith("Failed to build image"));
+    }
+    client.removeImage();
+    Assert.assertEquals(3, daemon.requests.stream().filter(r -> r.startsWith("POST /v1.25/build")).count());
+    Assert.assertEquals(Collections.singleton(imageA), daemon.images);
+    Assert.assertFalse(readImageIndex(baseDir).contains(b));
+
+    // So c is built on a rather than on the broken image of b
+    daemon.mavenSucceeds = true;
+    client = client(c);
+    client.buildImage(cmdFactory);
+    client.removeImage();
+    Assert.assertTrue(daemon.dockerfile, daemon.dockerfile.startsWith("FROM " + imageA + "\n"));
+    Assert.assertTrue(daemon.dockerfile, daemon.dockerfile.contains("/usr/bin/git diff --name-only " + a + " " + c));
+  }
+
+  @Test
+  public void resourceLimits() throws IOException {
+    cfg = TestUtilities.buildCfg(
+        BuildInfo.CFG_BUILDINFO_LABEL, "dockerapi",
+        BuildInfo.CFG_BUILDINFO_BASEDIR, System.getProperty("java.io.tmpdir"),
+        DockerContainerClient.CFG_DOCKERCONTAINERCLIENT_CPUS, "2",
+        DockerContainerClient.CFG_DOCKERCONTAINERCLIENT_MEMORY, "1g");
+    DockerApiContainerClient client = client();
+    ModuleDirectory big = new ModuleDirectory();
+    big.setDir("ql");
+    big.setCpus(4);
+    big.setMemory("512m");
+    client.runContainer(new MockContainerCommand(big, "big", "/home/dtestuser/faky/ql", "mvn", "test"));
+    JsonNode hostConfig = daemon.createdHostConfigs.get("dtest-dockerapi_big");
+    Assert.assertEquals(4000000000L, hostConfig.get("NanoCpus").asLong());
+    Assert.assertEquals(512L << 20, hostConfig.get("Memory").asLong());
+    Assert.assertFalse(hostConfig.has("CpusetCpus"));
+    // Workers get the defaults
+    String worker = client.startWorker("worker-0");
+    hostConfig = daemon.createdHostConfigs.get(worker);
+    Assert.assertEquals(2000000000L, hostConfig.get("NanoCpus").asLong());
+    Assert.assertEquals(1L << 30, hostConfig.get("Memory").asLong());
+    client.stopWorker(worker);
+  }
+
+  @Test
+  public void pinnedCpus() throws IOException {
+    cfg = TestUtilities.buildCfg(
+        BuildInfo.CFG_BUILDINFO_LABEL, "dockerapi",
+        BuildInfo.CFG_BUILDINFO_BASEDIR, System.getProperty("java.io.tmpdir"),
+        DockerContainerClient.CFG_DOCKERCONTAINERCLIENT_CPUS, "3",
+        DockerContainerClient.CFG_DOCKERCONTAINERCLIENT_PINCPUS, "true");
+    CpusetAllocator allocator = new CpusetAllocator(Arrays.asList(0, 1),
+        Arrays.asList(Arrays.asList(0, 1, 2, 3), Arrays.asList(4, 5, 6, 7)));
+    DockerApiContainerClient client = client(null, new DockerApiContainerClient() {
+      @Override
+      protected CpusetAllocator getCpusetAllocator() {
+        return allocator;
+      }
+    });
+    String first = client.startWorker("worker-0");
+    String second = client.startWorker("worker-1");
+    Assert.assertEquals("0-2", daemon.createdHostConfigs.get(first).get("CpusetCpus").asText());
+    Assert.assertEquals("0", daemon.createdHostConfigs.get(first).get("CpusetMems").asText());
+    Assert.assertEquals("4-6", daemon.createdHostConfigs.get(second).get("CpusetCpus").asText());
+    Assert.assertEquals("1", daemon.createdHostConfigs.get(second).get("CpusetMems").asText());
+    // Only two free, so this one gets a share instead
+    client.runContainer(new MockContainerCommand("squeezed", "/home/dtestuser/faky", "mvn", "test"));
+    JsonNode hostConfig = daemon.createdHostConfigs.get("dtest-dockerapi_squeezed");
+    Assert.assertFalse(hostConfig.has("CpusetCpus"));
+    Assert.assertEquals(3000000000L, hostConfig.get("NanoCpus").asLong());
+    client.stopWorker(first);
+    client.stopWorker(second);
+    Assert.assertEquals(8, allocator.free());
+  }
+
+  @Test
+  public void tmpfs() throws IOException {
+    ModuleDirectory scratchy = new ModuleDirectory();
+    scratchy.setDir("ql");
+    Map<String, String> tmpfs = new LinkedHashMap<>();
+    tmpfs.put("target/warehouse/", "2g");
+    tmpfs.put("/tmp", "");
+    tmpfs.put("target/tmp", "512m");
+    scratchy.setTmpfs(tmpfs);
+    DockerApiContainerClient client = client();
+    client.setReportPaths("target/surefire-reports", new String[] {"target/tmp/log/hive.log"});
+    client.runContainer(new MockContainerCommand(scratchy, "scratchy", "/home/dtestuser/faky/ql", "mvn", "test"));
+    // The log would be lost with target/tmp
+    Assert.assertEquals("{\"/home/dtestuser/faky/ql/target/warehouse\":\"rw,exec,mode=1777,size=2g\"," +
+        "\"/tmp\":\"rw,exec,mode=1777\"}",
+        daemon.createdHostConfigs.get("dtest-dockerapi_scratchy").get("Tmpfs").toString());
+    Assert.assertTrue(log.toString().contains("Not mounting tmpfs at /home/dtestuser/faky/ql/target/tmp"));
+
+    // With the reports mounted they are safe on top of the tmpfs
+    cfg = TestUtilities.buildCfg(
+        BuildInfo.CFG_BUILDINFO_LABEL, "dockerapi",
+        BuildInfo.CFG_BUILDINFO_BASEDIR, System.getProperty("java.io.tmpdir"),
+        DockerContainerClient.CFG_DOCKERCONTAINERCLIENT_MOUNTREPORTS, "true");
+    client = client();
+    client.setReportPaths("target/surefire-reports", new String[] {"target/tmp/log/hive.log"});
+    ContainerResult result =
+        client.runContainer(new MockContainerCommand(scratchy, "mounted", "/home/dtestuser/faky/ql", "mvn", "test"));
+    Assert.assertTrue(daemon.createdHostConfigs.get("dtest-dockerapi_mounted").get("Tmpfs")
+        .has("/home/dtestuser/faky/ql/target/tmp"));
+    new TestReports(log, result.getContainerName(), null).cleanupTempDir();
+  }
+
+  @Test
+  public void orphans() throws IOException {
+    DockerApiContainerClient client = client();
+    Assert.assertEquals(Collections.singletonList("dtest-dockerapi_old-1"), client.removeOrphans("dtest-dockerapi_"));
+    Assert.assertEquals(Arrays.asList(
+        "GET /v1.25/containers/json?all=1&filters=" + URLEncoder.encode("{\"name\":[\"dtest-dockerapi_\"]}", "UTF-8"),
+        "DELETE /v1.25/containers/dtest-dockerapi_old-1?force=1"), daemon.requests);
+  }
+
+  @Test
+  public void unixSocket() throws Exception {
+    Assume.assumeTrue(DockerApi.supportsUnixSockets());
+    File socket = new File(Files.createTempDirectory("dtest-docker").toFile(), "docker.sock");
+    daemon.listenOn(socket);
+    DockerApiContainerClient client = client();
+    client.setDockerHost("unix://" + socket.getPath());
+    MockContainerCommand cmd = new MockContainerCommand("run-1", "/home/dtestuser/faky/ql", "/bin/bash", "-c", "mvn test");
+    ContainerResult result = client.runContainer(cmd);
+    Assert.assertEquals(0, result.getRc());
+    Assert.assertEquals("Running tests\nTests run: 4\n", result.getStdout());
+    client.removeContainer(result);
+    Assert.assertEquals("DELETE /v1.25/containers/dtest-dockerapi_run-1",
+        daemon.requests.get(daemon.requests.size() - 1));
+    Assert.assertTrue(socket.delete());
+  }
+
+  @Test
+  public void unixSocketUnsupported() throws IOException {
+    Assume.assumeFalse(DockerApi.supportsUnixSockets());
+    DockerApiContainerClient client = client();
+    client.setDockerHost("unix:///var/run/docker.sock");
+    try {
+      client.removeOrphans("dtest-dockerapi_");
+      Assert.fail();
+    } catch (IOException e) {
+      Assert.assertTrue(e.getMessage(), e.getMessage().contains("requires Java 16 or later"));
+    }
+    // Failed before talking to anything
+    Assert.assertTrue(daemon.requests.isEmpty());
+  }
+
+  @Test
+  public void killBeforeStart() throws IOException {
+    DockerApiContainerClient client = client();
+    MockContainerCommand cmd =
+        new MockContainerCommand("run-1", "/home/dtestuser/faky/ql", "/bin/bash", "-c", "mvn test");
+    client.killContainer(cmd);
+    try {
+      client.runContainer(cmd);
+      Assert.fail();
+    } catch (IOException e) {
+      Assert.assertTrue(e.getMessage(), e.getMessage().contains("it has been killed"));
+    }
+    // Never created, so there is nothing to clean up
+    Assert.assertTrue(daemon.requests.toString(), daemon.requests.isEmpty());
+  }
+
+  @Test
+  public void parseMemory() throws IOException {
+    Assert.assertEquals(100, DockerApiContainerClient.parseMemory("100"));
+    Assert.assertEquals(2048, DockerApiContainerClient.parseMemory("2k"));
+    Assert.assertEquals(3L << 30, DockerApiContainerClient.parseMemory("3G"));
+    try {
+      DockerApiContainerClient.parseMemory("lots");
+      Assert.fail();
+    } catch (IOException e) {
+      Assert.assertTrue(e.getMessage(), e.getMessage().contains("lots"));
+    }
+  }
+
+  private DockerApiContainerClient client() throws IOException {
+    return client(null);
+  }
+
+  private DockerApiContainerClient client(String revision) throws IOException {
+    return client(revision, new DockerApiContainerClient());
+  }
+
+  private DockerApiContainerClient client(String revision, DockerApiContainerClient client) throws IOException {
+    client.setConfig(cfg).setLog(log);
+    client.setDockerHost("tcp://127.0.0.1:" + daemon.getPort());
+    CodeSource src = new GitSource() {
+      @Override
+      public String resolveRevision(BuildYaml yaml) {
+        return revision;
+      }
+    };
+    src.setConfig(cfg).setLog(log);
+    BuildInfo info = new BuildInfo(TestUtilities.buildYaml(cfg, log), src, true, "1");
+    info.setConfig(cfg).setLog(log);
+    client.setBuildInfo(info);
+    return client;
+  }
+
+  /**
+   * Just enough of the Engine API to run a container and copy its reports out.
+   */
+  private static class StandInDaemon implements AutoCloseable {
+    final List<String> requests = new CopyOnWriteArrayList<>();
+    final Map<String, String> createdCmds = new ConcurrentHashMap<>();
+    final Map<String, String> createdBinds = new ConcurrentHashMap<>();
+    final Map<String, JsonNode> createdHostConfigs = new ConcurrentHashMap<>();
+    final Map<String, String> execCmds = new ConcurrentHashMap<>();
+    final Set<String> images = ConcurrentHashMap.newKeySet();
+    // Paths that exist in the image
+    final Set<String> imagePaths = ConcurrentHashMap.newKeySet();
+    final AtomicInteger connections = new AtomicInteger();
+    final Map<String, CountDownLatch> started = new ConcurrentHashMap<>();
+    final ObjectMapper mapper = new ObjectMapper();
+    final byte[] reportsTar;
+    final byte[] hiveLogTar;
+    volatile String buildContext = "";
+    volatile String dockerfile = "";
+    volatile boolean buildSucceeds = true;
+    // Whether the build in the image succeeds.  The image is tagged either way, as docker does.
+    volatile boolean mavenSucceeds = true;
+    volatile boolean containersFinish = true;
+    private final ServerSocket server;
+    private volatile ServerSocketChannel unixServer;
+    private final AtomicInteger execs = new AtomicInteger();
+
+    StandInDaemon() throws IOException {
+      // Archives hold the directory or file asked for, named by its last path element
+      File dir = new File(TestUtilities.createBuildDir(), "reports-archive");
+      File reports = new File(dir, "surefire-reports");
+      Assert.assertTrue(reports.mkdirs());
+      for (String name : new String[] {"TEST-org.dtest.core.TestFake.xml", "org.dtest.core.TestFake.txt"}) {
+        Files.copy(new File(System.getProperty("dtest.testonly.conf.dir"), "logs/allgood/" + name).toPath(),
+            new File(reports, name).toPath());
+      }
+      reportsTar = tar(dir);
+      File logDir = new File(TestUtilities.createBuildDir(), "log-archive");
+      Assert.assertTrue(logDir.mkdirs());
+      try (FileWriter writer = new FileWriter(new File(logDir, "hive.log"))) {
+        writer.write("hive says hello\n");
+      }
+      hiveLogTar = tar(logDir);
+      server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+      Thread acceptor = new Thread(() -> {
+        while (!server.isClosed()) {
+          try {
+            Socket socket = server.accept();
+            serveInBackground(socket.getInputStream(), socket.getOutputStream(), socket);
+          } catch (IOException e) {
+            // closed
+          }
+        }
+      });
+      acceptor.setDaemon(true);
+      acceptor.start();
+    }
+
+    int getPort() {
+      return server.getLocalPort();
+    }
+
+    /**
+     * Also listen on a unix socket.  Only call this when {@link DockerApi#supportsUnixSockets()}, and since we
+     * compile for Java 8 the unix socket classes have to be found by reflection.
+     */
+    void listenOn(File socketPath) throws Exception {
+      SocketAddress address = (SocketAddress)Class.forName("java.net.UnixDomainSocketAddress")
+          .getMethod("of", String.class).invoke(null, socketPath.getPath());
+      unixServer = (ServerSocketChannel)ServerSocketChannel.class.getMethod("open", ProtocolFamily.class)
+          .invoke(null, StandardProtocolFamily.valueOf("UNIX"));
+      unixServer.bind(address);
+      Thread acceptor = new Thread(() -> {
+        while (unixServer.isOpen()) {
+          try {
+            SocketChannel channel = unixServer.accept();
+            serveInBackground(Channels.newInputStream(channel), Channels.newOutputStream(channel), channel);
+          } catch (IOException e) {
+            // closed
+          }
+        }
+      });
+      acceptor.setDaemon(true);
+      acceptor.start();
+    }
+
+    @Override
+    public void close() throws IOException {
+      server.close();
+      if (unixServer != null) unixServer.close();
+    }
+
+    private void serveInBackground(InputStream in, OutputStream out, Closeable connection) {
+      connections.incrementAndGet();
+      Thread t = new Thread(() -> serve(in, out, connection));
+      t.setDaemon(true);
+      t.start();
+    }
+
+    private static byte[] tar(File dir) throws IOException {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      Tar.write(dir, out);
+      return out.toByteArray();
+    }
+
+    private void serve(InputStream rawIn, OutputStream out, Closeable connection) {
+      try (Closeable c = connection) {
+        InputStream in = new BufferedInputStream(rawIn);
+        while (true) {
+          String requestLine = readLine(in);
+          if (requestLine == null || requestLine.isEmpty()) return;
+          Map<String, String> headers = new HashMap<>();
+          String line;
+          while (!(line = readLine(in)).isEmpty()) {
+            int colon = line.indexOf(':');
+            headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+          }
+          byte[] body = readBody(in, headers);
+          String[] parts = requestLine.split(" ");
+          requests.add(parts[0] + " " + parts[1]);
+          if (!handle(parts[0], parts[1].substring("/v1.25".length()), body, out)) return;
+        }
+      } catch (IOException e) {
+        // client went away
+      }
+    }
+
+    // Returns false if the connection was hijacked and should be closed
+    private boolean handle(String method, String path, byte[] body, OutputStream out) throws IOException {
+      if (path.startsWith("/build")) {
+        ByteArrayOutputStream names = new ByteArrayOutputStream();
+        File context = new File(TestUtilities.createBuildDir(), "build-context");
+        for (File f : Tar.extract(new ByteArrayInputStream(body), context, 0)) {
+          names.write((f.getName() + "\n").getBytes(StandardCharsets.UTF_8));
+          if (f.getName().equals("Dockerfile")) dockerfile = new String(Files.readAllBytes(f.toPath()), StandardCharsets.UTF_8);
+        }
+        buildContext = names.toString("UTF-8");
+        if (buildSucceeds) images.add(URLDecoder.decode(path.substring(path.indexOf("t=") + 2), "UTF-8"));
+        String progress = buildSucceeds ?
+            "{\"stream\":\"Step 1/2 : FROM centos\\n\"}\r\n{\"stream\":\"[INFO] BUILD " +
+                (mavenSucceeds ? "SUCCESS" : "FAILURE") + "\\n\"}\r\n" :
+            "{\"stream\":\"Step 1/2 : FROM centos\\n\"}\r\n{\"errorDetail\":{\"message\":\"no such package\"},\"error\":\"no such package\"}\r\n";
+        respond(out, 200, progress);
+      } else if (path.startsWith("/containers/json?all=1&filters=")) {
+        // The name filter matches anywhere in the name
+        respond(out, 200, "[{\"Names\":[\"/dtest-dockerapi_old-1\"]},{\"Names\":[\"/x-dtest-dockerapi_old-2\"]}]");
+      } else if (path.startsWith("/containers/create")) {
+        String name = path.substring(path.indexOf("name=") + 5);
+        JsonNode create = mapper.readTree(body);
+        createdCmds.put(name, create.get("Cmd").toString());
+        if (create.has("HostConfig")) {
+          createdHostConfigs.put(name, create.get("HostConfig"));
+          if (create.get("HostConfig").has("Binds")) createdBinds.put(name, create.get("HostConfig").get("Binds").toString());
+        }
+        started.put(name, new CountDownLatch(1));
+        respond(out, 201, "{\"Id\":\"" + name + "\"}");
+      } else if (path.endsWith("/attach?stream=1&stdout=1&stderr=1")) {
+        String name = path.split("/")[2];
+        out.write(("HTTP/1.1 101 UPGRADED\r\nContent-Type: application/vnd.docker.raw-stream\r\n" +
+            "Connection: Upgrade\r\nUpgrade: tcp\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        out.flush();
+        try {
+          started.get(name).await(10, TimeUnit.SECONDS);
+          if (!containersFinish) Thread.sleep(10000);
+        } catch (InterruptedException e) {
+          throw new IOException(e);
+        }
+        writeOutput(out);
+        return false;
+      } else if (path.endsWith("/start") && path.startsWith("/containers/")) {
+        started.get(path.split("/")[2]).countDown();
+        respond(out, 204, (byte[])null);
+      } else if (path.endsWith("/wait")) {
+        respond(out, 200, "{\"StatusCode\":0}");
+      } else if (path.endsWith("/kill")) {
+        respond(out, 204, (byte[])null);
+      } else if (path.contains("/archive?path=")) {
+        if (path.endsWith("surefire-reports")) respond(out, 200, reportsTar);
+        else if (path.endsWith("hive.log")) respond(out, 200, hiveLogTar);
+        else respond(out, 404, "{\"message\":\"Could not find the file\"}");
+      } else if (path.endsWith("/exec")) {
+        String id = "exec-" + execs.incrementAndGet();
+        execCmds.put(id, mapper.readTree(body).get("Cmd").toString());
+        respond(out, 201, "{\"Id\":\"" + id + "\"}");
+      } else if (path.startsWith("/exec/") && path.endsWith("/start")) {
+        out.write(("HTTP/1.1 101 UPGRADED\r\nContent-Type: application/vnd.docker.raw-stream\r\n" +
+            "Connection: Upgrade\r\nUpgrade: tcp\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        JsonNode cmd = mapper.readTree(execCmds.get(execId(path)));
+        if (isImageCheck(cmd)) {
+          for (int i = 4; i < cmd.size(); i++) {
+            if (imagePaths.contains(cmd.get(i).asText())) frame(out, 1, cmd.get(i).asText() + "\n");
+          }
+          out.flush();
+        } else {
+          writeOutput(out);
+        }
+        return false;
+      } else if (path.startsWith("/exec/") && path.endsWith("/json")) {
+        // The test command fails, the cleanup succeeds
+        boolean fails = path.contains("exec-1") && !isImageCheck(mapper.readTree(execCmds.get(execId(path))));
+        respond(out, 200, "{\"ExitCode\":" + (fails ? 3 : 0) + "}");
+      } else if (path.startsWith("/images/") && path.endsWith("/json")) {
+        String image = path.substring("/images/".length(), path.length() - "/json".length());
+        if (images.contains(image)) respond(out, 200, "{\"Id\":\"sha256:" + image.hashCode() + "\"}");
+        else respond(out, 404, "{\"message\":\"No such image\"}");
+      } else if (method.equals("DELETE")) {
+        if (path.startsWith("/images/")) images.remove(path.substring("/images/".length()));
+        respond(out, 204, (byte[])null);
+      } else {
+        respond(out, 404, "{\"message\":\"no such thing\"}");
+      }
+      return true;
+    }
+
+    private static String execId(String path) {
+      return path.substring("/exec/".length(), path.lastIndexOf('/'));
+    }
+
+    private static boolean isImageCheck(JsonNode cmd) {
+      return cmd.get(0).asText().equals("/bin/sh");
+    }
+
+    private void writeOutput(OutputStream out) throws IOException {
+      frame(out, 1, "Running tests\n");
+      frame(out, 2, "something on stderr\n");
+      frame(out, 1, "Tests run: 4\n");
+      out.flush();
+    }
+
+    private static void frame(OutputStream out, int stream, String text) throws IOException {
+      byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+      out.write(new byte[] {(byte)stream, 0, 0, 0, (byte)(bytes.length >>> 24), (byte)(bytes.length >>> 16),
+          (byte)(bytes.length >>> 8), (byte)bytes.length});
+      out.write(bytes);
+    }
+
+    private static void respond(OutputStream out, int status, String body) throws IOException {
+      respond(out, status, body == null ? null : body.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void respond(OutputStream out, int status, byte[] body) throws IOException {
+      StringBuilder head = new StringBuilder("HTTP/1.1 ").append(status).append(" Whatever\r\n");
+      if (body == null) {
+        head.append("\r\n");
+        out.write(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+      } else {
+        // Send it chunked, as the daemon does for anything it streams
+        head.append("Content-Type: application/json\r\nTransfer-Encoding: chunked\r\n\r\n");
+        out.write(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+        for (int off = 0; off < body.length; off += 1000) {
+          int len = Math.min(1000, body.length - off);
+          out.write((Integer.toHexString(len) + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+          out.write(body, off, len);
+          out.write("\r\n".getBytes(StandardCharsets.ISO_8859_1));
+        }
+        out.write("0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+      }
+      out.flush();
+    }
+
+    private static byte[] readBody(InputStream in, Map<String, String> headers) throws IOException {
+      ByteArrayOutputStream body = new ByteArrayOutputStream();
+      if ("chunked".equals(headers.get("transfer-encoding"))) {
+        while (true) {
+          int size = Integer.parseInt(readLine(in), 16);
+          if (size == 0) {
+            readLine(in);
+            break;
+          }
+          for (int i = 0; i < size; i++) body.write(in.read());
+          readLine(in);
+        }
+      } else {
+        int len = Integer.parseInt(headers.getOrDefault("content-length", "0"));
+        for (int i = 0; i < len; i++) body.write(in.read());
+      }
+      return body.toByteArray();
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+      StringBuilder line = new StringBuilder();
+      int b;
+      while ((b = in.read()) >= 0 && b != '\n') {
+        if (b != '\r') line.append((char)b);
+      }
+      return b < 0 && line.length() == 0 ? null : line.toString();
+    }
+  }
+}
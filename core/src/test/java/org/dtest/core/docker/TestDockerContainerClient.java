@@ -33,6 +33,7 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.function.UnaryOperator;
 
 public class TestDockerContainerClient {
   private Config cfg;
@@ -75,8 +76,8 @@ public class TestDockerContainerClient {
 
     Assert.assertTrue("Actual is " + buf.toString(), buf.toString().startsWith("FROM centos\n" +
         "\n" +
-        "RUN yum upgrade -y && yum update -y\n" +
-        "RUN yum install -y java-1.8.0-openjdk-devel git unzip maven \n" +
+        "RUN yum upgrade -y && yum update -y && \\\n" +
+        "    yum install -y git java-1.8.0-openjdk-devel maven unzip\n" +
         "\n" +
         "\n" +
         "RUN useradd -m dtestuser\n" +
@@ -88,6 +89,16 @@ public class TestDockerContainerClient {
         "    /usr/bin/git clone repo; \\\n" +
         "    cd faky; \\\n" +
         "    /usr/bin/git checkout master; \\\n" +
+        "    /usr/bin/mvn -q dependency:go-offline --fail-at-end; \\\n" +
+        "    cd /home/dtestuser; \\\n" +
+        "    rm -rf faky; \\\n" +
+        "}\n" +
+        "\n" +
+        "RUN { \\\n" +
+        "    cd /home/dtestuser; \\\n" +
+        "    /usr/bin/git clone repo; \\\n" +
+        "    cd faky; \\\n" +
+        "    /usr/bin/git checkout master; \\\n" +
         "    /usr/bin/mvn install -DskipTests; \\\n" +
         "    echo This build is labeled needsomething and was generated at 20"));
 
@@ -161,4 +172,15 @@ public class TestDockerContainerClient {
         "2018-04-04T11:21:55,981  INFO [Thread-1] dtest.StreamPumper: [INFO] Final Memory: 493M/4670M\n" +
         "2018-04-04T11:21:55,982  INFO [Thread-1] dtest.StreamPumper: [INFO] ------------------------------------------------------------------------\n", "", 1));
   }
+
+  @Test
+  public void reportPlacement() {
+    UnaryOperator<String> placement = DockerContainerClient.reportPlacement("target/surefire-reports",
+        new String[] {"target/tmp/log/hive.log", "target/tmp/logs/"});
+    Assert.assertNull(placement.apply("target/surefire-reports"));
+    Assert.assertEquals("TEST-org.dtest.TestFake.xml", placement.apply("target/surefire-reports/TEST-org.dtest.TestFake.xml"));
+    Assert.assertEquals("hive.log", placement.apply("target/tmp/log/hive.log"));
+    Assert.assertEquals("logs/metastore.log", placement.apply("target/tmp/logs/metastore.log"));
+    Assert.assertNull(placement.apply("target/tmp/log/other.log"));
+  }
 }
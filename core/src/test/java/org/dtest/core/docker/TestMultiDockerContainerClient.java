@@ -0,0 +1,280 @@
+/*
+ * Copyright (C) 2018 Hortonworks Inc.
+ *
+ * Licenced under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dtest.core.docker;
+
+import org.dtest.core.BuildInfo;
+import org.dtest.core.CodeSource;
+import org.dtest.core.Config;
+import org.dtest.core.ContainerClient;
+import org.dtest.core.ContainerCommand;
+import org.dtest.core.ContainerCommandFactory;
+import org.dtest.core.ContainerResult;
+import org.dtest.core.ModuleDirectory;
+import org.dtest.core.Reporter;
+import org.dtest.core.ResultAnalyzer;
+import org.dtest.core.git.GitSource;
+import org.dtest.core.mvn.MavenResultAnalyzer;
+import org.dtest.core.testutils.MockContainerClient;
+import org.dtest.core.testutils.MockReporter;
+import org.dtest.core.testutils.TestLogger;
+import org.dtest.core.testutils.TestUtilities;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TestMultiDockerContainerClient {
+  private TestLogger log = new TestLogger();
+
+  @After
+  public void dumpLog() {
+    log.dumpToLog();
+  }
+
+  @Test
+  public void spreadAcrossHosts() throws Exception {
+    File buildDir = TestUtilities.createBuildDir();
+    StandInMultiClient client = buildClient(buildDir,
+        MultiDockerContainerClient.CFG_MULTIDOCKERCONTAINERCLIENT_HOSTS, "unix:///one.sock=1, tcp://two:2375, tcp://three:2375",
+        MultiDockerContainerClient.CFG_MULTIDOCKERCONTAINERCLIENT_CONTAINERSPERHOST, "2");
+    Assert.assertEquals(3, client.getEndpoints().size());
+    Assert.assertEquals("unix:///one.sock", client.getEndpoints().get(0).getHost());
+    Assert.assertEquals(1, client.getEndpoints().get(0).limit);
+    Assert.assertEquals("tcp://three:2375", client.getEndpoints().get(2).getHost());
+    Assert.assertEquals(2, client.getEndpoints().get(2).limit);
+
+    client.buildImage(null);
+    for (StandInDaemon daemon : client.daemons.values()) Assert.assertTrue(daemon.imageBuilt);
+
+    // Run more containers at once than the hosts can take, they should queue rather than exceed the limits
+    ResultAnalyzer analyzer = new MavenResultAnalyzer();
+    Reporter reporter = new MockReporter(buildDir);
+    ExecutorService executor = Executors.newFixedThreadPool(10);
+    List<Future<?>> tasks = new ArrayList<>();
+    for (int i = 0; i < 20; i++) {
+      ContainerCommand cmd = new NamedCommand("cmd-" + i);
+      tasks.add(executor.submit(() -> {
+        ContainerResult result = client.runContainer(cmd);
+        client.fetchTestReports(result, analyzer, reporter, new String[0]);
+        client.removeContainer(result);
+        return null;
+      }));
+    }
+    for (Future<?> task : tasks) task.get();
+    executor.shutdown();
+
+    int total = 0;
+    for (StandInDaemon daemon : client.daemons.values()) {
+      Assert.assertTrue(daemon.host + " ran " + daemon.maxRunning.get() + " at once",
+          daemon.maxRunning.get() <= (daemon.host.equals("unix:///one.sock") ? 1 : 2));
+      Assert.assertFalse(daemon.host + " ran nothing", daemon.ran.isEmpty());
+      // Everything for a container has to go to the daemon that ran it
+      Assert.assertEquals(daemon.ran, daemon.fetched);
+      Assert.assertEquals(daemon.ran, daemon.removed);
+      total += daemon.ran.size();
+    }
+    Assert.assertEquals(20, total);
+
+    client.removeImage();
+    for (StandInDaemon daemon : client.daemons.values()) Assert.assertTrue(daemon.imageRemoved);
+  }
+
+  @Test
+  public void workersStayOnTheirHost() throws Exception {
+    File buildDir = TestUtilities.createBuildDir();
+    StandInMultiClient client = buildClient(buildDir,
+        MultiDockerContainerClient.CFG_MULTIDOCKERCONTAINERCLIENT_HOSTS, "tcp://one:2375,tcp://two:2375");
+    String first = client.startWorker("worker-0");
+    String second = client.startWorker("worker-1");
+    // With no other load the workers should be split across the hosts
+    Assert.assertEquals(1, client.daemons.get("tcp://one:2375").workers.size());
+    Assert.assertEquals(1, client.daemons.get("tcp://two:2375").workers.size());
+
+    ContainerCommand cmd = new NamedCommand("in-worker");
+    ContainerResult result = client.runInWorker(second, cmd);
+    client.fetchTestReports(result, new MavenResultAnalyzer(), new MockReporter(buildDir), new String[0]);
+    StandInDaemon daemon = client.daemons.get(client.daemons.get("tcp://one:2375").workers.contains(second) ?
+        "tcp://one:2375" : "tcp://two:2375");
+    Assert.assertEquals(Arrays.asList("in-worker"), new ArrayList<>(daemon.fetched));
+
+    client.stopWorker(first);
+    client.stopWorker(second);
+    for (StandInDaemon d : client.daemons.values()) Assert.assertTrue(d.workers.isEmpty());
+    // Stopping the worker forgets where its last command ran, it was never reset
+    try {
+      client.fetchTestReports(result, new MavenResultAnalyzer(), new MockReporter(buildDir), new String[0]);
+      Assert.fail();
+    } catch (IOException e) {
+      Assert.assertTrue(e.getMessage(), e.getMessage().contains("Unable to find the docker host that ran in-worker"));
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void noHosts() throws IOException {
+    buildClient(TestUtilities.createBuildDir());
+  }
+
+  @Test
+  public void dockerHost() {
+    DockerContainerClient client = new DockerContainerClient();
+    client.setConfig(TestUtilities.buildCfg()).setLog(log);
+    Assert.assertEquals(Arrays.asList("ps", "-a"), Arrays.asList(client.dockerCmd("ps", "-a")).subList(1, 3));
+    client.setDockerHost("tcp://elsewhere:2375");
+    Assert.assertEquals(Arrays.asList("-H", "tcp://elsewhere:2375", "ps", "-a"),
+        Arrays.asList(client.dockerCmd("ps", "-a")).subList(1, 5));
+  }
+
+  private StandInMultiClient buildClient(File buildDir, String... cfgEntries) throws IOException {
+    List<String> entries = new ArrayList<>(Arrays.asList(cfgEntries));
+    Collections.addAll(entries, BuildInfo.CFG_BUILDINFO_LABEL, "multi",
+        BuildInfo.CFG_BUILDINFO_BASEDIR, System.getProperty("java.io.tmpdir"));
+    Config cfg = TestUtilities.buildCfg(entries.toArray(new String[0]));
+    StandInMultiClient client = new StandInMultiClient(buildDir);
+    client.setConfig(cfg).setLog(log);
+    CodeSource src = new GitSource();
+    src.setConfig(cfg).setLog(log);
+    BuildInfo info = new BuildInfo(TestUtilities.buildYaml(cfg, log), src, true, "1");
+    info.setConfig(cfg).setLog(log);
+    client.setBuildInfo(info);
+    return client;
+  }
+
+  private static class StandInMultiClient extends MultiDockerContainerClient {
+    final Map<String, StandInDaemon> daemons = new ConcurrentHashMap<>();
+    final File buildDir;
+
+    StandInMultiClient(File buildDir) {
+      this.buildDir = buildDir;
+    }
+
+    @Override
+    protected ContainerClient createEndpointClient(String host) throws IOException {
+      StandInDaemon daemon = new StandInDaemon(host, buildDir);
+      daemons.put(host, daemon);
+      return daemon;
+    }
+  }
+
+  /**
+   * Pretends to be a docker daemon, keeping track of what was asked of it.
+   */
+  private static class StandInDaemon extends MockContainerClient {
+    final String host;
+    final AtomicInteger running = new AtomicInteger();
+    final AtomicInteger maxRunning = new AtomicInteger();
+    final Set<String> ran = ConcurrentHashMap.newKeySet();
+    final Set<String> fetched = ConcurrentHashMap.newKeySet();
+    final Set<String> removed = ConcurrentHashMap.newKeySet();
+    final Set<String> workers = ConcurrentHashMap.newKeySet();
+    volatile boolean imageBuilt;
+    volatile boolean imageRemoved;
+
+    StandInDaemon(String host, File buildDir) throws IOException {
+      super("standin-" + host.replaceAll("[^A-Za-z0-9]", "-"), null, buildDir, 0);
+      this.host = host;
+    }
+
+    @Override
+    public void buildImage(ContainerCommandFactory cmdFactory) {
+      imageBuilt = true;
+    }
+
+    @Override
+    public ContainerResult runContainer(ContainerCommand cmd) {
+      int nowRunning = running.incrementAndGet();
+      maxRunning.accumulateAndGet(nowRunning, Math::max);
+      try {
+        Thread.sleep(20);
+      } catch (InterruptedException e) {
+        throw new RuntimeException(e);
+      }
+      ran.add(cmd.containerSuffix());
+      running.decrementAndGet();
+      return super.runContainer(cmd);
+    }
+
+    @Override
+    public String startWorker(String workerName) {
+      workers.add(workerName);
+      return workerName;
+    }
+
+    @Override
+    public ContainerResult runInWorker(String worker, ContainerCommand cmd) {
+      Assert.assertTrue(workers.contains(worker));
+      ran.add(cmd.containerSuffix());
+      return super.runContainer(cmd);
+    }
+
+    @Override
+    public void stopWorker(String worker) {
+      workers.remove(worker);
+    }
+
+    @Override
+    public void fetchTestReports(ContainerResult result, ResultAnalyzer analyzer, Reporter reporter, String[] additionalLogs) throws IOException {
+      fetched.add(result.getCmd().containerSuffix());
+      super.fetchTestReports(result, analyzer, reporter, additionalLogs);
+    }
+
+    @Override
+    public void removeContainer(ContainerResult result) {
+      removed.add(result.getCmd().containerSuffix());
+    }
+
+    @Override
+    public void removeImage() {
+      imageRemoved = true;
+    }
+  }
+
+  private static class NamedCommand extends ContainerCommand {
+    private final String name;
+
+    NamedCommand(String name) {
+      super(new ModuleDirectory());
+      this.name = name;
+    }
+
+    @Override
+    public String containerSuffix() {
+      return name;
+    }
+
+    @Override
+    public String[] shellCommand() {
+      return new String[] {"echo", name};
+    }
+
+    @Override
+    public String containerDirectory() {
+      return "/tmp";
+    }
+  }
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright (C) 2018 Hortonworks Inc.
+ *
+ * Licenced under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dtest.core.git;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestGitSource {
+
+  @Test
+  public void parseLsRemote() {
+    String output =
+        "aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa\trefs/heads/branch-3\n" +
+        "bbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbb\trefs/heads/master\n" +
+        "cccccccccccccccccccccccccccccccccccccccc\trefs/tags/rel-3.1\n" +
+        "dddddddddddddddddddddddddddddddddddddddd\trefs/tags/rel-3.1^{}\n" +
+        "eeeeeeeeeeeeeeeeeeeeeeeeeeeeeeeeeeeeeeee\trefs/remotes/origin/master\n";
+    Assert.assertEquals("bbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbb", GitSource.parseLsRemote(output, "master"));
+    // Annotated tags resolve to the commit, not the tag object
+    Assert.assertEquals("dddddddddddddddddddddddddddddddddddddddd", GitSource.parseLsRemote(output, "rel-3.1"));
+    Assert.assertNull(GitSource.parseLsRemote(output, "branch-3.1"));
+  }
+}
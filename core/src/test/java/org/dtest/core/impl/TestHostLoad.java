@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2018 Hortonworks Inc.
+ *
+ * Licenced under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dtest.core.impl;
+
+import org.dtest.core.testutils.TestUtilities;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+public class TestHostLoad {
+
+  @Test
+  public void sample() throws IOException {
+    File dir = TestUtilities.createBuildDir();
+    File proc = new File(dir, "proc");
+    File cgroup = new File(dir, "cgroup");
+    Assert.assertTrue(proc.mkdir() && cgroup.mkdir());
+    HostLoad load = new HostLoad(proc, cgroup);
+    Assert.assertFalse(load.isAvailable());
+
+    writeStat(proc, 100, 0, 100, 700, 100);
+    write(new File(proc, "meminfo"), "MemTotal:       1000 kB\nMemFree:         100 kB\nMemAvailable:    400 kB\n");
+    Assert.assertTrue(load.isAvailable());
+    HostLoad.Sample sample = load.sample();
+    // No baseline for cpu yet
+    Assert.assertEquals(0.0, sample.cpu, 0.001);
+    Assert.assertEquals(0.6, sample.memory, 0.001);
+
+    // 400 more ticks: 200 busy, 100 idle, 100 iowait
+    writeStat(proc, 200, 0, 200, 800, 200);
+    sample = load.sample();
+    Assert.assertEquals(0.5, sample.cpu, 0.001);
+    Assert.assertEquals(0.25, sample.iowait, 0.001);
+
+    // A cgroup v2 limit that's tighter than the host
+    write(new File(cgroup, "memory.max"), "1000\n");
+    write(new File(cgroup, "memory.current"), "900\n");
+    Assert.assertEquals(0.9, load.sample().memory, 0.001);
+    write(new File(cgroup, "memory.max"), "max\n");
+    Assert.assertEquals(0.6, load.sample().memory, 0.001);
+  }
+
+  private void writeStat(File proc, long user, long nice, long system, long idle, long iowait) throws IOException {
+    write(new File(proc, "stat"), "cpu  " + user + " " + nice + " " + system + " " + idle + " " + iowait +
+        " 0 0 0 0 0\ncpu0 1 2 3 4 5 0 0 0 0 0\n");
+  }
+
+  private void write(File file, String contents) throws IOException {
+    Files.write(file.toPath(), contents.getBytes());
+  }
+}
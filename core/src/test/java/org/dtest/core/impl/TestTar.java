@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2018 Hortonworks Inc.
+ *
+ * Licenced under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dtest.core.impl;
+
+import org.dtest.core.testutils.TestUtilities;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+public class TestTar {
+
+  @Test
+  public void roundTrip() throws IOException {
+    File src = new File(TestUtilities.createBuildDir(), "tar-src");
+    String longName = "org.dtest.core.some.very.deeply.nested.package.name.TestWithAReallyRatherLongNameIndeed-output.txt";
+    File nested = new File(src, "target" + File.separator + "surefire-reports");
+    Assert.assertTrue(nested.mkdirs());
+    write(new File(nested, longName), "long one\n");
+    write(new File(nested, "short.txt"), "short one\n");
+    write(new File(src, "Dockerfile"), "FROM centos\n");
+
+    ByteArrayOutputStream tar = new ByteArrayOutputStream();
+    Tar.write(src, tar);
+    Assert.assertEquals(0, tar.size() % 512);
+
+    File dest = new File(TestUtilities.createBuildDir(), "tar-dest");
+    List<File> files = Tar.extract(new ByteArrayInputStream(tar.toByteArray()), dest, 2);
+    // Dockerfile has only one path element, so stripping two leaves nothing
+    Assert.assertEquals(2, files.size());
+    Assert.assertEquals("long one\n", read(new File(dest, longName)));
+    Assert.assertEquals("short one\n", read(new File(dest, "short.txt")));
+    Assert.assertFalse(new File(dest, "Dockerfile").exists());
+  }
+
+  @Test
+  public void noEscape() throws IOException {
+    byte[] header = new byte[512];
+    byte[] name = "../../etc/passwd".getBytes(StandardCharsets.US_ASCII);
+    System.arraycopy(name, 0, header, 0, name.length);
+    header[156] = '0';
+    byte[] size = "00000000000\0".getBytes(StandardCharsets.US_ASCII);
+    System.arraycopy(size, 0, header, 124, size.length);
+    ByteArrayOutputStream tar = new ByteArrayOutputStream();
+    tar.write(header);
+    tar.write(new byte[1024]);
+    // Entries that would land outside the destination are skipped
+    Assert.assertTrue(Tar.extract(new ByteArrayInputStream(tar.toByteArray()),
+        new File(TestUtilities.createBuildDir(), "tar-escape"), 0).isEmpty());
+  }
+
+  private static void write(File file, String contents) throws IOException {
+    try (FileWriter writer = new FileWriter(file)) {
+      writer.write(contents);
+    }
+  }
+
+  private static String read(File file) throws IOException {
+    return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+  }
+}
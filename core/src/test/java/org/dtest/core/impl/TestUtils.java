@@ -15,9 +15,13 @@
  */
 package org.dtest.core.impl;
 
+import org.dtest.core.testutils.TestLogger;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
 public class TestUtils {
 
   @Test
@@ -36,4 +40,44 @@ public class TestUtils {
     Assert.assertEquals("When_in_the_Course_of_human_events__it_becomes_necessary_for_one_people" +
         "to_dissolve_the_political_bands_which_have_connected_them", label);
   }
+
+  @Test
+  public void readOutputAsStream() throws IOException {
+    TestLogger log = new TestLogger();
+    AtomicInteger read = new AtomicInteger();
+    // Only read a little of what it writes, it should not be left blocked writing the rest
+    ProcessResults res = Utils.runProcess("stream", 10, log, in -> {
+      byte[] buf = new byte[10];
+      read.set(in.read(buf));
+    }, "/bin/sh", "-c", "head -c 1000000 /dev/zero; echo done >&2");
+    Assert.assertEquals(0, res.rc);
+    Assert.assertEquals(10, read.get());
+    Assert.assertEquals("", res.stdout);
+    Assert.assertEquals("done\n", res.stderr);
+  }
+
+  @Test(expected = IOException.class)
+  public void readOutputAsStreamTimesOut() throws IOException {
+    Utils.runProcess("stream", 1, new TestLogger(), in -> { }, "sleep", "10");
+  }
+
+  @Test
+  public void runProcess() throws IOException {
+    ProcessResults res = Utils.runProcess("quick", 10, new TestLogger(), "/bin/bash", "-c",
+        "echo one; printf 'two\\nno newline'; echo oops >&2; exit 3");
+    Assert.assertEquals(3, res.rc);
+    Assert.assertEquals("one\ntwo\nno newline\n", res.stdout);
+    Assert.assertEquals("oops\n", res.stderr);
+  }
+
+  @Test
+  public void outputAtTheEnd() throws IOException {
+    // Output written right before the process exits, in more than one buffer, must all be there
+    ProcessResults res = Utils.runProcess("late", 10, new TestLogger(), "/bin/bash", "-c",
+        "sleep 0.2; seq 1 20000");
+    Assert.assertEquals(0, res.rc);
+    String[] lines = res.stdout.split("\n");
+    Assert.assertEquals(20000, lines.length);
+    Assert.assertEquals("20000", lines[lines.length - 1]);
+  }
 }
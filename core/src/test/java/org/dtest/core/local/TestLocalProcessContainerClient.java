@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2018 Hortonworks Inc.
+ *
+ * Licenced under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dtest.core.local;
+
+import org.dtest.core.BuildInfo;
+import org.dtest.core.BuildYaml;
+import org.dtest.core.CodeSource;
+import org.dtest.core.Config;
+import org.dtest.core.ContainerClient;
+import org.dtest.core.ContainerResult;
+import org.dtest.core.git.GitSource;
+import org.dtest.core.mvn.MavenContainerCommandFactory;
+import org.dtest.core.mvn.MavenResultAnalyzer;
+import org.dtest.core.testutils.MockContainerCommand;
+import org.dtest.core.testutils.MockReporter;
+import org.dtest.core.testutils.TestLogger;
+import org.dtest.core.testutils.TestUtilities;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+public class TestLocalProcessContainerClient {
+  private File srcDir;
+  private File baseDir;
+  private TestLogger log;
+
+  @Before
+  public void setup() throws IOException {
+    File dir = TestUtilities.createBuildDir();
+    srcDir = new File(dir, "local-src");
+    baseDir = new File(dir, "local-base");
+    Assert.assertTrue(new File(srcDir, "ql/target/surefire-reports").mkdirs());
+    Assert.assertTrue(baseDir.mkdirs());
+    // Left over from an earlier run
+    Assert.assertTrue(new File(srcDir, "ql/target/surefire-reports/TEST-org.dtest.core.Stale.xml").createNewFile());
+    Files.copy(new File(System.getProperty("dtest.testonly.conf.dir"), "logs/allgood/TEST-org.dtest.core.TestFake.xml").toPath(),
+        new File(srcDir, "TEST-org.dtest.core.TestFake.xml").toPath());
+    log = new TestLogger();
+  }
+
+  @After
+  public void teardown() {
+    log.dumpToLog();
+  }
+
+  @Test
+  public void runAndFetch() throws IOException {
+    LocalProcessContainerClient client = client("5s");
+    String ql = client.getContainerBaseDir() + "/ql";
+    MockContainerCommand cmd = new MockContainerCommand("run-1", ql, "/bin/bash", "-c",
+        "( cd " + ql + "; mkdir -p target/surefire-reports; cp ../TEST-org.dtest.core.TestFake.xml target/surefire-reports; " +
+            "echo hello > hive.log; touch changed; echo ran )");
+    ContainerResult result = client.runContainer(cmd);
+    Assert.assertEquals(0, result.getRc());
+    Assert.assertEquals("ran\n", result.getStdout());
+    // It ran in a copy
+    Assert.assertFalse(new File(srcDir, "ql/changed").exists());
+
+    MavenResultAnalyzer analyzer = new MavenResultAnalyzer();
+    client.fetchTestReports(result, analyzer, new MockReporter(TestUtilities.createBuildDir()), new String[] {"hive.log"});
+    File[] reports = result.getReports().getTempDir().listFiles();
+    Assert.assertNotNull(reports);
+    Arrays.sort(reports);
+    Assert.assertEquals(Arrays.toString(reports), 2, reports.length);
+    Assert.assertEquals("TEST-org.dtest.core.TestFake.xml", reports[0].getName());
+    Assert.assertEquals("hive.log", reports[1].getName());
+    result.getReports().cleanupTempDir();
+
+    File copy = new File(baseDir, "dtest-local-work/" + result.getContainerName());
+    Assert.assertTrue(copy.isDirectory());
+    client.removeContainer(result);
+    Assert.assertFalse(copy.exists());
+    client.removeImage();
+    // Only what it made is removed
+    Assert.assertTrue(srcDir.isDirectory());
+    Assert.assertFalse(new File(baseDir, "dtest-local-work").exists());
+  }
+
+  @Test
+  public void inCopy() {
+    Assert.assertEquals("/work/copy", LocalProcessContainerClient.inCopy("/src/hive", "/src/hive", "/work/copy"));
+    Assert.assertEquals("/work/copy/ql", LocalProcessContainerClient.inCopy("/src/hive/ql", "/src/hive", "/work/copy"));
+    Assert.assertEquals("( cd /work/copy/ql; mvn -Dx=/work/copy test)",
+        LocalProcessContainerClient.inCopy("( cd /src/hive/ql; mvn -Dx=/src/hive test)", "/src/hive", "/work/copy"));
+    // Not the checkout, only named like it
+    Assert.assertEquals("/src/hive-other/ql", LocalProcessContainerClient.inCopy("/src/hive-other/ql", "/src/hive",
+        "/work/copy"));
+    Assert.assertEquals("/mnt/src/hive",
+        LocalProcessContainerClient.inCopy("/mnt/src/hive", "/src/hive", "/work/copy"));
+  }
+
+  @Test
+  public void kill() throws Exception {
+    LocalProcessContainerClient client = client("60s");
+    MockContainerCommand cmd = new MockContainerCommand("forever", client.getContainerBaseDir(), "/bin/bash", "-c",
+        "sleep 60 & sleep 60");
+    long start = System.currentTimeMillis();
+    CompletableFuture<ContainerResult> result = CompletableFuture.supplyAsync(() -> {
+      try {
+        return client.runContainer(cmd);
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    });
+    while (System.currentTimeMillis() - start < 10000 && !log.toString().contains("sleep 60 & sleep 60")) {
+      Thread.sleep(50);
+    }
+    Thread.sleep(200);
+    client.killContainer(cmd);
+    Assert.assertNotEquals(0, result.get(10, TimeUnit.SECONDS).getRc());
+    Assert.assertTrue(System.currentTimeMillis() - start < 30000);
+  }
+
+  @Test
+  public void killBeforeStart() throws IOException {
+    LocalProcessContainerClient client = client("60s");
+    MockContainerCommand cmd = new MockContainerCommand("too-late", client.getContainerBaseDir(), "sleep", "60");
+    client.killContainer(cmd);
+    try {
+      client.runContainer(cmd);
+      Assert.fail();
+    } catch (IOException e) {
+      Assert.assertTrue(e.getMessage(), e.getMessage().contains("Not starting too-late, it has been killed"));
+    }
+  }
+
+  @Test
+  public void timeout() throws IOException {
+    LocalProcessContainerClient client = client("1s");
+    MockContainerCommand cmd = new MockContainerCommand("slow", client.getContainerBaseDir(), "sleep", "60");
+    try {
+      client.runContainer(cmd);
+      Assert.fail();
+    } catch (IOException e) {
+      Assert.assertTrue(e.getMessage(), e.getMessage().contains("failed to run in 1 seconds"));
+    }
+  }
+
+  @Test
+  public void buildProject() throws IOException {
+    Config cfg = TestUtilities.buildCfg(
+        BuildInfo.CFG_BUILDINFO_LABEL, "local",
+        BuildInfo.CFG_BUILDINFO_BASEDIR, baseDir.getAbsolutePath());
+    LocalProcessContainerClient client = new LocalProcessContainerClient();
+    client.setConfig(cfg).setLog(log);
+    CodeSource src = new GitSource() {
+      @Override
+      public List<String> srcCommands(BuildYaml yaml) {
+        return Arrays.asList("mkdir " + yaml.getProjectDir(), "cd " + yaml.getProjectDir());
+      }
+    };
+    src.setConfig(cfg).setLog(log);
+    BuildInfo info = new BuildInfo(TestUtilities.buildYaml(cfg, log), src, true, baseDir.getAbsolutePath());
+    info.setConfig(cfg).setLog(log);
+    client.setBuildInfo(info);
+    MavenContainerCommandFactory cmdFactory = new MavenContainerCommandFactory() {
+      @Override
+      public List<String> getInitialBuildCommand() {
+        return Collections.singletonList("echo built > built");
+      }
+    };
+    cmdFactory.setConfig(cfg).setLog(log);
+    client.buildImage(cmdFactory);
+    Assert.assertTrue(new File(client.getContainerBaseDir(), "built").exists());
+    client.removeImage();
+    Assert.assertFalse(new File(client.getContainerBaseDir()).exists());
+  }
+
+  private LocalProcessContainerClient client(String runtime) throws IOException {
+    Config cfg = TestUtilities.buildCfg(
+        BuildInfo.CFG_BUILDINFO_LABEL, "local",
+        BuildInfo.CFG_BUILDINFO_BASEDIR, baseDir.getAbsolutePath(),
+        ContainerClient.CFG_CONTAINERCLIENT_CONTAINERRUNTIME, runtime,
+        LocalProcessContainerClient.CFG_LOCALPROCESSCONTAINERCLIENT_SRCDIR, srcDir.getAbsolutePath());
+    LocalProcessContainerClient client = new LocalProcessContainerClient();
+    client.setConfig(cfg).setLog(log);
+    CodeSource src = new GitSource();
+    src.setConfig(cfg).setLog(log);
+    BuildInfo info = new BuildInfo(TestUtilities.buildYaml(cfg, log), src, true, baseDir.getAbsolutePath());
+    info.setConfig(cfg).setLog(log);
+    client.setBuildInfo(info);
+    client.setReportPaths("target/surefire-reports", new String[] {"hive.log"});
+    client.buildImage(null);
+    return client;
+  }
+}
@@ -15,11 +15,15 @@
  */
 package org.dtest.core.mvn;
 
+import com.google.common.io.ByteStreams;
 import org.apache.commons.lang3.StringUtils;
 import org.dtest.core.BuildInfo;
 import org.dtest.core.Config;
+import org.dtest.core.ContainerClient;
 import org.dtest.core.ContainerCommand;
+import org.dtest.core.ContainerCommandFactory;
 import org.dtest.core.ContainerResult;
+import org.dtest.core.ModuleDirectory;
 import org.dtest.core.testutils.TestUtilities;
 import org.dtest.core.git.GitSource;
 import org.dtest.core.testutils.MockContainerClient;
@@ -29,6 +33,14 @@ import org.junit.Test;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 public class TestMavenContainerCommandFactory {
 
@@ -56,17 +68,248 @@ public class TestMavenContainerCommandFactory {
     log.dumpToLog();
   }
 
+  @Test
+  public void buildOfflineCommands() throws IOException {
+    File buildDir = TestUtilities.createBuildDir();
+    Config cfg = TestUtilities.buildCfg(BuildInfo.CFG_BUILDINFO_LABEL, "profile",
+                                    BuildInfo.CFG_BUILDINFO_BASEDIR, System.getProperty("java.io.tmpdir"),
+                                    MavenContainerCommand.CFG_MAVENCONTAINERCOMMAND_OFFLINE, "true");
+    TestLogger log = new TestLogger();
+    MavenContainerCommandFactory cmds = new MavenContainerCommandFactory();
+    cmds.setConfig(cfg);
+    cmds.setLog(log);
+    BuildInfo buildInfo = new BuildInfo(TestUtilities.buildYaml(cfg, log), new GitSource(), true, "1");
+    buildInfo.setConfig(cfg).setLog(log);
+    buildInfo.getBuildDir();
+    cmds.buildContainerCommands(new TestContainerClient("test-maven-container-command-factory", "allgood", buildDir, 0), buildInfo);
+    Assert.assertEquals("/bin/bash -c ( cd " + buildDir + "/beeline; /usr/bin/mvn test -Dsurefire.timeout=300 --offline)", StringUtils.join(cmds.getCmds().get(0).shellCommand(), " "));
+  }
+
+  @Test
+  public void incrementalBuildCommand() throws Exception {
+    // A project with modules at core and core/sub, and a directory with no pom
+    File project = new File(TestUtilities.createBuildDir(), "incremental-project");
+    for (String pom : new String[] {"pom.xml", "core/pom.xml", "core/sub/pom.xml"}) {
+      File f = new File(project, pom);
+      Assert.assertTrue(f.getParentFile().isDirectory() || f.getParentFile().mkdirs());
+      Assert.assertTrue(f.createNewFile());
+    }
+    List<String> cmds = new MavenContainerCommandFactory().getIncrementalBuildCommand(
+        "printf 'core/src/main/java/A.java\\ncore/sub/src/B.java\\ncore/src/test/C.java\\n'");
+    Assert.assertEquals(2, cmds.size());
+    Assert.assertEquals("core,core/sub", runShell(project, cmds.get(0) + "; echo $modules"));
+    Assert.assertTrue(cmds.get(1), cmds.get(1).contains("/usr/bin/mvn install -DskipTests -pl \"$modules\" -amd"));
+    // Files outside of any module belong to the top level project
+    cmds = new MavenContainerCommandFactory().getIncrementalBuildCommand("printf 'docs/index.html\\n'");
+    Assert.assertEquals(".", runShell(project, cmds.get(0) + "; echo $modules"));
+    cmds = new MavenContainerCommandFactory().getIncrementalBuildCommand("true");
+    Assert.assertEquals("", runShell(project, cmds.get(0) + "; echo $modules"));
+  }
+
+  private static String runShell(File dir, String cmd) throws Exception {
+    Process proc = new ProcessBuilder("/bin/sh", "-c", cmd).directory(dir).start();
+    String out = new String(ByteStreams.toByteArray(proc.getInputStream()), StandardCharsets.UTF_8).trim();
+    Assert.assertEquals(0, proc.waitFor());
+    return out;
+  }
+
+  @Test
+  public void buildCommandsByRuntime() throws IOException {
+    File buildDir = TestUtilities.createBuildDir();
+    Config cfg = TestUtilities.buildCfg(BuildInfo.CFG_BUILDINFO_LABEL, "profile",
+                                    BuildInfo.CFG_BUILDINFO_BASEDIR, System.getProperty("java.io.tmpdir"),
+                                    ContainerCommandFactory.CFG_CONTAINERCOMMANDFACTORY_CONTAINERRUNTIME, "10m");
+    TestLogger log = new TestLogger();
+    MavenContainerCommandFactory cmds = new MavenContainerCommandFactory() {
+      @Override
+      protected long expectedTestRuntime(ModuleDirectory mDir, String test) {
+        switch (test) {
+          case "TestStats": return 500;
+          case "TestTxnUtils": return 400;
+          case "TestHdfsUtils": return 300;
+          default: return 30;
+        }
+      }
+    };
+    cmds.setConfig(cfg);
+    cmds.setLog(log);
+    BuildInfo buildInfo = new BuildInfo(TestUtilities.buildYaml(cfg, log), new GitSource(), true, "1");
+    buildInfo.setConfig(cfg).setLog(log);
+    buildInfo.getBuildDir();
+    cmds.buildContainerCommands(new TestContainerClient("test-maven-container-command-factory", "allgood", buildDir, 0), buildInfo);
+    // standalone-metastore has 1470 seconds of tests with a 600 second target, so it is split across 3 containers,
+    // each of which gets one of the long running tests.  ql has 150 seconds of tests, so they all go in one.
+    Assert.assertEquals(8, cmds.getCmds().size());
+    Assert.assertEquals("/bin/bash -c ( cd " + buildDir + "/standalone-metastore; /usr/bin/mvn test -Dsurefire.timeout=300 -Dtest=TestStats -Dtest.groups=\"\")", StringUtils.join(cmds.getCmds().get(2).shellCommand(), " "));
+    Assert.assertEquals(500, cmds.getCmds().get(2).getExpectedRuntime());
+    Assert.assertEquals(490, cmds.getCmds().get(3).getExpectedRuntime());
+    Assert.assertEquals(480, cmds.getCmds().get(4).getExpectedRuntime());
+    Assert.assertTrue(cmds.getCmds().get(5).isIsolated());
+    Assert.assertFalse(cmds.getCmds().get(6).isIsolated());
+    Assert.assertEquals("/bin/bash -c ( cd " + buildDir + "/standalone-metastore; /usr/bin/mvn test -Dsurefire.timeout=300 -Dtest=TestTxnUtils,TestSchemaToolForMetastore,TestSetUGIOnOnlyClient,TestTxnHandlerNegative -Dtest.groups=\"\")", StringUtils.join(cmds.getCmds().get(3).shellCommand(), " "));
+    Assert.assertEquals("/bin/bash -c ( cd " + buildDir + "/standalone-metastore; /usr/bin/mvn test -Dsurefire.timeout=300 -Dtest=TestHdfsUtils,TestMetaStoreUtils,TestMetastoreSchemaTool,TestRetriesInRetryingHMSHandler,TestRetryingHMSHandler,TestSetUGIOnBothClientServer,TestSetUGIOnOnlyServer -Dtest.groups=\"\")", StringUtils.join(cmds.getCmds().get(4).shellCommand(), " "));
+    Assert.assertEquals("/bin/bash -c ( cd " + buildDir + "/ql; /usr/bin/mvn test -Dsurefire.timeout=300 -Dtest=TestCleaner2)", StringUtils.join(cmds.getCmds().get(5).shellCommand(), " "));
+    Assert.assertEquals("/bin/bash -c ( cd " + buildDir + "/ql; /usr/bin/mvn test -Dsurefire.timeout=300 -Dtest=CompactorTest,TestCleaner,TestInitiator,TestWorker2)", StringUtils.join(cmds.getCmds().get(6).shellCommand(), " "));
+    log.dumpToLog();
+  }
+
+  @Test
+  public void buildCommandsByRuntimeAllIsolated() throws IOException {
+    File buildDir = TestUtilities.createBuildDir();
+    Config cfg = TestUtilities.buildCfg(BuildInfo.CFG_BUILDINFO_LABEL, "profile",
+                                    BuildInfo.CFG_BUILDINFO_BASEDIR, System.getProperty("java.io.tmpdir"),
+                                    ContainerCommandFactory.CFG_CONTAINERCOMMANDFACTORY_CONTAINERRUNTIME, "10m");
+    TestLogger log = new TestLogger();
+    MavenContainerCommandFactory cmds = new MavenContainerCommandFactory();
+    cmds.setConfig(cfg);
+    cmds.setLog(log);
+    BuildInfo buildInfo = new BuildInfo(TestUtilities.buildYaml(cfg, log), new GitSource(), true, "1");
+    buildInfo.setConfig(cfg).setLog(log);
+    buildInfo.getBuildDir();
+    ModuleDirectory ql = new ModuleDirectory();
+    ql.setDir("ql");
+    ql.setNeedsSplit(true);
+    ql.setSkippedTests(new String[] {"TestWorker"});
+    ql.setIsolatedTests(new String[] {"CompactorTest", "TestCleaner", "TestCleaner2", "TestInitiator", "TestWorker2"});
+    cmds.buildOneContainerCommand(ql,
+        new TestContainerClient("test-maven-container-command-factory", "allgood", buildDir, 0), buildInfo, 4);
+    // Every test is isolated, so there must not be a leftover command with no tests, as that would run the whole
+    // module, isolated tests included.
+    Assert.assertEquals(5, cmds.getCmds().size());
+    for (ContainerCommand cmd : cmds.getCmds()) {
+      Assert.assertTrue(StringUtils.join(cmd.shellCommand(), " "), cmd.isIsolated());
+    }
+    log.dumpToLog();
+  }
+
+  @Test
+  public void buildRerunCommands() throws IOException {
+    File buildDir = TestUtilities.createBuildDir();
+    Config cfg = TestUtilities.buildCfg(BuildInfo.CFG_BUILDINFO_LABEL, "profile",
+                                    BuildInfo.CFG_BUILDINFO_BASEDIR, System.getProperty("java.io.tmpdir"));
+    TestLogger log = new TestLogger();
+    MavenContainerCommandFactory cmds = new MavenContainerCommandFactory();
+    cmds.setConfig(cfg);
+    cmds.setLog(log);
+    BuildInfo buildInfo = new BuildInfo(TestUtilities.buildYaml(cfg, log), new GitSource(), true, "1");
+    buildInfo.setConfig(cfg).setLog(log);
+    buildInfo.getBuildDir();
+    ContainerClient client = new TestContainerClient("test-maven-container-command-factory", "allgood", buildDir, 0);
+    cmds.buildContainerCommands(client, buildInfo);
+
+    Map<ContainerCommand, Set<String>> failed = new HashMap<>();
+    failed.put(cmds.getCmds().get(2), new HashSet<>(Arrays.asList("TestTxnUtils.testC", "TestStats.testB[1]", "TestStats.testA")));
+    failed.put(cmds.getCmds().get(4), Collections.singleton("TestCleaner2.testD"));
+    List<ContainerCommand> reruns = cmds.buildRerunCommands(client, buildInfo, failed);
+    Assert.assertEquals(2, reruns.size());
+    Assert.assertEquals("/bin/bash -c ( cd " + buildDir + "/standalone-metastore; /usr/bin/mvn test -Dsurefire.timeout=300 -Dtest=TestStats#testA+testB,TestTxnUtils#testC -Dtest.groups=\"\")", StringUtils.join(reruns.get(0).shellCommand(), " "));
+    Assert.assertFalse(reruns.get(0).isIsolated());
+    Assert.assertEquals("/bin/bash -c ( cd " + buildDir + "/ql; /usr/bin/mvn test -Dsurefire.timeout=300 -Dtest=TestCleaner2#testD)", StringUtils.join(reruns.get(1).shellCommand(), " "));
+    Assert.assertTrue(reruns.get(1).isIsolated());
+    // Reruns get their own containers
+    for (ContainerCommand rerun : reruns) {
+      for (ContainerCommand cmd : cmds.getCmds()) Assert.assertNotEquals(cmd.containerSuffix(), rerun.containerSuffix());
+    }
+    log.dumpToLog();
+  }
+
+  @Test
+  public void packByRuntime() {
+    MavenContainerCommandFactory cmds = new MavenContainerCommandFactory();
+    cmds.setLog(new TestLogger());
+    Map<String, Long> runtimes = new HashMap<>();
+    runtimes.put("a", 20L);
+    runtimes.put("b", 20L);
+    runtimes.put("c", 20L);
+    runtimes.put("d", 20L);
+    runtimes.put("e", 20L);
+    runtimes.put("f", 5L);
+    runtimes.put("g", 5L);
+    runtimes.put("h", 5L);
+    runtimes.put("i", 5L);
+    runtimes.put("j", 5L);
+    List<List<String>> groups = cmds.packByRuntime(runtimes.keySet(), runtimes::get, 40);
+    Assert.assertEquals(4, groups.size());
+    for (List<String> group : groups) {
+      long total = 0;
+      for (String test : group) total += runtimes.get(test);
+      Assert.assertTrue("Group " + group + " has runtime " + total, total >= 25 && total <= 40);
+    }
+
+    // A target longer than all the tests together should put everything in one group
+    groups = cmds.packByRuntime(runtimes.keySet(), runtimes::get, 1000);
+    Assert.assertEquals(1, groups.size());
+    Assert.assertEquals(10, groups.get(0).size());
+
+    // Can't have more groups than tests
+    groups = cmds.packByRuntime(Arrays.asList("a", "b"), runtimes::get, 1);
+    Assert.assertEquals(2, groups.size());
+
+    // No tests means no groups
+    Assert.assertTrue(cmds.packByRuntime(Collections.emptyList(), runtimes::get, 40).isEmpty());
+  }
+
+  @Test
+  public void buildCommandsForChangedDirs() throws IOException {
+    File buildDir = TestUtilities.createBuildDir();
+    Config cfg = TestUtilities.buildCfg(BuildInfo.CFG_BUILDINFO_LABEL, "profile",
+                                    BuildInfo.CFG_BUILDINFO_BASEDIR, System.getProperty("java.io.tmpdir"),
+                                    ContainerCommandFactory.CFG_CONTAINERCOMMANDFACTORY_CHANGEDONLY, "true",
+                                    ContainerCommandFactory.CFG_CONTAINERCOMMANDFACTORY_BASEREF, "origin/branch-3");
+    TestLogger log = new TestLogger();
+    MavenContainerCommandFactory cmds = new MavenContainerCommandFactory();
+    cmds.setConfig(cfg);
+    cmds.setLog(log);
+    BuildInfo buildInfo = new BuildInfo(TestUtilities.buildYaml(cfg, log), new GitSource(), true, "1");
+    buildInfo.setConfig(cfg).setLog(log);
+    buildInfo.getBuildDir();
+    TestContainerClient client = new TestContainerClient("test-maven-container-command-factory", "allgood", buildDir, 0);
+    client.changedFiles = "ql/src/java/org/apache/hadoop/hive/ql/Driver.java\n";
+    cmds.buildContainerCommands(client, buildInfo);
+    log.dumpToLog();
+    // ql changed and beeline depends on it, nothing else does
+    Assert.assertEquals(3, cmds.getCmds().size());
+    Assert.assertEquals("/bin/bash -c ( cd " + buildDir + "/beeline; /usr/bin/mvn test -Dsurefire.timeout=300)", StringUtils.join(cmds.getCmds().get(0).shellCommand(), " "));
+    Assert.assertEquals("/bin/bash -c ( cd " + buildDir + "/ql; /usr/bin/mvn test -Dsurefire.timeout=300 -Dtest=TestCleaner2)", StringUtils.join(cmds.getCmds().get(1).shellCommand(), " "));
+    Assert.assertTrue(log.toString().contains("Running tests in 2 of 5 directories, 1 files changed from origin/branch-3 affecting 2 modules"));
+
+    // Nothing changed, so everything runs
+    cmds = new MavenContainerCommandFactory();
+    cmds.setConfig(cfg);
+    cmds.setLog(log);
+    client.changedFiles = "";
+    cmds.buildContainerCommands(client, buildInfo);
+    Assert.assertEquals(7, cmds.getCmds().size());
+
+    // A pom that doesn't parse means we can't tell what is affected, so everything runs
+    cmds = new MavenContainerCommandFactory();
+    cmds.setConfig(cfg);
+    cmds.setLog(log);
+    client.changedFiles = "ql/src/java/org/apache/hadoop/hive/ql/Driver.java\n";
+    client.poms = MavenReactor.POM_MARKER + "./pom.xml\n<project><artifactId>broken\n";
+    cmds.buildContainerCommands(client, buildInfo);
+    Assert.assertEquals(7, cmds.getCmds().size());
+    Assert.assertTrue(log.toString().contains("Unable to read the project's poms, running all tests"));
+  }
+
   private static class TestContainerClient extends MockContainerClient {
 
     public TestContainerClient(String containerName, String cannedDir, File buildDir, int rc) throws IOException {
       super(containerName, cannedDir, buildDir, rc);
     }
 
+    String changedFiles;
+    String poms = TestMavenReactor.POM_DUMP;
+
     @Override
     public ContainerResult runContainer(ContainerCommand cmd) {
       // Doing our own mocking here
       String shellCmd = StringUtils.join(cmd.shellCommand(), " ");
-      if (shellCmd.contains("standalone-metastore") && shellCmd.contains("find")) {
+      if (shellCmd.contains("git diff --name-only origin/branch-3...HEAD")) {
+        return new ContainerResult(cmd, "unnamed", 0, changedFiles);
+      } else if (shellCmd.contains(MavenReactor.POM_DUMP_CMD)) {
+        return new ContainerResult(cmd, "unnamed", 0, poms);
+      } else if (shellCmd.contains("standalone-metastore") && shellCmd.contains("find")) {
         return new ContainerResult(cmd, "unnamed", 0, "standalone-metastore/src/test/java//org/apache/hadoop/hive/metastore/TestRetriesInRetryingHMSHandler.java\n" +
             "standalone-metastore/src/test/java//org/apache/hadoop/hive/metastore/TestRetryingHMSHandler.java\n" +
             "standalone-metastore/src/test/java//org/apache/hadoop/hive/metastore/TestSetUGIOnBothClientServer.java\n" +
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2018 Hortonworks Inc.
+ *
+ * Licenced under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.dtest.core.mvn;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+
+public class TestMavenReactor {
+
+  /**
+   * Output of {@link MavenReactor#POM_DUMP_CMD} for a small project laid out like the one in profile.yaml.
+   */
+  static final String POM_DUMP =
+      MavenReactor.POM_MARKER + "./pom.xml\n" +
+      pom("org.apache.hive", "hive", null) +
+      MavenReactor.POM_MARKER + "./beeline/pom.xml\n" +
+      pom(null, "hive-beeline", "hive", "${project.groupId}:hive-exec") +
+      MavenReactor.POM_MARKER + "./cli/pom.xml\n" +
+      pom(null, "hive-cli", "hive", "org.apache.hive:hive-common") +
+      MavenReactor.POM_MARKER + "./common/pom.xml\n" +
+      pom(null, "hive-common", "hive", "junit:junit") +
+      MavenReactor.POM_MARKER + "./itests/pom.xml\n" +
+      pom(null, "hive-it", "hive") +
+      MavenReactor.POM_MARKER + "./itests/qtest/pom.xml\n" +
+      pom(null, "hive-it-qfile", "hive-it", "org.apache.hive:hive-cli") +
+      MavenReactor.POM_MARKER + "./ql/pom.xml\n" +
+      pom(null, "hive-exec", "hive", "org.apache.hive:hive-common") +
+      MavenReactor.POM_MARKER + "./standalone-metastore/pom.xml\n" +
+      pom("org.apache.hive", "hive-standalone-metastore", null);
+
+  static String pom(String groupId, String artifactId, String parent, String... deps) {
+    StringBuilder buf = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<project>\n");
+    if (parent != null) {
+      buf.append("  <parent>\n    <groupId>org.apache.hive</groupId>\n    <artifactId>").append(parent)
+          .append("</artifactId>\n  </parent>\n");
+    }
+    if (groupId != null) buf.append("  <groupId>").append(groupId).append("</groupId>\n");
+    buf.append("  <artifactId>").append(artifactId).append("</artifactId>\n  <dependencies>\n");
+    for (String dep : deps) {
+      String[] parts = dep.split(":");
+      buf.append("    <dependency>\n      <groupId>").append(parts[0]).append("</groupId>\n      <artifactId>")
+          .append(parts[1]).append("</artifactId>\n    </dependency>\n");
+    }
+    return buf.append("  </dependencies>\n</project>\n").toString();
+  }
+
+  @Test
+  public void modules() throws IOException {
+    MavenReactor reactor = MavenReactor.parse(POM_DUMP);
+    Assert.assertEquals(new TreeSet<>(Arrays.asList("", "beeline", "cli", "common", "itests", "itests/qtest", "ql",
+        "standalone-metastore")), reactor.getModuleDirs());
+  }
+
+  @Test
+  public void dependents() throws IOException {
+    MavenReactor reactor = MavenReactor.parse(POM_DUMP);
+    Set<String> affected = reactor.affectedModules(Collections.singletonList("ql/src/java/org/apache/Driver.java"));
+    Assert.assertEquals(new TreeSet<>(Arrays.asList("beeline", "ql")), affected);
+
+    affected = reactor.affectedModules(Collections.singletonList("common/src/java/org/apache/Conf.java"));
+    Assert.assertEquals(new TreeSet<>(Arrays.asList("beeline", "cli", "common", "itests/qtest", "ql")), affected);
+
+    affected = reactor.affectedModules(Arrays.asList("standalone-metastore/pom.xml",
+        "itests/qtest/src/test/TestCliDriver.java"));
+    Assert.assertEquals(new TreeSet<>(Arrays.asList("itests/qtest", "standalone-metastore")), affected);
+  }
+
+  @Test
+  public void parentPom() throws IOException {
+    MavenReactor reactor = MavenReactor.parse(POM_DUMP);
+    Set<String> affected = reactor.affectedModules(Collections.singletonList("itests/pom.xml"));
+    Assert.assertEquals(new TreeSet<>(Arrays.asList("itests", "itests/qtest")), affected);
+
+    // Everything but the standalone metastore has the top level pom as a parent
+    affected = reactor.affectedModules(Collections.singletonList("pom.xml"));
+    Assert.assertEquals(7, affected.size());
+    Assert.assertFalse(affected.contains("standalone-metastore"));
+  }
+}
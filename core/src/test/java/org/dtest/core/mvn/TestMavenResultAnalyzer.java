@@ -20,8 +20,10 @@ import org.dtest.core.Config;
 import org.dtest.core.ContainerClient;
 import org.dtest.core.ContainerCommand;
 import org.dtest.core.ContainerResult;
+import org.dtest.core.LineListener;
 import org.dtest.core.ModuleDirectory;
 import org.dtest.core.Reporter;
+import org.dtest.core.TestHistory;
 import org.dtest.core.testutils.TestUtilities;
 import org.dtest.core.testutils.MockContainerClient;
 import org.dtest.core.testutils.MockContainerCommand;
@@ -33,7 +35,9 @@ import org.junit.Test;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 
 public class TestMavenResultAnalyzer {
@@ -101,6 +105,48 @@ public class TestMavenResultAnalyzer {
     log.dumpToLog();
   }
 
+  @Test
+  public void recordHistory() throws IOException {
+    File buildDir = TestUtilities.createBuildDir();
+    String containerName = "maven-result-analyzer-record-history";
+    TestLogger log = new TestLogger();
+    Config cfg = TestUtilities.buildCfg(TestHistory.CFG_TESTHISTORY_FILE,
+        new File(buildDir, "history.tsv").getAbsolutePath());
+    TestHistory history = new TestHistory();
+    history.setConfig(cfg).setLog(log);
+    history.load();
+    MavenResultAnalyzer analyzer = new MavenResultAnalyzer();
+    analyzer.setTestHistory(history);
+    Reporter reporter = new MockReporter(buildDir);
+    ContainerClient client = new MockContainerClient(containerName, "with-error-and-failure", buildDir, 0);
+    client.setLog(log);
+    client.setConfig(cfg);
+    ModuleDirectory moduleDir = new ModuleDirectory();
+    moduleDir.setDir("core");
+    ContainerCommand cmd = new MockContainerCommand(moduleDir, containerName, buildDir.getAbsolutePath(), "/bin/bash");
+    ContainerResult cr = client.runContainer(cmd);
+    client.fetchTestReports(cr, analyzer, reporter, null);
+    analyzer.analyzeResult(cr, cmd);
+
+    TestHistory.Entry entry = history.get("core", "TestFake");
+    Assert.assertNotNull(entry);
+    Assert.assertEquals(75, entry.getAverageMillis());
+    Assert.assertEquals(TestHistory.Outcome.FAILURE, entry.getLastOutcome());
+    Assert.assertEquals(containerName, entry.getLastContainer());
+    entry = history.get("core", "TestFake", "fail");
+    Assert.assertEquals(11, entry.getAverageMillis());
+    Assert.assertEquals(1, entry.getFailures());
+    Assert.assertEquals(TestHistory.Outcome.ERROR, history.get("core", "TestFakeTwo").getLastOutcome());
+    Assert.assertEquals(TestHistory.Outcome.SUCCESS, history.get("core", "TestConfig").getLastOutcome());
+
+    // Results should have been written out once the container was analyzed
+    TestHistory reread = new TestHistory();
+    reread.setConfig(cfg).setLog(log);
+    reread.load();
+    Assert.assertEquals(history.getEntries().size(), reread.getEntries().size());
+    log.dumpToLog();
+  }
+
   @Test
   public void successfulLog() throws IOException {
     File buildDir = TestUtilities.createBuildDir();
@@ -149,6 +195,112 @@ public class TestMavenResultAnalyzer {
     log.dumpToLog();
   }
 
+  @Test
+  public void listenToOutput() throws IOException {
+    File buildDir = TestUtilities.createBuildDir();
+    String containerName = "maven-result-analyzer-listen";
+    TestLogger log = new TestLogger();
+    Config cfg = TestUtilities.buildCfg();
+    List<String> events = new ArrayList<>();
+    MavenResultAnalyzer analyzer = new MavenResultAnalyzer() {
+      @Override
+      protected void testStarted(ContainerCommand cmd, String testClass) {
+        events.add("started " + testClass);
+      }
+
+      @Override
+      protected void testFinished(ContainerCommand cmd, String testClass, int run, int failures, int errors,
+                                  int skipped) {
+        events.add("finished " + testClass + " " + run + " " + failures + " " + errors + " " + skipped);
+      }
+    };
+    analyzer.setConfig(cfg).setLog(log);
+    Reporter reporter = new MockReporter(buildDir);
+    // The canned output has no timeouts, so if one is found it came from the listener
+    ContainerClient client = new MockContainerClient(containerName, "with-error-and-failure", buildDir, 0);
+    client.setLog(log);
+    client.setConfig(cfg);
+    ContainerCommand cmd = new MockContainerCommand(containerName, buildDir.getAbsolutePath(), "/bin/bash");
+    LineListener listener = analyzer.listenTo(cmd);
+    listener.line("[INFO] Running org.dtest.core.TestFake");
+    listener.line("[ERROR] Tests run: 5, Failures: 1, Errors: 0, Skipped: 1, Time elapsed: 0.02 s <<< FAILURE! - in " +
+        "org.dtest.core.TestFake");
+    listener.line("Running org.dtest.core.TestFakeTwo");
+    listener.line("Tests run: 3, Failures: 0, Errors: 1, Skipped: 0, Time elapsed: 0.666 sec - in " +
+        "org.dtest.core.TestFakeTwo");
+    listener.line("[INFO] Tests run: 8, Failures: 1, Errors: 1, Skipped: 1");
+    listener.line("[ERROR] Failed to execute goal org.apache.maven.plugins:maven-surefire-plugin:2.21.0:test " +
+        "(default-test) on project dtest-core: There was a timeout or other error in the fork -> [Help 1]");
+    Assert.assertEquals(Arrays.asList("started org.dtest.core.TestFake", "finished org.dtest.core.TestFake 5 1 0 1",
+        "started org.dtest.core.TestFakeTwo", "finished org.dtest.core.TestFakeTwo 3 0 1 0"), events);
+    Assert.assertTrue(log.toString(), log.toString().contains(
+        "Finished org.dtest.core.TestFakeTwo, 2 test classes and 8 tests run so far, 2 failed or had errors"));
+
+    ContainerResult cr = client.runContainer(cmd);
+    client.fetchTestReports(cr, analyzer, reporter, null);
+    analyzer.analyzeResult(cr, cmd);
+    Assert.assertEquals(BuildState.State.HAD_TIMEOUTS, analyzer.getBuildState().getState());
+    log.dumpToLog();
+  }
+
+  @Test
+  public void rerun() throws IOException {
+    File buildDir = TestUtilities.createBuildDir();
+    String containerName = "maven-result-analyzer-rerun";
+    TestLogger log = new TestLogger();
+    Config cfg = TestUtilities.buildCfg();
+    MavenResultAnalyzer analyzer = new MavenResultAnalyzer();
+    analyzer.setConfig(cfg).setLog(log);
+    Reporter reporter = new MockReporter(buildDir);
+    ContainerClient client = new MockContainerClient(containerName, "with-error-and-failure", buildDir, 0);
+    client.setLog(log);
+    client.setConfig(cfg);
+    ContainerCommand cmd = new MockContainerCommand(containerName, buildDir.getAbsolutePath(), "/bin/bash");
+    ContainerResult cr = client.runContainer(cmd);
+    client.fetchTestReports(cr, analyzer, reporter, null);
+    analyzer.analyzeResult(cr, cmd);
+
+    Assert.assertEquals(1, analyzer.getFailedTestsByCommand().size());
+    Assert.assertEquals(new HashSet<>(Arrays.asList("TestFake.fail", "TestFakeTwo.errorTwo")),
+        analyzer.getFailedTestsByCommand().get(cmd));
+
+    // The first rerun fails the same way, nothing changes
+    containerName = "maven-result-analyzer-rerun-again";
+    client = new MockContainerClient(containerName, "with-error-and-failure", buildDir, 0);
+    client.setLog(log);
+    client.setConfig(cfg);
+    ContainerCommand rerunCmd = new MockContainerCommand(containerName, buildDir.getAbsolutePath(), "/bin/bash");
+    cr = client.runContainer(rerunCmd);
+    client.fetchTestReports(cr, analyzer, reporter, null);
+    analyzer.analyzeRerunResult(cr, rerunCmd);
+
+    Assert.assertEquals(ContainerResult.ContainerStatus.FAILED, cr.getAnalysisResult());
+    Assert.assertEquals(0, analyzer.getFlaky().size());
+    Assert.assertEquals(Collections.singletonList("TestFake.fail"), analyzer.getFailed());
+    Assert.assertEquals(Collections.singletonList("TestFakeTwo.errorTwo"), analyzer.getErrors());
+    Assert.assertEquals(17, analyzer.getSucceeded());
+    Assert.assertTrue(cr.getReports().getKeptFiles().containsKey("TestFakeTwo"));
+
+    // The second rerun passes, so both are flaky
+    containerName = "maven-result-analyzer-rerun-passes";
+    client = new MockContainerClient(containerName, "rerun", buildDir, 0);
+    client.setLog(log);
+    client.setConfig(cfg);
+    rerunCmd = new MockContainerCommand(containerName, buildDir.getAbsolutePath(), "/bin/bash");
+    cr = client.runContainer(rerunCmd);
+    client.fetchTestReports(cr, analyzer, reporter, null);
+    analyzer.analyzeRerunResult(cr, rerunCmd);
+
+    Assert.assertEquals(ContainerResult.ContainerStatus.SUCCEEDED, cr.getAnalysisResult());
+    Assert.assertEquals(Arrays.asList("TestFake.fail", "TestFakeTwo.errorTwo"), analyzer.getFlaky());
+    Assert.assertEquals(0, analyzer.getFailed().size());
+    Assert.assertEquals(0, analyzer.getErrors().size());
+    Assert.assertEquals(17, analyzer.getSucceeded());
+    // Reruns don't change the state of the build, that's up to the caller
+    Assert.assertEquals(BuildState.State.HAD_FAILURES_OR_ERRORS, analyzer.getBuildState().getState());
+    log.dumpToLog();
+  }
+
   @Test
   public void testBuildStateTransitions() throws IOException {
     // Timeout followed by success should still give a build state of timeout.
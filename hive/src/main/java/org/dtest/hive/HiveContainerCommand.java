@@ -51,6 +51,14 @@ public class HiveContainerCommand extends MavenContainerCommand {
     isITest = true;
   }
 
+  /**
+   * Get the qfiles this command will run.
+   * @return qfiles, empty if this command is not running qfile tests.
+   */
+  List<String> getQfiles() {
+    return qfiles;
+  }
+
   @Override
   public String containerSuffix() {
     return isITest ? super.containerSuffix() : "itest-" + cmdNumber;
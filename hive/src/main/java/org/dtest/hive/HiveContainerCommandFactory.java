@@ -23,6 +23,7 @@ import org.dtest.core.ContainerClient;
 import org.dtest.core.ContainerCommand;
 import org.dtest.core.mvn.MavenContainerCommandFactory;
 import org.dtest.core.ModuleDirectory;
+import org.dtest.core.TestHistory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -39,6 +40,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Hive specialization of MavenContainerCommandFactory.  Implements quite a bit of special logic to handle qfile tests.
@@ -67,6 +69,19 @@ public class HiveContainerCommandFactory extends MavenContainerCommandFactory {
       //"/usr/bin/mvn install -DskipSparkTests -DskipTests");
   }
 
+  @Override
+  public List<String> getIncrementalBuildCommand(String changedFilesCommand) {
+    List<String> cmds =
+        new ArrayList<>(super.getIncrementalBuildCommand(changedFilesCommand + " | grep -v '^itests/'"));
+    cmds.add("cd itests");
+    // itests is its own reactor, built against what the main one installed.  So it can only be built incrementally
+    // if nothing outside of it changed, otherwise it is built in full the same as the first time.
+    List<String> itests = super.getIncrementalBuildCommand(changedFilesCommand + " | sed -n 's|^itests/||p'");
+    cmds.add("if " + changedFilesCommand + " | grep -qv '^itests/'; then /usr/bin/mvn install -DskipTests; else " +
+        StringUtils.join(itests, "; ") + "; fi");
+    return cmds;
+  }
+
   @Override
   protected void buildOneContainerCommand(ModuleDirectory simple, ContainerClient containerClient,
                                           BuildInfo buildInfo, int testsPerContainer) throws IOException {
@@ -86,7 +101,9 @@ public class HiveContainerCommandFactory extends MavenContainerCommandFactory {
       // Deal with any tests that need to be run alone
       if (mDir.isSetIsolatedQFiles()) {
         for (String test : mDir.getIsolatedQFiles()) {
-          cmds.add(buildOneQFilesCmd(mDir, containerClient, Collections.singleton(test), mDir));
+          ContainerCommand cmd = buildOneQFilesCmd(mDir, containerClient, Collections.singleton(test), mDir);
+          cmd.setIsolated(true);
+          cmds.add(cmd);
           qfiles.remove(test);
         }
       }
@@ -105,6 +122,51 @@ public class HiveContainerCommandFactory extends MavenContainerCommandFactory {
     }
   }
 
+  @Override
+  protected long estimateRuntime(ModuleDirectory mDir, ContainerCommand cmd) {
+    if (!(cmd instanceof HiveContainerCommand) || ((HiveContainerCommand)cmd).getQfiles().isEmpty()) {
+      return super.estimateRuntime(mDir, cmd);
+    }
+    // The history records each qfile as a method of the driver, without the .q
+    long defaultMillis = TimeUnit.SECONDS.toMillis(cfg.getAsTime(CFG_CONTAINERCOMMANDFACTORY_DEFAULTTESTRUNTIME,
+        TimeUnit.SECONDS, CFG_CONTAINERCOMMANDFACTORY_DEFAULTTESTRUNTIME_DEFAULT));
+    long millis = 0;
+    for (String qfile : ((HiveContainerCommand)cmd).getQfiles()) {
+      String name = qfile.endsWith(".q") ? qfile.substring(0, qfile.length() - 2) : qfile;
+      TestHistory.Entry entry = testHistory == null ? null : testHistory.get(mDir.getDir(), mDir.getSingleTest(), name);
+      millis += entry == null || entry.getAverageMillis() == 0 ? defaultMillis : entry.getAverageMillis();
+    }
+    return Math.max(1, TimeUnit.MILLISECONDS.toSeconds(millis));
+  }
+
+  @Override
+  protected List<ContainerCommand> buildRerunCommands(ModuleDirectory mDir, ContainerCommand cmd,
+                                                      ContainerClient containerClient, Collection<String> tests,
+                                                      int testsPerContainer) throws IOException {
+    if (!(cmd instanceof HiveContainerCommand) || ((HiveContainerCommand)cmd).getQfiles().isEmpty()) {
+      return super.buildRerunCommands(mDir, cmd, containerClient, tests, testsPerContainer);
+    }
+    // Failed qfiles are reported as Driver.qfile, without the .q.  Anything else that failed in the driver is
+    // handled as a regular test.
+    List<String> qfiles = new ArrayList<>();
+    List<String> others = new ArrayList<>();
+    for (String test : tests) {
+      String qfile = test.substring(test.indexOf('.') + 1) + ".q";
+      if (((HiveContainerCommand)cmd).getQfiles().contains(qfile)) qfiles.add(qfile);
+      else others.add(test);
+    }
+    Collections.sort(qfiles);
+    List<ContainerCommand> reruns = new ArrayList<>();
+    for (int i = 0; i < qfiles.size(); i += testsPerContainer) {
+      ContainerCommand rerun = buildOneQFilesCmd(mDir, containerClient,
+          qfiles.subList(i, Math.min(qfiles.size(), i + testsPerContainer)), (HiveModuleDirectory)mDir);
+      rerun.setIsolated(cmd.isIsolated());
+      reruns.add(rerun);
+    }
+    if (!others.isEmpty()) reruns.addAll(super.buildRerunCommands(mDir, cmd, containerClient, others, testsPerContainer));
+    return reruns;
+  }
+
   @Override
   protected ModuleDirectory[] getModuleDirs(BuildYaml yaml) {
     log.debug("HiveContainerCommandFactory fetching module directories");
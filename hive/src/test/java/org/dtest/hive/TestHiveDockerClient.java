@@ -77,8 +77,8 @@ public class TestHiveDockerClient {
 
     Assert.assertTrue(buf.toString().startsWith("FROM centos\n" +
         "\n" +
-        "RUN yum upgrade -y && yum update -y\n" +
-        "RUN yum install -y java-1.8.0-openjdk-devel git unzip maven \n" +
+        "RUN yum upgrade -y && yum update -y && \\\n" +
+        "    yum install -y git java-1.8.0-openjdk-devel maven unzip\n" +
         "\n" +
         "\n" +
         "RUN useradd -m dtestuser\n" +
@@ -90,6 +90,16 @@ public class TestHiveDockerClient {
         "    /usr/bin/git clone repo; \\\n" +
         "    cd hive; \\\n" +
         "    /usr/bin/git checkout master; \\\n" +
+        "    /usr/bin/mvn -q dependency:go-offline --fail-at-end; \\\n" +
+        "    cd /home/dtestuser; \\\n" +
+        "    rm -rf hive; \\\n" +
+        "}\n" +
+        "\n" +
+        "RUN { \\\n" +
+        "    cd /home/dtestuser; \\\n" +
+        "    /usr/bin/git clone repo; \\\n" +
+        "    cd hive; \\\n" +
+        "    /usr/bin/git checkout master; \\\n" +
         "    /usr/bin/mvn install -DskipTests; \\\n" +
         "    cd itests; \\\n" +
         "    /usr/bin/mvn install -DskipTests; \\\n" +